@@ -109,14 +109,74 @@ public class EmailProxy extends Thread
                             symmetricAlgorithm = SymmetricAlgorithmSettings.CAST5;
                         } else if ("3DES".compareToIgnoreCase(symAlg)==0) {
                             symmetricAlgorithm = SymmetricAlgorithmSettings.TRIPLEDES;
+                        } else if ("AES128".compareToIgnoreCase(symAlg)==0) {
+                            symmetricAlgorithm = SymmetricAlgorithmSettings.AES128;
+                        } else if ("AES192".compareToIgnoreCase(symAlg)==0) {
+                            symmetricAlgorithm = SymmetricAlgorithmSettings.AES192;
+                        } else if ("AES256".compareToIgnoreCase(symAlg)==0) {
+                            symmetricAlgorithm = SymmetricAlgorithmSettings.AES256;
                         } else {
                             System.err.println("Symmetric algorithm '"+symAlg+"' is not supported.");
                         }
+
+                        String workerThreads = configData.getSetting("openpgp.workerthreads","0");
+                        try {
+                            WorkerPool.setDefaultPoolSize(Integer.parseInt(workerThreads.trim()));
+                        } catch (NumberFormatException e) {
+                            System.err.println("Worker thread count '"+workerThreads+"' is not a number.");
+                        }
+
+                        String hashAlg = configData.getSetting("openpgp.hashalgorithm.used","SHA1");
+                        int hashAlgorithm = HashAlgorithmSettings.SHA1;
+                        try {
+                            hashAlgorithm = HashAlgorithmSettings.getHashAlgorithm(hashAlg);
+                        } catch (AlgorithmException e) {
+                            System.err.println("Hash algorithm '"+hashAlg+"' is not supported.");
+                        }
                         
-                        algorithmHandler = new OpenPGPHandler(
-                            symmetricAlgorithm
+                        OpenPGPHandler openPGPHandler = new OpenPGPHandler(
+                            symmetricAlgorithm,
+                            hashAlgorithm
                         );
                         
+                        String compAlg = configData.getSetting("openpgp.compression.used","ZIP");
+                        String compLevel = configData.getSetting("openpgp.compression.level","-1");
+                        String compStrategy = configData.getSetting("openpgp.compression.strategy","DEFAULT");
+                        try {
+                            openPGPHandler.setCompression(
+                                CompressionAlgorithmSettings.getCompressionAlgorithm(compAlg),
+                                Integer.parseInt(compLevel.trim()),
+                                CompressionAlgorithmSettings.getCompressionStrategy(compStrategy)
+                            );
+                        } catch (Exception e) {
+                            System.err.println("Compression settings '"+compAlg+"', '"+compLevel+"', '"+compStrategy+"' are not supported.");
+                        }
+
+                        String attachMem = configData.getSetting("openpgp.attachmentmemory","0");
+                        try {
+                            openPGPHandler.setAttachmentMemoryLimit(Long.parseLong(attachMem.trim()) * 1024 * 1024);
+                        } catch (NumberFormatException e) {
+                            System.err.println("Attachment memory limit '"+attachMem+"' is not a number.");
+                        }
+                        
+                        String verifyCache = configData.getSetting("openpgp.verificationcache",Integer.toString(SignatureVerificationCache.DEFAULT_SIZE));
+                        try {
+                            openPGPHandler.setVerificationCache(new SignatureVerificationCache(Integer.parseInt(verifyCache.trim())));
+                        } catch (NumberFormatException e) {
+                            System.err.println("Verification cache size '"+verifyCache+"' is not a number.");
+                        }
+                        
+                        String blockCache = configData.getSetting("openpgp.blockcache","0");
+                        try {
+                            long size = Long.parseLong(blockCache.trim()) * 1024 * 1024;
+                            if (size > 0)
+                                openPGPHandler.setSharedBlockCache(new DecryptedBlockCache(size));
+                        } catch (NumberFormatException e) {
+                            System.err.println("Decrypted block cache size '"+blockCache+"' is not a number.");
+                        }
+                        
+                        algorithmHandler = openPGPHandler;
+                        
                         
                         // Load key manager lists
                             Vector pubkm = new Vector();
@@ -168,6 +228,29 @@ public class EmailProxy extends Thread
 
                     incomingPipe = new IncomingEmailPipe(pop3,algorithmHandler,secretKeyManagers,publicKeyManagers,serverSide);
 
+                    // Create read-ahead connection
+                        if (serverSide!=null) {
+                            POP3Handler prefetchSide = new POP3Handler();
+                            prefetchSide.initClientConnection(
+                                configData.getSetting("mailserver.incoming.address",""),
+                                Integer.parseInt(configData.getSetting("mailserver.incoming.port","110"))
+                            );
+                            incomingPipe.setPrefetch(prefetchSide, Integer.parseInt(configData.getSetting("proxyserver.incoming.prefetch","0")));
+                        }
+
+                    // Create processed message cache
+                        String cacheDir = configData.getSetting("proxyserver.incoming.cache.directory","");
+                        if (cacheDir.trim().length()>0) {
+                            try {
+                                incomingPipe.setMessageCache(new ProcessedMessageCache(
+                                    new File(cacheDir.trim()),
+                                    Long.parseLong(configData.getSetting("proxyserver.incoming.cache.size","50").trim()) * 1024 * 1024
+                                ));
+                            } catch (Exception e) {
+                                System.err.println("Message cache '"+cacheDir+"' could not be opened, " + e.getMessage());
+                            }
+                        }
+
 
                // Create outgoing SMTP pipe
                     SMTPHandler smtp = new SMTPHandler();
@@ -39,6 +39,7 @@ import core.algorithmhandlers.*;
 import core.keyhandlers.*;
 import core.email.*;
 import java.security.PrivateKey;
+import java.util.*;
 import java.lang.*;
 import java.io.*;
 import java.net.*;
@@ -74,6 +75,25 @@ public class IncomingEmailPipe extends EmailPipe
         protected RecvPipeServerInterface protocolServer;
         /** The object that handles connections to the email server. */
         protected RecvPipeClientInterface protocolClient;
+        /** A second connection to the email server used to prefetch messages, or null. */
+        protected RecvPipeClientInterface prefetchClient;
+        /** Maximum number of messages to prefetch ahead of the client. */
+        protected int prefetchSize;
+        
+        /** Cache of messages that have already been processed, or null. */
+        protected ProcessedMessageCache messageCache;
+        
+        /** The prefetcher for the current session, or null. */
+        private MessagePrefetcher prefetcher;
+        
+        /** The mailbox (user) of the current session. */
+        private String mailbox;
+        
+        /** Unique ids of the messages in the current session, keyed by message number. */
+        private Hashtable sessionUids;
+        
+        /** Anything the algorithm handler keeps between the messages of the current session. */
+        private Hashtable algorithmSession;
         
         /**
          * <p>Incoming email pipe constructor. </p>
@@ -113,6 +133,26 @@ public class IncomingEmailPipe extends EmailPipe
                                      }
         }
 
+        /** <p>Enable read-ahead of messages.</p>
+         * <p>When the email client lists the mailbox, the listed messages are fetched over a second connection and decrypted 
+         * in the background, so that the client's RETR commands can be answered without waiting for the server.</p>
+         * @param protocolClientHandler An unconnected server facing mail handler, configured for the same server as the pipe.
+         * @param size Maximum number of messages to hold ready, 0 to disable prefetching.
+         * @see MessagePrefetcher
+         */
+        public void setPrefetch(RecvPipeClientInterface protocolClientHandler, int size) {
+            prefetchClient = protocolClientHandler;
+            prefetchSize = size;
+        }
+
+        /** <p>Set the cache used to avoid processing the same message more than once.</p>
+         * @param cache The cache, or null to disable caching.
+         * @see ProcessedMessageCache
+         */
+        public void setMessageCache(ProcessedMessageCache cache) {
+            messageCache = cache;
+        }
+
         /** <p>Stop the pipe.</p>
          * <p>Stops the email pipe. </p>
          * <p>When stopping the protocolServer object stopPipe will handle any exception generated as a result of the socket
@@ -121,6 +161,11 @@ public class IncomingEmailPipe extends EmailPipe
         public void stopPipe() {
             setRunning(false);
 
+            if (prefetcher!=null) {
+                prefetcher.stopPrefetch();
+                prefetcher = null;
+            }
+
             try {
                 if (protocolServer!=null)
                     protocolServer.disconnectFromClient();
@@ -171,6 +216,15 @@ public class IncomingEmailPipe extends EmailPipe
                     // TODO:
                         // Prompt for passphrase if not already done so
 
+                    // details needed to start a prefetcher
+                    String user = null;
+                    String passcode = null;
+                    IPTPCommand lastCommand = null;
+                    
+                    mailbox = "";
+                    sessionUids = new Hashtable();
+                    algorithmSession = new Hashtable();
+
                     // Process email transaction until either socket is disconnected
                     printStatus("Processing commands...");
                     while ((protocolClient.isConnectedToServer()) && (protocolServer.isConnectedToClient())) {
@@ -188,6 +242,28 @@ public class IncomingEmailPipe extends EmailPipe
                            printErr("Mail server reported an error, will try and continue.");
                         }
 
+                        // remember unique ids for the cache
+                        if ((incoming instanceof IPTPUidlResponse) && (incoming.isOk())) {
+                            Vector numbers = new Vector();
+                            Vector uids = new Vector();
+                            MessagePrefetcher.parseListing(((IPTPUidlResponse)incoming).getScanlisting(), numbers, uids);
+                            for (int n = 0; n < numbers.size(); n++)
+                                sessionUids.put(numbers.elementAt(n), uids.elementAt(n));
+                        }
+
+                        // start reading ahead once the client has listed the mailbox
+                        if ((prefetcher==null) && (prefetchClient!=null) && (prefetchSize>0) && (user!=null) && (passcode!=null)
+                                && (incoming.isOk()) && (lastCommand!=null) && (lastCommand.isExpectingMultilineResponse())) {
+
+                            if (incoming instanceof IPTPUidlResponse) {
+                                prefetcher = new MessagePrefetcher(this, prefetchClient, user, passcode, true, ((IPTPUidlResponse)incoming).getScanlisting(), prefetchSize);
+                                prefetcher.start();
+                            } else if (incoming instanceof IPTPListResponse) {
+                                prefetcher = new MessagePrefetcher(this, prefetchClient, user, passcode, false, ((IPTPListResponse)incoming).getScanlisting(), prefetchSize);
+                                prefetcher.start();
+                            }
+                        }
+
                         // test for quit and mail request
                         if (incoming instanceof IPTPRetrResponse) {
                             if (incoming.isOk()) {
@@ -195,38 +271,8 @@ public class IncomingEmailPipe extends EmailPipe
 
                                 // Create an email object
                                 IPTPRetrResponse cr = (IPTPRetrResponse)incoming;
-                                Email email = new Email(cr.getMessage().getBytes());
-
-                                // do decryption / verification
-                                if (algorithm!=null) {
-                                    
-                                    boolean retry; 
-                                    printStatus("Decrypting/Verifying email...");
-                                    
-                                    do {
-                                        retry = false;
-                                                                                
-                                        try {
-                                            email = algorithm.processIncomingMail(publicKeyHandlers, secretKeyHandlers, email, passPhrases);
-                                        } catch (ChecksumFailureException cfe) {
-                                            
-                                            retry = true;
-                                            
-                                            EnterPassphraseDlg dlg = new EnterPassphraseDlg("Enter passphrase for decryption key", cfe.getMessage(), new javax.swing.JFrame(), true, false);
-                                            PassphraseDlgReturnValue passphrase = dlg.showPasswordDialog();
-                                            
-                                            if (passphrase.getButtonPressed()==PassphraseDlgReturnValue.ABORT) {
-                                                // abort
-                                                throw new ProxyServerCoreException("Mail transfer aborted by user");
-                                            } else {
-                                                // add passphrase to list
-                                                if (passphrase.getPassphrase()!=null) {
-                                                    addPassphrase(new PassPhrase(passphrase.getPassphrase()));
-                                                }     
-                                            }
-                                        }
-                                    } while (retry);
-                                }
+                                int messageNo = (lastCommand instanceof IPTPRetr) ? ((IPTPRetr)lastCommand).getMessageNo() : -1;
+                                Email email = processEmail(messageNo, new Email(cr.getMessage().getBytes()));
                                 
                                 // send email to client
                                 protocolServer.sendCommandResponse(new IPTPRetrResponse(true, new String(email.getBytes())));
@@ -246,8 +292,18 @@ public class IncomingEmailPipe extends EmailPipe
                             protocolServer.sendCommandResponse(incoming);
                         }
 
-                        // await command
+                        // await command, answering any for messages that have already been prefetched
                         outgoing = protocolServer.awaitCommand();
+                        while ((outgoing instanceof IPTPRetr) && (sendPrefetched((IPTPRetr)outgoing)))
+                            outgoing = protocolServer.awaitCommand();
+
+                        if (outgoing instanceof IPTPUser) {
+                            user = ((IPTPUser)outgoing).getUserID();
+                            mailbox = user;
+                        }
+                        if (outgoing instanceof IPTPPass)
+                            passcode = ((IPTPPass)outgoing).getPasscode();
+                        lastCommand = outgoing;
 
                         // send command to server
                         protocolClient.sendCommand(outgoing);
@@ -263,4 +319,177 @@ public class IncomingEmailPipe extends EmailPipe
                 System.gc(); // now should be a good time to do a little bit of cleanup
             }
      	}
+
+        /**
+         * <p>Decrypt and verify an email received from the server, using the message cache if there is one.</p>
+         * @param messageNo The message number in the current session.
+         * @throws ProxyServerCoreException if the email could not be processed or the user aborted.
+         */
+        private Email processEmail(int messageNo, Email email) throws ProxyServerCoreException {
+            Email processed = getCachedEmail(messageNo, email);
+            if (processed!=null) {
+                printStatus("Email " + messageNo + " has already been processed, using cached copy...");
+                return processed;
+            }
+
+            processed = processEmail(email);
+            cacheEmail(messageNo, email, processed);
+
+            return processed;
+        }
+
+        /**
+         * <p>Look up a processed message in the message cache.</p>
+         * @param messageNo The message number in the current session.
+         * @param email The message as received from the server.
+         * @return The processed message, or null if it has not been cached.
+         */
+        Email getCachedEmail(int messageNo, Email email) {
+            if ((messageCache==null) || (algorithm==null))
+                return null;
+
+            try {
+                byte data[] = messageCache.get(mailbox, getUid(messageNo), email.getBytes(), getKeyState());
+                if (data!=null)
+                    return new Email(data);
+            } catch (ProxyServerCoreException e) {
+                // can't use it, process the message again
+            }
+
+            return null;
+        }
+
+        /**
+         * <p>Store a processed message in the message cache.</p>
+         * @param messageNo The message number in the current session.
+         * @param email The message as received from the server.
+         * @param processed The processed message.
+         */
+        void cacheEmail(int messageNo, Email email, Email processed) {
+            if ((messageCache==null) || (algorithm==null))
+                return;
+
+            try {
+                messageCache.put(mailbox, getUid(messageNo), email.getBytes(), getKeyState(), processed.getBytes());
+            } catch (Exception e) {
+                printErr("Could not cache message, " + e.getMessage());
+            }
+        }
+
+        /**
+         * <p>Called by the prefetcher when it gives up.</p>
+         * <p>This is not an error as far as the user is concerned, the pipe simply fetches the remaining messages itself.</p>
+         * @param reason Why the prefetcher stopped.
+         * @see MessagePrefetcher
+         */
+        void prefetchStopped(String reason) {
+            printStatus("Prefetch stopped, " + reason);
+        }
+
+        /** Return the algorithm handler's table for the current session, this is synchronized and may be shared with the prefetcher. */
+        Hashtable getAlgorithmSession() {
+            return algorithmSession;
+        }
+
+        /** Return the unique id of a message in the current session, or an empty string if it is not known. */
+        private String getUid(int messageNo) {
+            String uid = null;
+            if (sessionUids!=null)
+                uid = (String)sessionUids.get(new Integer(messageNo));
+
+            return (uid!=null) ? uid : "";
+        }
+
+        /**
+         * <p>Describe the state of the keys used to process messages.</p>
+         * <p>A cached message was processed with the keys as they were at the time. Key files are identified by their name, 
+         * size and modification time so that adding or changing keys (a new secret key, say) means messages are processed again.</p>
+         */
+        private String getKeyState() {
+            StringBuffer state = new StringBuffer();
+            KeyHandler lists[][] = { secretKeyHandlers, publicKeyHandlers };
+
+            for (int l = 0; l < lists.length; l++) {
+                if (lists[l]==null)
+                    continue;
+
+                for (int n = 0; n < lists[l].length; n++) {
+                    if (lists[l][n] instanceof KeyFile) {
+                        File f = new File(((KeyFile)lists[l][n]).getFileName());
+                        state.append(f.getPath()).append(':').append(f.length()).append(':').append(f.lastModified());
+                    } else {
+                        state.append(lists[l][n].getClass().getName());
+                    }
+                    state.append(';');
+                }
+            }
+
+            return state.toString();
+        }
+
+        /**
+         * <p>Decrypt and verify an email received from the server.</p>
+         * <p>If a passphrase is needed the user is prompted for it until the email can be processed or the user gives up.</p>
+         * @throws ProxyServerCoreException if the email could not be processed or the user aborted.
+         */
+        private Email processEmail(Email email) throws ProxyServerCoreException {
+
+            // do decryption / verification
+            if (algorithm!=null) {
+                
+                boolean retry; 
+                printStatus("Decrypting/Verifying email...");
+                
+                do {
+                    retry = false;
+                                                            
+                    try {
+                        email = algorithm.processIncomingMail(publicKeyHandlers, secretKeyHandlers, email, passPhrases, algorithmSession);
+                    } catch (ChecksumFailureException cfe) {
+                        
+                        retry = true;
+                        
+                        EnterPassphraseDlg dlg = new EnterPassphraseDlg("Enter passphrase for decryption key", cfe.getMessage(), new javax.swing.JFrame(), true, false);
+                        PassphraseDlgReturnValue passphrase = dlg.showPasswordDialog();
+                        
+                        if (passphrase.getButtonPressed()==PassphraseDlgReturnValue.ABORT) {
+                            // abort
+                            throw new ProxyServerCoreException("Mail transfer aborted by user");
+                        } else {
+                            // add passphrase to list
+                            if (passphrase.getPassphrase()!=null) {
+                                addPassphrase(new PassPhrase(passphrase.getPassphrase()));
+                            }     
+                        }
+                    }
+                } while (retry);
+            }
+
+            return email;
+        }
+
+        /**
+         * <p>Answer a RETR command from the prefetch buffer.</p>
+         * @return true if the message was sent to the client, false if it has not been prefetched and must be fetched from the server.
+         * @throws ProxyServerCoreException if the message could not be processed or sent.
+         */
+        private boolean sendPrefetched(IPTPRetr command) throws ProxyServerCoreException {
+            if (prefetcher==null)
+                return false;
+
+            MessagePrefetcher.PrefetchedMessage m = prefetcher.take(command.getMessageNo());
+            if (m==null)
+                return false;
+
+            printStatus("Email " + command.getMessageNo() + " read ahead from server...");
+
+            // messages that needed a passphrase we did not have are processed now, so the user can be prompted
+            Email email = m.getProcessedMessage();
+            if (email==null)
+                email = processEmail(command.getMessageNo(), m.getMessage());
+
+            protocolServer.sendCommandResponse(new IPTPRetrResponse(true, new String(email.getBytes())));
+
+            return true;
+        }
 }
\ No newline at end of file
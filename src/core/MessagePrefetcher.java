@@ -0,0 +1,371 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core;
+import core.iptp.*;
+import core.interfaces.*;
+import core.exceptions.*;
+import core.email.*;
+import java.util.*;
+
+/**
+ * <p>Fetches and decrypts messages in the background ahead of the email client asking for them.</p>
+ *
+ * <p>When the email client lists the mailbox (with LIST or UIDL) the IncomingEmailPipe starts a prefetcher. This logs
+ * in to the email server over a second connection, using the same user and passcode as the client, and retrieves the 
+ * listed messages in order. Each message is run through the pipe's algorithm handler and the result is kept in a 
+ * bounded buffer. When the client's RETR arrives the pipe can then answer it from the buffer rather than waiting for 
+ * the server and the decryption.</p>
+ *
+ * <p>Message numbers are only meaningful within a single POP3 session, so messages are matched between the two sessions 
+ * by their unique id when the client used UIDL, or by number and size when it used LIST. A message whose listing does not 
+ * match is not prefetched.</p>
+ *
+ * <p>Prefetching is purely an optimisation. If the second login is refused (many servers lock the mailbox to a single 
+ * session) or anything else goes wrong the prefetcher stops quietly and the pipe fetches messages as normal. Messages that 
+ * need a passphrase the pipe does not yet have are buffered undecrypted, so the pipe can prompt the user for it.</p>
+ *
+ * @see IncomingEmailPipe
+ */
+public class MessagePrefetcher extends Thread {
+
+    /** A message held in the buffer. */
+    public class PrefetchedMessage {
+        
+        private Email message;
+        private Email processedMessage;
+        
+        PrefetchedMessage(Email raw, Email processed) {
+            message = raw;
+            processedMessage = processed;
+        }
+        
+        /** Return the message as received from the server. */
+        public Email getMessage() {
+            return message;
+        }
+        
+        /** Return the message after processing by the algorithm handler, or null if it could not be processed in the background. */
+        public Email getProcessedMessage() {
+            return processedMessage;
+        }
+    }
+    
+    /** The pipe the messages are being fetched for. */
+    private IncomingEmailPipe pipe;
+    
+    /** The server connection used by the prefetcher. */
+    private RecvPipeClientInterface protocolClient;
+    
+    /** User and passcode to log in with. */
+    private String user;
+    private String passcode;
+    
+    /** True if the listing came from UIDL, false if from LIST. */
+    private boolean uidl;
+    
+    /** Message numbers from the client's listing, in order. */
+    private int messageNumbers[];
+    
+    /** The uid or size of each listed message. */
+    private String messageKeys[];
+    
+    /** Maximum number of messages held in the buffer. */
+    private int bufferSize;
+    
+    /** Prefetched messages, keyed by the client's message number. */
+    private Hashtable buffer;
+    
+    /** The client's message number currently being fetched, or -1. */
+    private int fetching;
+    
+    /** Messages with numbers below this have been passed by the client and need not be fetched. */
+    private int lowestWanted;
+    
+    /** Set when the prefetcher should stop. */
+    private boolean stopped;
+    
+    /** Set once the prefetcher has finished, successfully or not. */
+    private boolean finished;
+    
+    /** The algorithm handler's table for the pipe's session, shared with the messages the pipe processes itself. */
+    private Hashtable algorithmSession;
+    
+    /**
+     * <p>Create a new prefetcher.</p>
+     * @param incomingPipe The pipe that messages are being fetched for, this provides the algorithm handler, keys and passphrases.
+     * @param client An unconnected server connection configured for the same server as the pipe.
+     * @param userID The user to log in as.
+     * @param pass The passcode to log in with.
+     * @param isUidl True if listing is a UIDL listing, false if it is a LIST scan listing.
+     * @param listing The scan listing returned to the client, one "number value" line per message.
+     * @param size Maximum number of messages to hold in the buffer.
+     */
+    public MessagePrefetcher(IncomingEmailPipe incomingPipe, RecvPipeClientInterface client, String userID, String pass, boolean isUidl, String listing, int size) {
+        super("MessagePrefetcher");
+        setDaemon(true);
+        
+        pipe = incomingPipe;
+        algorithmSession = incomingPipe.getAlgorithmSession();
+        protocolClient = client;
+        user = userID;
+        passcode = pass;
+        uidl = isUidl;
+        bufferSize = (size < 1) ? 1 : size;
+        
+        buffer = new Hashtable();
+        fetching = -1;
+        lowestWanted = 0;
+        stopped = false;
+        finished = false;
+        
+        Vector numbers = new Vector();
+        Vector keys = new Vector();
+        parseListing(listing, numbers, keys);
+        
+        messageNumbers = new int[numbers.size()];
+        messageKeys = new String[keys.size()];
+        for (int n = 0; n < messageNumbers.length; n++) {
+            messageNumbers[n] = ((Integer)numbers.elementAt(n)).intValue();
+            messageKeys[n] = (String)keys.elementAt(n);
+        }
+    }
+    
+    /**
+     * <p>Take a message from the buffer.</p>
+     * <p>If the message is being fetched at the moment this waits for it to finish. Messages listed before it that 
+     * the client has skipped are dropped from the buffer to make room.</p>
+     * @param messageNo The client's message number.
+     * @return The message, or null if it has not been prefetched and should be fetched from the server.
+     */
+    public synchronized PrefetchedMessage take(int messageNo) {
+        
+        if (messageNo > lowestWanted)
+            lowestWanted = messageNo;
+        
+        // drop anything the client has gone past
+        Enumeration e = buffer.keys();
+        while (e.hasMoreElements()) {
+            Integer key = (Integer)e.nextElement();
+            if (key.intValue() < messageNo)
+                buffer.remove(key);
+        }
+        
+        while ((fetching == messageNo) && (!finished)) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+        
+        PrefetchedMessage m = (PrefetchedMessage)buffer.remove(new Integer(messageNo));
+        
+        // either way the message is no longer wanted, if we haven't reached it yet the client is fetching it itself
+        lowestWanted = messageNo + 1;
+        
+        notifyAll(); // there may be room for the next message now
+        
+        return m;
+    }
+    
+    /** <p>Stop prefetching and drop the server connection.</p> */
+    public void stopPrefetch() {
+        synchronized (this) {
+            stopped = true;
+            buffer.clear();
+            notifyAll();
+        }
+        
+        try {
+            protocolClient.disconnectFromServer();
+        } catch (ProxyServerCoreException e) {
+            // already disconnected
+        }
+    }
+    
+    /** <p>Returns true if the prefetcher has finished or been stopped.</p> */
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+    
+    /** Main loop. Logs in, matches the listing and fetches each message in turn. */
+    public void run() {
+        try {
+            
+            protocolClient.connect();
+            
+            // server greeting
+            if (!protocolClient.awaitCommandResponse().isOk())
+                throw new PipeCommunicationException("Server refused connection.");
+            
+            // log in
+            if (!send(new IPTPUser(user)).isOk())
+                throw new PipeCommunicationException("User not accepted.");
+            if (!send(new IPTPPass(passcode)).isOk())
+                throw new PipeCommunicationException("Passcode not accepted, the mailbox may be locked by the client's session.");
+            
+            // our own listing, to map the client's message numbers onto ours
+            IPTPCommandResponse r = send(uidl ? (IPTPCommand)new IPTPUidl() : (IPTPCommand)new IPTPList());
+            if (!r.isOk())
+                throw new PipeCommunicationException("Could not list messages.");
+            
+            Vector numbers = new Vector();
+            Vector keys = new Vector();
+            parseListing(uidl ? ((IPTPUidlResponse)r).getScanlisting() : ((IPTPListResponse)r).getScanlisting(), numbers, keys);
+            
+            for (int n = 0; n < messageNumbers.length; n++) {
+                
+                int ours = findMessage(messageNumbers[n], messageKeys[n], numbers, keys);
+                if (ours < 0)
+                    continue;
+                
+                // wait for room in the buffer
+                synchronized (this) {
+                    while ((!stopped) && (buffer.size() >= bufferSize))
+                        wait();
+                    
+                    if (stopped)
+                        break;
+                    
+                    if (messageNumbers[n] < lowestWanted)
+                        continue; // client has already gone past it
+                    
+                    fetching = messageNumbers[n];
+                }
+                
+                PrefetchedMessage m = null;
+                
+                r = send(new IPTPRetr(ours));
+                if (r.isOk()) {
+                    Email email = new Email(((IPTPRetrResponse)r).getMessage().getBytes());
+                    m = new PrefetchedMessage(email, process(messageNumbers[n], email));
+                }
+                
+                synchronized (this) {
+                    if ((m != null) && (!stopped) && (messageNumbers[n] >= lowestWanted))
+                        buffer.put(new Integer(messageNumbers[n]), m);
+                    
+                    fetching = -1;
+                    notifyAll();
+                }
+            }
+            
+            send(new IPTPQuit());
+            
+        } catch (Exception e) {
+            boolean report;
+            synchronized (this) {
+                report = !stopped;
+            }
+            
+            if (report)
+                pipe.prefetchStopped(e.getMessage());
+        } finally {
+            try {
+                protocolClient.disconnectFromServer();
+            } catch (ProxyServerCoreException e) {
+                // already disconnected
+            }
+            
+            synchronized (this) {
+                fetching = -1;
+                finished = true;
+                notifyAll();
+            }
+        }
+    }
+    
+    /** Send a command on the prefetch connection and wait for the response. */
+    private IPTPCommandResponse send(IPTPCommand command) throws ProxyServerCoreException {
+        protocolClient.sendCommand(command);
+        return protocolClient.awaitCommandResponse();
+    }
+    
+    /**
+     * <p>Run a message through the pipe's algorithm handler.</p>
+     * <p>Messages already in the pipe's message cache are taken from there, and newly processed messages are added to it.</p>
+     * @param messageNo The client's message number.
+     * @return The processed message, or null if it could not be processed without the user (for example a passphrase is needed).
+     */
+    private Email process(int messageNo, Email email) {
+        if (pipe.algorithm == null)
+            return email;
+        
+        Email processed = pipe.getCachedEmail(messageNo, email);
+        if (processed != null)
+            return processed;
+        
+        try {
+            processed = pipe.algorithm.processIncomingMail(pipe.publicKeyHandlers, pipe.secretKeyHandlers, email, pipe.passPhrases, algorithmSession);
+            pipe.cacheEmail(messageNo, email, processed);
+            
+            return processed;
+        } catch (Exception e) {
+            return null; // leave it to the pipe, which can prompt the user or report the error
+        }
+    }
+    
+    /**
+     * <p>Find a message in the prefetcher's own listing.</p>
+     * <p>For UIDL listings the message is found by its unique id. For LIST listings the message must have the same number and size.</p>
+     * @return Our message number, or -1 if the message could not be matched.
+     */
+    private int findMessage(int number, String key, Vector numbers, Vector keys) {
+        for (int n = 0; n < numbers.size(); n++) {
+            if (key.compareTo((String)keys.elementAt(n)) == 0) {
+                int ours = ((Integer)numbers.elementAt(n)).intValue();
+                if ((uidl) || (ours == number))
+                    return ours;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /** Parse a multiline LIST or UIDL scan listing into message numbers and values. */
+    static void parseListing(String listing, Vector numbers, Vector keys) {
+        StringTokenizer lines = new StringTokenizer(listing, "\r\n");
+        while (lines.hasMoreTokens()) {
+            StringTokenizer st = new StringTokenizer(lines.nextToken(), " ");
+            if (st.countTokens() < 2)
+                continue;
+            
+            try {
+                Integer number = new Integer(st.nextToken());
+                numbers.add(number);
+                keys.add(st.nextToken());
+            } catch (NumberFormatException e) {
+                // not a listing line
+            }
+        }
+    }
+}
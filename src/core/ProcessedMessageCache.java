@@ -0,0 +1,396 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core;
+import java.io.*;
+import java.util.*;
+import java.security.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * <p>A persistent cache of incoming messages that have already been decrypted and verified.</p>
+ *
+ * <p>Email clients set to leave messages on the server download the same messages again and again. Rather than repeat
+ * all the public key, S2K and decompression work each time, the IncomingEmailPipe keeps the processed message here and 
+ * serves repeated retrievals from the cache.</p>
+ *
+ * <p>Entries are keyed on the mailbox, the message's unique id, a digest of the message as received and a string 
+ * describing the state of the keys used to process it. A message that changes on the server, or keys that are added or 
+ * changed, therefore never produce a stale hit.</p>
+ *
+ * <p>Each entry is a single file in the cache directory, encrypted with AES and authenticated with an HMAC under a random 
+ * key that is created for the cache the first time it is used and kept in the file "cache.key". The HMAC also covers the 
+ * entry's file name, so an entry copied or renamed over another is rejected rather than served for the wrong message. Decrypted mail is never 
+ * written to disk in the clear, but the cache is only as private as the directory it lives in, so this should be a 
+ * directory that only the user can read.</p>
+ *
+ * <p>The total size of the entries is bounded, once the limit is reached the least recently used entries are removed.</p>
+ */
+public class ProcessedMessageCache {
+    
+    /** Name of the file holding the cache key. */
+    public static final String KEY_FILE = "cache.key";
+    
+    /** Extension of the entry files. */
+    public static final String ENTRY_EXTENSION = ".msg";
+    
+    /** Length of the AES key. */
+    private static final int CIPHER_KEY_LENGTH = 16;
+    /** Length of the HMAC key. */
+    private static final int MAC_KEY_LENGTH = 20;
+    /** Length of the IV at the start of each entry. */
+    private static final int IV_LENGTH = 16;
+    /** Length of the HMAC at the end of each entry. */
+    private static final int MAC_LENGTH = 20;
+    
+    /** The cache directory. */
+    private File directory;
+    
+    /** Maximum total size of the entries in bytes. */
+    private long maxSize;
+    
+    /** Current total size of the entries in bytes. */
+    private long size;
+    
+    /** Entry file names mapped to their sizes, in least recently used order. */
+    private LinkedHashMap entries;
+    
+    /** Encryption key. */
+    private SecretKeySpec cipherKey;
+    /** Authentication key. */
+    private SecretKeySpec macKey;
+    
+    /** Random source used for IVs. */
+    private SecureRandom random;
+    
+    /**
+     * <p>Open a cache, creating it if it doesn't exist.</p>
+     * @param dir The directory to keep the cache in.
+     * @param maxBytes The maximum total size of the cached messages.
+     * @throws IOException if the directory or key could not be created or read.
+     */
+    public ProcessedMessageCache(File dir, long maxBytes) throws IOException {
+        directory = dir;
+        maxSize = maxBytes;
+        size = 0;
+        entries = new LinkedHashMap(16, 0.75f, true);
+        
+        try {
+            random = SecureRandom.getInstance("SHA1PRNG");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        
+        if (!directory.exists())
+            directory.mkdirs();
+        if (!directory.isDirectory())
+            throw new IOException("Cache directory " + directory + " could not be created.");
+        
+        loadKey();
+        loadEntries();
+    }
+    
+    /** Return the maximum total size of the cached messages. */
+    public long getMaxSize() {
+        return maxSize;
+    }
+    
+    /** Return the total size of the cached messages. */
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    /** Return the number of cached messages. */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+    
+    /**
+     * <p>Look up a processed message.</p>
+     * @param mailbox The mailbox the message came from.
+     * @param uid The message's unique id, or an empty string if it is not known.
+     * @param message The message as received from the server.
+     * @param keyState A string that changes whenever the keys used to process messages change.
+     * @return The processed message, or null if it is not in the cache.
+     */
+    public synchronized byte[] get(String mailbox, String uid, byte message[], String keyState) {
+        String name = entryName(mailbox, uid, message, keyState);
+        if (entries.get(name) == null) // get, rather than containsKey, so the entry becomes the most recently used
+            return null;
+        
+        File f = new File(directory, name);
+        try {
+            byte data[] = decrypt(name, readFile(f));
+            
+            f.setLastModified(System.currentTimeMillis()); // remember the use across restarts
+            
+            return data;
+        } catch (Exception e) {
+            // damaged or tampered with, drop it
+            remove(name);
+            return null;
+        }
+    }
+    
+    /**
+     * <p>Store a processed message.</p>
+     * <p>Least recently used messages are removed to keep the cache within its size limit. Messages larger than the whole
+     * cache are not stored.</p>
+     * @param mailbox The mailbox the message came from.
+     * @param uid The message's unique id, or an empty string if it is not known.
+     * @param message The message as received from the server.
+     * @param keyState A string that changes whenever the keys used to process messages change.
+     * @param processed The processed message.
+     * @throws IOException if the entry could not be written.
+     */
+    public synchronized void put(String mailbox, String uid, byte message[], String keyState, byte processed[]) throws IOException {
+        String name = entryName(mailbox, uid, message, keyState);
+        
+        byte data[];
+        try {
+            data = encrypt(name, processed);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.getMessage());
+        }
+        
+        if (data.length > maxSize)
+            return;
+        
+        remove(name);
+        
+        // write to a temporary file first so a crash never leaves half an entry
+        File tmp = new File(directory, name + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        
+        File f = new File(directory, name);
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            throw new IOException("Could not write cache entry " + f);
+        }
+        
+        entries.put(name, new Long(data.length));
+        size += data.length;
+        
+        // evict least recently used
+        Iterator i = entries.entrySet().iterator();
+        while ((size > maxSize) && (i.hasNext())) {
+            Map.Entry e = (Map.Entry)i.next();
+            if (e.getKey().equals(name))
+                continue;
+            
+            new File(directory, (String)e.getKey()).delete();
+            size -= ((Long)e.getValue()).longValue();
+            i.remove();
+        }
+    }
+    
+    /** <p>Remove every cached message.</p> */
+    public synchronized void clear() {
+        Iterator i = entries.keySet().iterator();
+        while (i.hasNext())
+            new File(directory, (String)i.next()).delete();
+        
+        entries.clear();
+        size = 0;
+    }
+    
+    /** Remove a single entry. */
+    private void remove(String name) {
+        Long length = (Long)entries.remove(name);
+        if (length != null) {
+            new File(directory, name).delete();
+            size -= length.longValue();
+        }
+    }
+    
+    /** Work out the file name of an entry. This is a SHA-1 hash of all the parts of the key, so it reveals nothing about the message. */
+    private String entryName(String mailbox, String uid, byte message[], String keyState) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA1");
+            
+            byte messageDigest[] = md.digest(message);
+            
+            md.update(mailbox.getBytes()); md.update((byte)0);
+            md.update(uid.getBytes()); md.update((byte)0);
+            md.update(keyState.getBytes()); md.update((byte)0);
+            md.update(messageDigest);
+            
+            byte hash[] = md.digest();
+            StringBuffer name = new StringBuffer();
+            for (int n = 0; n < hash.length; n++) {
+                String hex = Integer.toHexString(hash[n] & 0xff);
+                if (hex.length() < 2) name.append('0');
+                name.append(hex);
+            }
+            name.append(ENTRY_EXTENSION);
+            
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage()); // SHA1 is always available
+        }
+    }
+    
+    /** Encrypt and authenticate an entry, giving IV, ciphertext and HMAC. The HMAC covers the entry name as well. */
+    private byte[] encrypt(String name, byte data[]) throws GeneralSecurityException, IOException {
+        byte iv[] = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding", "BC");
+        cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+        byte encrypted[] = cipher.doFinal(data);
+        
+        Mac mac = Mac.getInstance("HmacSHA1", "BC");
+        mac.init(macKey);
+        mac.update(name.getBytes()); mac.update((byte)0);
+        mac.update(iv);
+        mac.update(encrypted);
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(iv);
+        out.write(encrypted);
+        out.write(mac.doFinal());
+        
+        return out.toByteArray();
+    }
+    
+    /** Check and decrypt an entry, which must have been written under the given name. */
+    private byte[] decrypt(String name, byte data[]) throws GeneralSecurityException {
+        if (data.length < IV_LENGTH + MAC_LENGTH)
+            throw new GeneralSecurityException("Cache entry is too short.");
+        
+        int encryptedLength = data.length - IV_LENGTH - MAC_LENGTH;
+        
+        Mac mac = Mac.getInstance("HmacSHA1", "BC");
+        mac.init(macKey);
+        mac.update(name.getBytes()); mac.update((byte)0);
+        mac.update(data, 0, IV_LENGTH + encryptedLength);
+        byte expected[] = mac.doFinal();
+        
+        byte found[] = new byte[MAC_LENGTH];
+        System.arraycopy(data, IV_LENGTH + encryptedLength, found, 0, MAC_LENGTH);
+        if (!MessageDigest.isEqual(expected, found))
+            throw new GeneralSecurityException("Cache entry failed authentication.");
+        
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding", "BC");
+        cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(data, 0, IV_LENGTH));
+        
+        return cipher.doFinal(data, IV_LENGTH, encryptedLength);
+    }
+    
+    /** Read the cache key, creating it if necessary. */
+    private void loadKey() throws IOException {
+        File f = new File(directory, KEY_FILE);
+        byte key[];
+        
+        if (f.exists()) {
+            key = readFile(f);
+            if (key.length != CIPHER_KEY_LENGTH + MAC_KEY_LENGTH)
+                throw new IOException("Cache key " + f + " is damaged.");
+        } else {
+            key = new byte[CIPHER_KEY_LENGTH + MAC_KEY_LENGTH];
+            random.nextBytes(key);
+            
+            FileOutputStream out = new FileOutputStream(f);
+            try {
+                out.write(key);
+            } finally {
+                out.close();
+            }
+            
+            // any entries left over from a lost key can never be read
+            File old[] = directory.listFiles();
+            for (int n = 0; n < old.length; n++) {
+                if (old[n].getName().endsWith(ENTRY_EXTENSION))
+                    old[n].delete();
+            }
+        }
+        
+        cipherKey = new SecretKeySpec(key, 0, CIPHER_KEY_LENGTH, "AES");
+        macKey = new SecretKeySpec(key, CIPHER_KEY_LENGTH, MAC_KEY_LENGTH, "HmacSHA1");
+    }
+    
+    /** Rebuild the index from the entries on disk, oldest first, and trim it to size. */
+    private void loadEntries() throws IOException {
+        File found[] = directory.listFiles();
+        Vector files = new Vector();
+        for (int n = 0; n < found.length; n++) {
+            if (found[n].getName().endsWith(ENTRY_EXTENSION))
+                files.add(found[n]);
+            else if (found[n].getName().endsWith(ENTRY_EXTENSION + ".tmp"))
+                found[n].delete(); // unfinished write
+        }
+        
+        File sorted[] = (File[])files.toArray(new File[files.size()]);
+        Arrays.sort(sorted, new Comparator() {
+            public int compare(Object a, Object b) {
+                long diff = ((File)a).lastModified() - ((File)b).lastModified();
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+            }
+        });
+        
+        for (int n = 0; n < sorted.length; n++) {
+            entries.put(sorted[n].getName(), new Long(sorted[n].length()));
+            size += sorted[n].length();
+        }
+        
+        Iterator i = entries.entrySet().iterator();
+        while ((size > maxSize) && (i.hasNext())) {
+            Map.Entry e = (Map.Entry)i.next();
+            new File(directory, (String)e.getKey()).delete();
+            size -= ((Long)e.getValue()).longValue();
+            i.remove();
+        }
+    }
+    
+    /** Read a whole file. */
+    private static byte[] readFile(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            byte data[] = new byte[(int)f.length()];
+            int read = 0;
+            while (read < data.length) {
+                int r = in.read(data, read, data.length - read);
+                if (r < 0)
+                    throw new IOException("Unexpected end of file " + f);
+                read += r;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
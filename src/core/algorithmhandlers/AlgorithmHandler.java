@@ -33,6 +33,7 @@ package core.algorithmhandlers;
 import core.keyhandlers.KeyHandler;
 import core.exceptions.*;
 import core.email.*;
+import java.util.Hashtable;
 
 /**
  * <p>A comman class defining the base algorithm handler class.</p>
@@ -81,4 +82,27 @@ public abstract class AlgorithmHandler {
     public abstract Email processIncomingMail(KeyHandler [] publicKeyStores, KeyHandler [] privateKeyStores, Email email, PassPhrase passPhrases []) 
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException,  SecretKeyNotFoundException, PublicKeyNotFoundException, EmailDataFormatException;
    
+    /**
+     * <p>Process an incoming email as one of a series, for example the messages downloaded over one POP3 connection.</p>
+     * <p>Handlers may keep anything that can be reused between the messages of a series in the session table, under keys
+     * of their own. The default implementation ignores the session.</p>
+     * @param publicKeyStores[] An array of available public key stores.
+     * @param privateKeyStores[] An array of availabe private key stores.
+     * @param email The email being processed.
+     * @param passPhrases A list of passphrases to try unlocking keydata with.
+     * @param session A table shared by every message in the series, may be null. It may be used from several threads at once.
+     * @return A new Email object containing the processed data.
+     * @throws AlgorithmException if there was an unrecoverable algorithm specific problem.
+     * @throws KeyHandlerException if there was an unrecoverable key handler specific problem.
+     * @throws ChecksumFailureException if the password you entered was not right.
+     * @throws SecretKeyNotFoundException if a key could not be found in a secret keystore.
+     * @throws PublicKeyNotFoundException if a key could not be found in a public keystore.
+     * @throws EmailDataFormatException if the email was badly formatted and could not be parsed.
+     */
+    public Email processIncomingMail(KeyHandler [] publicKeyStores, KeyHandler [] privateKeyStores, Email email, PassPhrase passPhrases [], Hashtable session) 
+        throws AlgorithmException, KeyHandlerException, ChecksumFailureException,  SecretKeyNotFoundException, PublicKeyNotFoundException, EmailDataFormatException {
+        
+        return processIncomingMail(publicKeyStores, privateKeyStores, email, passPhrases);
+    }
+   
 }
@@ -42,6 +42,8 @@ import core.algorithmhandlers.openpgp.*;
 import core.algorithmhandlers.openpgp.packets.v4signature.*;
 import core.algorithmhandlers.openpgp.packets.*;
 import core.algorithmhandlers.openpgp.util.*;
+import system.WorkerPool;
+import system.MemoryBudget;
 import java.security.*;
 import java.io.*;
 import java.util.*;
@@ -58,6 +60,30 @@ public class OpenPGPHandler extends AlgorithmHandler {
     /** Symmetric algorithm */
     private int symmetricAlgorithm;
 
+    /** Hash algorithm used for signing */
+    private int hashAlgorithm;
+
+    /** Decides how each part of an encrypted message is compressed */
+    private CompressionPolicy compressionPolicy;
+
+    /** Limits the memory used by attachments being processed at the same time */
+    private MemoryBudget attachmentBudget;
+    
+    /** Remembers the outcome of signatures that have already been checked */
+    private SignatureVerificationCache verificationCache;
+    
+    /** Remembers decrypted PGP blocks across sessions, may be null */
+    private DecryptedBlockCache sharedBlockCache;
+    
+    /** Index of the keys held in the secret key stores */
+    private OpenPGPSecretKeyIndex secretKeyIndex = new OpenPGPSecretKeyIndex();
+    
+    /** Maximum number of held keys tried on a session key whose recipient is hidden */
+    public static final int MAX_HIDDEN_RECIPIENT_TRIALS = 8;
+    
+    /** Key of the decrypted block cache in a session table */
+    private static final String SESSION_BLOCK_CACHE = "openpgp.decryptedblocks";
+
     /** Application build info */
     private Properties buildinfo;
 
@@ -65,7 +91,19 @@ public class OpenPGPHandler extends AlgorithmHandler {
      * @param symmetricAlgorithm Default symmetric key algorithm to use if not specified in recipient's public keyring.
      */
     public OpenPGPHandler(int symmetricAlgorithm) throws AlgorithmException {
+        this(symmetricAlgorithm, HashAlgorithmSettings.SHA1);
+    }
+
+    /** <p>Creates a new instance of OpenPGPHandler.</p>
+     * @param symmetricAlgorithm Default symmetric key algorithm to use if not specified in recipient's public keyring.
+     * @param hashAlgorithm Hash algorithm to sign with, if all the recipients' hash preferences allow it.
+     */
+    public OpenPGPHandler(int symmetricAlgorithm, int hashAlgorithm) throws AlgorithmException {
         setSymmetricAlgorithm(symmetricAlgorithm);
+        setHashAlgorithm(hashAlgorithm);
+        setCompression(CompressionAlgorithmSettings.ZIP, -1, java.util.zip.Deflater.DEFAULT_STRATEGY);
+        setAttachmentMemoryLimit(0);
+        setVerificationCache(new SignatureVerificationCache(SignatureVerificationCache.DEFAULT_SIZE));
         
         try {
             buildinfo = app.AppVersionInfo.getBuildInfo();
@@ -84,6 +122,77 @@ public class OpenPGPHandler extends AlgorithmHandler {
         return symmetricAlgorithm;
     }
 
+    /** Set the hash algorithm used for signing. */
+    public void setHashAlgorithm(int algorithm) {
+        hashAlgorithm = algorithm;
+    }
+
+    /** Get the hash algorithm used for signing. */
+    public int getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    /** <p>Set the compression used on encrypted data.</p>
+     * <p>Each part of a message is still checked by the compression policy, so data that will not compress is left alone
+     * and the algorithm is negotiated against the recipients' preferences.</p>
+     * @param algorithm The preferred compression algorithm.
+     * @param level The compression level, 0 (fastest) to 9 (best) or -1 for the default.
+     * @param strategy The java.util.zip.Deflater strategy to use with ZIP and ZLIB.
+     * @throws AlgorithmException if the algorithm or level is not supported.
+     */
+    public void setCompression(int algorithm, int level, int strategy) throws AlgorithmException {
+        setCompressionPolicy(new CompressionPolicy(algorithm, level, strategy));
+    }
+
+    /** Set the policy used to decide how each part of an encrypted message is compressed. */
+    public void setCompressionPolicy(CompressionPolicy policy) {
+        compressionPolicy = policy;
+    }
+
+    /** Get the compression policy. */
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    /** <p>Set the amount of memory that attachments being processed at the same time may use.</p>
+     * <p>Attachments are encrypted, signed and decrypted in parallel, this stops several large attachments from exhausting the heap at once.</p>
+     * @param bytes The limit in bytes, 0 for a quarter of the maximum heap size.
+     */
+    public void setAttachmentMemoryLimit(long bytes) {
+        attachmentBudget = new MemoryBudget(bytes);
+    }
+
+    /** Get the amount of memory that attachments being processed at the same time may use. */
+    public long getAttachmentMemoryLimit() {
+        return attachmentBudget.getLimit();
+    }
+    
+    /** <p>Set the cache used to remember the outcome of signature verifications.</p>
+     * <p>Several handlers may share a cache.</p>
+     */
+    public void setVerificationCache(SignatureVerificationCache cache) {
+        verificationCache = cache;
+    }
+    
+    /** Get the cache used to remember the outcome of signature verifications. */
+    public SignatureVerificationCache getVerificationCache() {
+        return verificationCache;
+    }
+    
+    /** <p>Set a cache used to remember decrypted PGP blocks across sessions.</p>
+     * <p>Identical blocks are always decrypted once per message, or once per session if the caller supplies one. This cache 
+     * lets every session share the work, at the price of holding plaintext in memory for longer.</p>
+     * @param cache The cache, or null to only reuse blocks within a session.
+     */
+    public void setSharedBlockCache(DecryptedBlockCache cache) {
+        sharedBlockCache = cache;
+    }
+    
+    /** Get the cache used to remember decrypted PGP blocks across sessions, or null if there isn't one. */
+    public DecryptedBlockCache getSharedBlockCache() {
+        return sharedBlockCache;
+    }
+
 
     /**
      * <p>Process an outgoing email.</p>
@@ -108,6 +217,14 @@ public class OpenPGPHandler extends AlgorithmHandler {
             Email newEmail = new Email(email);
 
             String signer = null;
+            int hashAlg = getHashAlgorithm();
+
+            // look up the recipients' keys once for the whole message, rather than for every part. Mail that is only signed 
+            // doesn't need them, and looking them up could mean asking a remote key server about every recipient.
+            String recp[] = email.getRecipients();
+            KeyData recipientKeys[][] = null;
+            if (encrypt)
+                recipientKeys = findRecipientKeys(publicKeyStores, recp);
 
             try {
 
@@ -116,15 +233,18 @@ public class OpenPGPHandler extends AlgorithmHandler {
                             EmailHeader from[] = email.getHeader("from");
                             signer = from[0].getTagValue();
 
+                            // choose a hash algorithm all recipients can handle
+                            hashAlg = selectHashAlgorithm(recipientKeys);
+
                             // sign body
                             if (newEmail.getMimeBody()!=null) {
                                     // special body, need to parse
 
-                                    newEmail.setMimeBody(signMimeBody(privateKeyStores, signer, passPhrases, newEmail.getMimeBody()));
+                                    newEmail.setMimeBody(signMimeBody(privateKeyStores, signer, passPhrases, hashAlg, newEmail.getMimeBody()));
 
                             } else {
                                     // normal body
-                                    newEmail.setBody(signBody(privateKeyStores, signer, passPhrases, newEmail.getBody()));
+                                    newEmail.setBody(signBody(privateKeyStores, signer, passPhrases, hashAlg, newEmail.getBody()));
                             }
 
 
@@ -132,25 +252,23 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
                     if (encrypt) {
 
-                            String recp[] = email.getRecipients();
-
                             // TODO : Use recipients algorithm preferences.
 
                             // encrypt body
                             if (newEmail.getMimeBody()!=null) {
                                     // MIME body, need to encrypt each sub component
-                                    newEmail.setMimeBody(encryptMimeBody(publicKeyStores, recp, newEmail.getMimeBody()));
+                                    newEmail.setMimeBody(encryptMimeBody(recp, recipientKeys, newEmail.getMimeBody()));
 
                             } else {
                                     // normal body
-                                    newEmail.setBody(encryptBody(publicKeyStores, recp, newEmail.getBody()));
+                                    newEmail.setBody(encryptBody(recp, recipientKeys, newEmail.getBody()));
                             }
 
                             // encrypt attachments
                             if (newEmail.getAttachments()!=null) {
                                     // there are attachments
 
-                                    EmailAttachment encryptedAttachments[] = encryptAttachments(publicKeyStores, recp, newEmail.getAttachments());
+                                    EmailAttachment encryptedAttachments[] = encryptAttachments(recp, recipientKeys, newEmail.getAttachments());
 
                                     // store attachments in email
                                     newEmail.purgeAttachments();
@@ -168,7 +286,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
                                     // there are attachments
 
                                     // sign data
-                                    EmailAttachment encryptedAttachments[] = signAttachments(privateKeyStores, signer, passPhrases, newEmail.getAttachments());
+                                    EmailAttachment encryptedAttachments[] = signAttachments(privateKeyStores, signer, passPhrases, hashAlg, newEmail.getAttachments());
 
                                     // store signature attachments in email
                                     for (int n=0; n<encryptedAttachments.length; n++)
@@ -204,8 +322,30 @@ public class OpenPGPHandler extends AlgorithmHandler {
      * @throws EmailDataFormatException if the email was badly formatted and could not be parsed.
      */
     public Email processIncomingMail(KeyHandler[] publicKeyStores, KeyHandler[] privateKeyStores, Email email, PassPhrase[] passPhrases) throws AlgorithmException, KeyHandlerException, ChecksumFailureException, SecretKeyNotFoundException, PublicKeyNotFoundException, EmailDataFormatException {
+        return processIncomingMail(publicKeyStores, privateKeyStores, email, passPhrases, null);
+    }
+    
+    /**
+     * <p>Process an incoming email as one of a series, for example the messages downloaded over one POP3 connection.</p>
+     * <p>Processing is the same as for a single email, but an encrypted block that has already been decrypted earlier in the session
+     * (typically because it is quoted in a reply) is not decrypted again.</p>
+     * @param publicKeyStores[] An array of available public key stores.
+     * @param privateKeyStores[] An array of availabe private key stores.
+     * @param email The email being processed.
+     * @param passPhrases A list of passphrases to try unlocking keydata with.
+     * @param session A table shared by every message in the series, may be null.
+     * @return A new Email object containing the processed data.
+     * @throws AlgorithmException if there was an unrecoverable algorithm specific problem.
+     * @throws KeyHandlerException if there was an unrecoverable key handler specific problem.
+     * @throws ChecksumFailureException if the password you entered was not right.
+     * @throws SecretKeyNotFoundException if a key could not be found in a secret keystore.
+     * @throws PublicKeyNotFoundException if a key could not be found in a public keystore.
+     * @throws EmailDataFormatException if the email was badly formatted and could not be parsed.
+     */
+    public Email processIncomingMail(KeyHandler[] publicKeyStores, KeyHandler[] privateKeyStores, Email email, PassPhrase[] passPhrases, Hashtable session) throws AlgorithmException, KeyHandlerException, ChecksumFailureException, SecretKeyNotFoundException, PublicKeyNotFoundException, EmailDataFormatException {
 
         Email newEmail = new Email(email);
+        DecryptedBlockCache blocks = getSessionBlockCache(session);
 
         try {
             
@@ -219,7 +359,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
                     // first pass (decrypt & verify)
                     try {
-                        newEmail.setMimeBody(processIncomingMimeMessageBody(log, publicKeyStores, privateKeyStores, passPhrases, newEmail.getMimeBody()));
+                        newEmail.setMimeBody(processIncomingMimeMessageBody(log, publicKeyStores, privateKeyStores, passPhrases, blocks, newEmail.getMimeBody()));
                     } catch (ChecksumFailureException passfail) {
                         throw passfail; // catch password failure and rethrow.
                     } catch (Exception e) {
@@ -234,7 +374,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
                     // first pass (decrypt & verify)
                     try {
-                        newEmail.setBody(decryptIncomingMessageBody(log, publicKeyStores, privateKeyStores, passPhrases, newEmail.getBody()));
+                        newEmail.setBody(decryptIncomingMessageBody(log, publicKeyStores, privateKeyStores, passPhrases, blocks, newEmail.getBody()));
                         newEmail.setBody(verifyIncomingMessageBody(log, publicKeyStores, privateKeyStores, passPhrases, newEmail.getBody()));
                     } catch (ChecksumFailureException passfail) {
                         throw passfail; // catch password failure and rethrow.
@@ -250,15 +390,14 @@ public class OpenPGPHandler extends AlgorithmHandler {
             if (attachments!=null) {
 
                 log.beginSection("Message has attachments");
- 
+
+                // verify and decrypt every attachment (other than signatures) at once
+                Vector jobList = new Vector();
                 for (int n = 0; n < attachments.length; n++) {
 
                     if (!attachments[n].getFilename().endsWith(".sig")) {
                         // if not a signature
 
-                        // log file
-                        log.beginSection("Attachment: " + attachments[n].getFilename() + ", Size: " + attachments[n].getData().length + " bytes"); //writeLog(log, "+ Attachment: " + attachments[n].getFilename() + ", Size: " + attachments[n].getData().length + " bytes\r\n");
-
                         // hunt for corresponding signature
                         EmailAttachment signature = null;
                         for (int na = 0; na < attachments.length; na++) {
@@ -268,65 +407,44 @@ public class OpenPGPHandler extends AlgorithmHandler {
                             }
                         }
 
-                        // Attempt to verify signature if signature is found
-                            if (signature == null) {
-                                log.logWarning("Could not find a signature, file \"" + attachments[n].getFilename() + "\" can not be verified.");
-                            } else {
-                                log.logInfo("Signature file: " + signature.getFilename()); //writeLog(log, "Signature file: " + signature.getFilename() + "\r\n");
-
-                                try {
-                                    // attempt to verify attachment (needs to specially decode non-base64 data)
-                                    if (!verify(log, publicKeyStores, (attachments[n].getEncoding()==EmailAttachment.BASE64) ? attachments[n].decode() : Armory.formatForCTSigning(attachments[n].decode()), signature.decode())) {
-                                        throw new AlgorithmException("Signature \"" + signature.getFilename() + "\" is INVALID.");
-                                    } else {
-                                        log.logInfo("Signature is valid.");
-                                    }
-
-                                // catch and write errors to a log, we don't want to stop processing if something could not be verified.
-                                } catch (Exception e) {
-                                    log.logError(e.getMessage());
-                                }
-                            }
-
-                        // if attachment is a pgp file, try and decode
-                        if (attachments[n].getFilename().endsWith(".pgp")) {
-
-                            try {
+                        jobList.add(new IncomingAttachmentJob(publicKeyStores, privateKeyStores, passPhrases, attachments[n], signature));
+                    }
+                }
 
-                                // process packet
-                                LiteralDataPacket [] packets = decryptPgpData(privateKeyStores, passPhrases, attachments[n].decode());
+                IncomingAttachmentJob jobs[] = new IncomingAttachmentJob[jobList.size()];
+                for (int n = 0; n < jobs.length; n++)
+                    jobs[n] = (IncomingAttachmentJob)jobList.elementAt(n);
 
-                                if (packets!=null) {
-                                    // remove the attachment that has now been decoded.
-                                    newEmail.removeAttachment(attachments[n].getFilename());
+                try {
+                    WorkerPool.getDefaultPool().execute(jobs);
+                } catch (Exception e) {
+                    throw new AlgorithmException(e.getMessage()); // jobs keep their own exceptions, so this should not happen
+                }
 
-                                    // add all descovered literal packets to email
-                                    for (int na = 0; na < packets.length; na++) {
+                // put the results back in order
+                for (int n = 0; n < jobs.length; n++) {
+                    EmailAttachment attachment = jobs[n].getAttachment();
 
-                                        // construct headers
-                                        EmailHeader headers [] = new EmailHeader[3];
-                                        headers[0] = new EmailHeader("Content-Type","application/octet-stream;\r\n\tname=\""+ packets[na].getFilename() +"\"");
-                                        headers[1] = new EmailHeader("Content-Transfer-Encoding","base64");
-                                        headers[2] = new EmailHeader("Content-Disposition","attachment;\r\n\tfilename=\""+ packets[na].getFilename() +"\"");
+                    // log file
+                    log.beginSection("Attachment: " + attachment.getFilename() + ", Size: " + attachment.getData().length + " bytes");
+                    log.merge(jobs[n].getLog());
 
-                                        // add attachment
-                                        newEmail.addAttachment(new EmailAttachment(headers, Base64.encode(packets[na].getData())));
-                                    }
-                                } else {
-                                    throw new AlgorithmException("No encrypted data found in file \"" + attachments[n].getFilename() + "\".");
-                                }
+                    if (jobs[n].getFailure() instanceof ChecksumFailureException)
+                        throw (ChecksumFailureException)jobs[n].getFailure(); // catch password failure and rethrow.
+                    if (jobs[n].getFailure() != null)
+                        log.logError(jobs[n].getFailure().getMessage());
 
-                                // if we got here then the message should have been decrypted
-                                log.logInfo("Attachment successfully decrypted.");
+                    EmailAttachment decrypted[] = jobs[n].getDecrypted();
+                    if (decrypted != null) {
+                        // remove the attachment that has now been decoded.
+                        newEmail.removeAttachment(attachment.getFilename());
 
-                            } catch (ChecksumFailureException passfail) {
-                                throw passfail; // catch password failure and rethrow.
-                            } catch (Exception e) {
-                                log.logError(e.getMessage());
-                            }
-                        }
-                        log.endSection(); //writeLog(log, "\r\n");
+                        // add all descovered literal packets to email
+                        for (int na = 0; na < decrypted.length; na++)
+                            newEmail.addAttachment(decrypted[na]);
                     }
+
+                    log.endSection();
                 }
 
                 log.endSection(); //writeLog(log, "****************************************************************************\r\n");
@@ -408,34 +526,83 @@ public class OpenPGPHandler extends AlgorithmHandler {
 /* Incoming email ***********************************************************************/
 
     /**
-     * <p>Recursively process a mime message body.</p>
+     * <p>Process a mime message body.</p>
+     * <p>All the body parts are collected first and then decrypted and verified as separate jobs on the shared worker pool. 
+     * The results and logs are put back in the original order, and processing stops at the first part that fails, just as if 
+     * the parts had been processed one at a time.</p>
      */
-    private MimeComponent [] processIncomingMimeMessageBody(OpenPGPLogger log, KeyHandler [] publicKeyStores, KeyHandler [] privateKeyStores, PassPhrase[] passPhrases, MimeComponent [] data)
+    private MimeComponent [] processIncomingMimeMessageBody(OpenPGPLogger log, KeyHandler [] publicKeyStores, KeyHandler [] privateKeyStores, PassPhrase[] passPhrases, DecryptedBlockCache blocks, MimeComponent [] data)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
-            MimeComponent dec[] = data;
+            Vector parts = new Vector();
+            collectMimeParts(data, parts);
+
+            IncomingPartJob jobs[] = new IncomingPartJob[parts.size()];
+            for (int n = 0; n < jobs.length; n++)
+                jobs[n] = new IncomingPartJob(publicKeyStores, privateKeyStores, passPhrases, blocks, (MimeComponent)parts.elementAt(n));
+
+            try {
+                WorkerPool.getDefaultPool().execute(jobs);
+            } catch (Exception e) {
+                rethrow(e); // jobs keep their own exceptions, so this should not happen
+            }
+
+            for (int n = 0; n < jobs.length; n++) {
+                log.merge(jobs[n].getLog());
+
+                if (jobs[n].getFailure() != null) {
+                    if (jobs[n].getFailure() instanceof ChecksumFailureException)
+                        throw (ChecksumFailureException)jobs[n].getFailure();
+                    rethrow(jobs[n].getFailure());
+                }
 
+                jobs[n].getPart().setData(jobs[n].getResult());
+            }
+
+            return data;
+    }
+
+    /**
+     * <p>Recursively collect the body parts of a mime message body, in order.</p>
+     */
+    private void collectMimeParts(MimeComponent [] data, Vector parts) {
             for (int n = 0; n < data.length; n++) {
                 MimeComponent subs [] = data[n].getSubComponents();
                 if (subs!=null) {
-                    subs = processIncomingMimeMessageBody(log, publicKeyStores, privateKeyStores, passPhrases, subs);
-                    dec[n].setSubComponents(subs);
+                    collectMimeParts(subs, parts);
                 } else {
-                    dec[n].setData(decryptIncomingMessageBody(log, publicKeyStores, privateKeyStores, passPhrases, data[n].getData()));
-                    dec[n].setData(verifyIncomingMessageBody(log, publicKeyStores, privateKeyStores, passPhrases, dec[n].getData()));
+                    parts.add(data[n]);
                 }
+            }
+    }
 
+    /**
+     * <p>Find (or create) the decrypted block cache for a session.</p>
+     * <p>With no session the cache only lives as long as the message being processed.</p>
+     */
+    private DecryptedBlockCache getSessionBlockCache(Hashtable session) {
+        if (session == null)
+            return new DecryptedBlockCache(DecryptedBlockCache.DEFAULT_SESSION_SIZE);
+        
+        synchronized (session) {
+            DecryptedBlockCache blocks = (DecryptedBlockCache)session.get(SESSION_BLOCK_CACHE);
+            if (blocks == null) {
+                blocks = new DecryptedBlockCache(DecryptedBlockCache.DEFAULT_SESSION_SIZE);
+                session.put(SESSION_BLOCK_CACHE, blocks);
             }
             
-            return dec;
+            return blocks;
+        }
     }
-    
+
     /**
      * <p>Parse a message body and decrypt the contents of the message.</p>
      * <p>Returns an array of the result or an unaltered array if something went wrong or no encrypted message was found.</p>
      * <p>Progress is written to the email and the log file.</p>
+     * <p>Each block is looked up by its content in the session's cache and then the shared cache, and only decrypted if neither
+     * has seen it with the same passphrases.</p>
      */
-    private byte [] decryptIncomingMessageBody(OpenPGPLogger log, KeyHandler [] publicKeyStores, KeyHandler [] privateKeyStores, PassPhrase [] passphrases, byte [] data) 
+    private byte [] decryptIncomingMessageBody(OpenPGPLogger log, KeyHandler [] publicKeyStores, KeyHandler [] privateKeyStores, PassPhrase [] passphrases, DecryptedBlockCache blocks, byte [] data) 
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
     
             ByteArrayInputStream in = new ByteArrayInputStream(data);
@@ -470,15 +637,34 @@ public class OpenPGPHandler extends AlgorithmHandler {
                     }
 
                     if (line.compareTo("-----END PGP MESSAGE-----")==0) {
-                        LiteralDataPacket [] d = decryptPgpData(privateKeyStores, passphrases, Armory.disarm(new String(tmp.toByteArray())));
-                        if (d!=null) {
-                            for (int n = 0; n < d.length; n++) {
-                                out.write(d[n].getData());
-                                out.write("\r\n".getBytes());
-                            }
+                        String key = DecryptedBlockCache.makeKey(tmp.toByteArray(), getPassphraseData(passphrases));
+                        
+                        // seen before?
+                        byte plaintext[] = blocks.get(key);
+                        if ((plaintext == null) && (sharedBlockCache != null)) 
+                            plaintext = sharedBlockCache.get(key);
+                        
+                        if (plaintext != null) {
+                            log.logInfo("Block has been decrypted before, reusing the result");
                         } else {
-                            throw new AlgorithmException("No encrypted data found in file.");
+                            LiteralDataPacket [] d = decryptPgpData(privateKeyStores, passphrases, Armory.disarm(new String(tmp.toByteArray())));
+                            if (d!=null) {
+                                ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+                                for (int n = 0; n < d.length; n++) {
+                                    decrypted.write(d[n].getData());
+                                    decrypted.write("\r\n".getBytes());
+                                }
+                                plaintext = decrypted.toByteArray();
+                            } else {
+                                throw new AlgorithmException("No encrypted data found in file.");
+                            }
+                            
+                            if (sharedBlockCache != null)
+                                sharedBlockCache.put(key, plaintext);
                         }
+                        
+                        blocks.put(key, plaintext);
+                        out.write(plaintext);
                     } else {
                         throw new AlgorithmException("Encrypted message is incomplete.");
                     }
@@ -603,6 +789,8 @@ public class OpenPGPHandler extends AlgorithmHandler {
     /**
      * <p>Verify a given signature.</p>
      * <p>Returns true if successfully verified, false if not. Key ID is written in the log file.</p>
+     * <p>Outcomes are remembered against the signature, the data and the signer's fingerprint, so seeing the same signature again
+     * costs a key lookup and two hashes. Outcomes for a key that has since been revoked are forgotten.</p>
      */
     private boolean verify(OpenPGPLogger log, KeyHandler[] publicKeyStores, byte [] data, byte [] signature)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
@@ -635,72 +823,117 @@ public class OpenPGPHandler extends AlgorithmHandler {
             if (key==null)
                 throw new PublicKeyNotFoundException("Could not find signer's public key, message can not be verified.");
 
+            // has this been checked before?
+            String cacheKey = null;
+            if (key[0] instanceof OpenPGPKeyData) {
+                OpenPGPKeyData signer = (OpenPGPKeyData)key[0];
+                
+                if (signer.isRevoked()) {
+                    log.logWarning("Signer's key has been revoked.");
+                    verificationCache.invalidate(signer.getFingerprint());
+                } else {
+                    cacheKey = SignatureVerificationCache.makeKey(signature, data, signer.getFingerprint());
+                    
+                    Boolean outcome = verificationCache.get(cacheKey);
+                    if (outcome != null)
+                        return outcome.booleanValue();
+                }
+            }
+
             // verify
-            if (sig.verify(key[0].getKey().getPublicKey(), data))
-                return true;
+            boolean valid = sig.verify(key[0].getKey().getPublicKey(), data);
+            
+            if (cacheKey != null)
+                verificationCache.put(cacheKey, valid);
 
-            return false;
+            return valid;
 
     }
 
+    /**
+     * <p>Choose the hash algorithm to sign an outgoing message with.</p>
+     * <p>The configured hash algorithm is used unless a recipient's key states hash preferences that do not include it,
+     * in which case an algorithm acceptable to all recipients is negotiated. Recipients' keys are only looked up for mail that 
+     * is encrypted, so mail that is only signed always uses the configured algorithm.</p>
+     * @param recipientKeys The keys found for each recipient, a recipient whose key is unavailable places no constraint on the hash. 
+     *                      Null if the keys were not looked up.
+     */
+    private int selectHashAlgorithm(KeyData [][] recipientKeys) {
+        if ((getHashAlgorithm()==HashAlgorithmSettings.SHA1) || (recipientKeys==null))
+            return getHashAlgorithm();
+
+        byte prefs[][] = new byte[recipientKeys.length][];
+        for (int n = 0; n < recipientKeys.length; n++) {
+            KeyData keys[] = recipientKeys[n];
+            if ((keys!=null) && (keys[0] instanceof OpenPGPKeyData))
+                prefs[n] = ((OpenPGPKeyData)keys[0]).getPreferredHashAlgorithms();
+        }
+
+        return HashAlgorithmSettings.negotiate(getHashAlgorithm(), prefs);
+    }
+
 	/**
 	 * <p>Sign email attachments and return an array containing the corresponding .sig files.</p>
          * <p>As with the message body, if the attachment is not base64 encoded trailing whitespace and the last enter is stripped.</p>
+         * <p>The signing key is fetched once, then each attachment is signed as a separate job on the shared worker pool.</p>
 	 */
-    private EmailAttachment [] signAttachments(KeyHandler[] secretKeyStores, String signer, PassPhrase[] passPhrases, EmailAttachment [] attachments)
+    private EmailAttachment [] signAttachments(KeyHandler[] secretKeyStores, String signer, PassPhrase[] passPhrases, int hashAlg, EmailAttachment [] attachments)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
-            Vector signedAttachments = new Vector();
+            if (attachments.length == 0)
+                return attachments;
 
-            // for each attachment
-            for (int n = 0; n < attachments.length; n++) {
+            // fetch key
+            KeyData keys [] = findSecretKeys(secretKeyStores, new OpenPGPStandardKeyIdentifier(signer), passPhrases);
 
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                OpenPGPPacketOutputStream pOut = new OpenPGPPacketOutputStream(out);
+            if (keys==null) // no key found
+                throw new SecretKeyNotFoundException("Could not find signing key for : \n   '"+signer+"'");
 
-                // fetch key
-                KeyData keys [] = findSecretKeys(secretKeyStores, new OpenPGPStandardKeyIdentifier(signer), passPhrases);
+            if (!(keys[0] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + signer + " is of the wrong type");
+            OpenPGPKeyData signerKey = (OpenPGPKeyData)keys[0]; // the first key MUST be the signing key according to spec
+            unlockKey(signerKey, passPhrases);
 
-                if (keys!=null) {
-                    if (!(keys[0] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + signer + " is of the wrong type");
-                    OpenPGPKeyData signerKey = (OpenPGPKeyData)keys[0]; // the first key MUST be the signing key according to spec
+            AttachmentJob jobs[] = new AttachmentJob[attachments.length];
+            for (int n = 0; n < attachments.length; n++)
+                jobs[n] = new SignAttachmentJob(signerKey, hashAlg, attachments[n]);
 
-                    // generate & write pk packet
-                    pOut.writePacket(new SignaturePacket( new V4SignatureMaterial(
-                        signerKey.getKey().getPrivateKey(),
-                        0,
-                        signerKey.getKeyID(),
-                        (attachments[n].getEncoding()==EmailAttachment.BASE64) ? 0x00 : 0x01,
-                        signerKey.getKeyPacket().getAlgorithm(),
-                        HashAlgorithmSettings.SHA1,
-                        (attachments[n].getEncoding()==EmailAttachment.BASE64) ? attachments[n].decode() : Armory.formatForCTSigning(attachments[n].decode())
-                    )));
+            return processAttachments(jobs);
+    }
 
-                    pOut.close();
+	/**
+	 * <p>Sign a single attachment and return the corresponding .sig file.</p>
+	 */
+    private EmailAttachment signAttachment(OpenPGPKeyData signerKey, int hashAlg, EmailAttachment attachment)
+        throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
-                    EmailHeader [] signedattachheaders = new EmailHeader[3];
-                    signedattachheaders[0] = new EmailHeader("Content-Type","application/octet-stream;\r\n\tname=\""+attachments[n].getFilename() + ".sig"+"\"");
-                    signedattachheaders[1] = new EmailHeader("Content-Transfer-Encoding","base64");
-                    signedattachheaders[2] = new EmailHeader("Content-Disposition","attachment;\r\n\tfilename=\""+attachments[n].getFilename() + ".sig"+"\"");
-                    signedAttachments.add(new EmailAttachment(signedattachheaders, Base64.encode(out.toByteArray())));
-                } else {
-                    // no key found
-                    throw new SecretKeyNotFoundException("Could not find signing key for : \n   '"+signer+"'");
-                }
-            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            OpenPGPPacketOutputStream pOut = new OpenPGPPacketOutputStream(out);
 
-            // return attachments
-            EmailAttachment [] tmp = new EmailAttachment[signedAttachments.size()];
-            for (int n = 0; n < tmp.length; n++)
-                tmp[n] = (EmailAttachment)signedAttachments.elementAt(n);
+            // generate & write pk packet
+            pOut.writePacket(new SignaturePacket( new V4SignatureMaterial(
+                signerKey.getKey().getPrivateKey(),
+                0,
+                signerKey.getKeyID(),
+                (attachment.getEncoding()==EmailAttachment.BASE64) ? 0x00 : 0x01,
+                signerKey.getKeyPacket().getAlgorithm(),
+                hashAlg,
+                (attachment.getEncoding()==EmailAttachment.BASE64) ? attachment.decode() : Armory.formatForCTSigning(attachment.decode())
+            )));
 
-            return tmp;
+            pOut.close();
+
+            EmailHeader [] signedattachheaders = new EmailHeader[3];
+            signedattachheaders[0] = new EmailHeader("Content-Type","application/octet-stream;\r\n\tname=\""+attachment.getFilename() + ".sig"+"\"");
+            signedattachheaders[1] = new EmailHeader("Content-Transfer-Encoding","base64");
+            signedattachheaders[2] = new EmailHeader("Content-Disposition","attachment;\r\n\tfilename=\""+attachment.getFilename() + ".sig"+"\"");
+
+            return new EmailAttachment(signedattachheaders, Base64.encode(out.toByteArray()));
     }
 
     /**
      * <p>Recursively sign and ascii armor a mime body.</p>
      */
-    private MimeComponent [] signMimeBody(KeyHandler[] secretKeyStores, String signer, PassPhrase[] passPhrases, MimeComponent [] data)
+    private MimeComponent [] signMimeBody(KeyHandler[] secretKeyStores, String signer, PassPhrase[] passPhrases, int hashAlg, MimeComponent [] data)
 	        throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
 	            MimeComponent enc[] = data;
@@ -708,10 +941,10 @@ public class OpenPGPHandler extends AlgorithmHandler {
 	            for (int n = 0; n < data.length; n++) {
 	                MimeComponent subs [] = data[n].getSubComponents();
 	                if (subs!=null) {
-	                    subs = signMimeBody(secretKeyStores, signer, passPhrases, subs);
+	                    subs = signMimeBody(secretKeyStores, signer, passPhrases, hashAlg, subs);
 	                    enc[n].setSubComponents(subs);
 	                } else {
-	                    enc[n].setData(signBody(secretKeyStores, signer, passPhrases, data[n].getData()));
+	                    enc[n].setData(signBody(secretKeyStores, signer, passPhrases, hashAlg, data[n].getData()));
 	                }
 
 	            }
@@ -723,7 +956,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
 	 * <p>Sign a message body</p>
 	 * <p>FIXME: Does not properly handle HTML/RTF emails.</p>
 	 */
-    private byte [] signBody(KeyHandler[] secretKeyStores, String signer, PassPhrase[] passPhrases, byte [] data)
+    private byte [] signBody(KeyHandler[] secretKeyStores, String signer, PassPhrase[] passPhrases, int hashAlg, byte [] data)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
             ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -735,6 +968,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
             if (keys!=null) {
                 if (!(keys[0] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + signer + " is of the wrong type");
                 OpenPGPKeyData signerKey = (OpenPGPKeyData)keys[0]; // the first key MUST be the signing key according to spec
+                unlockKey(signerKey, passPhrases);
 
                 // generate & write pk packet
                 pOut.writePacket(new SignaturePacket( new V4SignatureMaterial(
@@ -743,7 +977,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
                     signerKey.getKeyID(),
                     0x01,
                     signerKey.getKeyPacket().getAlgorithm(),
-                    HashAlgorithmSettings.SHA1,
+                    hashAlg,
                     Armory.formatForCTSigning(data)//data
                 )));
 
@@ -758,7 +992,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
                 ByteArrayOutputStream out2 = new ByteArrayOutputStream();
 
                 out2.write("-----BEGIN PGP SIGNED MESSAGE-----\r\n".getBytes());
-                out2.write("Hash: SHA1\r\n".getBytes());
+                out2.write(("Hash: " + HashAlgorithmSettings.getHashText(hashAlg) + "\r\n").getBytes());
                 out2.write("\r\n".getBytes());
                 out2.write(Armory.dashEscapeText(new String(data)).getBytes());
                 out2.write("-----BEGIN PGP SIGNATURE-----\r\n".getBytes());
@@ -787,6 +1021,9 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
     /**
      * <p>Decrypt encrypted data and return an array of unencrypted literal data packets.</p>
+     * <p>Before any secret key is unlocked the session key packets are checked against the index of held secret keys, so only the
+     * packets addressed to us are opened however many recipients a message has. Packets with a hidden (wildcard) recipient are 
+     * only tried if none of those work, and then against at most MAX_HIDDEN_RECIPIENT_TRIALS held keys each.</p>
      */
     private LiteralDataPacket [] decryptPgpData(KeyHandler [] privateKeyStores, PassPhrase [] passphrases, byte [] data)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
@@ -802,7 +1039,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
             Packet p = in.readPacket();
             while (p != null) {
 
-                if (p instanceof SymmetricallyEncryptedDataPacket)
+                if (p instanceof EncryptedDataPacket)
                     datapackets.add(p);
                 if (p instanceof PublicKeyEncryptedSessionKeyPacket)
                     publicsessionkeys.add(p);
@@ -816,56 +1053,69 @@ public class OpenPGPHandler extends AlgorithmHandler {
             if (publicsessionkeys.size() == 0)
                 throw new AlgorithmException("No session keys found in PGP file, can not decrypt.");
 
-            // look through session keys, try and find one we have a secret key for.
+            // pick out the session keys addressed to keys we hold, and those with hidden recipients
+            Vector addressed = new Vector();
+            Vector hidden = new Vector();
+            byte wildcard[] = {0,0,0,0,0,0,0,0};
+            for (int na = 0; na < publicsessionkeys.size(); na++) {
+                PublicKeyEncryptedSessionKeyPacket pkeskp = (PublicKeyEncryptedSessionKeyPacket)publicsessionkeys.elementAt(na);
+                
+                if (Arrays.equals(pkeskp.getKeyID(), wildcard))
+                    hidden.add(pkeskp);
+                else if (secretKeyIndex.mayHold(privateKeyStores, pkeskp.getKeyID()))
+                    addressed.add(pkeskp);
+            }
+            
+            if ((addressed.size() == 0) && (hidden.size() == 0))
+                throw new SecretKeyNotFoundException("No secret key could be found to decrypt this message.");
+
             for (int n = 0; n < datapackets.size(); n++) {
 
+                EncryptedDataPacket dp = (EncryptedDataPacket)datapackets.elementAt(n);
                 boolean decoded = false; // flag so we don't attempt to decode the same message twice
+                boolean keyfound = false;
 
-                for (int na = 0; na < publicsessionkeys.size(); na++) {
-                    if (!decoded) { // if not already decoded then try and decode
-                        PublicKeyEncryptedSessionKeyPacket pkeskp = (PublicKeyEncryptedSessionKeyPacket)publicsessionkeys.elementAt(na);
+                // try the session keys addressed to us
+                for (int na = 0; (na < addressed.size()) && (!decoded); na++) {
+                    PublicKeyEncryptedSessionKeyPacket pkeskp = (PublicKeyEncryptedSessionKeyPacket)addressed.elementAt(na);
 
-                        KeyData [] keys = findSecretKeys(privateKeyStores, new OpenPGPKeyIDKeyIdentifier(pkeskp.getKeyID()), passphrases);
+                    KeyData [] keys = findSecretKeys(privateKeyStores, new OpenPGPKeyIDKeyIdentifier(pkeskp.getKeyID()), passphrases);
 
-                        if (keys == null) { // if we have tried all possible session keys and still haven't found a key that decodes this packet then throw a hissy fit
-                            if (na == publicsessionkeys.size()-1)
-                                throw new SecretKeyNotFoundException("No secret key could be found to decrypt this message.");
-                        } else {
-                            // keys found
-
-                            // try to decrypt session key with all keys available
-                            for (int cnt = 0; cnt < keys.length; cnt++) {
-
-                                try {
-                                    // try decode session key
-                                    SessionKey sk = pkeskp.getSessionKey(keys[cnt].getKey().getPrivateKey());
-                                    SymmetricallyEncryptedDataPacket dp = null;
-
-                                    // attempt to decode symmetric data packet with resultant session key (may fail if wrong session key used)
-                                    try {
-                                        dp = (SymmetricallyEncryptedDataPacket)datapackets.elementAt(n);
-                                        dp.decryptAndDecode(sk);
-                                    } catch (AlgorithmException e) {
-                                        // problem decoding the message, most likely because the session key is invalid. Rethrow more friendly exception.
-                                        throw new AlgorithmException("Session key is invalid, this message can not be decrypted.");
-                                    }
-
-                                    // everything has apparently decrypted ok, now do the extraction.
-                                    LiteralDataPacket [] ldp = unpackPacket(dp);
-                                    for (int cnt2 = 0; cnt2 < ldp.length; cnt2++)
-                                        founddata.add(ldp[cnt2]);
-
-                                    decoded = true; // set flag so we don't attempt to decode the same message twice
-
-                                } catch (ChecksumFailureException c) {
-                                    // if we have tried all keys on session key packet and it still doesn't decode then abort
-                                    if (cnt == keys.length-1)
-                                        throw new AlgorithmException("Session key could not be extracted, message can not be decrypted.");
-                                }
+                    if (keys != null) {
+                        keyfound = true;
+                        decoded = openSessionKey(pkeskp, keys, passphrases, dp, founddata, false);
+                    }
+                }
+
+                // try a limited number of held keys on the session keys with hidden recipients
+                ChecksumFailureException passfail = null;
+                for (int na = 0; (na < hidden.size()) && (!decoded); na++) {
+                    PublicKeyEncryptedSessionKeyPacket pkeskp = (PublicKeyEncryptedSessionKeyPacket)hidden.elementAt(na);
+
+                    Vector candidates = secretKeyIndex.getKeyIDs(privateKeyStores, pkeskp.getKeyAlgorithm());
+                    for (int cnt = 0; (cnt < candidates.size()) && (cnt < MAX_HIDDEN_RECIPIENT_TRIALS) && (!decoded); cnt++) {
+                        try {
+                            KeyData [] keys = findSecretKeys(privateKeyStores, new OpenPGPKeyIDKeyIdentifier((byte[])candidates.elementAt(cnt)), passphrases);
+
+                            if (keys != null) {
+                                keyfound = true;
+                                decoded = openSessionKey(pkeskp, keys, passphrases, dp, founddata, true);
                             }
+                        } catch (ChecksumFailureException c) {
+                            // this key may not be the recipient, only ask for its passphrase if nothing else works
+                            passfail = c;
                         }
                     }
                 }
+
+                if (!decoded) {
+                    if (passfail != null)
+                        throw passfail;
+                    if (keyfound) 
+                        throw new AlgorithmException("Session key could not be extracted, message can not be decrypted.");
+                    
+                    throw new SecretKeyNotFoundException("No secret key could be found to decrypt this message.");
+                }
             }
 
             // return array of found data packets.
@@ -880,78 +1130,196 @@ public class OpenPGPHandler extends AlgorithmHandler {
             return null;
     }
 
+	/**
+	 * <p>Try to open a session key packet with each of a list of secret keys, and decrypt a data packet with the result.</p>
+	 * <p>Each key is only unlocked when its turn comes. The literal data found is added to founddata.</p>
+	 * @param trial True if the keys may not be the ones the session key was encrypted to, in which case a session key that
+	 * fails to decrypt the data is passed over rather than reported.
+	 * @return true if the data was decrypted.
+	 */
+    private boolean openSessionKey(PublicKeyEncryptedSessionKeyPacket pkeskp, KeyData [] keys, PassPhrase [] passphrases, EncryptedDataPacket dp, Vector founddata, boolean trial)
+        throws AlgorithmException, ChecksumFailureException {
+
+        for (int cnt = 0; cnt < keys.length; cnt++) {
+
+            unlockKey(keys[cnt], passphrases);
+            
+            try {
+                // try decode session key
+                SessionKey sk = pkeskp.getSessionKey(keys[cnt].getKey().getPrivateKey());
+
+                // attempt to decode symmetric data packet with resultant session key (may fail if wrong session key used)
+                try {
+                    dp.decryptAndDecode(sk);
+                } catch (AlgorithmException e) {
+                    if (trial)
+                        continue;
+                    
+                    // problem decoding the message, most likely because the session key is invalid. Rethrow more friendly exception.
+                    throw new AlgorithmException("Session key is invalid, this message can not be decrypted.");
+                }
+
+                // everything has apparently decrypted ok, now do the extraction.
+                LiteralDataPacket [] ldp = unpackPacket(dp);
+                for (int cnt2 = 0; cnt2 < ldp.length; cnt2++)
+                    founddata.add(ldp[cnt2]);
+
+                return true;
+
+            } catch (ChecksumFailureException c) {
+                // wrong key, try the next
+            } catch (AlgorithmException e) {
+                // a key of the wrong type or size fails to decrypt the session key at all
+                if (!trial)
+                    throw e;
+            }
+        }
+
+        return false;
+    }
+
+	/**
+	 * <p>Write a public key encrypted session key packet for each recipient.</p>
+	 * <p>Choosing a recipient's encryption key and encrypting the session key to it do not depend on the other recipients, so each recipient 
+	 * is handled as a separate job on the shared worker pool. The packets are written in recipient order, and if several recipients
+	 * fail the error for the first of them is thrown, so the result does not depend on how the jobs were scheduled.</p>
+	 * @return The compression preferences of each recipient.
+	 */
+    private byte [][] writeSessionKeys(String [] recp, KeyData [][] recipientKeys, SessionKey sk, OpenPGPPacketOutputStream pOut)
+        throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
+
+        RecipientJob jobs[] = new RecipientJob[recp.length];
+        for (int n = 0; n < recp.length; n++)
+            jobs[n] = new RecipientJob(recp[n], recipientKeys[n], sk);
+
+        try {
+            WorkerPool.getDefaultPool().execute(jobs);
+        } catch (Exception e) {
+            rethrow(e); // jobs keep their own exceptions, so this should not happen
+        }
+
+        byte compressionPrefs[][] = new byte[recp.length][];
+        for (int n = 0; n < jobs.length; n++) {
+            if (jobs[n].getFailure() != null)
+                rethrow(jobs[n].getFailure());
+
+            pOut.writePacket(jobs[n].getPacket());
+            compressionPrefs[n] = jobs[n].getCompressionPreferences();
+        }
+
+        return compressionPrefs;
+    }
+
+	/**
+	 * <p>Rethrow an exception caught from a worker job as one of the types declared by the processing methods.</p>
+	 */
+    private void rethrow(Exception e)
+        throws AlgorithmException, KeyHandlerException, EmailDataFormatException, IOException {
+
+        if (e instanceof AlgorithmException) throw (AlgorithmException)e;
+        if (e instanceof KeyHandlerException) throw (KeyHandlerException)e;
+        if (e instanceof EmailDataFormatException) throw (EmailDataFormatException)e;
+        if (e instanceof IOException) throw (IOException)e;
+        if (e instanceof RuntimeException) throw (RuntimeException)e;
+
+        throw new AlgorithmException(e.getMessage());
+    }
+
+	/**
+	 * <p>Wrap a literal data packet in a compressed data packet, if the compression policy decides that the data is worth compressing.</p>
+	 * @param literal The literal data packet.
+	 * @param data The data held in the literal packet.
+	 * @param filename The name of the file the data came from, or null.
+	 * @param prefs The recipients' compression preferences.
+	 */
+    private Packet compress(LiteralDataPacket literal, byte data[], String filename, byte prefs[][]) throws AlgorithmException {
+        CompressionPolicy.Choice choice = getCompressionPolicy().choose(data, filename, prefs);
+
+        if (!choice.isCompressed())
+            return literal;
+
+        CompressedDataPacket cp = new CompressedDataPacket((byte)choice.getAlgorithm(), choice.getLevel(), choice.getStrategy());
+        cp.add(literal);
+
+        return cp;
+    }
+
 	/**
 	 * <p>Encrypt attachments and return an array of encrypted EmailAttachment. </p>
+	 * <p>Each attachment has its own session key, so they are compressed and encrypted as separate jobs on the shared worker pool.</p>
 	 */
-    private EmailAttachment [] encryptAttachments(KeyHandler[] publicKeyStores, String [] recp, EmailAttachment [] attachments)
+    private EmailAttachment [] encryptAttachments(String [] recp, KeyData [][] recipientKeys, EmailAttachment [] attachments)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
-        EmailAttachment [] encryptedAttachments = new EmailAttachment[attachments.length];
+        AttachmentJob jobs[] = new AttachmentJob[attachments.length];
+        for (int n = 0; n < attachments.length; n++)
+            jobs[n] = new EncryptAttachmentJob(recp, recipientKeys, attachments[n]);
 
-        // for each attachment
-        for (int n = 0; n < attachments.length; n++) {
+        return processAttachments(jobs);
+    }
 
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            OpenPGPPacketOutputStream pOut = new OpenPGPPacketOutputStream(out);
+	/**
+	 * <p>Compress and encrypt a single attachment.</p>
+	 */
+    private EmailAttachment encryptAttachment(String [] recp, KeyData [][] recipientKeys, EmailAttachment attachment)
+        throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
-            // generate session key
-            SessionKey sk = new SessionKey(getSymmetricAlgorithm());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OpenPGPPacketOutputStream pOut = new OpenPGPPacketOutputStream(out);
 
-            // for each recipient generate a Public key encrypted session key packet
-            for (int na = 0; na < recp.length; na++) {
+        // generate session key
+        SessionKey sk = new SessionKey(getSymmetricAlgorithm());
 
-                // fetch key
-                KeyData keys [] = findKeys(publicKeyStores, new OpenPGPStandardKeyIdentifier(recp[na]));
+        // for each recipient generate a Public key encrypted session key packet
+        byte compressionPrefs[][] = writeSessionKeys(recp, recipientKeys, sk, pOut);
 
-                if (keys != null) { // if we have a key
+        // generate encrypted packet
+        byte attachmentData[] = attachment.decode();
 
-                    OpenPGPKeyData encryptionKey = null;
+        EncryptedDataPacket dp = new SymmetricallyEncryptedIntegrityProtectedDataPacket(); // MDC protected
+        dp.add(compress(new LiteralDataPacket((byte)'b', attachment.getFilename(), attachmentData), attachmentData, attachment.getFilename(), compressionPrefs));
+        dp.encryptAndEncode(sk);
 
-                    // find encryption key (todo: make more reliable?)
-                    if (keys.length==1) {
-                        if (!(keys[0] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + recp[na] + " is of the wrong type");
-                        encryptionKey = (OpenPGPKeyData)keys[0]; // only one key, must be an encryption key
-                    }
-                    if (keys.length > 1) {
-                        if (!(keys[1] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + recp[na] + " is of the wrong type");
-                        encryptionKey = (OpenPGPKeyData)keys[1]; // more than one key, first key is for signing, second for encryption.
-                    }
+        pOut.writePacket(dp);
+        pOut.close();
 
-                    // generate & write pk packet
-                    pOut.writePacket(new PublicKeyEncryptedSessionKeyPacket(encryptionKey.getKey().getPublicKey(), encryptionKey.getKeyID(), encryptionKey.getAlgorithm(), sk));
+        // save attachment
+        EmailHeader [] headers = new EmailHeader[3];
+        headers[0] = new EmailHeader("Content-Type","application/octet-stream;\r\n\tname=\""+attachment.getFilename() + ".pgp"+"\"");
+        headers[1] = new EmailHeader("Content-Transfer-Encoding","base64");
+        headers[2] = new EmailHeader("Content-Disposition","attachment;\r\n\tfilename=\""+attachment.getFilename() + ".pgp"+"\"");
 
-                } else {
-                    // no key found
-                    throw new PublicKeyNotFoundException("Could not find public key for : \n   '"+recp[na]+"'");
-                }
-            }
+        return new EmailAttachment(headers, Base64.encode(out.toByteArray()));
+    }
 
-            // generate encrypted packet
-            CompressedDataPacket cp = new CompressedDataPacket(CompressedDataPacket.ZIP);
-            cp.add(new LiteralDataPacket((byte)'b', attachments[n].getFilename(), attachments[n].decode()));
+	/**
+	 * <p>Run a set of attachment jobs on the shared worker pool and return their results in the original order.</p>
+	 * <p>If several attachments fail the error for the first of them is thrown.</p>
+	 */
+    private EmailAttachment [] processAttachments(AttachmentJob jobs[])
+        throws AlgorithmException, KeyHandlerException, EmailDataFormatException, IOException {
 
-            SymmetricallyEncryptedDataPacket dp = new SymmetricallyEncryptedDataPacket();
-            dp.add(cp);
-            dp.encryptAndEncode(sk);
+        try {
+            WorkerPool.getDefaultPool().execute(jobs);
+        } catch (Exception e) {
+            rethrow(e); // jobs keep their own exceptions, so this should not happen
+        }
 
-            pOut.writePacket(dp);
-            pOut.close();
+        EmailAttachment results[] = new EmailAttachment[jobs.length];
+        for (int n = 0; n < jobs.length; n++) {
+            if (jobs[n].getFailure() != null)
+                rethrow(jobs[n].getFailure());
 
-            // save attachment
-            EmailHeader [] headers = new EmailHeader[3];
-            headers[0] = new EmailHeader("Content-Type","application/octet-stream;\r\n\tname=\""+attachments[n].getFilename() + ".pgp"+"\"");
-            headers[1] = new EmailHeader("Content-Transfer-Encoding","base64");
-            headers[2] = new EmailHeader("Content-Disposition","attachment;\r\n\tfilename=\""+attachments[n].getFilename() + ".pgp"+"\"");
-            encryptedAttachments[n] = new EmailAttachment(headers, Base64.encode(out.toByteArray()));
+            results[n] = jobs[n].getResult();
         }
 
-        return encryptedAttachments;
+        return results;
     }
 
 	/**
 	 * <p>Recursively encrypt and ascii armor a mime message body.</p>
 	 */
-    private MimeComponent [] encryptMimeBody(KeyHandler[] publicKeyStores, String [] recp, MimeComponent [] data)
+    private MimeComponent [] encryptMimeBody(String [] recp, KeyData [][] recipientKeys, MimeComponent [] data)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
             MimeComponent enc[] = data;
@@ -959,10 +1327,10 @@ public class OpenPGPHandler extends AlgorithmHandler {
             for (int n = 0; n < data.length; n++) {
                 MimeComponent subs [] = data[n].getSubComponents();
                 if (subs!=null) {
-                    subs = encryptMimeBody(publicKeyStores, recp, subs);
+                    subs = encryptMimeBody(recp, recipientKeys, subs);
                     enc[n].setSubComponents(subs);
                 } else {
-                    enc[n].setData(encryptBody(publicKeyStores, recp, data[n].getData()));
+                    enc[n].setData(encryptBody(recp, recipientKeys, data[n].getData()));
                 }
 
             }
@@ -974,7 +1342,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
 	 * <p>Encrypt and ascii armor the given message.</p>
 	 * <p>FIXME: Does not properly handle HTML/RTF emails.</p>
 	 */
-    private byte [] encryptBody(KeyHandler[] publicKeyStores, String [] recp, byte [] data)
+    private byte [] encryptBody(String [] recp, KeyData [][] recipientKeys, byte [] data)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
             ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -984,40 +1352,11 @@ public class OpenPGPHandler extends AlgorithmHandler {
             SessionKey sk = new SessionKey(getSymmetricAlgorithm());
 
             // for each recipient generate a Public key encrypted session key packet
-            for (int na = 0; na < recp.length; na++) {
-
-                // fetch key
-                KeyData keys [] = findKeys(publicKeyStores, new OpenPGPStandardKeyIdentifier(recp[na]));
-
-                if (keys != null) { // if we have a key
-
-                    OpenPGPKeyData encryptionKey = null;
-
-                    // find encryption key (todo: make more reliable?)
-                    if (keys.length==1) {
-                        if (!(keys[0] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + recp[na] + " is of the wrong type");
-                        encryptionKey = (OpenPGPKeyData)keys[0]; // only one key, must be an encryption key
-                    }
-                    if (keys.length > 1) {
-                        if (!(keys[1] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + recp[na] + " is of the wrong type");
-                        encryptionKey = (OpenPGPKeyData)keys[1]; // more than one key, first key is for signing, second for encryption.
-                    }
-
-                    // generate & write pk packet
-                    pOut.writePacket(new PublicKeyEncryptedSessionKeyPacket(encryptionKey.getKey().getPublicKey(), encryptionKey.getKeyID(), encryptionKey.getAlgorithm(), sk));
-
-                } else {
-                    // no key found
-                    throw new PublicKeyNotFoundException("Could not find public key for : \n   '"+recp[na]+"'");
-                }
-            }
+            byte compressionPrefs[][] = writeSessionKeys(recp, recipientKeys, sk, pOut);
 
             // generate encrypted packet
-            CompressedDataPacket cp = new CompressedDataPacket(CompressedDataPacket.ZIP);
-            cp.add(new LiteralDataPacket((byte)'b', "_CONSOLE", data));
-
-            SymmetricallyEncryptedDataPacket dp = new SymmetricallyEncryptedDataPacket();
-            dp.add(cp);
+            EncryptedDataPacket dp = new SymmetricallyEncryptedIntegrityProtectedDataPacket(); // MDC protected
+            dp.add(compress(new LiteralDataPacket((byte)'b', "_CONSOLE", data), data, null, compressionPrefs));
             dp.encryptAndEncode(sk);
 
             pOut.writePacket(dp);
@@ -1045,89 +1384,447 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
 
 
-/* Key Search ***************************************************************************/
+/* Worker jobs **************************************************************************/
+
+    /**
+     * <p>Chooses one recipient's encryption key from the keys found for them and encrypts the session key to it.</p>
+     * <p>Exceptions are kept rather than thrown so that the caller can report them in recipient order.</p>
+     */
+    private class RecipientJob implements WorkerPool.Job {
+
+        private String recipient;
+        private KeyData keys[];
+        private SessionKey sessionKey;
+
+        private PublicKeyEncryptedSessionKeyPacket packet;
+        private byte compressionPrefs[];
+        private Exception failure;
+
+        RecipientJob(String recp, KeyData recpKeys[], SessionKey sk) {
+            recipient = recp;
+            keys = recpKeys;
+            sessionKey = sk;
+        }
+
+        /** Return the session key packet. */
+        PublicKeyEncryptedSessionKeyPacket getPacket() {
+            return packet;
+        }
+
+        /** Return the recipient's compression preferences, or null if they have none. */
+        byte[] getCompressionPreferences() {
+            return compressionPrefs;
+        }
+
+        /** Return the exception thrown while processing the recipient, or null. */
+        Exception getFailure() {
+            return failure;
+        }
+
+        public void run() {
+            try {
+                if (keys == null) // no key found
+                    throw new PublicKeyNotFoundException("Could not find public key for : \n   '"+recipient+"'");
+
+                OpenPGPKeyData encryptionKey = null;
+
+                // find encryption key (todo: make more reliable?)
+                if (keys.length==1) {
+                    if (!(keys[0] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + recipient + " is of the wrong type");
+                    encryptionKey = (OpenPGPKeyData)keys[0]; // only one key, must be an encryption key
+                }
+                if (keys.length > 1) {
+                    if (!(keys[1] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + recipient + " is of the wrong type");
+                    encryptionKey = (OpenPGPKeyData)keys[1]; // more than one key, first key is for signing, second for encryption.
+                }
+
+                // generate pk packet
+                packet = new PublicKeyEncryptedSessionKeyPacket(encryptionKey.getKey().getPublicKey(), encryptionKey.getKeyID(), encryptionKey.getAlgorithm(), sessionKey);
+
+                if (keys[0] instanceof OpenPGPKeyData)
+                    compressionPrefs = ((OpenPGPKeyData)keys[0]).getPreferredCompressionAlgorithms();
+
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * <p>A job whose working memory is reserved from the attachment budget while it runs.</p>
+     * <p>Only as many large parts are held in memory at once as the budget allows.</p>
+     * <p>Exceptions are kept rather than thrown so that the caller can report them in the original order.</p>
+     */
+    private abstract class BudgetedJob implements WorkerPool.Job {
+
+        /** Rough number of copies of the data held while it is processed (decoded data, packets, output and base64). */
+        private static final int WORKING_COPIES = 4;
+
+        private long cost;
+        private Exception failure;
+
+        /** @param data The data being processed, used to estimate the memory needed. */
+        BudgetedJob(byte data[]) {
+            if (data != null)
+                cost = (long)data.length * WORKING_COPIES;
+        }
+
+        /** Return the exception thrown while processing, or null. */
+        Exception getFailure() {
+            return failure;
+        }
+
+        /** Do the work. */
+        protected abstract void process() throws Exception;
+
+        public void run() {
+            attachmentBudget.acquire(cost);
+            try {
+                process();
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                attachmentBudget.release(cost);
+            }
+        }
+    }
+
+    /**
+     * <p>Processes a single outgoing attachment.</p>
+     */
+    private abstract class AttachmentJob extends BudgetedJob {
+
+        private EmailAttachment attachment;
+        private EmailAttachment result;
+
+        AttachmentJob(EmailAttachment attach) {
+            super(attach.getData());
+            attachment = attach;
+        }
+
+        /** Return the processed attachment. */
+        EmailAttachment getResult() {
+            return result;
+        }
+
+        protected void process() throws Exception {
+            result = process(attachment);
+        }
+
+        /** Do the work on the given attachment. */
+        protected abstract EmailAttachment process(EmailAttachment attachment) throws Exception;
+    }
+
+    /**
+     * <p>Compresses and encrypts a single attachment.</p>
+     */
+    private class EncryptAttachmentJob extends AttachmentJob {
+
+        private String recipients[];
+        private KeyData recipientKeys[][];
+
+        EncryptAttachmentJob(String recp[], KeyData recpKeys[][], EmailAttachment attach) {
+            super(attach);
+            recipients = recp;
+            recipientKeys = recpKeys;
+        }
+
+        protected EmailAttachment process(EmailAttachment attachment) throws Exception {
+            return encryptAttachment(recipients, recipientKeys, attachment);
+        }
+    }
+
+    /**
+     * <p>Creates a detached signature for a single attachment.</p>
+     */
+    private class SignAttachmentJob extends AttachmentJob {
+
+        private OpenPGPKeyData signerKey;
+        private int hashAlg;
+
+        SignAttachmentJob(OpenPGPKeyData key, int hash, EmailAttachment attach) {
+            super(attach);
+            signerKey = key;
+            hashAlg = hash;
+        }
+
+        protected EmailAttachment process(EmailAttachment attachment) throws Exception {
+            return signAttachment(signerKey, hashAlg, attachment);
+        }
+    }
+
+    /**
+     * <p>Decrypts and verifies a single incoming mime body part.</p>
+     * <p>Progress is written to a private log which the caller merges into the main log in part order.</p>
+     */
+    private class IncomingPartJob extends BudgetedJob {
+
+        private KeyHandler[] publicKeyStores;
+        private KeyHandler[] privateKeyStores;
+        private PassPhrase[] passPhrases;
+        private DecryptedBlockCache blocks;
+        private MimeComponent part;
+
+        private OpenPGPLogger partLog;
+        private byte result[];
+
+        IncomingPartJob(KeyHandler[] publicKeys, KeyHandler[] privateKeys, PassPhrase[] phrases, DecryptedBlockCache cache, MimeComponent component) {
+            super(component.getData());
+            publicKeyStores = publicKeys;
+            privateKeyStores = privateKeys;
+            passPhrases = phrases;
+            blocks = cache;
+            part = component;
+
+            partLog = new OpenPGPLogger();
+            partLog.beginSection("Part");
+        }
+
+        /** Return the mime body part. */
+        MimeComponent getPart() {
+            return part;
+        }
+
+        /** Return the log written while processing the part. */
+        OpenPGPLogger getLog() {
+            return partLog;
+        }
+
+        /** Return the decrypted and verified data. */
+        byte[] getResult() {
+            return result;
+        }
+
+        protected void process() throws Exception {
+            byte data[] = decryptIncomingMessageBody(partLog, publicKeyStores, privateKeyStores, passPhrases, blocks, part.getData());
+            result = verifyIncomingMessageBody(partLog, publicKeyStores, privateKeyStores, passPhrases, data);
+        }
+    }
+
+    /**
+     * <p>Verifies and decrypts a single incoming attachment.</p>
+     * <p>Progress is written to a private log which the caller merges into the main log in attachment order. As with the 
+     * other incoming processing only a passphrase failure is treated as fatal, all other problems are logged.</p>
+     */
+    private class IncomingAttachmentJob extends BudgetedJob {
+
+        private KeyHandler[] publicKeyStores;
+        private KeyHandler[] privateKeyStores;
+        private PassPhrase[] passPhrases;
+        private EmailAttachment attachment;
+        private EmailAttachment signature;
+
+        private OpenPGPLogger attachmentLog;
+        private EmailAttachment decrypted[];
+
+        IncomingAttachmentJob(KeyHandler[] publicKeys, KeyHandler[] privateKeys, PassPhrase[] phrases, EmailAttachment attach, EmailAttachment sig) {
+            super(attach.getData());
+            publicKeyStores = publicKeys;
+            privateKeyStores = privateKeys;
+            passPhrases = phrases;
+            attachment = attach;
+            signature = sig;
+
+            attachmentLog = new OpenPGPLogger();
+            attachmentLog.beginSection("Attachment");
+        }
+
+        /** Return the attachment. */
+        EmailAttachment getAttachment() {
+            return attachment;
+        }
+
+        /** Return the log written while processing the attachment. */
+        OpenPGPLogger getLog() {
+            return attachmentLog;
+        }
+
+        /** Return the attachments decrypted from this one, or null if it was not decrypted. */
+        EmailAttachment[] getDecrypted() {
+            return decrypted;
+        }
+
+        protected void process() throws Exception {
+            OpenPGPLogger log = attachmentLog;
+
+            // Attempt to verify signature if signature is found
+                if (signature == null) {
+                    log.logWarning("Could not find a signature, file \"" + attachment.getFilename() + "\" can not be verified.");
+                } else {
+                    log.logInfo("Signature file: " + signature.getFilename());
 
-        /** 
-         * <p>Search through all key stores and attempt to locate a key.</p>
-         * @return key(s) if found or null if not.
-         * @throws ChecksumFailureException if a key was found but a passphrase was needed to decode the key store.
-         */
-	private KeyData[] findKeys(KeyHandler[] keystore, KeyIdentifier id) throws ChecksumFailureException, KeyHandlerException {
-	        for (int n = 0; n < keystore.length; n++) {
-	            
                     try {
-                        KeyData [] keys = keystore[n].findKeys(id, null);
+                        // attempt to verify attachment (needs to specially decode non-base64 data)
+                        if (!verify(log, publicKeyStores, (attachment.getEncoding()==EmailAttachment.BASE64) ? attachment.decode() : Armory.formatForCTSigning(attachment.decode()), signature.decode())) {
+                            throw new AlgorithmException("Signature \"" + signature.getFilename() + "\" is INVALID.");
+                        } else {
+                            log.logInfo("Signature is valid.");
+                        }
 
-                        if (keys != null)
-                            return keys;
-                        
+                    // catch and write errors to a log, we don't want to stop processing if something could not be verified.
                     } catch (Exception e) {
-                        // something went wrong while looking for the key. We will try other key stores if there are any left, or we'll return that
-                        // we couldn't find the key
-                        if (n == keystore.length-1)
-                            return null;
+                        log.logError(e.getMessage());
                     }
+                }
 
-	        }
+            // if attachment is a pgp file, try and decode
+            if (attachment.getFilename().endsWith(".pgp")) {
 
-	        return null;
-        }
+                try {
 
-        /** 
-         * <p>Search through all key stores and attempt to locate a key.</p>
-         * @return key(s) if found or null if not.
-         * @throws ChecksumFailureException if a key was found but a passphrase was needed to decode the key store.
-         */
-	private KeyData[] findSecretKeys(KeyHandler[] keystore, KeyIdentifier id, PassPhrase [] passPhrases) throws KeyHandlerException, ChecksumFailureException {
+                    // process packet
+                    LiteralDataPacket [] packets = decryptPgpData(privateKeyStores, passPhrases, attachment.decode());
 
-	        // if passphrase list is empty then have a look to see if the key is even present. Report an error if key is not found.
-	        if (passPhrases == null) {
-	            for (int n = 0; n < keystore.length; n++) {
+                    if (packets!=null) {
+                        EmailAttachment found[] = new EmailAttachment[packets.length];
 
-	                try {
+                        // construct attachments for all descovered literal packets
+                        for (int na = 0; na < packets.length; na++) {
 
-	                    keystore[n].findKeys(id, new OpenPGPFindKeyParameters(" ".getBytes()));
+                            // construct headers
+                            EmailHeader headers [] = new EmailHeader[3];
+                            headers[0] = new EmailHeader("Content-Type","application/octet-stream;\r\n\tname=\""+ packets[na].getFilename() +"\"");
+                            headers[1] = new EmailHeader("Content-Transfer-Encoding","base64");
+                            headers[2] = new EmailHeader("Content-Disposition","attachment;\r\n\tfilename=\""+ packets[na].getFilename() +"\"");
 
-	                } catch (ChecksumFailureException passfail) {
-	                    // catch and rethrow password fail so that the prompt dialog displays the correct info
-	                    throw passfail;
-	                }  catch (Exception e) {
-                            // something went wrong while looking for the key. We will try other key stores if there are any left, or we'll return that
-                            // we couldn't find the key
-                            if (n == keystore.length-1)
-                                return null;
+                            found[na] = new EmailAttachment(headers, Base64.encode(packets[na].getData()));
                         }
-	            }
-	        } else {
 
-	            for (int n = 0; n < keystore.length; n++) {
+                        decrypted = found;
+                    } else {
+                        throw new AlgorithmException("No encrypted data found in file \"" + attachment.getFilename() + "\".");
+                    }
 
-                        for (int na = 0; na < passPhrases.length; na++) {
-                            try {
+                    // if we got here then the message should have been decrypted
+                    log.logInfo("Attachment successfully decrypted.");
 
-                                KeyData [] keys = keystore[n].findKeys(id, new OpenPGPFindKeyParameters(passPhrases[na].getPassphraseData()));
+                } catch (ChecksumFailureException passfail) {
+                    throw passfail; // password failure is reported to the caller.
+                } catch (Exception e) {
+                    log.logError(e.getMessage());
+                }
+            }
+        }
+    }
 
-                                if (keys != null)
-                                    return keys;
+/* Key Search ***************************************************************************/
 
-                            } catch (ChecksumFailureException passfail) {
-                                // if the last passphrase failed then we don't have a passphrase capable of unlocking the key. Therefore elevate this.
-                                if (na==passPhrases.length-1) {
-                                    throw passfail;
-                                }
-                            } catch (Exception e) {
-                                // something went wrong while looking for the key. We will try other key stores if there are any left, or we'll return that
-                                // we couldn't find the key
-                                if (n == keystore.length-1)
-                                    return null;
-                            }
-                            
-                        }
+        /** 
+         * <p>Search through all key stores and attempt to locate a key.</p>
+         * <p>The key stores are searched at the same time, see KeySourceResolver.</p>
+         * @return key(s) if found or null if not.
+         * @throws ChecksumFailureException if a key was found but a passphrase was needed to decode the key store.
+         */
+	private KeyData[] findKeys(KeyHandler[] keystore, KeyIdentifier id) throws ChecksumFailureException, KeyHandlerException {
+                try {
+                    return new KeySourceResolver(keystore).resolve(id, null).getKeys();
+                } catch (ChecksumFailureException e) {
+                    // a public key store that needs a passphrase is treated as not holding the key
+                    return null;
+                }
+        }
 
-	            }
-	        }
+        /** 
+         * <p>Return the raw data of a list of passphrases, or null if there are none.</p>
+         */
+    private byte[][] getPassphraseData(PassPhrase [] passPhrases) {
+        if (passPhrases == null)
+            return null;
+        
+        byte data[][] = new byte[passPhrases.length][];
+        for (int n = 0; n < passPhrases.length; n++)
+            data[n] = passPhrases[n].getPassphraseData();
+        
+        return data;
+    }
+
+        /** 
+         * <p>Search through all key stores and attempt to locate the keys for a number of identifiers at once.</p>
+         * <p>The key stores are searched at the same time, each with a single batch lookup of the identifiers it might hold, so a keyring 
+         * file is read once rather than once per identifier. See KeySourceResolver.</p>
+         * @return An array with an entry for each identifier, holding the keys found for it or null if not.
+         */
+	private KeyData[][] findKeys(KeyHandler[] keystore, KeyIdentifier ids[]) {
+                KeySourceResolver.Answer answers[] = new KeySourceResolver(keystore).resolve(ids, null);
+                
+                KeyData found[][] = new KeyData[ids.length][];
+                for (int n = 0; n < ids.length; n++)
+                    found[n] = answers[n].getKeys();
+
+	        return found;
+        }
+
+        /** 
+         * <p>Look up the public keys of a list of recipients in one batch.</p>
+         * @return An array with an entry for each recipient, holding their keys or null if their key could not be found. Returns null if there are no recipients.
+         */
+	private KeyData[][] findRecipientKeys(KeyHandler[] keystore, String recp[]) {
+                if (recp == null)
+                    return null;
+                
+                KeyData found[][] = new KeyData[recp.length][];
+                if (keystore == null)
+                    return found;
+                
+                // a badly formed address can't have a key, so it is left out of the lookup
+                Vector valid = new Vector();
+                Vector ids = new Vector();
+                for (int n = 0; n < recp.length; n++) {
+                    try {
+                        ids.add(new OpenPGPStandardKeyIdentifier(recp[n]));
+                        valid.add(new Integer(n));
+                    } catch (KeyHandlerException e) {
+                        found[n] = null;
+                    }
+                }
+                
+                KeyIdentifier lookup[] = new KeyIdentifier[ids.size()];
+                for (int n = 0; n < lookup.length; n++)
+                    lookup[n] = (KeyIdentifier)ids.elementAt(n);
+                
+                KeyData keys[][] = findKeys(keystore, lookup);
+                for (int n = 0; n < lookup.length; n++)
+                    found[((Integer)valid.elementAt(n)).intValue()] = keys[n];
+                
+                return found;
+        }
 
-	        return null;
+        /** 
+         * <p>Search through all key stores and attempt to locate a secret key.</p>
+         * <p>The keys are returned locked, call unlockKey() on the key that is actually used. This way only one passphrase derivation
+         * is done per lookup, not one for every key and subkey that matched. The key stores are searched at the same time, see KeySourceResolver.</p>
+         * @return key(s) if found or null if not.
+         */
+	private KeyData[] findSecretKeys(KeyHandler[] keystore, KeyIdentifier id, PassPhrase [] passPhrases) throws KeyHandlerException, ChecksumFailureException {
+                return new KeySourceResolver(keystore).resolve(id, new OpenPGPLockedKeyParameters()).getKeys();
+        }
+
+        /** 
+         * <p>Unlock a secret key returned by findSecretKeys() with the first passphrase that fits.</p>
+         * <p>If no passphrases have been given yet an empty one is tried, which works for unprotected keys.</p>
+         * @throws ChecksumFailureException if none of the passphrases unlock the key, so the user can be asked for the right one.
+         */
+    private void unlockKey(KeyData key, PassPhrase [] passPhrases) throws AlgorithmException, ChecksumFailureException {
+        if ((!(key instanceof OpenPGPKeyData)) || (!((OpenPGPKeyData)key).isLocked()))
+            return;
+        
+        OpenPGPKeyData secretKey = (OpenPGPKeyData)key;
+        
+        if ((passPhrases == null) || (passPhrases.length == 0)) {
+            secretKey.unlock(" ".getBytes());
+            return;
+        }
+        
+        for (int n = 0; n < passPhrases.length; n++) {
+            try {
+                secretKey.unlock(passPhrases[n].getPassphraseData());
+                return;
+            } catch (ChecksumFailureException passfail) {
+                // if the last passphrase failed then we don't have a passphrase capable of unlocking the key. Therefore elevate this.
+                if (n == passPhrases.length-1)
+                    throw passfail;
+            }
+        }
     }
 
 /****************************************************************************************/
@@ -1346,6 +2043,32 @@ public class OpenPGPHandler extends AlgorithmHandler {
         }
         
 
+        /**
+         * <p>Copy the entries of another log into the current section.</p>
+         * <p>Only the contents of the other log's top section are copied. This lets a worker job write to a private log 
+         * which is merged back in order once the job is finished.</p>
+         */
+        public void merge(OpenPGPLogger other) {
+            if ((current == null) || (other.log == null))
+                return;
+
+            OpenPGPLoggerEntry tmp[] = other.log.getChildren();
+            if (tmp!=null)
+                for (int n = 0; n < tmp.length; n++)
+                    copyEntry(current, tmp[n]);
+        }
+
+        /** Recursively copy a log entry and its children under a new parent. */
+        private void copyEntry(OpenPGPLoggerEntry parent, OpenPGPLoggerEntry entry) {
+            OpenPGPLoggerEntry copy = new OpenPGPLoggerEntry(parent, entry.getLevel(), entry.getMessage());
+            parent.addChildren(copy);
+
+            OpenPGPLoggerEntry tmp[] = entry.getChildren();
+            if (tmp!=null)
+                for (int n = 0; n < tmp.length; n++)
+                    copyEntry(copy, tmp[n]);
+        }
+
         /** 
          * <p>Return the log's create date.</p>
          */
@@ -42,6 +42,9 @@ public class OpenPGPPacketInputStream {
 
     /** Stream to read packet bytes from.*/
     private InputStream inputStream;
+    
+    /** Leave key material and signature subpackets encoded until they are used? */
+    private boolean lazy = false;
 
     /** Creates a new instance of IncomingPGPPacketStream.
      * @param stream The stream to read package data from.
@@ -49,6 +52,21 @@ public class OpenPGPPacketInputStream {
     public OpenPGPPacketInputStream(InputStream stream) {
         inputStream = stream;
     }
+    
+    /**
+     * <p>Set lazy mode.</p>
+     * <p>In lazy mode key packets and signature packets are returned with only their cheap fields (version, dates, algorithm, 
+     * signature type) read. Key material and signature subpackets are decoded the first time they are used, so scanning a 
+     * keyring for a few keys does not decode the MPIs of every key it passes.</p>
+     */
+    public void setLazy(boolean decodeOnDemand) {
+        lazy = decodeOnDemand;
+    }
+    
+    /** Is the stream in lazy mode? */
+    public boolean isLazy() {
+        return lazy;
+    }
 
     /** <p>Internal function that builds a packet out of an array of bytes containing binary data.</p>
      * @throws IOException if there was a problem constructing the packet.
@@ -72,10 +90,19 @@ public class OpenPGPPacketInputStream {
             case 12 : p = new TrustPacket(); break; // Trust packet
             case 13 : p = new UserIDPacket(); break; // User ID packet
             case 14 : p = new PublicSubkeyPacket(); break; // Public subkey packet
+            case 18 : p = new SymmetricallyEncryptedIntegrityProtectedDataPacket(); break; // Sym. encrypted and integrity protected data packet
+            case 19 : p = new ModificationDetectionCodePacket(); break; // Modification detection code packet
 
             default : throw new AlgorithmException("Invalid packet tag or packet type not implemented."); 
         }
         
+        if (lazy) {
+            if (p instanceof KeyPacket)
+                ((KeyPacket)p).setLazy(true);
+            else if (p instanceof SignaturePacket)
+                ((SignaturePacket)p).setLazy(true);
+        }
+        
         // construct packet using low level methods. If we got this far then the packet should have been constructed correctly
         p.setPacketHeader(header);
         p.buildPacket(data);
@@ -119,23 +146,13 @@ public class OpenPGPPacketInputStream {
                     lengthtype = ptag & 0x03;
                 }
 
-            // body length
+            // body length and data
+            byte data[];
+            
                 if (newformat) {
-                    // involved header read
-                    int octet1 = (inputStream.read() & 0xFF); // read first octet
-                    if (octet1 < 192) { // one octet header 
-                        bodylength = octet1; 
-                    } else if ( (octet1 >= 192) && (octet1 < 224) ) { // two octet header
-                        bodylength = ((octet1 - 192) << 8) + inputStream.read() + 192;
-                    } else if (octet1 == 255) { // five octet header
-                        bodylength = ( ((inputStream.read() & 0xFF) << 24) | 
-                            ((inputStream.read() & 0xFF) << 16) | 
-                            ((inputStream.read() & 0xFF) <<  8) |
-                            ((inputStream.read() & 0xFF) ) ); 
-                    } else { // partial
-                        bodylength = 1 << (octet1 & 0x1f);
-                    }
-
+                    // new format bodies may be split into several partial lengths
+                    data = readNewFormatBody();
+                    bodylength = data.length;
                 } else {
                     // old format
                     switch (lengthtype) {
@@ -149,30 +166,87 @@ public class OpenPGPPacketInputStream {
                         default:
                             throw new AlgorithmException("Invalid Oldstyle PGP length type in packet!");
                     }
+                    
+                    if (bodylength == -1) {
+                        // handle old style indeterminate. Read available data from the stream.
+                        // old style indeterminate is UNRELIABLE and should NOT be used.
+                        data = new byte[inputStream.available()];
+                    } else {
+                        data = new byte[bodylength];
+                    }
+                    
+                    readFully(data);
                 }
-
-            // read rest of data 
-            byte data[];
-            
-            if ( (!newformat) && (bodylength == -1) ) {
-                // handle old style indeterminate. Read available data from the stream.
-                // old style indeterminate is UNRELIABLE and should NOT be used.
-                data = new byte[inputStream.available()];
-            } else {
-                data = new byte[bodylength];
-            }
-
-            //byte data[] = new byte[bodylength];
-            inputStream.read(data);
             
             // construct packet 
-            packet = buildPacket(new PacketHeader(type, newformat, lengthtype, bodylength & 0xffff),data); // 0xffff to convert body length to unsigned int. should work
+            packet = buildPacket(new PacketHeader(type, newformat, lengthtype, bodylength),data);
            
         }
     
         return packet;
     }
 
+    /** <p>Read the body of a new format packet.</p>
+     * <p>A new format body may be split into several parts, each but the last having a partial body length. The parts 
+     * are joined together and returned as a single body.</p>
+     * @throws IOException if the stream ended before the body was complete.
+     */
+    protected byte[] readNewFormatBody() throws IOException {
+        
+        ByteArrayOutputStream body = null;
+        
+        while (true) {
+            int octet1 = inputStream.read(); // read first octet
+            if (octet1 < 0)
+                throw new EOFException("Unexpected end of stream in packet length.");
+            
+            int length = 0;
+            boolean partial = false;
+            
+            if (octet1 < 192) { // one octet header 
+                length = octet1; 
+            } else if (octet1 < 224) { // two octet header
+                length = ((octet1 - 192) << 8) + (inputStream.read() & 0xFF) + 192;
+            } else if (octet1 == 255) { // five octet header
+                length = ( ((inputStream.read() & 0xFF) << 24) | 
+                    ((inputStream.read() & 0xFF) << 16) | 
+                    ((inputStream.read() & 0xFF) <<  8) |
+                    ((inputStream.read() & 0xFF) ) ); 
+            } else { // partial
+                length = 1 << (octet1 & 0x1f);
+                partial = true;
+            }
+            
+            byte part[] = new byte[length];
+            readFully(part);
+            
+            // the usual case, a body with a single length
+            if ((!partial) && (body == null))
+                return part;
+            
+            if (body == null)
+                body = new ByteArrayOutputStream();
+            body.write(part);
+            
+            if (!partial)
+                return body.toByteArray();
+        }
+    }
+    
+    /** <p>Fill the given array from the stream, blocking until all the data has been read.</p>
+     * @throws IOException if the stream ended first.
+     */
+    protected void readFully(byte data[]) throws IOException {
+        int offset = 0;
+        
+        while (offset < data.length) {
+            int n = inputStream.read(data, offset, data.length - offset);
+            if (n < 0)
+                throw new EOFException("Unexpected end of stream in packet body.");
+            offset += n;
+        }
+    }
+
     /** <p>Close the stream.</p>
      * <p>Closes the stream and performs necessary cleanup. Once closed, a stream can not be reopened.</p>
      */
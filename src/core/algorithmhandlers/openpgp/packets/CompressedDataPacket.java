@@ -30,22 +30,47 @@
  */
 
 package core.algorithmhandlers.openpgp.packets;
+import core.algorithmhandlers.openpgp.util.CompressionAlgorithmSettings;
 import core.exceptions.AlgorithmException;
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
 import java.util.zip.*;
 
 /**
  * <p>A class representing a compressed data packet.</p>
  * <p>A compressed data packet is a container object that can contain other PGP packets. </p>
+ * <p>ZIP (RFC 1951), ZLIB (RFC 1950) and BZip2 are supported, BZip2 only when the Bouncy Castle OpenPGP jar (bcpg) is 
+ * on the class path. The level and, for ZIP and ZLIB, the strategy of the compressor 
+ * can be set so that compression ratio can be traded against CPU time.</p>
+ * <p>Data is compressed and decompressed through streams a buffer at a time. The static getDecompressor() method and the 
+ * getCompressor() method can also be used directly to process large amounts of data without building a packet in memory.</p>
  */
 public class CompressedDataPacket extends ContainerPacket {
     
+    /** No compression */
+    public static final byte UNCOMPRESSED = CompressionAlgorithmSettings.UNCOMPRESSED;
+    
     /** ZIP (RFC 1951) compression */
-    public static final byte ZIP = 1;
+    public static final byte ZIP = CompressionAlgorithmSettings.ZIP;
+    
+    /** ZLIB (RFC 1950) compression */
+    public static final byte ZLIB = CompressionAlgorithmSettings.ZLIB;
+    
+    /** BZip2 compression */
+    public static final byte BZIP2 = CompressionAlgorithmSettings.BZIP2;
+    
+    /** Size of the buffer used when copying data through a compressor or decompressor. */
+    private static final int BUFFER_SIZE = 8192;
     
     /** What algorithm should the packet use to compress the data. */
     private byte algorithm;
     
+    /** Compression level, 0-9 or -1 for the default. */
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    
+    /** Deflater strategy (ZIP and ZLIB only). */
+    private int strategy = Deflater.DEFAULT_STRATEGY;
+    
     /** Creates a new instance of CompressedDataPacket with no header */
     public CompressedDataPacket() {
     }
@@ -63,6 +88,19 @@ public class CompressedDataPacket extends ContainerPacket {
         setPacketHeader(new PacketHeader(8,false)); 
     }
     
+    /** 
+     * <p>Create a CompressedDataPacket to use a given algorithm, level and strategy to compress the data.</p>
+     * @param compressionalgorithm The compression algorithm.
+     * @param compressionlevel The compression level, 0 (fastest) to 9 (best) or -1 for the default.
+     * @param compressionstrategy The java.util.zip.Deflater strategy to use with ZIP and ZLIB.
+     * @throws AlgorithmException if there was a problem.
+     */
+    public CompressedDataPacket(byte compressionalgorithm, int compressionlevel, int compressionstrategy) throws AlgorithmException {
+        this(compressionalgorithm);
+        setCompressionLevel(compressionlevel);
+        setCompressionStrategy(compressionstrategy);
+    }
+    
     /** Set the compression algorithm to use. */
     protected void setCompressionAlgorithm(byte compressionalgorithm) {
         algorithm = compressionalgorithm;
@@ -73,6 +111,113 @@ public class CompressedDataPacket extends ContainerPacket {
         return algorithm;
     }
     
+    /** Set the compression level, 0 (fastest) to 9 (best) or -1 for the default.
+     * @throws AlgorithmException if the level is out of range.
+     */
+    public void setCompressionLevel(int compressionlevel) throws AlgorithmException {
+        level = CompressionAlgorithmSettings.checkCompressionLevel(compressionlevel);
+    }
+    
+    /** Get the compression level. */
+    public int getCompressionLevel() {
+        return level;
+    }
+    
+    /** Set the java.util.zip.Deflater strategy used with ZIP and ZLIB compression. */
+    public void setCompressionStrategy(int compressionstrategy) {
+        strategy = compressionstrategy;
+    }
+    
+    /** Get the compression strategy. */
+    public int getCompressionStrategy() {
+        return strategy;
+    }
+    
+    /**
+     * <p>Return a stream that decompresses data read from another stream.</p>
+     * <p>Closing the returned stream closes the underlying stream and releases the decompressor.</p>
+     * @param compressionalgorithm The algorithm the data was compressed with.
+     * @param in The compressed data.
+     * @throws AlgorithmException if the algorithm is not supported.
+     * @throws IOException if the compressed data could not be read.
+     */
+    public static InputStream getDecompressor(int compressionalgorithm, InputStream in) throws AlgorithmException, IOException {
+        switch (compressionalgorithm) {
+            case UNCOMPRESSED : return in; // No compression. A little pointless, but here anyway.
+            case ZIP : return new ReleasingInflaterInputStream(in, new Inflater(true)); // ZIP (RFC 1951)
+            case ZLIB : return new ReleasingInflaterInputStream(in, new Inflater(false)); // ZLIB (RFC 1950)
+            case BZIP2 : return (InputStream)createBZip2Stream(CompressionAlgorithmSettings.BZIP2_INPUT_STREAM, new Class[] {InputStream.class}, new Object[] {in});
+            default : throw new AlgorithmException("Unsupported compression algorithm requested.");
+        }
+    }
+    
+    /**
+     * <p>Return a stream that compresses data written to it, using this packet's algorithm, level and strategy.</p>
+     * <p>The compressed data is only complete once the returned stream has been closed. Closing the returned stream 
+     * also closes the underlying stream.</p>
+     * @param out Where to write the compressed data.
+     * @throws AlgorithmException if the algorithm is not supported.
+     * @throws IOException if there was a problem writing to the stream.
+     */
+    public OutputStream getCompressor(OutputStream out) throws AlgorithmException, IOException {
+        switch (getCompressionAlgorithm()) {
+            case UNCOMPRESSED : return out;
+            case ZIP : return new ReleasingDeflaterOutputStream(out, createDeflater(true)); // ZIP (RFC 1951)
+            case ZLIB : return new ReleasingDeflaterOutputStream(out, createDeflater(false)); // ZLIB (RFC 1950)
+            case BZIP2 : // block size in 100k units
+                return (OutputStream)createBZip2Stream(CompressionAlgorithmSettings.BZIP2_OUTPUT_STREAM, new Class[] {OutputStream.class, Integer.TYPE}, 
+                                                       new Object[] {out, new Integer((level < 1) ? ((level == 0) ? 1 : 9) : level)});
+            default : throw new AlgorithmException("Unsupported compression algorithm requested.");
+        }
+    }
+    
+    /**
+     * <p>Create one of the BZip2 streams from the Bouncy Castle OpenPGP jar.</p>
+     * @throws AlgorithmException if the jar is not on the class path or the stream could not be created.
+     * @throws IOException if the stream could not read or write its header.
+     */
+    private static Object createBZip2Stream(String name, Class types[], Object args[]) throws AlgorithmException, IOException {
+        if (!CompressionAlgorithmSettings.isSupported(BZIP2))
+            throw new AlgorithmException("BZip2 compression is not available, the Bouncy Castle OpenPGP jar (bcpg) is not on the class path.");
+        
+        try {
+            return Class.forName(name).getConstructor(types).newInstance(args);
+        } catch (InvocationTargetException e) {
+            if (e.getTargetException() instanceof IOException)
+                throw (IOException)e.getTargetException();
+            
+            throw new AlgorithmException("BZip2 stream could not be created, " + e.getTargetException().toString());
+        } catch (Exception e) {
+            throw new AlgorithmException("BZip2 stream could not be created, " + e.toString());
+        }
+    }
+    
+    /** Create a deflater with the configured level and strategy. */
+    private Deflater createDeflater(boolean nowrap) {
+        Deflater deflater = new Deflater(level, nowrap);
+        deflater.setStrategy(strategy);
+        
+        return deflater;
+    }
+    
+    /**
+     * <p>Copy all the data from one stream to another, a buffer at a time.</p>
+     * @return the number of bytes copied.
+     * @throws IOException if there was a problem.
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        byte buffer[] = new byte[BUFFER_SIZE];
+        long total = 0;
+        int n;
+        
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            total += n;
+        }
+        
+        return total;
+    }
+    
     /**
      * <p>A method constructs a packet out of raw binary data.</p>
      * <p>You should implement this in all your packets. If a packet is a container packet
@@ -82,33 +227,18 @@ public class CompressedDataPacket extends ContainerPacket {
     public void buildPacket(byte[] data) throws AlgorithmException {
         
         try {
-            ByteArrayInputStream in = new ByteArrayInputStream(data);
-
+            if (data.length < 1)
+                throw new AlgorithmException("Compressed data packet is empty.");
+            
             // Read algorithm code
-            setCompressionAlgorithm((byte)(in.read() & 0xFF));
+            setCompressionAlgorithm(data[0]);
 
-            // process compressed data
-            ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
-
-            switch (getCompressionAlgorithm()) {
-                case 0 : { // No compression. A little pointless, but here anyway.
-                    byte b[] = new byte[in.available()];
-                    in.read(b);
-                    uncompressed.write(b);
-                } break; // no compression
-                case ZIP : { // ZIP (RFC 1951)
-                    InflaterInputStream decompressor = new InflaterInputStream(in, new Inflater(true));
-
-                    int b;
-                    while ((b = decompressor.read())!=-1) 
-                        uncompressed.write(b);
-                    
-                    decompressor.close();
-                   
-                } break; 
-                
-                default : throw new AlgorithmException("Unsupported compression algorithm requested.");
-            }
+            // process compressed data (compression is usually at least 2:1)
+            ByteArrayOutputStream uncompressed = new ByteArrayOutputStream(data.length * 2);
+            
+            InputStream decompressor = getDecompressor(getCompressionAlgorithm(), new ByteArrayInputStream(data, 1, data.length - 1));
+            copy(decompressor, uncompressed);
+            decompressor.close();
 
             // process uncompressed data into packets
             buildMultiplePackets(uncompressed.toByteArray());
@@ -154,36 +284,31 @@ public class CompressedDataPacket extends ContainerPacket {
      * @throws AlgorithmException if there was a problem.
      */
     public byte[] encodePacketBody() throws AlgorithmException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        writePacketBody(out);
+        
+        return out.toByteArray();
+    }
+    
+    /**
+     * <p>Write the packet body to a stream, compressing the contained packets as they are written.</p>
+     * <p>Each contained packet is encoded and passed through the compressor in turn, so the uncompressed form of the 
+     * packets is never held in memory as a whole. The stream is not closed.</p>
+     * @throws AlgorithmException if there was a problem.
+     */
+    public void writePacketBody(OutputStream out) throws AlgorithmException {
         try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            byte compressed[];
-
-            // encode and compress the packets contained within this 
-            switch (getCompressionAlgorithm()) {
-                case 0 : compressed = encodeMultiplePackets(); break; // no compression
-                case ZIP : { // ZIP (RFC 1951)
-                    ByteArrayOutputStream rawdata = new ByteArrayOutputStream();
-
-                    DeflaterOutputStream compressor = new DeflaterOutputStream(rawdata, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
-                    compressor.write(encodeMultiplePackets());
-
-                    compressor.finish();
-                    
-                    compressed = rawdata.toByteArray();
-  
-                } break;
-                
-                default : throw new AlgorithmException("Unsupported compression algorithm requested.");
-            }
-
             // write algorithm
             out.write((int)getCompressionAlgorithm());
             
-            // write compressed packet data
-            out.write(compressed);
+            // encode and compress the packets contained within this 
+            OutputStream compressor = getCompressor(new NonClosingOutputStream(out));
             
-            // return encoded packet
-            return out.toByteArray();
+            for (int n = 0; n < getNumberPacked(); n++)
+                compressor.write(unpack(n).encodePacket());
+            
+            compressor.close();
         } catch (IOException e) {
             throw new AlgorithmException(e.getMessage());
         }
@@ -197,10 +322,60 @@ public class CompressedDataPacket extends ContainerPacket {
         String alg = null;
         
         switch (getCompressionAlgorithm()) {
-                case 0 : alg = "Uncompressed"; break; // no compression
+                case UNCOMPRESSED : alg = "Uncompressed"; break; // no compression
                 case ZIP : alg = "ZIP"; break;  
+                case ZLIB : alg = "ZLIB"; break;  
+                case BZIP2 : alg = "BZip2"; break;  
         }
         
         return "Compressed data packet (" + alg + ")";
     }
+    
+    /** An inflater stream that releases its inflater's native memory when closed. */
+    private static class ReleasingInflaterInputStream extends InflaterInputStream {
+        
+        ReleasingInflaterInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater, BUFFER_SIZE);
+        }
+        
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+    
+    /** A deflater stream that releases its deflater's native memory when closed. */
+    private static class ReleasingDeflaterOutputStream extends DeflaterOutputStream {
+        
+        ReleasingDeflaterOutputStream(OutputStream out, Deflater deflater) {
+            super(out, deflater, BUFFER_SIZE);
+        }
+        
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+    
+    /** Passes data through to another stream, but flushes instead of closing it. */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        public void write(byte b[], int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+        
+        public void close() throws IOException {
+            flush();
+        }
+    }
 }
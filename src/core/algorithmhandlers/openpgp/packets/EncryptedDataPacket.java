@@ -0,0 +1,62 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.packets;
+import core.algorithmhandlers.openpgp.util.SessionKey;
+import core.exceptions.AlgorithmException;
+
+/**
+ * <p>An abstract class representing PGP packets that encrypt the packets they contain with a session key.</p>
+ * <p>Contained packets are only available after calling decryptAndDecode, and are only written after calling encryptAndEncode.</p>
+ */
+public abstract class EncryptedDataPacket extends ContainerPacket {
+    
+    /** Create a default instance of this object. */
+    public EncryptedDataPacket() {
+        super();
+    }
+    
+    /** 
+     * <p>Decrypt the raw encoded data.</p>
+     * <p>This method will attempt to decode the raw data and populate the internal array of packets that can be read using the unpack method.</p>
+     * @param sessionkey The session key and algorithm to use.
+     * @throws AlgorithmException if something went wrong, most likely that the wrong session key was used.
+     */
+    public abstract void decryptAndDecode(SessionKey sessionkey) throws AlgorithmException;
+    
+    /** 
+     * <p>Encrypt the packet contents.</p>
+     * <p>You MUST call this method before writing the packet to the stream.</p>
+     * @param sessionkey The session key and algorithm to use.
+     * @throws AlgorithmException if something went wrong.
+     */
+    public abstract void encryptAndEncode(SessionKey sessionkey) throws AlgorithmException;
+}
@@ -53,8 +53,14 @@ public abstract class KeyPacket extends Packet {
     private int v3expiry;
     /** Public key algorithm of this key */
     private int algorithm;
-    /** Private/Public key data (where appropriate) */
+    /** Private/Public key data (where appropriate), null until decoded in lazy mode */
     private AsymmetricAlgorithmParameters keyData;
+    /** The public key MPIs as they were read, or null if the key was not read from a packet */
+    private byte publicKeyBytes[];
+    /** The fingerprint, calculated when first asked for */
+    private byte fingerprint[];
+    /** Decode the key material when it is first used, rather than when the packet is built? */
+    private boolean lazy = false;
         
     /** Creates a new instance of KeyPacket. Does not create a header. */
     public KeyPacket() {
@@ -114,12 +120,23 @@ public abstract class KeyPacket extends Packet {
         setVersion(4);
     }
    
+    /**
+     * <p>Set lazy mode, this must be done before the packet is built.</p>
+     * <p>In lazy mode buildPacket() only reads the version, dates and algorithm and keeps the key material MPIs as they are. 
+     * They are decoded the first time getKeyData() is called. The fingerprint and key ID are calculated from the encoded 
+     * MPIs, so finding out which key a packet holds never decodes them.</p>
+     */
+    public void setLazy(boolean decodeOnDemand) {
+        lazy = decodeOnDemand;
+    }
+    
     /** Set the version type of the key. Either 3 or 4.*/
     protected void setVersion(int packetversion) {
         if ((packetversion < 3) || (packetversion > 4))
             packetversion = 4;
         
         version = packetversion;
+        fingerprint = null;
     }
     
     /** Get the version type of the key.*/
@@ -130,6 +147,7 @@ public abstract class KeyPacket extends Packet {
     /** Set the creation date of the key */
     protected void setCreateDate(long date) {
         created = date;
+        fingerprint = null;
     }
     
     /** Get the creation date of the key */
@@ -154,6 +172,7 @@ public abstract class KeyPacket extends Packet {
     /** Set the public key algorithm used */
     protected void setAlgorithm(int pkAlgorithm) {
         algorithm = pkAlgorithm;
+        fingerprint = null;
     }
     
     /** Get the public key algorithm used */
@@ -166,21 +185,75 @@ public abstract class KeyPacket extends Packet {
      */
     protected void setKeyData(AsymmetricAlgorithmParameters data) throws AlgorithmException {
         keyData = data;
+        publicKeyBytes = null;
+        fingerprint = null;
     }
     
-    /** Get the key data 
+    /** Get the key data, decoding it first if the packet was built in lazy mode. 
      * @throws AlgorithmException if something went wrong.
      */
     public AsymmetricAlgorithmParameters getKeyData() throws AlgorithmException {
+        if ((keyData == null) && (publicKeyBytes != null))
+            decodeKeyData();
+        
         return keyData;
     }
     
+    /** Decode the public key MPIs kept by a lazy build. */
+    private synchronized void decodeKeyData() throws AlgorithmException {
+        if (keyData != null)
+            return;
+        
+        AsymmetricAlgorithmParameters params = createKeyData(getAlgorithm());
+        params.decodePublicKeyComponents(new ByteArrayInputStream(publicKeyBytes));
+        
+        keyData = params;
+    }
+    
+    /** 
+     * <p>Return the encoded public key MPIs, as they were read if the packet was read from a stream.</p>
+     * @throws AlgorithmException if something went wrong.
+     */
+    protected byte[] getPublicKeyBytes() throws AlgorithmException {
+        if (publicKeyBytes != null)
+            return publicKeyBytes;
+        
+        return getKeyData().encodePublicKeyComponents();
+    }
+    
+    /** Create empty key data for an algorithm. */
+    private static AsymmetricAlgorithmParameters createKeyData(int pkAlgorithm) throws AlgorithmException {
+        switch (pkAlgorithm) {
+            case 1 : 
+            case 2 : 
+            case 3 : return new RSAAlgorithmParameters();
+            case 17 : return new DSAAlgorithmParameters();
+            case 16 : //return new ElgamalAlgorithmParameters();
+            default : throw new AlgorithmException("Requested Public key encryption algorithm not supported.");
+        }
+    }
+    
+    /** Return the number of public key MPIs for an algorithm. */
+    private static int countPublicKeyMPIs(int pkAlgorithm) throws AlgorithmException {
+        switch (pkAlgorithm) {
+            case 1 : 
+            case 2 : 
+            case 3 : return 2; // n, e
+            case 17 : return 4; // p, q, g, y
+            default : throw new AlgorithmException("Requested Public key encryption algorithm not supported.");
+        }
+    }
+    
     /**
      * <p>Calculate the fingerprint from the key material.</p>
      * @throws AlgorithmException if the fingerprint could not be calculated.
      */
     public byte[] getFingerprint() throws AlgorithmException {
         
+        byte cached[] = fingerprint;
+        if (cached != null)
+            return (byte[])cached.clone();
+        
         try {
             MessageDigest md = null;
 
@@ -206,7 +279,8 @@ public abstract class KeyPacket extends Packet {
                     
                     break;
                 case 4 : 
-                    int length = keyData.encodePublicKeyComponents().length + 6;
+                    byte publicKey[] = getPublicKeyBytes();
+                    int length = publicKey.length + 6;
                     
                     md = MessageDigest.getInstance("SHA1", "BC");
                     
@@ -219,12 +293,15 @@ public abstract class KeyPacket extends Packet {
                     md.update((byte)((getCreateDate() >> 8) & 0xFF));   // create date
                     md.update((byte)((getCreateDate() >> 0) & 0xFF));   // create date
                     md.update((byte)(getAlgorithm() & 0xff));           // algorithm octet
-                    md.update(keyData.encodePublicKeyComponents());     // algorithm specific portion
+                    md.update(publicKey);                               // algorithm specific portion
                     break;
                 default : throw new AlgorithmException("I don't know how to calculate v"+getVersion()+" fingerprints");
             }
             
-            return md.digest();
+            cached = md.digest();
+            fingerprint = cached;
+            
+            return (byte[])cached.clone();
             
         } catch (Exception e) {
             throw new AlgorithmException(e.getMessage());
@@ -281,16 +358,36 @@ public abstract class KeyPacket extends Packet {
         // read algorithm
         setAlgorithm(in.read());
 
-        // decode key data
-        switch (getAlgorithm()) {
-            case 1 : 
-            case 2 : 
-            case 3 : keyData = new RSAAlgorithmParameters(); break;
-            case 17 : keyData = new DSAAlgorithmParameters(); break;
-            case 16 : //keyData = new ElgamalAlgorithmParameters(); break;
-            default : throw new AlgorithmException("Requested Public key encryption algorithm not supported.");
+        // keep the key data MPIs as they are, checking that each is complete
+        ByteArrayOutputStream mpis = new ByteArrayOutputStream();
+        int count = countPublicKeyMPIs(getAlgorithm());
+        
+        for (int n = 0; n < count; n++) {
+            int hi = in.read();
+            int lo = in.read();
+            if ((hi < 0) || (lo < 0))
+                throw new AlgorithmException("Key packet is truncated.");
+            
+            byte mpi[] = new byte[(((hi << 8) | lo) + 7) / 8];
+            for (int read = 0; read < mpi.length; ) {
+                int r = in.read(mpi, read, mpi.length - read);
+                if (r < 0)
+                    throw new AlgorithmException("Key packet is truncated.");
+                read += r;
+            }
+            
+            mpis.write(hi);
+            mpis.write(lo);
+            mpis.write(mpi);
         }
-        keyData.decodePublicKeyComponents(in);
+        
+        keyData = null;
+        publicKeyBytes = mpis.toByteArray();
+        fingerprint = null;
+        
+        // decode key data
+        if (!lazy)
+            decodeKeyData();
     }
     
     /**
@@ -363,7 +460,7 @@ public abstract class KeyPacket extends Packet {
             out.write(getAlgorithm() & 0xFF);
             
             // encode algorithm's public key component
-            out.write(keyData.encodePublicKeyComponents());
+            out.write(getPublicKeyBytes());
           
             return out.toByteArray();
         } catch (IOException e) {
@@ -0,0 +1,130 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.packets;
+import core.exceptions.AlgorithmException;
+import java.io.*;
+import java.security.MessageDigest;
+
+/**
+ * <p>A modification detection code packet (tag 19).</p>
+ * <p>This packet is only ever found as the last packet inside a version 1 symmetrically encrypted integrity protected 
+ * data packet. It contains the SHA-1 hash of the decrypted prefix and packet data, followed by the two header bytes of 
+ * this packet (0xD3, 0x14).</p>
+ * @see SymmetricallyEncryptedIntegrityProtectedDataPacket
+ */
+public class ModificationDetectionCodePacket extends Packet {
+    
+    /** Length of the hash held by this packet (SHA-1). */
+    public static final int HASH_LENGTH = 20;
+    
+    /** The SHA-1 hash. */
+    private byte hash[];
+    
+    /** Creates a new instance of ModificationDetectionCodePacket.
+     * @throws AlgorithmException if the packet could not be created.
+     */
+    public ModificationDetectionCodePacket() throws AlgorithmException {
+        setPacketHeader(new PacketHeader(19, true, HASH_LENGTH));
+    }
+    
+    /** Creates a new instance of ModificationDetectionCodePacket holding the given hash.
+     * @param sha1 The SHA-1 hash.
+     * @throws AlgorithmException if the packet could not be created.
+     */
+    public ModificationDetectionCodePacket(byte sha1[]) throws AlgorithmException {
+        this();
+        buildPacket(sha1);
+    }
+    
+    /** Return the SHA-1 hash. */
+    public byte[] getHash() {
+        return hash;
+    }
+    
+    /** Returns true if the hash matches the given digest. */
+    public boolean verify(byte digest[]) {
+        return MessageDigest.isEqual(hash, digest);
+    }
+    
+    /**
+     * <p>A method constructs a packet out of raw binary data.</p>
+     * <p>You should implement this in all your packets. If a packet is a container packet
+     * you must also populate the subpackets vector by extracting and constructing the relevent packets.</p>
+     * @throws AlgorithmException if there was a problem.
+     */
+    public void buildPacket(byte[] data) throws AlgorithmException {
+        if (data.length != HASH_LENGTH)
+            throw new AlgorithmException("Invalid modification detection code packet.");
+        
+        hash = data;
+    }
+    
+    /**
+     * <p>A method that produces a straight binary representation of this packet.</p>
+     * <p>You should override this as necessary.</p>
+     * <p>You should also encode the header as part of this method by calling the header object's
+     * encodeHeader method.</p>
+     * @throws AlgorithmException if there was a problem.
+     */
+    public byte[] encodePacket() throws AlgorithmException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            
+            out.write(getPacketHeader().encodeHeader());
+            out.write(encodePacketBody());
+        
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new AlgorithmException(e.getMessage());
+        }
+    }
+    
+    /**
+     * <p>A method that produces a straight binary representation of this packet's BODY.</p>
+     * <p>You should override this as necessary.</p>
+     * @throws AlgorithmException if there was a problem.
+     */
+    public byte[] encodePacketBody() throws AlgorithmException {
+        if (hash == null)
+            throw new AlgorithmException("Modification detection code has not been calculated.");
+        
+        return hash;
+    }
+    
+    /**
+     * <p>Displays a user friendly representation of a packet.</p>
+     * <p>Primarily this is used for displaying a packet in the UI.</p>
+     */
+    public String toString() {
+        return "Modification detection code packet";
+    }
+}
@@ -157,9 +157,10 @@ public abstract class SignatureMaterial {
                                                         PublicKeyAlgorithmSettings.getSignatureAlgorithmTailText(getPublicKeyAlgorithm()), "BC");
             signature.initSign(key);
             
-            // create signature & generate hash
-            md.update(calculateRawSigData(data));
-            signature.update(calculateRawSigData(data));
+            // create signature & generate hash (raw data is built once, it can be large for attachments)
+            byte rawSigData[] = calculateRawSigData(data);
+            md.update(rawSigData);
+            signature.update(rawSigData);
             byte digest[] = md.digest();
             byte sig[] = signature.sign();
             
@@ -169,8 +169,14 @@ public class SignaturePacket extends Packet {
     /** Version octet */
     private int version;
     
-    /** The signature material */
+    /** The signature material, null until decoded in lazy mode */
     private SignatureMaterial data;
+    
+    /** The encoded signature material following the version octet, kept until it is decoded in lazy mode */
+    private byte encodedData[];
+    
+    /** Decode the signature material when it is first used, rather than when the packet is built? */
+    private boolean lazy = false;
 
     
     /** Creates a new instance of SignaturePacket without header*/
@@ -191,6 +197,15 @@ public class SignaturePacket extends Packet {
         setPacketHeader(new PacketHeader(2, false, data.encode().length+1));
     }
     
+    /**
+     * <p>Set lazy mode, this must be done before the packet is built.</p>
+     * <p>In lazy mode buildPacket() only reads the version and keeps the signature material, including any subpackets, 
+     * as it is. It is decoded the first time getSignatureData() is called, and encoded packets are written out unchanged.</p>
+     */
+    public void setLazy(boolean decodeOnDemand) {
+        lazy = decodeOnDemand;
+    }
+    
     /** Return the version type of the packet, either 3 or 4. */
     public int getVersion() {
         return version;
@@ -227,14 +242,44 @@ public class SignaturePacket extends Packet {
         return getSignatureData().verify(signersKey, data);
     }
   
-    /** Return the raw signature material. */
+    /** Return the raw signature material, decoding it first if the packet was built in lazy mode. 
+     * @return the signature material, or null if there is none or it could not be decoded.
+     */
     public SignatureMaterial getSignatureData() {
+        if ((data == null) && (encodedData != null)) {
+            try {
+                decodeSignatureData();
+            } catch (AlgorithmException e) {
+                debug.Debug.println(1, "Signature packet could not be decoded: " + e.getMessage());
+            }
+        }
+        
         return data;
     }
     
     /** Set the signature material data */
     protected void setSignatureData(SignatureMaterial material) {
         data = material;
+        encodedData = null;
+    }
+    
+    /** Decode the signature material kept by a lazy build. */
+    private synchronized void decodeSignatureData() throws AlgorithmException {
+        if (data != null)
+            return;
+        
+        SignatureMaterial material;
+        switch (getVersion()) {
+            case 3 : material = new V3SignatureMaterial(); break;
+            case 4 : material = new V4SignatureMaterial(); break;
+            default : throw new AlgorithmException("Bad signature packet version ("+getVersion()+")");
+        }
+        
+        material.build(new ByteArrayInputStream(encodedData));
+        
+        // the encoded form is dropped once decoded, the material is encoded afresh from then on as it may be changed
+        data = material;
+        encodedData = null;
     }
     
     /**
@@ -250,13 +295,15 @@ public class SignaturePacket extends Packet {
             
             setVersion(in.read());
             
-            switch (getVersion()) {
-                case 3 : setSignatureData(new V3SignatureMaterial()); break;
-                case 4 : setSignatureData(new V4SignatureMaterial()); break;
-                default : throw new AlgorithmException("Bad signature packet version ("+getVersion()+")");
-            }
+            if ((getVersion() != 3) && (getVersion() != 4))
+                throw new AlgorithmException("Bad signature packet version ("+getVersion()+")");
+            
+            this.data = null;
+            encodedData = new byte[data.length - 1];
+            System.arraycopy(data, 1, encodedData, 0, encodedData.length);
             
-            getSignatureData().build(in);
+            if (!lazy)
+                decodeSignatureData();
             
         } catch (Exception e) {
             throw new AlgorithmException(e.getMessage());
@@ -295,7 +342,11 @@ public class SignaturePacket extends Packet {
             
             out.write(getVersion() & 0xff);
             
-            out.write(getSignatureData().encode());
+            // a lazily built packet that hasn't been looked at is written out as it was read
+            if ((data == null) && (encodedData != null))
+                out.write(encodedData);
+            else
+                out.write(getSignatureData().encode());
             
             return out.toByteArray();
         } catch (IOException e) {
@@ -50,7 +50,7 @@ import javax.crypto.spec.*;
  * are MEANINGLESS! It is not possible to accurately calculate the size of the body before it is encoded. Therefore this class'
  * encodePacket() method recalculates the header length information. 
  */
-public class SymmetricallyEncryptedDataPacket extends ContainerPacket {
+public class SymmetricallyEncryptedDataPacket extends EncryptedDataPacket {
     
     /** The encrypted encoded form of the packet populated by buildPacket. Also contains OpenPGPs weird IValike thingy. */
     private byte rawData[];
@@ -111,8 +111,8 @@ public class SymmetricallyEncryptedDataPacket extends ContainerPacket {
             byte[] ivdata = new byte[blockSize+2];
             SecureRandom rnd = SecureRandom.getInstance("SHA1PRNG");
             rnd.nextBytes(ivdata);
-            ivdata[8] = ivdata[blockSize-2];
-            ivdata[9] = ivdata[blockSize-1];
+            ivdata[blockSize] = ivdata[blockSize-2];
+            ivdata[blockSize+1] = ivdata[blockSize-1];
             IvParameterSpec iv = new IvParameterSpec(ivdata);
             
             // create cipher
@@ -0,0 +1,607 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.packets;
+import core.algorithmhandlers.openpgp.util.*;
+import core.exceptions.AlgorithmException;
+import system.WorkerPool;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.crypto.params.*;
+import java.io.*;
+import java.security.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * <p>A symmetrically encrypted and integrity protected container (tag 18).</p>
+ * <p>Version 1 of this packet encrypts the contained packets with plain CFB (no resynchronisation) and appends a 
+ * modification detection code packet holding the SHA-1 hash of the plain text. The hash is calculated as the data passes 
+ * through the cipher, so encryption and verification each take a single pass over the data.</p>
+ * <p>Version 2 of this packet (as defined in RFC 9580) splits the encrypted data into fixed size chunks which are each 
+ * encrypted and authenticated with an AEAD mode (EAX, OCB or GCM). A final authentication tag covers the total length of the data so 
+ * that truncation can be detected.</p>
+ * <p>Since every chunk is authenticated independently the chunks are encrypted and decrypted in parallel on the shared 
+ * WorkerPool, and decrypt() releases each run of chunks to the caller as soon as they have been authenticated.</p>
+ * <p>The message key and nonce are derived from the session key with HKDF-SHA256 and a random 32 byte salt.</p>
+ * <p>As with the SymmetricallyEncryptedDataPacket, this container DOES NOT automatically unpack sub packets. You must call the decrypt / encrypt
+ * methods EXPLICITLY with the appropriate session keys.</p>
+ * @see WorkerPool
+ */
+public class SymmetricallyEncryptedIntegrityProtectedDataPacket extends EncryptedDataPacket {
+    
+    /** The default chunk size octet (chunks of 2^(12+6) = 256K). */
+    public static final int DEFAULT_CHUNK_SIZE = 12;
+    
+    /** The largest chunk size octet allowed by the spec (chunks of 2^(16+6) = 4M). */
+    public static final int MAX_CHUNK_SIZE = 16;
+    
+    /** Length of the HKDF salt. */
+    public static final int SALT_LENGTH = 32;
+    
+    /** Length of the modification detection code packet (header and SHA-1 hash). */
+    private static final int MDC_LENGTH = 2 + ModificationDetectionCodePacket.HASH_LENGTH;
+    
+    /** Size of the buffer used when decrypting a version 1 packet. */
+    private static final int BUFFER_SIZE = 8192;
+    
+    /** Packet version. */
+    private int version;
+    
+    /** Symmetric algorithm used to encrypt the data. */
+    private int symmetricAlgorithm;
+    
+    /** AEAD algorithm. */
+    private int aeadAlgorithm;
+    
+    /** Chunk size octet. */
+    private int chunkSizeOctet;
+    
+    /** HKDF salt. */
+    private byte salt[];
+    
+    /** The encrypted chunks followed by the final authentication tag. */
+    private byte rawData[];
+    
+    /** Creates a new version 1 (MDC) instance of SymmetricallyEncryptedIntegrityProtectedDataPacket. This is also used when 
+     * reading the packet from a stream, in which case the version is taken from the packet data.
+     */
+    public SymmetricallyEncryptedIntegrityProtectedDataPacket() throws AlgorithmException {
+        setPacketHeader(new PacketHeader(18, true));
+        version = 1;
+    }
+    
+    /** <p>Creates a new version 2 (chunked AEAD) packet.</p>
+     * @param aeadAlg The AEAD algorithm to use.
+     * @param chunkSize The chunk size octet, chunks are 2^(chunkSize+6) bytes long. Must be between 0 and MAX_CHUNK_SIZE.
+     * @throws AlgorithmException if the AEAD algorithm or chunk size is not supported.
+     */
+    public SymmetricallyEncryptedIntegrityProtectedDataPacket(int aeadAlg, int chunkSize) throws AlgorithmException {
+        this();
+        
+        AEADAlgorithmSettings.getAEADText(aeadAlg); // throws if not supported
+        if ((chunkSize < 0) || (chunkSize > MAX_CHUNK_SIZE))
+            throw new AlgorithmException("Invalid AEAD chunk size (" + chunkSize + ").");
+        
+        version = 2;
+        aeadAlgorithm = aeadAlg;
+        chunkSizeOctet = chunkSize;
+    }
+    
+    /** Return the packet version. */
+    public int getVersion() {
+        return version;
+    }
+    
+    /** Return the AEAD algorithm. */
+    public int getAEADAlgorithm() {
+        return aeadAlgorithm;
+    }
+    
+    /** Return the size in bytes of a plain text chunk. */
+    public int getChunkSize() {
+        return 1 << (chunkSizeOctet + 6);
+    }
+    
+    /** 
+     * <p>Decrypt the raw encoded data.</p>
+     * <p>This method will attempt to decode the raw data and populate the internal array of packets that can be read using the unpack method.</p>
+     * @throws AlgorithmException if something went wrong, most likely that the wrong session key was used or the data has been modified.
+     */
+    public void decryptAndDecode(SessionKey sessionkey) throws AlgorithmException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        decrypt(sessionkey, out);
+        
+        buildMultiplePackets(out.toByteArray());
+    }
+    
+    /** 
+     * <p>Decrypt the raw encoded data to a stream.</p>
+     * <p>Chunks are decrypted in parallel a few at a time, and each run of chunks is written to out as soon as all of them 
+     * have been authenticated. The final tag (which detects a truncated message) is checked after the last chunk, 
+     * so a caller MUST discard the output if this method throws an exception.</p>
+     * @param sessionkey The session key. The symmetric algorithm is taken from the packet.
+     * @param out Where to write the decrypted packet data.
+     * @throws AlgorithmException if something went wrong, most likely that the wrong session key was used or the data has been modified.
+     */
+    public void decrypt(SessionKey sessionkey, OutputStream out) throws AlgorithmException {
+        
+        if (version == 1) {
+            decryptMDC(sessionkey, out);
+            return;
+        }
+        
+        if (version != 2)
+            throw new AlgorithmException("Symmetrically encrypted integrity protected data packet version " + version + " is not supported.");
+        
+        try {
+            byte keys[][] = deriveKeys(sessionkey.getSessionKey());
+            byte ad[] = getAssociatedData();
+            
+            int encryptedChunkSize = getChunkSize() + AEADAlgorithmSettings.TAG_LENGTH;
+            int dataLength = rawData.length - AEADAlgorithmSettings.TAG_LENGTH;
+            if (dataLength < 0)
+                throw new AlgorithmException("Encrypted data is too short.");
+            
+            int chunks = (dataLength + encryptedChunkSize - 1) / encryptedChunkSize;
+            
+            // decrypt a window of chunks at a time so that memory use is bounded and data is released early
+            WorkerPool pool = WorkerPool.getDefaultPool();
+            int window = pool.getThreadCount() * 2;
+            long total = 0;
+            
+            for (int start = 0; start < chunks; start += window) {
+                ChunkJob jobs[] = new ChunkJob[Math.min(window, chunks - start)];
+                
+                for (int n = 0; n < jobs.length; n++) {
+                    int offset = (start + n) * encryptedChunkSize;
+                    jobs[n] = new ChunkJob(false, keys[0], createNonce(keys[1], start + n), ad, rawData, offset, Math.min(encryptedChunkSize, dataLength - offset));
+                }
+                
+                pool.execute(jobs);
+                
+                for (int n = 0; n < jobs.length; n++) {
+                    out.write(jobs[n].getResult());
+                    total += jobs[n].getResult().length;
+                }
+            }
+            
+            // check the final tag
+            ChunkJob last = new ChunkJob(false, keys[0], createNonce(keys[1], chunks), getFinalAssociatedData(total), rawData, dataLength, AEADAlgorithmSettings.TAG_LENGTH);
+            last.run();
+            
+        } catch (AlgorithmException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AlgorithmException(e.getMessage());
+        }
+    }
+    
+    /** 
+     * <p>Encrypt the packet contents.</p>
+     * <p>This method serialises and encrypts all the packet contents, encrypting the chunks in parallel.</p>
+     * <p>You MUST call this method before writing the packet to the stream, otherwise the packet will
+     * not be written correctly (if at all).</p>
+     * @param sessionkey The session key and algorithm to use.
+     * @throws AlgorithmException if something went wrong.
+     */
+    public void encryptAndEncode(SessionKey sessionkey) throws AlgorithmException {
+        
+        if (version == 1) {
+            encryptMDC(sessionkey);
+            return;
+        }
+        
+        if (version != 2)
+            throw new AlgorithmException("Symmetrically encrypted integrity protected data packet version " + version + " is not supported.");
+        
+        try {
+            symmetricAlgorithm = sessionkey.getAlgorithm();
+            
+            salt = new byte[SALT_LENGTH];
+            SecureRandom rnd = SecureRandom.getInstance("SHA1PRNG");
+            rnd.nextBytes(salt);
+            
+            byte keys[][] = deriveKeys(sessionkey.getSessionKey());
+            byte ad[] = getAssociatedData();
+            byte plaintext[] = encodeMultiplePackets();
+            
+            int chunkSize = getChunkSize();
+            int chunks = (plaintext.length + chunkSize - 1) / chunkSize;
+            
+            ChunkJob jobs[] = new ChunkJob[chunks];
+            for (int n = 0; n < chunks; n++) {
+                int offset = n * chunkSize;
+                jobs[n] = new ChunkJob(true, keys[0], createNonce(keys[1], n), ad, plaintext, offset, Math.min(chunkSize, plaintext.length - offset));
+            }
+            
+            WorkerPool.getDefaultPool().execute(jobs);
+            
+            ChunkJob last = new ChunkJob(true, keys[0], createNonce(keys[1], chunks), getFinalAssociatedData(plaintext.length), plaintext, 0, 0);
+            last.run();
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream(plaintext.length + (chunks + 1) * AEADAlgorithmSettings.TAG_LENGTH);
+            for (int n = 0; n < chunks; n++)
+                out.write(jobs[n].getResult());
+            out.write(last.getResult());
+            
+            rawData = out.toByteArray();
+            
+        } catch (AlgorithmException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AlgorithmException(e.getMessage());
+        }
+    }
+    
+    /**
+     * <p>Decrypt a version 1 packet, checking the modification detection code.</p>
+     * <p>The cipher output is hashed and copied to out in the same pass. The quick check bytes in the prefix are tested as soon as 
+     * they have been decrypted, so a wrong session key is detected without decrypting the rest of the data.</p>
+     */
+    protected void decryptMDC(SessionKey sessionkey, OutputStream out) throws AlgorithmException {
+        
+        try {
+            int blockSize = SymmetricAlgorithmSettings.getDefaultBlockSize(sessionkey.getAlgorithm())/8;
+            int prefixLength = blockSize + 2;
+            
+            if (rawData.length < prefixLength + MDC_LENGTH)
+                throw new AlgorithmException("Encrypted data is too short.");
+            
+            // end of the packet data, and end of the data covered by the hash
+            int dataEnd = rawData.length - MDC_LENGTH;
+            int hashEnd = rawData.length - ModificationDetectionCodePacket.HASH_LENGTH;
+            
+            // the prefix followed by the mdc packet
+            byte check[] = new byte[prefixLength + MDC_LENGTH];
+            boolean prefixChecked = false;
+            
+            Cipher cipher = createMDCCipher(Cipher.DECRYPT_MODE, sessionkey);
+            MessageDigest md = MessageDigest.getInstance("SHA1", "BC");
+            
+            InputStream in = new CipherInputStream(new ByteArrayInputStream(rawData), cipher);
+            byte buffer[] = new byte[BUFFER_SIZE];
+            int pos = 0;
+            int n;
+            
+            while ((n = in.read(buffer)) > 0) {
+                
+                // hash
+                md.update(buffer, 0, Math.max(0, Math.min(n, hashEnd - pos)));
+                
+                // packet data
+                int from = Math.max(pos, prefixLength);
+                int to = Math.min(pos + n, dataEnd);
+                if (to > from)
+                    out.write(buffer, from - pos, to - from);
+                
+                // prefix and mdc packet
+                for (int i = 0; i < Math.min(n, prefixLength - pos); i++)
+                    check[pos + i] = buffer[i];
+                for (int i = Math.max(0, dataEnd - pos); i < n; i++)
+                    check[prefixLength + pos + i - dataEnd] = buffer[i];
+                
+                pos += n;
+                
+                if ((!prefixChecked) && (pos >= prefixLength)) {
+                    if ((check[blockSize-2] != check[blockSize]) || (check[blockSize-1] != check[blockSize+1]))
+                        throw new AlgorithmException("Session key is incorrect.");
+                    prefixChecked = true;
+                }
+            }
+            
+            if (pos != rawData.length)
+                throw new AlgorithmException("Encrypted data is truncated.");
+            
+            if (((check[prefixLength] & 0xFF) != 0xD3) || ((check[prefixLength+1] & 0xFF) != ModificationDetectionCodePacket.HASH_LENGTH))
+                throw new AlgorithmException("Modification detection code is missing, the data may have been modified.");
+            
+            byte hash[] = new byte[ModificationDetectionCodePacket.HASH_LENGTH];
+            System.arraycopy(check, prefixLength + 2, hash, 0, hash.length);
+            
+            if (!new ModificationDetectionCodePacket(hash).verify(md.digest()))
+                throw new AlgorithmException("Modification detection code does not match, the data has been modified.");
+            
+        } catch (AlgorithmException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AlgorithmException(e.getMessage());
+        }
+    }
+    
+    /**
+     * <p>Encrypt a version 1 packet.</p>
+     * <p>The plain text is written through a digest and the cipher together, so the modification detection code is 
+     * calculated in the same pass as the encryption.</p>
+     */
+    protected void encryptMDC(SessionKey sessionkey) throws AlgorithmException {
+        
+        try {
+            symmetricAlgorithm = sessionkey.getAlgorithm();
+            
+            int blockSize = SymmetricAlgorithmSettings.getDefaultBlockSize(sessionkey.getAlgorithm())/8;
+            
+            // random prefix, the last two bytes are repeated as a quick check
+            byte prefix[] = new byte[blockSize+2];
+            SecureRandom rnd = SecureRandom.getInstance("SHA1PRNG");
+            rnd.nextBytes(prefix);
+            prefix[blockSize] = prefix[blockSize-2];
+            prefix[blockSize+1] = prefix[blockSize-1];
+            
+            byte plaintext[] = encodeMultiplePackets();
+            
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream(prefix.length + plaintext.length + MDC_LENGTH);
+            OutputStream cipherOut = new CipherOutputStream(encrypted, createMDCCipher(Cipher.ENCRYPT_MODE, sessionkey));
+            MessageDigest md = MessageDigest.getInstance("SHA1", "BC");
+            DigestOutputStream out = new DigestOutputStream(cipherOut, md);
+            
+            // prefix, packets and mdc header are all covered by the hash
+            ModificationDetectionCodePacket mdc = new ModificationDetectionCodePacket();
+            
+            out.write(prefix);
+            out.write(plaintext);
+            out.write(mdc.getPacketHeader().encodeHeader());
+            
+            out.on(false);
+            out.write(md.digest());
+            out.close();
+            
+            rawData = encrypted.toByteArray();
+            
+        } catch (AlgorithmException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AlgorithmException(e.getMessage());
+        }
+    }
+    
+    /** Create the CFB cipher used by version 1 packets. Unlike the old encrypted data packet there is no resynchronisation, and the IV is zero. */
+    protected Cipher createMDCCipher(int mode, SessionKey sessionkey) throws Exception {
+        int blockSize = SymmetricAlgorithmSettings.getDefaultBlockSize(sessionkey.getAlgorithm())/8;
+        String algorithm = SymmetricAlgorithmSettings.getCipherText(sessionkey.getAlgorithm());
+        
+        Cipher cipher = Cipher.getInstance(algorithm + "/CFB/NoPadding", "BC");
+        cipher.init(mode, new SecretKeySpec(sessionkey.getSessionKey(), algorithm), new IvParameterSpec(new byte[blockSize]));
+        
+        return cipher;
+    }
+    
+    /** 
+     * <p>Derive the message key and the fixed part of the nonce from the session key.</p>
+     * @return An array containing the message key and the nonce prefix.
+     */
+    protected byte[][] deriveKeys(byte sessionkey[]) throws AlgorithmException {
+        int keyLength = SymmetricAlgorithmSettings.getDefaultKeySize(symmetricAlgorithm) / 8;
+        int ivLength = AEADAlgorithmSettings.getNonceLength(aeadAlgorithm) - 8;
+        
+        HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+        hkdf.init(new HKDFParameters(sessionkey, salt, getAssociatedData()));
+        
+        byte derived[] = new byte[keyLength + ivLength];
+        hkdf.generateBytes(derived, 0, derived.length);
+        
+        byte keys[][] = new byte[2][];
+        keys[0] = new byte[keyLength];
+        keys[1] = new byte[ivLength];
+        System.arraycopy(derived, 0, keys[0], 0, keyLength);
+        System.arraycopy(derived, keyLength, keys[1], 0, ivLength);
+        
+        return keys;
+    }
+    
+    /** Create the nonce for a given chunk, this is the derived IV followed by the chunk index. */
+    protected byte[] createNonce(byte iv[], long index) {
+        byte nonce[] = new byte[iv.length + 8];
+        System.arraycopy(iv, 0, nonce, 0, iv.length);
+        
+        for (int n = 0; n < 8; n++)
+            nonce[nonce.length - 1 - n] = (byte)(index >> (n * 8));
+        
+        return nonce;
+    }
+    
+    /** Return the associated data used for every chunk (this is also the HKDF info). */
+    protected byte[] getAssociatedData() {
+        byte ad[] = new byte[5];
+        ad[0] = (byte)0xD2; // packet tag in new format
+        ad[1] = (byte)version;
+        ad[2] = (byte)symmetricAlgorithm;
+        ad[3] = (byte)aeadAlgorithm;
+        ad[4] = (byte)chunkSizeOctet;
+        
+        return ad;
+    }
+    
+    /** Return the associated data for the final tag, this adds the total number of plaintext bytes. */
+    protected byte[] getFinalAssociatedData(long total) {
+        byte ad[] = new byte[13];
+        System.arraycopy(getAssociatedData(), 0, ad, 0, 5);
+        
+        for (int n = 0; n < 8; n++)
+            ad[ad.length - 1 - n] = (byte)(total >> (n * 8));
+        
+        return ad;
+    }
+    
+    /**
+     * <p>A method constructs a packet out of raw binary data.</p>
+     * @param data[] The packet body data as a raw binary bytestream. If you are using OpenPGPPacketInputStream the header will automatically be created for you.
+     * @throws AlgorithmException if there was a problem.
+     */
+    public void buildPacket(byte[] data) throws AlgorithmException {
+        if (data.length < 1)
+            throw new AlgorithmException("Symmetrically encrypted integrity protected data packet is empty.");
+        
+        version = data[0] & 0xFF;
+        
+        if (version == 1) {
+            rawData = new byte[data.length - 1];
+            System.arraycopy(data, 1, rawData, 0, rawData.length);
+        } else if (version == 2) {
+            if (data.length < 4 + SALT_LENGTH)
+                throw new AlgorithmException("Symmetrically encrypted integrity protected data packet is too short.");
+            
+            symmetricAlgorithm = data[1] & 0xFF;
+            aeadAlgorithm = data[2] & 0xFF;
+            chunkSizeOctet = data[3] & 0xFF;
+            
+            // a larger octet would overflow the chunk size and could split the data into millions of chunks
+            if (chunkSizeOctet > MAX_CHUNK_SIZE)
+                throw new AlgorithmException("Invalid AEAD chunk size (" + chunkSizeOctet + ").");
+            
+            salt = new byte[SALT_LENGTH];
+            System.arraycopy(data, 4, salt, 0, SALT_LENGTH);
+            
+            rawData = new byte[data.length - 4 - SALT_LENGTH];
+            System.arraycopy(data, 4 + SALT_LENGTH, rawData, 0, rawData.length);
+        } else {
+            throw new AlgorithmException("Symmetrically encrypted integrity protected data packet version " + version + " is not supported.");
+        }
+    }
+    
+    /**
+     * <p>A method that produces a straight binary representation of this packet.</p>
+     * <p>As with other encrypted packets the header length information is recalculated.</p>
+     * @throws AlgorithmException if there was a problem.
+     */
+    public byte[] encodePacket() throws AlgorithmException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            
+            byte body[] = encodePacketBody();
+
+            setPacketHeader(new PacketHeader(18, true, body.length)); 
+            out.write(getPacketHeader().encodeHeader());
+            out.write(body);
+
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new AlgorithmException(e.getMessage());
+        }
+    }
+    
+    /**
+     * <p>A method that produces a straight binary representation of this packet's BODY.</p>
+     * @throws AlgorithmException if there was a problem.
+     */
+    public byte[] encodePacketBody() throws AlgorithmException {
+        if (rawData == null)
+            throw new AlgorithmException("Packet has not been encrypted.");
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream(rawData.length + 4 + SALT_LENGTH);
+
+        out.write(version);
+        
+        if (version == 1) {
+            out.write(rawData, 0, rawData.length);
+            return out.toByteArray();
+        }
+        
+        out.write(symmetricAlgorithm);
+        out.write(aeadAlgorithm);
+        out.write(chunkSizeOctet);
+        out.write(salt, 0, salt.length);
+        out.write(rawData, 0, rawData.length);
+
+        return out.toByteArray();
+    }
+    
+    /**
+     * <p>Displays a user friendly representation of a packet.</p>
+     * <p>Primarily this is used for displaying a packet in the UI.</p>
+     */
+    public String toString() {
+        if (version == 1)
+            return "Symmetrically encrypted integrity protected data packet (version 1, MDC)";
+        
+        String aead = Integer.toString(aeadAlgorithm);
+        try {
+            aead = AEADAlgorithmSettings.getAEADText(aeadAlgorithm);
+        } catch (AlgorithmException e) {
+        }
+        
+        return "Symmetrically encrypted integrity protected data packet (version " + version + ", " + aead + ")";
+    }
+    
+    /**
+     * <p>Encrypts or decrypts a single chunk, run on the worker pool.</p>
+     */
+    private class ChunkJob implements WorkerPool.Job {
+        
+        private boolean encrypt;
+        private byte key[];
+        private byte nonce[];
+        private byte ad[];
+        private byte input[];
+        private int offset;
+        private int length;
+        private byte result[];
+        
+        ChunkJob(boolean forEncryption, byte messageKey[], byte chunkNonce[], byte associatedData[], byte data[], int off, int len) {
+            encrypt = forEncryption;
+            key = messageKey;
+            nonce = chunkNonce;
+            ad = associatedData;
+            input = data;
+            offset = off;
+            length = len;
+        }
+        
+        /** Return the output of the chunk. */
+        byte[] getResult() {
+            return result;
+        }
+        
+        public void run() throws Exception {
+            AEADBlockCipher cipher = AEADAlgorithmSettings.createCipher(aeadAlgorithm, symmetricAlgorithm);
+            cipher.init(encrypt, new AEADParameters(new KeyParameter(key), AEADAlgorithmSettings.TAG_LENGTH * 8, nonce, ad));
+            
+            byte out[] = new byte[cipher.getOutputSize(length)];
+            int len = cipher.processBytes(input, offset, length, out, 0);
+            
+            try {
+                len += cipher.doFinal(out, len);
+            } catch (InvalidCipherTextException e) {
+                throw new AlgorithmException("Encrypted data failed authentication, it may have been modified.");
+            }
+            
+            if (len != out.length) {
+                byte tmp[] = new byte[len];
+                System.arraycopy(out, 0, tmp, 0, len);
+                out = tmp;
+            }
+            
+            result = out;
+        }
+    }
+}
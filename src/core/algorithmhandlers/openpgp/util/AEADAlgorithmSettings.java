@@ -0,0 +1,106 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.util;
+import core.exceptions.AlgorithmException;
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.*;
+import java.lang.String;
+
+/**
+ * <p>A class that returns settings for the AEAD (authenticated encryption) algorithms, translating the algorithm code into a cipher mode.</p>
+ * <p>AEAD modes need a cipher with a 128 bit block, so only the AES family of symmetric algorithms can be used with them.</p>
+ * <p>The BouncyCastle light weight API is used for these modes since associated data can not be passed through the JCE.</p>
+ */
+public class AEADAlgorithmSettings {
+    
+    public static final int EAX = 1;
+    public static final int OCB = 2;
+    public static final int GCM = 3;
+    
+    /** The length in bytes of the authentication tag appended to each chunk. */
+    public static final int TAG_LENGTH = 16;
+    
+    
+    /**
+     * <p>A method that returns a human readable name for an AEAD algorithm.</p>
+     * @throws AlgorithmException if the requested algorithm is not supported. 
+     */
+    public static String getAEADText(int algorithm) throws AlgorithmException {
+        switch (algorithm) {
+            case EAX : return "EAX";
+            case OCB : return "OCB";
+            case GCM : return "GCM";
+            default : throw new AlgorithmException("Requested AEAD algorithm (" + algorithm + ") not supported.");
+        }
+    }
+    
+    /**
+     * <p>A method that returns the length in bytes of the nonce used by an AEAD algorithm.</p>
+     * @throws AlgorithmException if the requested algorithm is not supported. 
+     */
+    public static int getNonceLength(int algorithm) throws AlgorithmException {
+        switch (algorithm) {
+            case EAX : return 16;
+            case OCB : return 15;
+            case GCM : return 12;
+            default : throw new AlgorithmException("Requested AEAD algorithm (" + algorithm + ") not supported.");
+        }
+    }
+    
+    /**
+     * <p>Create a new (uninitialised) AEAD cipher for a given AEAD and symmetric algorithm.</p>
+     * <p>Ciphers are not thread safe, a new cipher should be created for each thread.</p>
+     * @throws AlgorithmException if the requested algorithm is not supported. 
+     */
+    public static AEADBlockCipher createCipher(int algorithm, int symmetricAlgorithm) throws AlgorithmException {
+        switch (algorithm) {
+            case EAX : return new EAXBlockCipher(createBlockCipher(symmetricAlgorithm));
+            case OCB : return new OCBBlockCipher(createBlockCipher(symmetricAlgorithm), createBlockCipher(symmetricAlgorithm));
+            case GCM : return new GCMBlockCipher(createBlockCipher(symmetricAlgorithm));
+            default : throw new AlgorithmException("Requested AEAD algorithm (" + algorithm + ") not supported.");
+        }
+    }
+    
+    /**
+     * <p>Create the block cipher engine underlying an AEAD mode.</p>
+     * @throws AlgorithmException if the requested algorithm is not supported or does not have a 128 bit block. 
+     */
+    protected static BlockCipher createBlockCipher(int symmetricAlgorithm) throws AlgorithmException {
+        switch (symmetricAlgorithm) {
+            case SymmetricAlgorithmSettings.AES128 :
+            case SymmetricAlgorithmSettings.AES192 :
+            case SymmetricAlgorithmSettings.AES256 : return new AESEngine();
+            default : throw new AlgorithmException("Symmetric algorithm (" + symmetricAlgorithm + ") can not be used with AEAD encryption.");
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.util;
+import core.exceptions.AlgorithmException;
+import java.util.zip.Deflater;
+
+/**
+ * <p>A class that returns settings for the compression algorithms used by compressed data packets.</p>
+ */
+public class CompressionAlgorithmSettings {
+    
+    public static final int UNCOMPRESSED = 0;
+    public static final int ZIP = 1;
+    public static final int ZLIB = 2;
+    public static final int BZIP2 = 3;
+    
+    /** <p>The BZip2 streams. These come with the Bouncy Castle OpenPGP jar (bcpg) rather than the provider, so they are 
+     * loaded by name and BZip2 is only supported if they are on the class path.</p> */
+    public static final String BZIP2_INPUT_STREAM = "org.bouncycastle.apache.bzip2.CBZip2InputStream";
+    public static final String BZIP2_OUTPUT_STREAM = "org.bouncycastle.apache.bzip2.CBZip2OutputStream";
+    
+    /** Whether the BZip2 streams could be found, null until first checked. */
+    private static Boolean bzip2Available;
+    
+    /** <p>Return a human readable name for a compression algorithm, this is also the name used in the configuration file.</p>
+     * @throws AlgorithmException if the requested algorithm is not supported.
+     */
+    public static String getCompressionText(int algorithm) throws AlgorithmException {
+        switch (algorithm) {
+            case UNCOMPRESSED : return "NONE";
+            case ZIP : return "ZIP";
+            case ZLIB : return "ZLIB";
+            case BZIP2 : return "BZIP2";
+            default : throw new AlgorithmException("Requested compression algorithm (" + algorithm + ") not supported.");
+        }
+    }
+    
+    /** <p>Translate a compression algorithm name (as used in the configuration file) into its algorithm code.</p>
+     * @throws AlgorithmException if the requested algorithm is not supported.
+     */
+    public static int getCompressionAlgorithm(String name) throws AlgorithmException {
+        String n = name.trim().toUpperCase();
+        
+        if (("NONE".compareTo(n)==0) || ("UNCOMPRESSED".compareTo(n)==0)) return UNCOMPRESSED;
+        if ("ZIP".compareTo(n)==0) return ZIP;
+        if ("ZLIB".compareTo(n)==0) return ZLIB;
+        if (("BZIP2".compareTo(n)==0) || ("BZ2".compareTo(n)==0)) return BZIP2;
+        
+        throw new AlgorithmException("Requested compression algorithm (" + name + ") not supported.");
+    }
+    
+    /** <p>Returns true if the given compression algorithm is supported by this implementation.</p>
+     * <p>BZip2 is only supported if the Bouncy Castle OpenPGP jar (bcpg) is on the class path.</p>
+     */
+    public static boolean isSupported(int algorithm) {
+        try {
+            getCompressionText(algorithm);
+        } catch (AlgorithmException e) {
+            return false;
+        }
+        
+        if (algorithm == BZIP2)
+            return isBZip2Available();
+        
+        return true;
+    }
+    
+    /** Returns true if the BZip2 streams can be loaded. */
+    private static synchronized boolean isBZip2Available() {
+        if (bzip2Available == null) {
+            try {
+                Class.forName(BZIP2_INPUT_STREAM);
+                Class.forName(BZIP2_OUTPUT_STREAM);
+                bzip2Available = Boolean.TRUE;
+            } catch (Throwable t) {
+                bzip2Available = Boolean.FALSE;
+            }
+        }
+        
+        return bzip2Available.booleanValue();
+    }
+    
+    /** <p>Translate a compression strategy name (DEFAULT, FILTERED or HUFFMAN_ONLY) into a java.util.zip.Deflater strategy.</p>
+     * <p>The strategy only applies to ZIP and ZLIB compression.</p>
+     * @throws AlgorithmException if the strategy is not recognised.
+     */
+    public static int getCompressionStrategy(String name) throws AlgorithmException {
+        String n = name.trim().toUpperCase();
+        
+        if ("DEFAULT".compareTo(n)==0) return Deflater.DEFAULT_STRATEGY;
+        if ("FILTERED".compareTo(n)==0) return Deflater.FILTERED;
+        if ("HUFFMAN_ONLY".compareTo(n)==0) return Deflater.HUFFMAN_ONLY;
+        
+        throw new AlgorithmException("Requested compression strategy (" + name + ") not supported.");
+    }
+    
+    /** <p>Check that a compression level is valid.</p>
+     * <p>Levels run from 0 (fastest) to 9 (best compression), -1 selects the default level. For BZip2 the level is the 
+     * block size in units of 100k, with 0 treated as 1.</p>
+     * @throws AlgorithmException if the level is out of range.
+     */
+    public static int checkCompressionLevel(int level) throws AlgorithmException {
+        if ((level < -1) || (level > 9))
+            throw new AlgorithmException("Invalid compression level (" + level + ").");
+        
+        return level;
+    }
+}
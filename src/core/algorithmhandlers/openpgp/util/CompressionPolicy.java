@@ -0,0 +1,336 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.util;
+import core.exceptions.AlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Decides how (and whether) to compress a piece of data before it is encrypted.</p>
+ * <p>Data that is already compressed (JPEG, PNG, ZIP, PDF etc.) usually gets slightly bigger when compressed again, so 
+ * burning CPU on it is pointless. The policy looks at the data's signature bytes and file name, then samples the byte 
+ * entropy of a few windows spread through the data:</p>
+ * <ul>
+ * <li>Known compressed formats, tiny payloads and near random data are left uncompressed.</li>
+ * <li>Data with moderately high entropy is compressed with a fast level, since there is little to gain.</li>
+ * <li>Everything else is compressed with the strong (configured) level.</li>
+ * </ul>
+ * <p>The algorithm is negotiated against the recipients' PreferredCompressionAlgorithmSubPacket preferences. As per the spec 
+ * a key without preferences is assumed to prefer ZIP, and uncompressed data is acceptable to everyone.</p>
+ */
+public class CompressionPolicy {
+    
+    /** Payloads smaller than this are never compressed. */
+    public static final int MINIMUM_SIZE = 64;
+    
+    /** Number of windows sampled. */
+    private static final int SAMPLE_WINDOWS = 4;
+    
+    /** Size of each sampled window. */
+    private static final int SAMPLE_SIZE = 4096;
+    
+    /** Level used for fast compression. */
+    public static final int FAST_LEVEL = 1;
+    
+    /** Entropy (bits per byte) above which data is not compressed. */
+    private double incompressibleEntropy = 7.5;
+    
+    /** Entropy (bits per byte) above which data is compressed with the fast level. */
+    private double fastEntropy = 6.0;
+    
+    /** Preferred compression algorithm. */
+    private int algorithm;
+    
+    /** Strong compression level. */
+    private int level;
+    
+    /** Deflater strategy for ZIP and ZLIB. */
+    private int strategy;
+    
+    /** Signature bytes of formats that are already compressed. */
+    private static final byte signatures[][] = {
+        {(byte)0xFF, (byte)0xD8, (byte)0xFF},               // JPEG
+        {(byte)0x89, 'P', 'N', 'G'},                        // PNG
+        {'G', 'I', 'F', '8'},                               // GIF
+        {'P', 'K', 0x03, 0x04},                             // ZIP, JAR, OpenOffice and OOXML documents
+        {(byte)0x1F, (byte)0x8B},                           // GZIP
+        {'B', 'Z', 'h'},                                    // BZip2
+        {'7', 'z', (byte)0xBC, (byte)0xAF},                 // 7-Zip
+        {'R', 'a', 'r', '!'},                               // RAR
+        {(byte)0xFD, '7', 'z', 'X', 'Z'},                   // XZ
+        {'%', 'P', 'D', 'F'},                               // PDF
+        {'I', 'D', '3'},                                    // MP3
+        {'-', '-', '-', '-', '-', 'B', 'E', 'G', 'I', 'N', ' ', 'P', 'G', 'P', ' ', 'M'}, // armored PGP message
+    };
+    
+    /** File extensions of formats that are already compressed. */
+    private static final String extensions[] = {
+        "jpg", "jpeg", "png", "gif", "zip", "jar", "gz", "tgz", "bz2", "7z", "rar", "xz", "pdf", 
+        "mp3", "mp4", "m4a", "avi", "mov", "mpg", "mpeg", "ogg", "docx", "xlsx", "pptx", "odt", "ods", "odp", "pgp", "gpg"
+    };
+    
+    /** <p>Creates a new compression policy.</p>
+     * @param compressionalgorithm The algorithm to use if the recipients accept it.
+     * @param compressionlevel The level to use for strong compression, 0 to 9 or -1 for the algorithm's default.
+     * @param compressionstrategy The java.util.zip.Deflater strategy to use with ZIP and ZLIB.
+     * @throws AlgorithmException if the algorithm or level is not supported.
+     */
+    public CompressionPolicy(int compressionalgorithm, int compressionlevel, int compressionstrategy) throws AlgorithmException {
+        CompressionAlgorithmSettings.getCompressionText(compressionalgorithm); // throws if not supported
+        
+        algorithm = compressionalgorithm;
+        level = CompressionAlgorithmSettings.checkCompressionLevel(compressionlevel);
+        strategy = compressionstrategy;
+    }
+    
+    /** <p>Set the entropy thresholds (in bits per byte, 0 to 8).</p>
+     * @param fast Data with entropy above this is compressed with the fast level.
+     * @param incompressible Data with entropy above this is not compressed.
+     */
+    public void setEntropyThresholds(double fast, double incompressible) {
+        fastEntropy = fast;
+        incompressibleEntropy = incompressible;
+    }
+    
+    /** 
+     * <p>Decide how to compress a piece of data.</p>
+     * @param data The data to be compressed.
+     * @param filename The name of the file the data came from, or null if unknown.
+     * @param prefs The compression preferences of each recipient, a null entry means the recipient's key states no preference. 
+     *              May be null if there are no recipients to consider.
+     * @return The compression to use.
+     */
+    public Choice choose(byte data[], String filename, byte prefs[][]) {
+        
+        if ((data.length < MINIMUM_SIZE) || (algorithm == CompressionAlgorithmSettings.UNCOMPRESSED) || (isCompressedFormat(data, filename)))
+            return new Choice(CompressionAlgorithmSettings.UNCOMPRESSED, 0, strategy);
+        
+        double entropy = sampleEntropy(data);
+        
+        if (entropy > incompressibleEntropy) 
+            return new Choice(CompressionAlgorithmSettings.UNCOMPRESSED, 0, strategy);
+        
+        if (entropy > fastEntropy) {
+            // BZip2 is never fast, prefer a deflate based algorithm if everyone accepts one
+            int fast = negotiate(new int[] {algorithm, CompressionAlgorithmSettings.ZLIB, CompressionAlgorithmSettings.ZIP}, prefs);
+            if (fast == CompressionAlgorithmSettings.BZIP2) {
+                int deflate = negotiate(new int[] {CompressionAlgorithmSettings.ZLIB, CompressionAlgorithmSettings.ZIP}, prefs);
+                if (deflate != CompressionAlgorithmSettings.UNCOMPRESSED)
+                    fast = deflate;
+            }
+            
+            return new Choice(fast, FAST_LEVEL, Deflater.DEFAULT_STRATEGY);
+        }
+        
+        return new Choice(negotiate(new int[] {algorithm}, prefs), level, strategy);
+    }
+    
+    /** 
+     * <p>Choose a compression algorithm acceptable to every recipient.</p>
+     * <p>The first of the wanted algorithms that everybody accepts is returned. Failing that the first supported algorithm from 
+     * the earliest preference list that everybody accepts is used, then ZIP, and if there is none the data is left uncompressed.</p>
+     * @param wanted The algorithms the caller would like, in order.
+     * @param prefs The preferences of each recipient, a null entry means ZIP is preferred. A null array places no constraint on the choice.
+     */
+    public static int negotiate(int wanted[], byte prefs[][]) {
+        for (int n = 0; n < wanted.length; n++) {
+            if (acceptable(wanted[n], prefs))
+                return wanted[n];
+        }
+        
+        if (prefs != null) {
+            for (int n = 0; n < prefs.length; n++) {
+                if (prefs[n] == null) continue;
+                
+                for (int i = 0; i < prefs[n].length; i++) {
+                    int alg = prefs[n][i] & 0xFF;
+                    if (CompressionAlgorithmSettings.isSupported(alg) && acceptable(alg, prefs))
+                        return alg;
+                }
+            }
+        }
+        
+        if (acceptable(CompressionAlgorithmSettings.ZIP, prefs))
+            return CompressionAlgorithmSettings.ZIP;
+        
+        return CompressionAlgorithmSettings.UNCOMPRESSED;
+    }
+    
+    /** Returns true if every recipient accepts the given algorithm. */
+    private static boolean acceptable(int alg, byte prefs[][]) {
+        if (alg == CompressionAlgorithmSettings.UNCOMPRESSED)
+            return true;
+        
+        if (!CompressionAlgorithmSettings.isSupported(alg))
+            return false;
+        
+        if (prefs == null)
+            return true;
+        
+        for (int n = 0; n < prefs.length; n++) {
+            boolean found = false;
+            
+            if (prefs[n] == null) {
+                found = (alg == CompressionAlgorithmSettings.ZIP);
+            } else {
+                for (int i = 0; i < prefs[n].length; i++) {
+                    if ((prefs[n][i] & 0xFF) == alg)
+                        found = true;
+                }
+            }
+            
+            if (!found)
+                return false;
+        }
+        
+        return true;
+    }
+    
+    /** Returns true if the data looks like it is in a format that is already compressed. */
+    public static boolean isCompressedFormat(byte data[], String filename) {
+        
+        for (int n = 0; n < signatures.length; n++) {
+            if (data.length >= signatures[n].length) {
+                boolean match = true;
+                for (int i = 0; (i < signatures[n].length) && (match); i++) {
+                    if (data[i] != signatures[n][i])
+                        match = false;
+                }
+                
+                if (match)
+                    return true;
+            }
+        }
+        
+        if (filename != null) {
+            int dot = filename.lastIndexOf('.');
+            if (dot >= 0) {
+                String ext = filename.substring(dot + 1).trim().toLowerCase();
+                for (int n = 0; n < extensions.length; n++) {
+                    if (extensions[n].equals(ext))
+                        return true;
+                }
+            }
+        }
+        
+        return false;
+    }
+    
+    /** 
+     * <p>Estimate the entropy of the data in bits per byte.</p>
+     * <p>A few windows spread evenly through the data are sampled, so the cost is bounded however large the data is. 
+     * The median entropy of the windows is returned. A compressed file with a plain text header is still spotted, as most 
+     * of its windows are near random, while a single embedded image or base64 block does not stop a text body from 
+     * being compressed.</p>
+     */
+    public static double sampleEntropy(byte data[]) {
+        int windows = (data.length <= SAMPLE_SIZE) ? 1 : SAMPLE_WINDOWS;
+        int window = Math.min(SAMPLE_SIZE, data.length);
+        int step = (windows > 1) ? (data.length - window) / (windows - 1) : 0;
+        
+        double e[] = new double[windows];
+        for (int n = 0; n < windows; n++)
+            e[n] = entropy(data, n * step, window);
+        
+        Arrays.sort(e);
+        
+        if (windows % 2 == 1)
+            return e[windows / 2];
+        
+        return (e[windows / 2 - 1] + e[windows / 2]) / 2;
+    }
+    
+    /** Calculate the Shannon entropy of a range of bytes. */
+    private static double entropy(byte data[], int offset, int length) {
+        if (length == 0)
+            return 0;
+        
+        int counts[] = new int[256];
+        for (int n = offset; n < offset + length; n++)
+            counts[data[n] & 0xFF]++;
+        
+        double e = 0;
+        for (int n = 0; n < counts.length; n++) {
+            if (counts[n] > 0) {
+                double p = (double)counts[n] / length;
+                e -= p * Math.log(p);
+            }
+        }
+        
+        return e / Math.log(2);
+    }
+    
+    /**
+     * <p>The compression chosen for a piece of data.</p>
+     */
+    public static class Choice {
+        
+        private int algorithm;
+        private int level;
+        private int strategy;
+        
+        Choice(int compressionalgorithm, int compressionlevel, int compressionstrategy) {
+            algorithm = compressionalgorithm;
+            level = compressionlevel;
+            strategy = compressionstrategy;
+        }
+        
+        /** Returns false if the data should not be compressed. */
+        public boolean isCompressed() {
+            return algorithm != CompressionAlgorithmSettings.UNCOMPRESSED;
+        }
+        
+        /** Get the compression algorithm. */
+        public int getAlgorithm() {
+            return algorithm;
+        }
+        
+        /** Get the compression level. */
+        public int getLevel() {
+            return level;
+        }
+        
+        /** Get the deflater strategy. */
+        public int getStrategy() {
+            return strategy;
+        }
+        
+        /** Describe the choice. */
+        public String toString() {
+            try {
+                return CompressionAlgorithmSettings.getCompressionText(algorithm) + (isCompressed() ? " (level " + level + ")" : "");
+            } catch (AlgorithmException e) {
+                return Integer.toString(algorithm);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.util;
+import java.security.*;
+import java.util.*;
+
+/**
+ * <p>Remembers the plaintext of armored PGP blocks that have already been decrypted.</p>
+ * <p>Threads quote the same encrypted block again and again in replies and forwards, and decrypting each copy means a secret key 
+ * lookup and a public key operation every time. Plaintexts are stored against a hash of the armored block, so an identical block 
+ * is only decrypted once.</p>
+ * <p>The key also covers the secrets (passphrases) that were available when the block was decrypted, so a cache that outlives a 
+ * session can not hand plaintext to a caller that could not have decrypted the block itself.</p>
+ * <p>The cache holds a limited number of bytes of plaintext, the least recently used entries are dropped first. Plaintext is 
+ * only ever held in memory.</p>
+ */
+public class DecryptedBlockCache {
+    
+    /** Default size of a cache that lives for one session. */
+    public static final long DEFAULT_SESSION_SIZE = 4 * 1024 * 1024;
+    
+    /** Maximum number of bytes of plaintext held. */
+    private long maxSize;
+    
+    /** Number of bytes of plaintext held. */
+    private long size;
+    
+    /** Entry keys mapped to plaintexts, in least recently used order. */
+    private LinkedHashMap entries;
+    
+    /** Number of lookups answered by the cache. */
+    private long hits;
+    
+    /** Number of lookups not answered by the cache. */
+    private long misses;
+    
+    /** <p>Create a new cache.</p>
+     * @param maxBytes The maximum number of bytes of plaintext to hold, 0 or less disables the cache.
+     */
+    public DecryptedBlockCache(long maxBytes) {
+        maxSize = maxBytes;
+        size = 0;
+        entries = new LinkedHashMap(16, 0.75f, true);
+    }
+    
+    /** 
+     * <p>Work out the key a plaintext is stored under.</p>
+     * @param block The armored block, or the data between its armor headers.
+     * @param secrets The passphrases that were available to decrypt the block, may be null.
+     */
+    public static String makeKey(byte block[], byte secrets[][]) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA1");
+            
+            StringBuffer key = new StringBuffer();
+            appendHex(key, md.digest(block));
+            key.append(':');
+            
+            if (secrets != null) {
+                for (int n = 0; n < secrets.length; n++) {
+                    // length prefix each secret so that different lists can't hash the same
+                    int length = (secrets[n] == null) ? 0 : secrets[n].length;
+                    md.update((byte)(length >> 24)); md.update((byte)(length >> 16)); md.update((byte)(length >> 8)); md.update((byte)length);
+                    if (length > 0)
+                        md.update(secrets[n]);
+                }
+            }
+            appendHex(key, md.digest());
+            
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage()); // SHA1 is always available
+        }
+    }
+    
+    /** 
+     * <p>Look up a plaintext.</p>
+     * @param key The key from {@link #makeKey(byte[], byte[][])}.
+     * @return The plaintext, or null if the block has not been seen. The array is shared and must not be changed.
+     */
+    public synchronized byte[] get(String key) {
+        byte plaintext[] = (byte[])entries.get(key);
+        
+        if (plaintext == null)
+            misses++;
+        else
+            hits++;
+        
+        return plaintext;
+    }
+    
+    /** 
+     * <p>Remember a plaintext.</p>
+     * <p>Plaintexts bigger than the whole cache are not stored.</p>
+     * @param key The key from {@link #makeKey(byte[], byte[][])}.
+     * @param plaintext The decrypted block. The array is kept, so it must not be changed afterwards.
+     */
+    public synchronized void put(String key, byte plaintext[]) {
+        if (plaintext.length > maxSize)
+            return;
+        
+        byte old[] = (byte[])entries.put(key, plaintext);
+        if (old != null)
+            size -= old.length;
+        size += plaintext.length;
+        
+        Iterator i = entries.values().iterator();
+        while ((size > maxSize) && (i.hasNext())) {
+            size -= ((byte[])i.next()).length;
+            i.remove();
+        }
+    }
+    
+    /** Forget every plaintext. */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+    
+    /** Return the number of plaintexts held. */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+    
+    /** Return the number of bytes of plaintext held. */
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    /** Return the maximum number of bytes of plaintext held. */
+    public long getMaxSize() {
+        return maxSize;
+    }
+    
+    /** Return the number of lookups answered by the cache. */
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    /** Return the number of lookups not answered by the cache. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    /** Append a byte array to a string buffer as hex. */
+    private static void appendHex(StringBuffer buffer, byte data[]) {
+        for (int n = 0; n < data.length; n++) {
+            String hex = Integer.toHexString(data[n] & 0xff);
+            if (hex.length() < 2) buffer.append('0');
+            buffer.append(hex);
+        }
+    }
+}
@@ -40,17 +40,122 @@ public class HashAlgorithmSettings {
     
     public static final int MD5 = 1;
     public static final int SHA1 = 2;
+    public static final int SHA256 = 8;
+    public static final int SHA384 = 9;
+    public static final int SHA512 = 10;
+    public static final int SHA224 = 11;
     
     
  
     /** <p>A method that returns a correctly formatted hash text string for creating a JCE message digest.</p>
+     * <p>The returned string is also the name used in the "Hash:" armor header of a clear signed message.</p>
      * @throws AlgorithmException if the requested algorithm is not supported.
      */
     public static String getHashText(int algorithm) throws AlgorithmException {
         switch (algorithm) {
             case MD5 : return "MD5"; 
             case SHA1 : return "SHA1"; 
+            case SHA256 : return "SHA256"; 
+            case SHA384 : return "SHA384"; 
+            case SHA512 : return "SHA512"; 
+            case SHA224 : return "SHA224"; 
             default : throw new AlgorithmException("Requested hash algorithm (" + algorithm + ") not supported.");
         }
     }
+    
+    /** <p>Return the length (in bytes) of the digest produced by a given hash algorithm.</p>
+     * @throws AlgorithmException if the requested algorithm is not supported.
+     */
+    public static int getDigestLength(int algorithm) throws AlgorithmException {
+        switch (algorithm) {
+            case MD5 : return 16; 
+            case SHA1 : return 20; 
+            case SHA256 : return 32; 
+            case SHA384 : return 48; 
+            case SHA512 : return 64; 
+            case SHA224 : return 28; 
+            default : throw new AlgorithmException("Requested hash algorithm (" + algorithm + ") not supported.");
+        }
+    }
+    
+    /** <p>Translate a hash algorithm name (as used in the configuration file or a "Hash:" armor header) into its algorithm code.</p>
+     * <p>Both the "SHA256" and "SHA-256" forms are accepted.</p>
+     * @throws AlgorithmException if the requested algorithm is not supported.
+     */
+    public static int getHashAlgorithm(String name) throws AlgorithmException {
+        String n = name.trim().toUpperCase();
+        if (n.startsWith("SHA-")) n = "SHA" + n.substring(4);
+        
+        if ("MD5".compareTo(n)==0) return MD5;
+        if ("SHA1".compareTo(n)==0) return SHA1;
+        if ("SHA256".compareTo(n)==0) return SHA256;
+        if ("SHA384".compareTo(n)==0) return SHA384;
+        if ("SHA512".compareTo(n)==0) return SHA512;
+        if ("SHA224".compareTo(n)==0) return SHA224;
+        
+        throw new AlgorithmException("Requested hash algorithm (" + name + ") not supported.");
+    }
+    
+    /** <p>Returns true if the given hash algorithm is supported by this implementation.</p> */
+    public static boolean isSupported(int algorithm) {
+        try {
+            getHashText(algorithm);
+            return true;
+        } catch (AlgorithmException e) {
+            return false;
+        }
+    }
+    
+    /** <p>Return the default ordered list of hash algorithm preferences written into new key self signatures.</p> */
+    public static byte[] getDefaultPreferences() {
+        byte prefs[] = {SHA512, SHA256, SHA384, SHA224, SHA1};
+        return prefs;
+    }
+    
+    /** <p>Choose a hash algorithm that is acceptable to every party in a list of hash algorithm preferences.</p>
+     * <p>Each entry in prefs is the content of a PreferredHashAlgorithmSubPacket, a null entry means that the key
+     * stated no preference and so places no constraint on the choice. As per the spec SHA1 is implicitly acceptable to everyone.</p>
+     * <p>The requested algorithm is used if everybody accepts it, otherwise the first supported algorithm from the 
+     * earliest list that everybody accepts is returned, falling back to SHA1.</p>
+     * @param requested The algorithm the caller would like to use.
+     * @param prefs An array of preference lists, one for each recipient. May be null.
+     */
+    public static int negotiate(int requested, byte [][] prefs) {
+        if (prefs == null)
+            return requested;
+        
+        if (isAcceptable(requested, prefs))
+            return requested;
+        
+        for (int n = 0; n < prefs.length; n++) {
+            if (prefs[n]!=null) {
+                for (int i = 0; i < prefs[n].length; i++) {
+                    int alg = prefs[n][i] & 0xFF;
+                    if ((isSupported(alg)) && (isAcceptable(alg, prefs)))
+                        return alg;
+                }
+            }
+        }
+        
+        return SHA1;
+    }
+    
+    /** <p>Returns true if a hash algorithm is acceptable to everyone in a list of hash algorithm preferences.</p> */
+    private static boolean isAcceptable(int algorithm, byte [][] prefs) {
+        if (algorithm == SHA1)
+            return true;
+        
+        for (int n = 0; n < prefs.length; n++) {
+            if (prefs[n]!=null) {
+                boolean found = false;
+                for (int i = 0; i < prefs[n].length; i++) {
+                    if ((prefs[n][i] & 0xFF) == algorithm) found = true;
+                }
+                
+                if (!found) return false;
+            }
+        }
+        
+        return true;
+    }
 }
@@ -67,7 +67,10 @@ public class SessionKey {
         try {
             // generate session key
             KeyGenerator k = KeyGenerator.getInstance(SymmetricAlgorithmSettings.getCipherText(alg), "BC");
-            k.init(SecureRandom.getInstance("SHA1PRNG"));
+            if ((alg == SymmetricAlgorithmSettings.AES128) || (alg == SymmetricAlgorithmSettings.AES192) || (alg == SymmetricAlgorithmSettings.AES256))
+                k.init(SymmetricAlgorithmSettings.getDefaultKeySize(alg), SecureRandom.getInstance("SHA1PRNG")); // one generator serves all AES key sizes
+            else
+                k.init(SecureRandom.getInstance("SHA1PRNG"));
             Key key = k.generateKey();
 
             setAlgorithm(alg);
@@ -0,0 +1,179 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.util;
+import java.security.*;
+import java.util.*;
+
+/**
+ * <p>Remembers the outcome of signature verifications.</p>
+ * <p>Verifying a signature means a public key operation and a hash of the signed data, and the same signature is often 
+ * seen many times (a message downloaded again, or quoted in a reply). Outcomes are stored against a hash of the signature packet, 
+ * a hash of the signed data and the fingerprint of the key that checked it, so a lookup can only succeed for exactly the same 
+ * signature over exactly the same data checked with exactly the same key.</p>
+ * <p>A key that is replaced has a different fingerprint, so old outcomes are simply never found again. When a key is revoked
+ * its outcomes should be thrown away with {@link #invalidate(byte[])}.</p>
+ * <p>The cache holds a fixed number of entries, the least recently used are dropped first.</p>
+ */
+public class SignatureVerificationCache {
+    
+    /** Default number of entries. */
+    public static final int DEFAULT_SIZE = 1000;
+    
+    /** Maximum number of entries. */
+    private int maxEntries;
+    
+    /** Entry keys mapped to Boolean outcomes, in least recently used order. */
+    private LinkedHashMap entries;
+    
+    /** Number of lookups answered by the cache. */
+    private long hits;
+    
+    /** Number of lookups not answered by the cache. */
+    private long misses;
+    
+    /** <p>Create a new cache.</p>
+     * @param size The maximum number of outcomes to remember, 0 or less disables the cache.
+     */
+    public SignatureVerificationCache(int size) {
+        maxEntries = size;
+        entries = new LinkedHashMap(16, 0.75f, true);
+    }
+    
+    /** 
+     * <p>Work out the key an outcome is stored under.</p>
+     * <p>The key is worked out once per verification so the (possibly large) signed data is only hashed once.</p>
+     * @param signature The encoded signature packet.
+     * @param data The data that was signed.
+     * @param fingerprint The fingerprint of the key used to check the signature.
+     */
+    public static String makeKey(byte signature[], byte data[], byte fingerprint[]) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA1");
+            
+            StringBuffer key = new StringBuffer();
+            appendHex(key, md.digest(signature));
+            key.append(':');
+            appendHex(key, md.digest(data));
+            key.append(':');
+            appendHex(key, fingerprint);
+            
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage()); // SHA1 is always available
+        }
+    }
+    
+    /** 
+     * <p>Look up an outcome.</p>
+     * @param key The key from {@link #makeKey(byte[], byte[], byte[])}.
+     * @return Boolean.TRUE or Boolean.FALSE if the signature has been checked before, or null if it hasn't.
+     */
+    public synchronized Boolean get(String key) {
+        Boolean outcome = (Boolean)entries.get(key);
+        
+        if (outcome == null)
+            misses++;
+        else
+            hits++;
+        
+        return outcome;
+    }
+    
+    /** 
+     * <p>Remember an outcome.</p>
+     * @param key The key from {@link #makeKey(byte[], byte[], byte[])}.
+     * @param valid The outcome of the verification.
+     */
+    public synchronized void put(String key, boolean valid) {
+        if (maxEntries <= 0)
+            return;
+        
+        entries.put(key, valid ? Boolean.TRUE : Boolean.FALSE);
+        
+        Iterator i = entries.keySet().iterator();
+        while ((entries.size() > maxEntries) && (i.hasNext())) {
+            i.next();
+            i.remove();
+        }
+    }
+    
+    /** 
+     * <p>Forget every outcome checked with a given key.</p>
+     * <p>Call this when a key is revoked.</p>
+     * @param fingerprint The fingerprint of the key.
+     */
+    public synchronized void invalidate(byte fingerprint[]) {
+        StringBuffer suffix = new StringBuffer(":");
+        appendHex(suffix, fingerprint);
+        String s = suffix.toString();
+        
+        Iterator i = entries.keySet().iterator();
+        while (i.hasNext()) {
+            if (((String)i.next()).endsWith(s))
+                i.remove();
+        }
+    }
+    
+    /** Forget every outcome. */
+    public synchronized void clear() {
+        entries.clear();
+    }
+    
+    /** Return the number of outcomes remembered. */
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    /** Return the maximum number of outcomes remembered. */
+    public int getMaxSize() {
+        return maxEntries;
+    }
+    
+    /** Return the number of lookups answered by the cache. */
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    /** Return the number of lookups not answered by the cache. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    /** Append a byte array to a string buffer as hex. */
+    private static void appendHex(StringBuffer buffer, byte data[]) {
+        for (int n = 0; n < data.length; n++) {
+            String hex = Integer.toHexString(data[n] & 0xff);
+            if (hex.length() < 2) buffer.append('0');
+            buffer.append(hex);
+        }
+    }
+}
@@ -41,6 +41,9 @@ public class SymmetricAlgorithmSettings {
     public static final int IDEA = 1;
     public static final int TRIPLEDES = 2;
     public static final int CAST5 = 3;
+    public static final int AES128 = 7;
+    public static final int AES192 = 8;
+    public static final int AES256 = 9;
    
     
     /**
@@ -52,6 +55,9 @@ public class SymmetricAlgorithmSettings {
             case IDEA : return "IDEA";
             case TRIPLEDES : return "DESede"; 
             case CAST5 : return "CAST5";
+            case AES128 : 
+            case AES192 : 
+            case AES256 : return "AES";
             default : throw new AlgorithmException("Requested symmetric algorithm (" + algorithm + ") not supported.");
         }
     }
@@ -65,7 +71,10 @@ public class SymmetricAlgorithmSettings {
         switch (algorithm) {
             case IDEA : 
             case TRIPLEDES : 
-            case CAST5 : return "PGPCFBwithIV";
+            case CAST5 : 
+            case AES128 : 
+            case AES192 : 
+            case AES256 : return "PGPCFBwithIV";
             default : throw new AlgorithmException("Requested symmetric algorithm (" + algorithm + ") not supported.");
         }
     }
@@ -78,7 +87,10 @@ public class SymmetricAlgorithmSettings {
         switch (algorithm) {
             case IDEA :
             case TRIPLEDES : 
-            case CAST5 : return "NoPadding";
+            case CAST5 : 
+            case AES128 : 
+            case AES192 : 
+            case AES256 : return "NoPadding";
             default : throw new AlgorithmException("Requested symmetric algorithm (" + algorithm + ") not supported.");
         }
     }
@@ -91,7 +103,10 @@ public class SymmetricAlgorithmSettings {
         switch (algorithm) {
             case IDEA : 
             case TRIPLEDES : 
-            case CAST5 : return 128;
+            case CAST5 : 
+            case AES128 : return 128;
+            case AES192 : return 192;
+            case AES256 : return 256;
             default : throw new AlgorithmException("Requested symmetric algorithm (" + algorithm + ") not supported.");
         }
     }
@@ -105,6 +120,9 @@ public class SymmetricAlgorithmSettings {
             case IDEA : 
             case TRIPLEDES : 
             case CAST5 : return 64;
+            case AES128 : 
+            case AES192 : 
+            case AES256 : return 128;
             default : throw new AlgorithmException("Requested symmetric algorithm (" + algorithm + ") not supported.");
         }
     }
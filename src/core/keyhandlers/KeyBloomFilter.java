@@ -0,0 +1,140 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.keyhandlers;
+
+/**
+ * <p>A Bloom filter, a compact set that can say for certain that a value was never added to it.</p>
+ * <p>Key stores use these to answer lookups for keys they don't hold without searching. Asking whether a value might 
+ * be in the filter costs a few hash probes. A false answer is always right, while a true answer is wrong for about the 
+ * false positive rate the filter was sized for, in which case the store is searched as it would have been anyway.</p>
+ * <p>Values are added while the filter is being built. Once it has been handed to readers it should not be changed, a 
+ * new filter should be built instead.</p>
+ */
+public class KeyBloomFilter {
+    
+    /** The bits. */
+    private long bits[];
+    
+    /** Number of bits. */
+    private int size;
+    
+    /** Number of probes for each value. */
+    private int probes;
+    
+    /** Number of values added. */
+    private int count;
+    
+    /**
+     * <p>Creates a filter sized for a number of values.</p>
+     * @param expected The number of values that will be added.
+     * @param falsePositiveRate The proportion of values not in the filter that should be reported as possibly in it, eg 0.01.
+     */
+    public KeyBloomFilter(int expected, double falsePositiveRate) {
+        if (expected < 1) 
+            expected = 1;
+        
+        // m = -n ln(p) / (ln 2)^2 and k = (m / n) ln 2
+        double m = -expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        
+        size = (int)Math.max(64, Math.min(Integer.MAX_VALUE - 63, Math.ceil(m)));
+        probes = (int)Math.max(1, Math.min(16, Math.round(size / (double)expected * Math.log(2))));
+        bits = new long[(size + 63) / 64];
+    }
+    
+    /** Add a value. */
+    public void add(byte value[]) {
+        long hash = hash(value);
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32) | 1;
+        
+        for (int n = 0; n < probes; n++) {
+            int bit = ((h1 + n * h2) & 0x7FFFFFFF) % size;
+            bits[bit >>> 6] |= 1L << (bit & 63);
+        }
+        
+        count++;
+    }
+    
+    /**
+     * <p>Might a value have been added to the filter?</p>
+     * @return false if the value was certainly never added.
+     */
+    public boolean mightContain(byte value[]) {
+        long hash = hash(value);
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32) | 1;
+        
+        for (int n = 0; n < probes; n++) {
+            int bit = ((h1 + n * h2) & 0x7FFFFFFF) % size;
+            if ((bits[bit >>> 6] & (1L << (bit & 63))) == 0)
+                return false;
+        }
+        
+        return true;
+    }
+    
+    /** Return the number of values added. */
+    public int getCount() {
+        return count;
+    }
+    
+    /** Return the size of the filter in bits. */
+    public int getSize() {
+        return size;
+    }
+    
+    /** Return the number of probes made for each value. */
+    public int getProbes() {
+        return probes;
+    }
+    
+    /**
+     * <p>Hash a value with 64 bit FNV-1a, the two halves give the start and step of the probes.</p>
+     */
+    private static long hash(byte value[]) {
+        long hash = 0xcbf29ce484222325L;
+        
+        for (int n = 0; n < value.length; n++) {
+            hash ^= value[n] & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        
+        // FNV mixes its last bytes poorly, finish with a few rounds of shifts so both halves depend on every byte
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        
+        return hash;
+    }
+}
@@ -91,6 +91,15 @@ public abstract class KeyFile extends KeyHandler {
     public String getFileName() {
         return fileName;
     }
+    
+    /**
+     * <p>Called by KeyFileWatcher when the file has changed, perhaps because another program has written to it.</p>
+     * <p>Key files that hold information about the file in memory should bring it up to date here, so that it is ready 
+     * for the next lookup. By default nothing is done.</p>
+     * @param appended true if the file has grown, in which case it may only have had keys appended.
+     */
+    public void fileChanged(boolean appended) {
+    }
 
     /**
      * <p>Override toString to allow the Key handler to be rendered nicely in a swing list box.</p>
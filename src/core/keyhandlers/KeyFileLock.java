@@ -0,0 +1,232 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.keyhandlers;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * <p>Serialises the writers of a key file, both within the proxy and between the proxy and other programs.</p>
+ * <p>There is one lock per file, shared by every key store object using that file. A thread holding the lock may take it 
+ * again, and must call unlock() once for each time it was taken. While a thread holds the lock a FileLock is also held on a 
+ * sidecar lock file, so other copies of the proxy (and the key manager when run on its own) wait for each other.</p>
+ * <p>Readers don't take this lock, they read from a snapshot of the key file, see OpenPGPKeyringSnapshot. The lock is only 
+ * taken in shared mode while a snapshot is made, so that a snapshot never sees another program's half written change.</p>
+ * <p>Programs that don't know about the lock file, for example other OpenPGP implementations, are not kept out. Their changes 
+ * are picked up by the stat checks in the key stores and by KeyFileWatcher.</p>
+ */
+public class KeyFileLock {
+    
+    /** The extension added to the key file name to give the lock file name. */
+    public static final String EXTENSION = ".lock";
+    
+    /** The locks, keyed by the absolute path of the key file. */
+    private static Hashtable locks = new Hashtable();
+    
+    /** The lock file. */
+    private File lockFile;
+    
+    /** The thread holding the lock, or null. */
+    private Thread owner;
+    
+    /** Number of times the owner has taken the lock. */
+    private int holds;
+    
+    /** The lock held on the lock file, or null if the lock file couldn't be locked. */
+    private RandomAccessFile file;
+    private FileLock fileLock;
+    
+    /** Creates a new lock for a key file. */
+    private KeyFileLock(File keyFile) {
+        lockFile = new File(keyFile.getPath() + EXTENSION);
+    }
+    
+    /**
+     * <p>Return the lock for a key file.</p>
+     * <p>Every call for the same file returns the same lock, however the file name was written.</p>
+     */
+    public static synchronized KeyFileLock getLock(String fileName) {
+        File keyFile = new File(fileName).getAbsoluteFile();
+        
+        KeyFileLock lock = (KeyFileLock)locks.get(keyFile.getPath());
+        if (lock == null) {
+            lock = new KeyFileLock(keyFile);
+            locks.put(keyFile.getPath(), lock);
+        }
+        
+        return lock;
+    }
+    
+    /**
+     * <p>Take the lock in order to change the key file, waiting until no other thread or program holds it.</p>
+     * @throws IOException if the thread was interrupted while waiting.
+     */
+    public void lock() throws IOException {
+        lock(false);
+    }
+    
+    /**
+     * <p>Take the lock in order to read the key file, waiting until no other thread holds it and no other program is 
+     * changing the file.</p>
+     * <p>Other programs may read the file at the same time. Within the proxy the lock is still only held by one thread at a 
+     * time, snapshots are made rarely and quickly.</p>
+     * @throws IOException if the thread was interrupted while waiting.
+     */
+    public void lockShared() throws IOException {
+        lock(true);
+    }
+    
+    /**
+     * <p>Take the lock in order to read the key file, but only if this can be done without waiting.</p>
+     * @return true if the lock was taken.
+     */
+    public boolean tryLockShared() {
+        synchronized (this) {
+            if (owner == Thread.currentThread()) {
+                holds++;
+                return true;
+            }
+            
+            if (owner != null)
+                return false;
+            
+            owner = Thread.currentThread();
+            holds = 1;
+        }
+        
+        try {
+            file = new RandomAccessFile(lockFile, "rw");
+            fileLock = file.getChannel().tryLock(0, Long.MAX_VALUE, true);
+            if (fileLock != null)
+                return true;
+            
+        } catch (IOException e) {
+            // only threads within the proxy are kept out, as in lockFile()
+            return true;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        } finally {
+            if (fileLock == null)
+                releaseFile();
+        }
+        
+        // another program is changing the file
+        synchronized (this) {
+            owner = null;
+            notifyAll();
+        }
+        
+        return false;
+    }
+    
+    /**
+     * <p>Release the lock once for each time it was taken.</p>
+     */
+    public void unlock() {
+        synchronized (this) {
+            if (owner != Thread.currentThread())
+                throw new IllegalStateException("Key file lock is not held by this thread.");
+            
+            if (--holds > 0)
+                return;
+        }
+        
+        releaseFile();
+        
+        synchronized (this) {
+            owner = null;
+            notifyAll();
+        }
+    }
+    
+    /** Return the number of times the calling thread has taken the lock, 0 if it doesn't hold it. */
+    public synchronized int getHoldCount() {
+        return (owner == Thread.currentThread()) ? holds : 0;
+    }
+    
+    /** Take the lock, locking the lock file once it is ours. */
+    private void lock(boolean shared) throws IOException {
+        Thread me = Thread.currentThread();
+        
+        synchronized (this) {
+            if (owner == me) {
+                holds++;
+                return;
+            }
+            
+            try {
+                while (owner != null)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for " + lockFile.getPath());
+            }
+            
+            owner = me;
+            holds = 1;
+        }
+        
+        // other programs are waited for outside the monitor, so threads waiting their turn don't hold it
+        lockFile(shared);
+    }
+    
+    /** 
+     * <p>Lock the lock file.</p>
+     * <p>If the lock file can't be created, for example because the key file is on a read only disk, only threads within 
+     * the proxy are kept out.</p>
+     */
+    private void lockFile(boolean shared) {
+        try {
+            file = new RandomAccessFile(lockFile, "rw");
+            fileLock = file.getChannel().lock(0, Long.MAX_VALUE, shared);
+        } catch (IOException e) {
+            releaseFile();
+        } catch (OverlappingFileLockException e) {
+            // the file is locked through another path to it, the proxy's own threads are still kept apart
+            releaseFile();
+        }
+    }
+    
+    /** Release the lock on the lock file. */
+    private void releaseFile() {
+        try {
+            if (fileLock != null)
+                fileLock.release();
+            if (file != null)
+                file.close();
+        } catch (IOException e) {
+            // closing the file releases the lock anyway
+        }
+        
+        fileLock = null;
+        file = null;
+    }
+}
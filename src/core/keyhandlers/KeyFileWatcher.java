@@ -0,0 +1,228 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.keyhandlers;
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/**
+ * <p>Watches the files behind a set of key stores and tells each store when its file changes.</p>
+ * <p>Keyrings can be changed by the key manager, by other OpenPGP programs or by another copy of the proxy. Rather than each 
+ * store checking its file before every lookup, or reloading everything from time to time, the watcher checks the 
+ * modification time and length of every watched file once each interval and calls KeyFile.fileChanged() on the stores 
+ * whose files have changed. Keyrings then add just the appended keys to their index, see OpenPGPKeyringIndex.</p>
+ * <p>Stores are held through weak references, so a store that is no longer used elsewhere stops being watched.</p>
+ */
+public class KeyFileWatcher {
+    
+    /** The default time between checks, in milliseconds. */
+    public static final long DEFAULT_INTERVAL = 2000;
+    
+    /** The shared watcher, created on first use. */
+    private static KeyFileWatcher defaultWatcher;
+    
+    /** The watched stores. */
+    private Vector watched;
+    
+    /** Time between checks, in milliseconds. */
+    private long interval;
+    
+    /** The thread doing the checks, or null if it isn't running. */
+    private Thread thread;
+    
+    /** Creates a new watcher that checks its files every interval milliseconds. */
+    public KeyFileWatcher(long checkInterval) {
+        watched = new Vector();
+        interval = checkInterval;
+    }
+    
+    /** Return the shared watcher. */
+    public static synchronized KeyFileWatcher getDefaultWatcher() {
+        if (defaultWatcher == null)
+            defaultWatcher = new KeyFileWatcher(DEFAULT_INTERVAL);
+        
+        return defaultWatcher;
+    }
+    
+    /**
+     * <p>Start watching the file of a key store.</p>
+     * <p>Changes are reported from the next check on, watching a store that is already watched does nothing.</p>
+     */
+    public synchronized void watch(KeyFile store) {
+        if (find(store) != null)
+            return;
+        
+        watched.add(new WatchedFile(store));
+        
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    poll();
+                }
+            }, "Key file watcher");
+            
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    /** Stop watching the file of a key store. */
+    public synchronized void unwatch(KeyFile store) {
+        WatchedFile w = find(store);
+        if (w != null)
+            watched.remove(w);
+    }
+    
+    /** Return the number of stores being watched. */
+    public synchronized int getWatchedCount() {
+        return watched.size();
+    }
+    
+    /**
+     * <p>Check every watched file now, telling the stores whose files have changed.</p>
+     * <p>This is done automatically each interval.</p>
+     */
+    public void check() {
+        WatchedFile list[];
+        
+        synchronized (this) {
+            // forget stores that have been thrown away
+            for (int n = watched.size() - 1; n >= 0; n--) {
+                if (((WatchedFile)watched.elementAt(n)).store.get() == null)
+                    watched.removeElementAt(n);
+            }
+            
+            list = new WatchedFile[watched.size()];
+            watched.copyInto(list);
+        }
+        
+        // the stores are told outside the lock, bringing a store up to date can take a while
+        for (int n = 0; n < list.length; n++)
+            list[n].check();
+    }
+    
+    /**
+     * <p>Stop the watching thread. Files are only checked by calls to check() from then on.</p>
+     */
+    public synchronized void shutdown() {
+        if (thread != null)
+            thread.interrupt();
+        
+        thread = null;
+    }
+    
+    /** Check the files every interval until shut down. */
+    private void poll() {
+        Thread self = Thread.currentThread();
+        
+        try {
+            while (true) {
+                Thread.sleep(interval);
+                
+                synchronized (this) {
+                    if (thread != self)
+                        return;
+                    
+                    // nothing left to watch, watch() starts a new thread
+                    if (watched.size() == 0) {
+                        thread = null;
+                        return;
+                    }
+                }
+                
+                check();
+            }
+        } catch (InterruptedException e) {
+            // shut down
+        }
+    }
+    
+    private WatchedFile find(KeyFile store) {
+        for (int n = 0; n < watched.size(); n++) {
+            WatchedFile w = (WatchedFile)watched.elementAt(n);
+            if (w.store.get() == store)
+                return w;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * <p>A watched store and the state its file was in when last checked.</p>
+     */
+    private class WatchedFile {
+        
+        WeakReference store;
+        String fileName;
+        long modified;
+        long length;
+        
+        WatchedFile(KeyFile keyFile) {
+            store = new WeakReference(keyFile);
+            update(keyFile.getFileName());
+        }
+        
+        /** Record the current state of the file. */
+        private void update(String name) {
+            fileName = name;
+            
+            File file = new File(name);
+            modified = file.lastModified();
+            length = file.length();
+        }
+        
+        /** Tell the store if its file has changed since the last check. */
+        synchronized void check() {
+            KeyFile keyFile = (KeyFile)store.get();
+            if ((keyFile == null) || (keyFile.getFileName() == null))
+                return;
+            
+            // the store has been pointed at another file, which it reads afresh
+            if (!keyFile.getFileName().equals(fileName)) {
+                update(keyFile.getFileName());
+                return;
+            }
+            
+            long oldLength = length;
+            long oldModified = modified;
+            update(fileName);
+            
+            if ((modified != oldModified) || (length != oldLength)) {
+                try {
+                    keyFile.fileChanged(length > oldLength);
+                } catch (RuntimeException e) {
+                    debug.Debug.println(1, "Key file " + fileName + " could not be refreshed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -37,6 +37,7 @@ import java.security.Key;
 import java.lang.ClassNotFoundException;
 import java.lang.String;
 import java.util.Vector;
+import java.util.Arrays;
 
 /**
  * <p>Root class for all key handlers.</p>
@@ -45,6 +46,12 @@ import java.util.Vector;
  */
 public abstract class KeyHandler {
     
+    /** The priority of the key store when several are searched at once, lower numbers are preferred. */
+    private int priority = 0;
+    
+    /** How long a search of the key store is waited for when several are searched at once, in milliseconds, 0 to wait for it. */
+    private long lookupTimeout = 0;
+    
     /** Creates a new instance of KeyHandler */
     public KeyHandler() {
     }
@@ -61,6 +68,81 @@ public abstract class KeyHandler {
      */
     public abstract KeyData [] findKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException, ChecksumFailureException;
     
+    /**
+     * <p>Look for the keys matching a number of identifiers at once.</p>
+     * <p>Key stores that can answer several identifiers in one pass, for example by reading a keyring file only once, should override this 
+     * method. The default implementation calls findKeys once for each different identifier.</p>
+     * @param ids[] The key identifiers that specify the keys being looked for.
+     * @param parameters Any extra parameters needed, for example pass phrases for secret key stores etc, may be null.
+     * @return An array with an entry for each identifier, holding the keys found for it or NULL if no keys matching it could be found.
+     * @throws ChecksumFailureException If the key data fails a checksum (usually because the wrong passphrase was supplied).
+     * @throws KeyHandlerException if something went wrong.
+     */
+    public KeyData [][] findKeys(KeyIdentifier ids[], KeyHandlerParameters parameters) throws KeyHandlerException, ChecksumFailureException {
+        KeyData found[][] = new KeyData[ids.length][];
+        
+        for (int n = 0; n < ids.length; n++) {
+            
+            // the same identifier is often given more than once, eg when an address is on both the To and Cc lines
+            int same = n;
+            for (int cnt = 0; (cnt < n) && (same == n); cnt++) {
+                if ((ids[cnt].getClass() == ids[n].getClass()) && (Arrays.equals(ids[cnt].getDefaultID(), ids[n].getDefaultID())))
+                    same = cnt;
+            }
+            
+            if (same < n)
+                found[n] = found[same];
+            else 
+                found[n] = findKeys(ids[n], parameters);
+        }
+        
+        return found;
+    }
+    
+    /**
+     * <p>Might the key store hold keys matching an identifier?</p>
+     * <p>Callers searching a list of key stores ask this first and skip the stores that answer false, so a key that few stores 
+     * hold doesn't cost a search of every store. A store should only answer false when it can do so much more cheaply than a 
+     * search, for example from an index or a Bloom filter, and must never answer false for a key it holds.</p>
+     * <p>The default implementation always answers true.</p>
+     * @param id The key identifier that specifies the key being looked for.
+     * @return false if the store certainly holds no keys matching id.
+     */
+    public boolean mightHaveKeys(KeyIdentifier id) {
+        return true;
+    }
+    
+    /**
+     * <p>Set the priority of the key store.</p>
+     * <p>When a list of key stores is searched with a KeySourceResolver every store is asked at once. Keys found by a store 
+     * are only used once every store with a lower priority number has answered without finding any, or has timed out. Stores 
+     * with the same priority are equal, and the first of them to find the keys answers.</p>
+     * <p>Stores loaded with loadKeysourceList() are given their place in the list as their priority, unless the 
+     * configuration says otherwise. Stores created in code all have priority 0 until this is called.</p>
+     * @param p The priority, lower numbers are preferred.
+     */
+    public void setPriority(int p) {
+        priority = p;
+    }
+    
+    /** Return the priority of the key store, lower numbers are preferred. */
+    public int getPriority() {
+        return priority;
+    }
+    
+    /**
+     * <p>Set how long a KeySourceResolver waits for this key store to answer before going on without it.</p>
+     * @param timeout The time in milliseconds, 0 to always wait for the answer.
+     */
+    public void setLookupTimeout(long timeout) {
+        lookupTimeout = timeout;
+    }
+    
+    /** Return how long a KeySourceResolver waits for this key store, in milliseconds, 0 if it always waits. */
+    public long getLookupTimeout() {
+        return lookupTimeout;
+    }
+    
     /**
      * <p>Add a number of keys to the key store.</p>
      * <p>Stores a key in the key store with details specified by idDetails and parameters as necessary.</p>
@@ -144,7 +226,45 @@ public abstract class KeyHandler {
                     
                     
                     // TODO: Place special case initialisation here, before general cases
+                    if (o instanceof OpenPGPKeyring) {
+                        // keyrings may mark removed keys rather than rewriting the file
+                        if (properties.getSetting(prefix + n + ".appendonly", "false").compareTo("true")==0)
+                            ((OpenPGPKeyring)o).setAppendOnly(true);
+                    }
                     
+                    // order and patience when the key stores are searched together, see KeySourceResolver. Unless
+                    // told otherwise the stores are ranked by their place in the list, as when they were searched in turn
+                    ((KeyHandler)o).setPriority(n);
+                    
+                    String priority = properties.getSetting(prefix + n + ".priority", "");
+                    if (priority.compareTo("")!=0)
+                        ((KeyHandler)o).setPriority(Integer.parseInt(priority));
+                    
+                    String timeout = properties.getSetting(prefix + n + ".lookuptimeout", "");
+                    if (timeout.compareTo("")!=0)
+                        ((KeyHandler)o).setLookupTimeout(Long.parseLong(timeout));
+                    
+                    if (o instanceof RemoteKeySource) {
+                        // timeouts and failure handling for key sources reached over the network
+                        KeySourceCircuitBreaker breaker = ((RemoteKeySource)o).getCircuitBreaker();
+                        
+                        String setting = properties.getSetting(prefix + n + ".connecttimeout", "");
+                        if (setting.compareTo("")!=0)
+                            breaker.setConnectTimeout(Integer.parseInt(setting));
+                        
+                        setting = properties.getSetting(prefix + n + ".readtimeout", "");
+                        if (setting.compareTo("")!=0)
+                            breaker.setReadTimeout(Integer.parseInt(setting));
+                        
+                        setting = properties.getSetting(prefix + n + ".failurethreshold", "");
+                        if (setting.compareTo("")!=0)
+                            breaker.setFailureThreshold(Integer.parseInt(setting));
+                        
+                        // seconds before a source that keeps failing is tried again
+                        setting = properties.getSetting(prefix + n + ".retrydelay", "");
+                        if (setting.compareTo("")!=0)
+                            breaker.setRetryDelay(Long.parseLong(setting) * 1000);
+                    }
                     
                     // general cases
                     if (o instanceof KeyFile) {
@@ -158,6 +278,9 @@ public abstract class KeyHandler {
                         
                         kf.setFile(filename, null);
                         
+                        // keep in memory indexes up to date when the file is changed elsewhere
+                        KeyFileWatcher.getDefaultWatcher().watch(kf);
+                        
                         v.add(o);
                         
                     } else if (o instanceof KeyServer) {
@@ -175,6 +298,11 @@ public abstract class KeyHandler {
                         
                         ks.setServer(address, Integer.parseInt(portstr), null);
                         
+                        // keys that weren't found aren't asked for again for this many seconds
+                        String ttl = properties.getSetting(prefix + n + ".missttl", "");
+                        if (ttl.compareTo("")!=0)
+                            ks.setMissTTL(Long.parseLong(ttl) * 1000);
+                        
                         v.add(o);
                         
                     } else {
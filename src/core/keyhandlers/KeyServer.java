@@ -31,6 +31,7 @@
 
 package core.keyhandlers;
 import core.exceptions.KeyHandlerException;
+import java.util.*;
 
 /**
  * <p>A root class for all key handlers implemented using a remote key server.</p>
@@ -39,8 +40,20 @@ import core.exceptions.KeyHandlerException;
  * <p>Note, if the server you're connecting to requires a username / password login you should provide those
  * in the parameters of the constructor and store them until needed. This will require less work on your 
  * part to integrate the new server with the system.</p>
+ * <p>Most addresses mail is sent to have no key, and asking a server about each of them every time is slow. So a key 
+ * server remembers the identifiers it recently failed to find, and mightHaveKeys() answers false for them until the miss 
+ * TTL has passed. Subclasses record the result of each lookup with noteLookup().</p>
  */
-public abstract class KeyServer extends KeyHandler {
+public abstract class KeyServer extends KeyHandler implements RemoteKeySource {
+    
+    /** The default time a KeySourceResolver waits for a server to answer, in milliseconds. */
+    public static final long DEFAULT_LOOKUP_TIMEOUT = 10 * 1000;
+    
+    /** The default time for which an identifier that wasn't found is not asked for again, in milliseconds. */
+    public static final long DEFAULT_MISS_TTL = 5 * 60 * 1000;
+    
+    /** The most misses remembered, older ones are forgotten once there are more than this. */
+    private static final int MAX_MISSES = 4096;
 
     /** Server address of the key store. */
     private String serverAddress;
@@ -51,8 +64,18 @@ public abstract class KeyServer extends KeyHandler {
     /** Any extra information needed to connect to the server. */
     private KeyHandlerParameters serverParameters;
     
+    /** How long a miss is remembered for, in milliseconds. */
+    private long missTTL = DEFAULT_MISS_TTL;
+    
+    /** Identifiers recently not found on the server, mapped to the Long time at which they weren't found. */
+    private Hashtable misses = new Hashtable();
+    
+    /** Timeouts and failure handling for connections to the server. */
+    private KeySourceCircuitBreaker breaker = new KeySourceCircuitBreaker(this);
+    
     /** Creates a new instance of KeyServer */
     public KeyServer() {
+        setLookupTimeout(DEFAULT_LOOKUP_TIMEOUT);
     }
     
     /** Creates a new instance of KeyServer.
@@ -61,6 +84,7 @@ public abstract class KeyServer extends KeyHandler {
      * @param parameters Any extra parameters needed (for example a pass phrase), may be null.
      */
     public KeyServer(String address, int port, KeyHandlerParameters parameters) {
+        setLookupTimeout(DEFAULT_LOOKUP_TIMEOUT);
         setServer(address, port, parameters);
     }
 
@@ -99,11 +123,124 @@ public abstract class KeyServer extends KeyHandler {
         return serverPort;
     }
     
+    /**
+     * <p>Return the circuit breaker of the server.</p>
+     * <p>Subclasses should make their connections to the server through it, see KeySourceCircuitBreaker.</p>
+     */
+    public KeySourceCircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+    
     /** Return any server parameters as registered by setServer. */
     public KeyHandlerParameters getServerParameters() {
         return serverParameters;
     }
     
+    /**
+     * <p>Set how long an identifier that wasn't found on the server is remembered, 0 to always ask the server.</p>
+     * @param ttl The time in milliseconds.
+     */
+    public void setMissTTL(long ttl) {
+        missTTL = ttl;
+        
+        if (ttl <= 0)
+            clearMisses();
+    }
+    
+    /** Return how long an identifier that wasn't found on the server is remembered, in milliseconds. */
+    public long getMissTTL() {
+        return missTTL;
+    }
+    
+    /**
+     * <p>Forget the identifiers that weren't found, for example because keys have just been sent to the server.</p>
+     */
+    public void clearMisses() {
+        misses.clear();
+    }
+    
+    /**
+     * <p>Might the server hold keys matching an identifier?</p>
+     * <p>Answers false if the identifier was looked for and not found within the miss TTL.</p>
+     */
+    public boolean mightHaveKeys(KeyIdentifier id) {
+        if (missTTL <= 0)
+            return true;
+        
+        try {
+            String key = missKey(id);
+            
+            Long missed = (Long)misses.get(key);
+            if (missed == null)
+                return true;
+            
+            if (System.currentTimeMillis() - missed.longValue() < missTTL)
+                return false;
+            
+            misses.remove(key);
+            
+        } catch (KeyHandlerException e) {
+            // searching will report the problem
+        }
+        
+        return true;
+    }
+    
+    /**
+     * <p>Record the result of a lookup on the server.</p>
+     * <p>Subclasses should call this from findKeys() once the server has answered. Lookups that failed, for example because 
+     * the server couldn't be reached, shouldn't be recorded.</p>
+     * @param id The identifier looked for.
+     * @param found The keys found, null or empty if there were none.
+     */
+    protected void noteLookup(KeyIdentifier id, KeyData found[]) {
+        if (missTTL <= 0)
+            return;
+        
+        try {
+            String key = missKey(id);
+            
+            if ((found != null) && (found.length > 0)) {
+                misses.remove(key);
+                return;
+            }
+            
+            long now = System.currentTimeMillis();
+            
+            if (misses.size() >= MAX_MISSES) {
+                synchronized (misses) {
+                    // forget the misses that have expired, or all of them if none have
+                    for (Iterator i = misses.values().iterator(); i.hasNext(); ) {
+                        if (now - ((Long)i.next()).longValue() >= missTTL)
+                            i.remove();
+                    }
+                    
+                    if (misses.size() >= MAX_MISSES)
+                        misses.clear();
+                }
+            }
+            
+            misses.put(key, new Long(now));
+            
+        } catch (KeyHandlerException e) {
+            // not remembered
+        }
+    }
+    
+    /**
+     * <p>Return the key a miss is remembered under.</p>
+     * <p>Identifiers are matched exactly, as lookups match user IDs exactly.</p>
+     */
+    private String missKey(KeyIdentifier id) throws KeyHandlerException {
+        byte data[] = id.getDefaultID();
+        
+        char key[] = new char[data.length];
+        for (int n = 0; n < data.length; n++)
+            key[n] = (char)(data[n] & 0xFF);
+        
+        return id.getClass().getName() + ":" + new String(key);
+    }
+    
     /**
      * <p>Override toString to allow the Key handler to be rendered nicely in a swing list box.</p>
      */
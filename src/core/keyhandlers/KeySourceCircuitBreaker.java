@@ -0,0 +1,302 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.keyhandlers;
+import core.exceptions.KeyHandlerException;
+import java.lang.reflect.Method;
+import java.io.*;
+import java.net.*;
+
+/**
+ * <p>Timeouts and failure handling for a key source reached over the network.</p>
+ * <p>Connections made through the breaker have connect and read timeouts, so a server that is down costs seconds rather than 
+ * however long the operating system takes to give up. After a number of failures in a row the breaker opens, and requests 
+ * to the key source fail at once without connecting. Once the retry delay has passed the breaker is half open, a single 
+ * request is let through as a probe, and the breaker closes again if it succeeds or stays open for another retry delay 
+ * if it fails.</p>
+ * <p>Each request should be made like this, so that every request allowed through is counted as a success or a failure:</p>
+ * <pre>
+ * long ticket = breaker.begin();
+ * boolean ok = false;
+ * try {
+ *     InputStream in = breaker.openStream(url);
+ *     ...
+ *     ok = true;
+ * } finally {
+ *     breaker.end(ticket, ok);
+ * }
+ * </pre>
+ * <p>The ticket returned by begin() tells end() which opening of the breaker a request belongs to. A slow request started 
+ * before the breaker opened is still counted when it ends, but can't change the state of the breaker, so only the probe 
+ * decides whether a half open breaker closes.</p>
+ * <p>The breaker keeps counts of requests, failures and rejections, which can be read to see how a key source is doing.</p>
+ * <p>Connect and read timeouts need Java 5 or later, earlier versions wait for as long as the operating system does. A 
+ * KeySourceResolver still gives up on the key source after its lookup timeout.</p>
+ */
+public class KeySourceCircuitBreaker {
+    
+    /** Requests are let through. */
+    public static final int CLOSED = 0;
+    /** Requests fail without connecting. */
+    public static final int OPEN = 1;
+    /** A single request is let through to see if the key source is working again. */
+    public static final int HALF_OPEN = 2;
+    
+    /** The default number of failures in a row after which the breaker opens. */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    
+    /** The default time the breaker stays open before a request is let through, in milliseconds. */
+    public static final long DEFAULT_RETRY_DELAY = 60 * 1000;
+    
+    /** The default connect timeout, in milliseconds. */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5 * 1000;
+    
+    /** The default read timeout, in milliseconds. */
+    public static final int DEFAULT_READ_TIMEOUT = 10 * 1000;
+    
+    /** The key source, used to name it in messages. */
+    private Object source;
+    
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    
+    /** The state of the breaker, and when it last opened. */
+    private int state = CLOSED;
+    private long openedAt;
+    
+    /** Set while the probe request of a half open breaker is being made. */
+    private boolean probing;
+    
+    /** The number of times the breaker has opened, handed out by begin() so that end() can spot requests started before the last opening. */
+    private long generation;
+    
+    /** Failures since the last success. */
+    private int consecutiveFailures;
+    
+    /** Counts kept for metrics. */
+    private long requests;
+    private long failures;
+    private long rejected;
+    private long timesOpened;
+    
+    /**
+     * <p>Creates a new breaker.</p>
+     * @param keySource The key source the breaker is for, this is only used to name it in messages.
+     */
+    public KeySourceCircuitBreaker(Object keySource) {
+        source = keySource;
+    }
+    
+    /** Set the number of failures in a row after which the breaker opens, values less than 1 are treated as 1. */
+    public synchronized void setFailureThreshold(int threshold) {
+        failureThreshold = (threshold < 1) ? 1 : threshold;
+    }
+    
+    /** Return the number of failures in a row after which the breaker opens. */
+    public synchronized int getFailureThreshold() {
+        return failureThreshold;
+    }
+    
+    /** Set the time the breaker stays open before a request is let through, in milliseconds. */
+    public synchronized void setRetryDelay(long delay) {
+        retryDelay = delay;
+    }
+    
+    /** Return the time the breaker stays open before a request is let through, in milliseconds. */
+    public synchronized long getRetryDelay() {
+        return retryDelay;
+    }
+    
+    /** Set the connect timeout, in milliseconds, 0 to wait for as long as the operating system does. */
+    public synchronized void setConnectTimeout(int timeout) {
+        connectTimeout = timeout;
+    }
+    
+    /** Return the connect timeout, in milliseconds. */
+    public synchronized int getConnectTimeout() {
+        return connectTimeout;
+    }
+    
+    /** Set the read timeout, in milliseconds, 0 to wait for as long as it takes. */
+    public synchronized void setReadTimeout(int timeout) {
+        readTimeout = timeout;
+    }
+    
+    /** Return the read timeout, in milliseconds. */
+    public synchronized int getReadTimeout() {
+        return readTimeout;
+    }
+    
+    /**
+     * <p>Start a request to the key source.</p>
+     * <p>Every call that returns must be followed by a call to end().</p>
+     * @return the ticket to pass to end().
+     * @throws KeyHandlerException if the breaker is open, or is half open and the probe request is already being made.
+     */
+    public synchronized long begin() throws KeyHandlerException {
+        
+        if ((state == OPEN) && (System.currentTimeMillis() - openedAt >= retryDelay)) {
+            state = HALF_OPEN;
+            probing = false;
+        }
+        
+        if ((state == OPEN) || ((state == HALF_OPEN) && (probing))) {
+            rejected++;
+            
+            long wait = (openedAt + retryDelay - System.currentTimeMillis()) / 1000;
+            throw new KeyHandlerException(source + " is not being used after " + consecutiveFailures + " failures, retrying in " 
+                + ((wait < 0) ? 0 : wait) + "s.");
+        }
+        
+        if (state == HALF_OPEN)
+            probing = true;
+        
+        requests++;
+        
+        return generation;
+    }
+    
+    /**
+     * <p>Finish a request to the key source.</p>
+     * <p>Requests started before the breaker last opened are counted, but don't change its state.</p>
+     * @param ticket the ticket returned by begin().
+     * @param succeeded true if the key source answered, false if it couldn't be reached or failed to answer.
+     */
+    public synchronized void end(long ticket, boolean succeeded) {
+        
+        if (ticket != generation) {
+            if (!succeeded)
+                failures++;
+            
+            return;
+        }
+        
+        // the breaker hasn't opened since this request started, so if it isn't closed this is the probe
+        if (succeeded) {
+            if (state != CLOSED)
+                System.err.println(source + ": Working again, requests resumed.");
+            
+            state = CLOSED;
+            consecutiveFailures = 0;
+        } else {
+            failures++;
+            consecutiveFailures++;
+            
+            if ((state == HALF_OPEN) || ((state == CLOSED) && (consecutiveFailures >= failureThreshold))) {
+                if (state == CLOSED)
+                    System.err.println(source + ": " + consecutiveFailures + " failures in a row, requests stopped for " + (retryDelay / 1000) + "s.");
+                
+                state = OPEN;
+                openedAt = System.currentTimeMillis();
+                timesOpened++;
+                generation++;
+            }
+        }
+        
+        probing = false;
+    }
+    
+    /**
+     * <p>Open a connection to a URL with the breaker's timeouts.</p>
+     */
+    public URLConnection openConnection(URL url) throws IOException {
+        URLConnection conn = url.openConnection();
+        
+        setTimeout(conn, "setConnectTimeout", getConnectTimeout());
+        setTimeout(conn, "setReadTimeout", getReadTimeout());
+        
+        return conn;
+    }
+    
+    /**
+     * <p>Open a URL for reading with the breaker's timeouts.</p>
+     */
+    public InputStream openStream(URL url) throws IOException {
+        return openConnection(url).getInputStream();
+    }
+    
+    /** Set a timeout of a connection, if the Java version supports it. */
+    private static void setTimeout(URLConnection conn, String method, int timeout) {
+        try {
+            Method m = URLConnection.class.getMethod(method, new Class[] { Integer.TYPE });
+            m.invoke(conn, new Object[] { new Integer(timeout) });
+        } catch (Exception e) {
+            // not supported before Java 5
+        }
+    }
+    
+    /** Return the state of the breaker, CLOSED, OPEN or HALF_OPEN. */
+    public synchronized int getState() {
+        if ((state == OPEN) && (System.currentTimeMillis() - openedAt >= retryDelay))
+            return HALF_OPEN;
+        
+        return state;
+    }
+    
+    /** Return the number of requests let through. */
+    public synchronized long getRequests() {
+        return requests;
+    }
+    
+    /** Return the number of requests that failed. */
+    public synchronized long getFailures() {
+        return failures;
+    }
+    
+    /** Return the number of failures since the last success. */
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+    
+    /** Return the number of requests failed without connecting because the breaker was open. */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+    
+    /** Return the number of times the breaker has opened. */
+    public synchronized long getTimesOpened() {
+        return timesOpened;
+    }
+    
+    /**
+     * <p>Return a summary of the state and counts of the breaker.</p>
+     */
+    public String toString() {
+        final String states[] = { "closed", "open", "half open" };
+        
+        synchronized (this) {
+            return states[getState()] + ", " + requests + " requests, " + failures + " failures, " + rejected + " rejected, opened " 
+                + timesOpened + " times";
+        }
+    }
+}
@@ -0,0 +1,529 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.keyhandlers;
+import core.exceptions.ChecksumFailureException;
+import java.util.*;
+
+/**
+ * <p>Searches a list of key stores for keys, asking every store at once.</p>
+ * <p>Searching the stores one after the other means a slow key server in front of a local file delays every lookup. Instead 
+ * each store that might hold the keys (see KeyHandler.mightHaveKeys()) is searched on a thread of its own, and the resolver 
+ * takes the first authoritative answer: keys found by a store are used as soon as every store with a lower priority number 
+ * has answered without finding any. Stores loaded with KeyHandler.loadKeysourceList() are ranked by their place in the list 
+ * unless given a priority, so the answer is the same as searching them in order, but a slow store costs nothing once a store 
+ * before it has found the keys. Stores given the same priority are equal, and the fastest of them holding the key answers.</p>
+ * <p>A store that has not answered within its lookup timeout is given up on, and the lookup goes on without it. Its search 
+ * is left to finish in the background and the result dropped. Stores that fail are treated as not holding the keys.</p>
+ * <p>The searches are run by a pool of at most MAX_THREADS threads, further searches wait for a thread. While every thread 
+ * is busy, perhaps with servers that have stopped answering, searches of stores with no lookup timeout are run by the 
+ * caller, so local files are never held up behind them.</p>
+ * <p>Each answer records the store that gave it and how long it took.</p>
+ * @see KeyHandler#setPriority(int)
+ * @see KeyHandler#setLookupTimeout(long)
+ */
+public class KeySourceResolver {
+    
+    /** The most search threads run at once. */
+    public static final int MAX_THREADS = 16;
+    
+    /** How long a search thread waits for more work before it stops, in milliseconds. */
+    private static final long IDLE_TIME = 60 * 1000;
+    
+    /** Searches waiting for a thread. */
+    private static LinkedList work = new LinkedList();
+    
+    /** Number of search threads waiting for work, number running, and the number of the next thread started. */
+    private static int idleThreads = 0;
+    private static int liveThreads = 0;
+    private static int threadCount = 0;
+    
+    /**
+     * <p>The result of looking for the keys matching an identifier.</p>
+     */
+    public static class Answer {
+        
+        private KeyData keys[];
+        private KeyHandler source;
+        private long time;
+        
+        Answer(KeyData found[], KeyHandler store, long elapsed) {
+            keys = found;
+            source = store;
+            time = elapsed;
+        }
+        
+        /** Return the keys found, or null if none were. */
+        public KeyData[] getKeys() {
+            return keys;
+        }
+        
+        /** Return the key store the keys were found in, or null if none were. */
+        public KeyHandler getSource() {
+            return source;
+        }
+        
+        /** Return how long the lookup took, in milliseconds. */
+        public long getTime() {
+            return time;
+        }
+    }
+    
+    /** The key stores. */
+    private KeyHandler sources[];
+    
+    /** 
+     * <p>Creates a new resolver for a list of key stores.</p>
+     * @param stores The key stores, as returned by KeyHandler.loadKeysourceList(). May be null.
+     */
+    public KeySourceResolver(KeyHandler stores[]) {
+        sources = (stores == null) ? new KeyHandler[0] : stores;
+    }
+    
+    /**
+     * <p>Look for the keys matching an identifier in every key store.</p>
+     * @param id The key identifier that specifies the key being looked for.
+     * @param parameters Any extra parameters passed to the key stores, may be null.
+     * @return The answer, holding null keys if none were found.
+     * @throws ChecksumFailureException if no keys were found and a store reported a checksum failure (usually because the wrong passphrase was supplied).
+     */
+    public Answer resolve(KeyIdentifier id, KeyHandlerParameters parameters) throws ChecksumFailureException {
+        KeyIdentifier ids[] = { id };
+        Query query = new Query(ids, parameters);
+        
+        query.run();
+        
+        if ((query.answers[0].getKeys() == null) && (query.checksumFailure != null))
+            throw query.checksumFailure;
+        
+        return query.answers[0];
+    }
+    
+    /**
+     * <p>Look for the keys matching a number of identifiers in every key store.</p>
+     * <p>Each store is asked for all the identifiers it might hold with a single batch lookup. If a batch lookup fails the 
+     * identifiers are looked for one at a time instead, so one bad identifier does not hide the others.</p>
+     * @param ids[] The key identifiers that specify the keys being looked for.
+     * @param parameters Any extra parameters passed to the key stores, may be null.
+     * @return An array with an answer for each identifier, holding null keys for those that weren't found.
+     */
+    public Answer[] resolve(KeyIdentifier ids[], KeyHandlerParameters parameters) {
+        Query query = new Query(ids, parameters);
+        
+        query.run();
+        
+        return query.answers;
+    }
+    
+    /**
+     * <p>Hand a search to a thread, starting a new thread if none are waiting and there are fewer than MAX_THREADS.</p>
+     */
+    private static void submit(Runnable search) {
+        synchronized (work) {
+            work.addLast(search);
+            
+            if ((work.size() > idleThreads) && (liveThreads < MAX_THREADS)) {
+                Thread t = new Thread("KeySourceResolver-" + (threadCount++)) {
+                    public void run() {
+                        try {
+                            searchLoop();
+                        } finally {
+                            synchronized (work) {
+                                liveThreads--;
+                            }
+                        }
+                    }
+                };
+                t.setDaemon(true);
+                liveThreads++;
+                t.start();
+            } else {
+                work.notify();
+            }
+        }
+    }
+    
+    /**
+     * <p>Take back a search that is waiting for a thread, if every thread is busy.</p>
+     * @return true if the search was taken back, and should be run by the caller.
+     */
+    private static boolean takeBack(Runnable search) {
+        synchronized (work) {
+            if ((liveThreads < MAX_THREADS) || (work.size() <= idleThreads))
+                return false;
+            
+            return work.remove(search);
+        }
+    }
+    
+    /** The main loop of a search thread, stops once it has had nothing to do for a while. */
+    private static void searchLoop() {
+        while (true) {
+            Runnable search = null;
+            
+            synchronized (work) {
+                idleThreads++;
+                
+                try {
+                    long until = System.currentTimeMillis() + IDLE_TIME;
+                    long left = IDLE_TIME;
+                    while ((work.size() == 0) && (left > 0)) {
+                        try {
+                            work.wait(left);
+                        } catch (InterruptedException e) {
+                            // keep waiting
+                        }
+                        left = until - System.currentTimeMillis();
+                    }
+                } finally {
+                    idleThreads--;
+                }
+                
+                if (work.size() == 0)
+                    return;
+                
+                search = (Runnable)work.removeFirst();
+            }
+            
+            search.run();
+        }
+    }
+    
+    /**
+     * <p>A search of one key store for some of the identifiers of a query.</p>
+     */
+    private class Lookup implements Runnable {
+        
+        Query query;
+        KeyHandler source;
+        
+        /** The identifiers searched for, as indexes into the query's identifiers. */
+        int indexes[];
+        
+        /** The time by which the store must answer, 0 if there is no limit. */
+        long expires;
+        
+        /** Set once the store has answered or been given up on. */
+        boolean finished;
+        
+        /** The keys found for each identifier searched for. */
+        KeyData found[][];
+        
+        /** The order in which the lookups of the query finished. */
+        int finishOrder;
+        
+        Lookup(Query q, KeyHandler store, int ids[]) {
+            query = q;
+            source = store;
+            indexes = ids;
+            
+            if (source.getLookupTimeout() > 0)
+                expires = query.start + source.getLookupTimeout();
+        }
+        
+        /** Does the lookup search for an identifier of the query? */
+        boolean covers(int index) {
+            for (int n = 0; n < indexes.length; n++) {
+                if (indexes[n] == index)
+                    return true;
+            }
+            
+            return false;
+        }
+        
+        /** Return the keys found for an identifier of the query, or null. */
+        KeyData[] getKeys(int index) {
+            if (found == null)
+                return null;
+            
+            for (int n = 0; n < indexes.length; n++) {
+                if (indexes[n] == index)
+                    return found[n];
+            }
+            
+            return null;
+        }
+        
+        public void run() {
+            synchronized (query) {
+                if (finished)
+                    return; // given up on while waiting for a thread
+            }
+            
+            KeyData keys[][] = null;
+            ChecksumFailureException checksumFailure = null;
+            
+            KeyIdentifier lookup[] = new KeyIdentifier[indexes.length];
+            for (int n = 0; n < lookup.length; n++)
+                lookup[n] = query.ids[indexes[n]];
+            
+            try {
+                if (lookup.length == 1) {
+                    keys = new KeyData[1][];
+                    keys[0] = source.findKeys(lookup[0], query.parameters);
+                } else {
+                    keys = source.findKeys(lookup, query.parameters);
+                }
+            } catch (ChecksumFailureException e) {
+                checksumFailure = e;
+            } catch (Exception e) {
+                if (lookup.length > 1) {
+                    // look for the keys individually instead, something going wrong for one of them is treated as not found
+                    keys = new KeyData[lookup.length][];
+                    for (int n = 0; n < lookup.length; n++) {
+                        try {
+                            keys[n] = source.findKeys(lookup[n], query.parameters);
+                        } catch (Exception e2) {
+                            keys[n] = null;
+                        }
+                    }
+                }
+            } catch (Error e) {
+                // passed to the caller if it is still waiting, otherwise left to kill this thread
+                if (!query.failed(this, e))
+                    throw e;
+                
+                return;
+            }
+            
+            query.finished(this, keys, checksumFailure);
+        }
+    }
+    
+    /**
+     * <p>A search of every key store for a number of identifiers.</p>
+     */
+    private class Query {
+        
+        KeyIdentifier ids[];
+        KeyHandlerParameters parameters;
+        
+        /** The time the query started. */
+        long start;
+        
+        /** The searches of the key stores. */
+        Lookup lookups[];
+        
+        /** The answer for each identifier, null until it is known. */
+        Answer answers[];
+        
+        /** The first checksum failure reported by a store. */
+        ChecksumFailureException checksumFailure;
+        
+        /** The first error thrown by a store, this is rethrown to the caller. */
+        Error error;
+        
+        /** Set once the caller has stopped waiting for answers. */
+        boolean done;
+        
+        /** The number of lookups that have finished. */
+        int finishedCount;
+        
+        Query(KeyIdentifier identifiers[], KeyHandlerParameters params) {
+            ids = identifiers;
+            parameters = params;
+            answers = new Answer[ids.length];
+        }
+        
+        /**
+         * <p>Start a search of every store that might hold the keys and wait for the answers.</p>
+         */
+        void run() {
+            start = System.currentTimeMillis();
+            
+            Vector v = new Vector();
+            for (int n = 0; n < sources.length; n++) {
+                
+                // only ask for the identifiers the store might hold
+                Vector wanted = new Vector();
+                for (int cnt = 0; cnt < ids.length; cnt++) {
+                    if (sources[n].mightHaveKeys(ids[cnt]))
+                        wanted.add(new Integer(cnt));
+                }
+                
+                if (wanted.size() == 0)
+                    continue;
+                
+                int indexes[] = new int[wanted.size()];
+                for (int cnt = 0; cnt < indexes.length; cnt++)
+                    indexes[cnt] = ((Integer)wanted.elementAt(cnt)).intValue();
+                
+                v.add(new Lookup(this, sources[n], indexes));
+            }
+            
+            lookups = new Lookup[v.size()];
+            v.copyInto(lookups);
+            
+            if ((lookups.length == 1) && (lookups[0].expires == 0)) {
+                // nothing to wait for, so no need for another thread
+                lookups[0].run();
+            } else {
+                for (int n = 0; n < lookups.length; n++)
+                    submit(lookups[n]);
+                
+                // if every thread is busy, don't leave stores without a timeout waiting behind them
+                for (int n = 0; n < lookups.length; n++) {
+                    if ((lookups[n].expires == 0) && (takeBack(lookups[n])))
+                        lookups[n].run();
+                }
+            }
+            
+            synchronized (this) {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    
+                    // give up on stores that have run out of time
+                    long wake = 0;
+                    for (int n = 0; n < lookups.length; n++) {
+                        if ((lookups[n].finished) || (lookups[n].expires == 0))
+                            continue;
+                        
+                        if (lookups[n].expires <= now)
+                            lookups[n].finished = true;
+                        else if ((wake == 0) || (lookups[n].expires < wake))
+                            wake = lookups[n].expires;
+                    }
+                    
+                    if ((error != null) || (settle(now))) {
+                        done = true;
+                        break;
+                    }
+                    
+                    try {
+                        if (wake == 0)
+                            wait();
+                        else
+                            wait(wake - now);
+                    } catch (InterruptedException e) {
+                        // keep waiting
+                    }
+                }
+            }
+            
+            if (error != null)
+                throw error;
+        }
+        
+        /**
+         * <p>Called by a lookup when the store has thrown an Error, such as running out of memory.</p>
+         * <p>The store is treated as having failed, and the error is rethrown to the caller.</p>
+         * @return false if the lookup had already been given up on, so the error can't be passed to the caller.
+         */
+        synchronized boolean failed(Lookup lookup, Error e) {
+            if (done)
+                return false;
+            
+            if (!lookup.finished) {
+                lookup.finished = true;
+                lookup.finishOrder = finishedCount++;
+            }
+            
+            if (error == null)
+                error = e;
+            
+            notifyAll();
+            return true;
+        }
+        
+        /**
+         * <p>Called by a lookup when the store has answered.</p>
+         */
+        synchronized void finished(Lookup lookup, KeyData keys[][], ChecksumFailureException failure) {
+            if (lookup.finished)
+                return; // given up on
+            
+            lookup.found = keys;
+            lookup.finished = true;
+            lookup.finishOrder = finishedCount++;
+            
+            if ((failure != null) && (checksumFailure == null))
+                checksumFailure = failure;
+            
+            notifyAll();
+        }
+        
+        /**
+         * <p>Work out the answers that are known.</p>
+         * <p>An identifier is answered by the store with the lowest priority number that found keys for it, the first to 
+         * finish if there are several, once no store with a lower priority number is still searching for it. If every store 
+         * searching for it has finished without finding keys it has no keys.</p>
+         * @return true if every identifier has been answered.
+         */
+        private boolean settle(long now) {
+            boolean done = true;
+            
+            for (int n = 0; n < ids.length; n++) {
+                if (answers[n] != null)
+                    continue;
+                
+                Lookup best = null;
+                boolean searching = false;
+                for (int cnt = 0; cnt < lookups.length; cnt++) {
+                    Lookup lookup = lookups[cnt];
+                    if (!lookup.covers(n))
+                        continue;
+                    
+                    if (!lookup.finished) {
+                        searching = true;
+                    } else if (lookup.getKeys(n) != null) {
+                        if ((best == null) || (lookup.source.getPriority() < best.source.getPriority()) 
+                            || ((lookup.source.getPriority() == best.source.getPriority()) && (lookup.finishOrder < best.finishOrder)))
+                            best = lookup;
+                    }
+                }
+                
+                if (best != null) {
+                    // a store that is still searching may be preferred
+                    for (int cnt = 0; cnt < lookups.length; cnt++) {
+                        if ((!lookups[cnt].finished) && (lookups[cnt].covers(n)) 
+                            && (lookups[cnt].source.getPriority() < best.source.getPriority()))
+                            best = null;
+                        
+                        if (best == null)
+                            break;
+                    }
+                    
+                    if (best != null) {
+                        answers[n] = new Answer(best.getKeys(n), best.source, now - start);
+                        continue;
+                    }
+                } else if (!searching) {
+                    answers[n] = new Answer(null, null, now - start);
+                    continue;
+                }
+                
+                done = false;
+            }
+            
+            return done;
+        }
+    }
+}
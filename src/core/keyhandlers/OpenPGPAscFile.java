@@ -58,15 +58,22 @@ public abstract class OpenPGPAscFile extends OpenPGPKeyring {
         super(filename, parameters);
     }
 
+    /**
+     * <p>ASCII armored key files are small and have no fixed packet offsets, so they are not indexed.</p>
+     */
+    protected boolean isIndexed() {
+        return false;
+    }
+    
     /**
      * <p>A quick method used by findKeys to simplify the reading of data from other sources.</p>
      */
-    public KeyData[] findKeys(InputStream stream, KeyIdentifier id, KeyHandlerParameters parameters) throws ChecksumFailureException, KeyHandlerException {
+    public KeyData[][] findKeys(InputStream stream, KeyIdentifier ids[], KeyHandlerParameters parameters) throws ChecksumFailureException, KeyHandlerException {
      
         try {
             
             // delegate decoding to superclass
-            return super.findKeys(new ByteArrayInputStream(readAsciiArmoredKey(stream)), id, parameters);
+            return super.findKeys(new ByteArrayInputStream(readAsciiArmoredKey(stream)), ids, parameters);
             
         } catch (Exception e) {
             throw new KeyHandlerException(e.getMessage());
@@ -96,32 +96,44 @@ public class OpenPGPHTTPPublicKeyServer extends OpenPGPHTTPKeyServer {
             String querystring = new String("keytext=" + URLEncoder.encode(out.toString(), "UTF-8"));
 
             // try sending it off
-            URL query = new URL("http", getServerAddress(), getServerPort(), serverpath + "add");
-            HttpURLConnection conn = (HttpURLConnection)query.openConnection();
-            conn.setDoOutput(true);
+            KeySourceCircuitBreaker breaker = getCircuitBreaker();
+            long ticket = breaker.begin();
+            boolean answered = false;
             
-            conn.setRequestMethod("POST");
-            
-            OutputStream connOut = conn.getOutputStream();
-            connOut.write(querystring.getBytes());
-            connOut.close();
-            
-            // connect & get the result of the query.
-            conn.connect();
-            
-            if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                
-                // parse response for success 
-                
-                // TODO: Currently does not return a success code if key was added / replaced / whatever. 
-                
-                
+            try {
+                URL query = new URL("http", getServerAddress(), getServerPort(), serverpath + "add");
+                HttpURLConnection conn = (HttpURLConnection)breaker.openConnection(query);
+                conn.setDoOutput(true);
+
+                conn.setRequestMethod("POST");
+
+                OutputStream connOut = conn.getOutputStream();
+                connOut.write(querystring.getBytes());
+                connOut.close();
+
+                // connect & get the result of the query.
+                conn.connect();
                 
-            } else {
-                throw new KeyHandlerException("HTTP Connection to " + getServerAddress() + ":" + getServerPort() + " failed with code " + conn.getResponseCode() + "\r\n\t" + conn.getResponseMessage());
-            }
+                int response = conn.getResponseCode();
+                answered = (response < HttpURLConnection.HTTP_INTERNAL_ERROR);
 
-            conn.disconnect();  
+                if (response == HttpURLConnection.HTTP_OK) {
+
+                    // parse response for success 
+
+                    // TODO: Currently does not return a success code if key was added / replaced / whatever. 
+
+                    // the keys sent may have been missing before
+                    clearMisses();
+
+                } else {
+                    throw new KeyHandlerException("HTTP Connection to " + getServerAddress() + ":" + getServerPort() + " failed with code " + response + "\r\n\t" + conn.getResponseMessage());
+                }
+
+                conn.disconnect();  
+            } finally {
+                breaker.end(ticket, answered);
+            }
         
         } catch (Exception e) {    
             throw new KeyHandlerException(e.getMessage());
@@ -168,26 +180,44 @@ public class OpenPGPHTTPPublicKeyServer extends OpenPGPHTTPKeyServer {
                         searchid += Integer.toHexString(id.getDefaultID()[cnt] & 0xFF);
                 }
 
-                // lookup?op=get&search= url encoded key id
-                URL query = new URL("http", getServerAddress(), getServerPort(), serverpath + "lookup?op=get&search=" + URLEncoder.encode(searchid, "UTF-8"));
-                HttpURLConnection conn = (HttpURLConnection)query.openConnection();
-                conn.connect();
+                // fails at once if the server has been failing
+                KeySourceCircuitBreaker breaker = getCircuitBreaker();
+                long ticket = breaker.begin();
+                boolean answered = false;
+                
+                try {
+                    // lookup?op=get&search= url encoded key id
+                    URL query = new URL("http", getServerAddress(), getServerPort(), serverpath + "lookup?op=get&search=" + URLEncoder.encode(searchid, "UTF-8"));
+                    HttpURLConnection conn = (HttpURLConnection)breaker.openConnection(query);
+                    conn.connect();
 
-                // read result and parse (quick and dirty method which uses they code in the KeyFile branch.)
-                if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                    OpenPGPAscPublicFile tmp = new OpenPGPAscPublicFile();
-                    KeyData [] keydata = tmp.findKeys(conn.getInputStream(), id, null);
+                    // read result and parse (quick and dirty method which uses they code in the KeyFile branch.)
+                    int response = conn.getResponseCode();
+                    if (response == HttpURLConnection.HTTP_OK) {
+                        OpenPGPAscPublicFile tmp = new OpenPGPAscPublicFile();
+                        KeyData [] keydata = tmp.findKeys(conn.getInputStream(), id, null);
+                        answered = true;
 
-                    if (keydata!=null) {
-                        for (int n = 0; n < keydata.length; n++) {
-                            keys.add(keydata[n]);
+                        if (keydata!=null) {
+                            for (int n = 0; n < keydata.length; n++) {
+                                keys.add(keydata[n]);
+                            }
                         }
+                    } else if (response == HttpURLConnection.HTTP_NOT_FOUND) {
+                        // no keys match, this is remembered as a miss below
+                        answered = true;
+                        
+                    } else {
+                        // the server is up if it isn't reporting an error of its own
+                        answered = (response < HttpURLConnection.HTTP_INTERNAL_ERROR);
+                        
+                        throw new KeyHandlerException("HTTP Connection to " + getServerAddress() + ":" + getServerPort() + " failed with code " + response + "\r\n\t" + conn.getResponseMessage());
                     }
-                } else {
-                    throw new KeyHandlerException("HTTP Connection to " + getServerAddress() + ":" + getServerPort() + " failed with code " + conn.getResponseCode() + "\r\n\t" + conn.getResponseMessage());
+
+                    conn.disconnect();
+                } finally {
+                    breaker.end(ticket, answered);
                 }
-                
-                conn.disconnect();
 
             } else {
                 throw new KeyHandlerException("Unrecognised key identifier given");
@@ -204,9 +234,11 @@ public class OpenPGPHTTPPublicKeyServer extends OpenPGPHTTPKeyServer {
                 keydata[n] = (OpenPGPKeyData)keys.get(n);
             }
         
+            noteLookup(id, keydata);
             return keydata;    
         } 
         
+        noteLookup(id, null);
         return null;
     }
     
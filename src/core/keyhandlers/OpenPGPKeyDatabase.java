@@ -0,0 +1,1290 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.keyhandlers;
+import core.algorithmhandlers.openpgp.*;
+import core.algorithmhandlers.openpgp.packets.*;
+import core.keyhandlers.identifiers.*;
+import core.keyhandlers.keydata.*;
+import core.keyhandlers.parameters.*;
+import core.exceptions.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A key store kept in a single database file, for key sources holding a great many keys.</p>
+ * <p>Every key block (a primary key with its user IDs, signatures and subkeys) is stored as a record along with the key IDs, 
+ * fingerprints, user IDs and expiry time of its keys. When the database is opened only these descriptions are read, and 
+ * they are held in memory as indexes on key ID, fingerprint, user ID, email address and expiry time, so a lookup reads 
+ * only the blocks it needs however large the database grows.</p>
+ * <p>The database file is a log. Adding and removing keys appends a transaction of records followed by a commit record, 
+ * and the file is forced to disk before the indexes are changed. A transaction that was not completely written, for 
+ * example because the machine crashed, is rolled back when the database is next opened. Removed blocks stay in the file 
+ * until there are more dead bytes than live ones, when the database is compacted.</p>
+ * <p>Any number of threads may look up keys at once, and lookups carry on while keys are being added or removed.</p>
+ * <p>Database file format, all numbers big endian:</p>
+ * <pre>
+ * 8 bytes  Magic "SEPKDB01"
+ * records:
+ * 1 byte   Record type, 1 = key block, 2 = delete, 3 = commit
+ * 4 bytes  Length of the record body
+ * body:
+ *   key block: 8 bytes expiry time (0 if the primary key does not expire)
+ *              2 bytes key count, then for each key 8 bytes key ID, 1 byte fingerprint length and the fingerprint
+ *              2 bytes user ID count, then for each user ID 2 bytes length and the user ID
+ *              4 bytes block length, then the OpenPGP packets of the block
+ *   delete:    8 bytes offset of the key block record being deleted
+ *   commit:    8 bytes offset of the first record of the transaction, 8 bytes CRC32 of the transaction's records
+ * </pre>
+ */
+public abstract class OpenPGPKeyDatabase extends KeyFile {
+    
+    private static final byte MAGIC[] = {'S','E','P','K','D','B','0','1'};
+    
+    private static final int RECORD_BLOCK = 1;
+    private static final int RECORD_DELETE = 2;
+    private static final int RECORD_COMMIT = 3;
+    
+    /** Dead bytes below which the database is never compacted. */
+    private static final long COMPACTION_MINIMUM = 65536;
+    
+    /** A key ID that matches every key. */
+    private static final byte WILDCARD[] = {0,0,0,0,0,0,0,0};
+    
+    /** Parses key blocks and encodes new keys. */
+    private OpenPGPKeyring keyring;
+    
+    /** The open database file, or null. */
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private String openFileName;
+    
+    /** Where the next transaction will be written. */
+    private long fileLength;
+    private long liveBytes;
+    
+    /** The live key blocks, by the offset of their record. */
+    private Hashtable blocks;
+    
+    private Hashtable byKeyID;
+    private Hashtable byFingerprint;
+    private Hashtable byUserID;
+    private Hashtable byEmail;
+    private TreeMap byExpiry;
+    
+    /** The number of threads reading key blocks, the file is not swapped for a compacted one while this is above zero. */
+    private int readers = 0;
+    
+    /** Held while writing a transaction, there is only ever one writer. */
+    private Object writeLock = new Object();
+    
+    /** Creates a new instance of OpenPGPKeyDatabase */
+    protected OpenPGPKeyDatabase(OpenPGPKeyring parser) {
+        keyring = parser;
+    }
+    
+    /** Creates a new instance of OpenPGPKeyDatabase */
+    protected OpenPGPKeyDatabase(OpenPGPKeyring parser, String filename, KeyHandlerParameters parameters) {
+        super(filename, parameters);
+        keyring = parser;
+    }
+    
+    /** Return the keyring used to parse key blocks. */
+    protected OpenPGPKeyring getKeyring() {
+        return keyring;
+    }
+    
+    /**
+     * <p>Write the packets for a new key, as described by addKeys(), to a stream.</p>
+     */
+    protected abstract void writeKeys(OpenPGPPacketOutputStream out, KeyData[] key, KeyIdentifier[] idDetails, KeyHandlerParameters[] parameters) throws Exception;
+    
+    /**
+     * <p>Set the file to use, closing any database that is open.</p>
+     */
+    public void setFile(String filename, KeyHandlerParameters parameters) {
+        close();
+        super.setFile(filename, parameters);
+    }
+    
+    /**
+     * <p>Close the database if another program has changed the file, so that it is read again by the next lookup.</p>
+     * <p>Transactions written by this object leave the file the length it expects, so they are ignored.</p>
+     */
+    public void fileChanged(boolean appended) {
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (file == null)
+                    return;
+                
+                try {
+                    if ((new File(getFileName()).length() == fileLength) && (channel.size() == fileLength))
+                        return;
+                } catch (IOException e) {
+                    // closed below
+                }
+                
+                close();
+            }
+        }
+    }
+    
+    /**
+     * <p>Close the database file.</p>
+     * <p>The database is opened again by the next lookup.</p>
+     */
+    public synchronized void close() {
+        try {
+            while (readers > 0)
+                wait();
+            
+            if (file != null)
+                file.close();
+        } catch (Exception e) {
+            // nothing is written outside a transaction, so nothing can be lost
+        }
+        
+        file = null;
+        channel = null;
+        openFileName = null;
+        blocks = null;
+    }
+    
+    /**
+     * <p>Look for a key.</p>
+     * <p>Looks for a key in the key store as specified by the key identifier.</p>
+     * @param id The key identifier that specifies the key being looked for. 
+     * @param parameters Any extra parameters needed, for example pass phrases for secret key stores etc, may be null.
+     * @return An array of KeyData objects that contain (among other things) the key material, or NULL if no keys matching id could be found.
+     * @throws ChecksumFailureException If the key data fails a checksum (usually because the wrong passphrase was supplied).
+     * @throws KeyHandlerException if something went wrong.
+     */
+    public KeyData [] findKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException, ChecksumFailureException {
+        KeyIdentifier ids[] = { id };
+        
+        return findKeys(ids, parameters)[0];
+    }
+    
+    /**
+     * <p>Look for the keys matching a number of identifiers at once.</p>
+     * <p>The blocks holding the keys are found through the indexes and parsed together, keys are matched in the same way as 
+     * in a keyring.</p>
+     * @param ids[] The key identifiers that specify the keys being looked for.
+     * @param parameters Any extra parameters needed, for example pass phrases for secret key stores etc, may be null.
+     * @return An array with an entry for each identifier, holding the keys found for it or NULL if no keys matching it could be found.
+     * @throws ChecksumFailureException If the key data fails a checksum (usually because the wrong passphrase was supplied).
+     * @throws KeyHandlerException if something went wrong.
+     */
+    public KeyData [][] findKeys(KeyIdentifier ids[], KeyHandlerParameters parameters) throws KeyHandlerException, ChecksumFailureException {
+        for (int n = 0; n < ids.length; n++) {
+            if ((!(ids[n] instanceof OpenPGPStandardKeyIdentifier)) && (!(ids[n] instanceof OpenPGPKeyIDKeyIdentifier)))
+                throw new KeyHandlerException("Unrecognised key identifier given");
+        }
+        
+        Hashtable found = new Hashtable();
+        InputStream in;
+        
+        beginRead();
+        try {
+            synchronized (this) {
+                for (int n = 0; n < ids.length; n++)
+                    collect(found, findEntries(ids[n]));
+            }
+            
+            if (found.size() == 0)
+                return new KeyData[ids.length][];
+            
+            in = readBlocks(found);
+        } finally {
+            endRead();
+        }
+        
+        return keyring.findKeys(in, ids, parameters);
+    }
+    
+    /**
+     * <p>Might the database hold keys matching an identifier?</p>
+     * <p>This is answered exactly from the in memory indexes, no key blocks are read.</p>
+     */
+    public boolean mightHaveKeys(KeyIdentifier id) {
+        if ((!(id instanceof OpenPGPStandardKeyIdentifier)) && (!(id instanceof OpenPGPKeyIDKeyIdentifier)))
+            return true;
+        
+        try {
+            beginRead();
+            try {
+                synchronized (this) {
+                    Vector entries = findEntries(id);
+                    
+                    return (entries != null) && (entries.size() > 0);
+                }
+            } finally {
+                endRead();
+            }
+        } catch (KeyHandlerException e) {
+            // searching will report the problem
+            return true;
+        }
+    }
+    
+    /**
+     * <p>Look for the keys belonging to an email address.</p>
+     * <p>Every user ID of a key is searched, not just the first, and the address is not case sensitive.</p>
+     * @param address The email address, eg "user@example.com".
+     * @param parameters Any extra parameters needed, for example pass phrases for secret key stores etc, may be null.
+     * @return The primary keys and subkeys of every key with the address, or NULL if there are none.
+     * @throws ChecksumFailureException If the key data fails a checksum (usually because the wrong passphrase was supplied).
+     * @throws KeyHandlerException if something went wrong.
+     */
+    public KeyData [] findKeysByEmail(String address, KeyHandlerParameters parameters) throws KeyHandlerException, ChecksumFailureException {
+        Hashtable found = new Hashtable();
+        
+        beginRead();
+        try {
+            synchronized (this) {
+                collect(found, (Vector)byEmail.get(address.trim().toLowerCase()));
+            }
+        } finally {
+            endRead();
+        }
+        
+        return readKeys(found, parameters, null);
+    }
+    
+    /**
+     * <p>Look for a key by its fingerprint.</p>
+     * @param fingerprint The fingerprint of the key.
+     * @param parameters Any extra parameters needed, for example pass phrases for secret key stores etc, may be null.
+     * @return The key with the fingerprint, or NULL if it could not be found.
+     * @throws ChecksumFailureException If the key data fails a checksum (usually because the wrong passphrase was supplied).
+     * @throws KeyHandlerException if something went wrong.
+     */
+    public KeyData [] findKeysByFingerprint(byte fingerprint[], KeyHandlerParameters parameters) throws KeyHandlerException, ChecksumFailureException {
+        Hashtable found = new Hashtable();
+        
+        beginRead();
+        try {
+            synchronized (this) {
+                collect(found, (Vector)byFingerprint.get(toKey(fingerprint)));
+            }
+        } finally {
+            endRead();
+        }
+        
+        return readKeys(found, parameters, fingerprint);
+    }
+    
+    /**
+     * <p>Look for the keys that expire before a given time.</p>
+     * <p>Keys that never expire are not returned. The expiry time is that of the primary key, and all the keys in its block are returned.</p>
+     * @param time The time, in seconds since 1970 (the same as OpenPGPKeyData.getExpiryTime()).
+     * @param parameters Any extra parameters needed, for example pass phrases for secret key stores etc, may be null.
+     * @return The keys, or NULL if there are none.
+     * @throws ChecksumFailureException If the key data fails a checksum (usually because the wrong passphrase was supplied).
+     * @throws KeyHandlerException if something went wrong.
+     */
+    public KeyData [] findKeysExpiringBefore(long time, KeyHandlerParameters parameters) throws KeyHandlerException, ChecksumFailureException {
+        Hashtable found = new Hashtable();
+        
+        beginRead();
+        try {
+            synchronized (this) {
+                if (time > 1) {
+                    Iterator i = byExpiry.subMap(new Long(1), new Long(time)).values().iterator();
+                    while (i.hasNext())
+                        collect(found, (Vector)i.next());
+                }
+            }
+        } finally {
+            endRead();
+        }
+        
+        return readKeys(found, parameters, null);
+    }
+    
+    /**
+     * <p>Add a number of keys to the key store.</p>
+     * <p>The keys are added as a single key block, exactly as they would be to a keyring (see OpenPGPPublicKeyring and 
+     * OpenPGPSecretKeyring), in one transaction.</p>
+     * @param key[] The keys to store.
+     * @param idDetails[] Information identifying the keys. Should be of type OpenPGPStandardKeyIdentifier. Must contain at least one entry.
+     * @param parameters[] Any extra parameters needed, for example pass phrases for secret key stores etc, may be null.
+     * @throws KeyHandlerException if something went wrong, or the primary key is already in the database.
+     */
+    public void addKeys(KeyData[] key, KeyIdentifier[] idDetails, KeyHandlerParameters[] parameters) throws KeyHandlerException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            OpenPGPPacketOutputStream out = new OpenPGPPacketOutputStream(bytes);
+            writeKeys(out, key, idDetails, parameters);
+            out.close();
+            
+            Entry block = describe(bytes.toByteArray());
+            
+            synchronized (writeLock) {
+                open();
+                
+                if (getPrimaryKey(block.keyIDs[0]) != null)
+                    throw new KeyHandlerException("Key is already in the database.");
+                
+                Vector add = new Vector();
+                add.add(block);
+                commit(new Vector(), add);
+            }
+            
+        } catch (KeyHandlerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new KeyHandlerException(e.getMessage());
+        }
+    }
+    
+    /** 
+     * <p>Delete a key matching the given id from the database.</p>
+     * <p>Keys are matched in the same way as in a keyring: a user ID removes the primary keys with that (first) user ID along 
+     * with their subkeys, and a key ID removes a primary key along with its subkeys or just a subkey. All the keys are 
+     * removed in one transaction.</p>
+     * @param id A KeyIdentifier object specifying the key(s) to remove.
+     * @param parameters Any extra parameters needed, may be null.
+     * @return The number of keys removed.
+     * @throws KeyHandlerException if something went wrong.
+     */
+    public int removeKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException {
+        int numDeleted = 0;
+        
+        if ((!(id instanceof OpenPGPStandardKeyIdentifier)) && (!(id instanceof OpenPGPKeyIDKeyIdentifier)))
+            throw new KeyHandlerException("Unrecognised key identifier given");
+        
+        try {
+            synchronized (writeLock) {
+                open();
+                
+                Vector candidates;
+                synchronized (this) {
+                    candidates = findEntries(id);
+                    candidates = (candidates == null) ? new Vector() : new Vector(candidates);
+                }
+                
+                Vector delete = new Vector();
+                Vector add = new Vector();
+                
+                for (int n = 0; n < candidates.size(); n++) {
+                    Entry block = (Entry)candidates.elementAt(n);
+                    
+                    if ((id instanceof OpenPGPStandardKeyIdentifier) || (Arrays.equals(block.keyIDs[0], id.getDefaultID()))) {
+                        // the whole block
+                        delete.add(block);
+                        numDeleted += block.keyIDs.length;
+                        
+                    } else {
+                        // a subkey, the block is replaced by one without it
+                        byte data[] = removeSubkey(readBlock(block), id.getDefaultID());
+                        if (data != null) {
+                            delete.add(block);
+                            add.add(describe(data));
+                            numDeleted++;
+                        }
+                    }
+                }
+                
+                if (numDeleted > 0)
+                    commit(delete, add);
+            }
+            
+        } catch (KeyHandlerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new KeyHandlerException(e.getMessage());
+        }
+        
+        return numDeleted;
+    }
+    
+    /**
+     * <p>Change a key handler setting.</p>
+     * <p>This method allows you to change a setting of a key handler object, for example change the passphrase used for unlocking a key.</p>
+     * <p>What settings can be changed depend on the type of key handler.</p>
+     * @param parameters What to change and the parameters needed.
+     * @throws KeyHandlerException if something went wrong.
+     */
+    public void changeSetting(KeyHandlerParameters parameters) throws KeyHandlerException {
+    }
+    
+    /**
+     * <p>Return the contents of the database as an array of Object.</p>
+     * <p>The packets of every key block are returned, in the order the blocks were added.</p>
+     * @return An array of Objects that make up the key source, or null if the key source could not be listed or the key source was empty. 
+     */
+    public Object[] toArray() throws KeyHandlerException {
+        Hashtable all;
+        InputStream in;
+        
+        beginRead();
+        try {
+            synchronized (this) {
+                all = new Hashtable(blocks);
+            }
+            
+            if (all.size() == 0)
+                return null;
+            
+            in = readBlocks(all);
+        } finally {
+            endRead();
+        }
+        
+        return keyring.toArray(in);
+    }
+    
+    /**
+     * <p>Rewrite the database without the key blocks that have been removed.</p>
+     * <p>This is done automatically once there are more dead bytes in the file than live ones, but may be called at any time. 
+     * Lookups carry on against the old file while the new one is written.</p>
+     * @throws KeyHandlerException if the database could not be rewritten, the old file is then left in place.
+     */
+    public void compact() throws KeyHandlerException {
+        try {
+            synchronized (writeLock) {
+                open();
+                
+                File database = new File(getFileName());
+                File tmp = File.createTempFile("sep", null, database.getAbsoluteFile().getParentFile());
+                
+                Entry live[];
+                synchronized (this) {
+                    live = sort(blocks);
+                }
+                
+                // the live blocks as a single transaction, they are still in the order they were added
+                CRC32 crc = new CRC32();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                
+                try {
+                    out.write(MAGIC);
+                    
+                    for (int n = 0; n < live.length; n++) {
+                        byte record[] = encodeRecord(live[n], readBlock(live[n]));
+                        crc.update(record);
+                        out.write(record);
+                    }
+                    
+                    out.write(encodeCommit(MAGIC.length, crc.getValue()));
+                    out.close();
+                    out = null;
+                    
+                    synchronized (this) {
+                        close();
+                        
+                        if ((!tmp.renameTo(database)) && ((!database.delete()) || (!tmp.renameTo(database))))
+                            throw new KeyHandlerException("Failed to create compacted database!");
+                        
+                        open();
+                    }
+                    
+                } finally {
+                    if (out != null)
+                        out.close();
+                    
+                    tmp.delete();
+                }
+            }
+            
+        } catch (KeyHandlerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new KeyHandlerException(e.getMessage());
+        }
+    }
+    
+    /**
+     * <p>Import a dump of keys, merging them with the keys already in the database.</p>
+     * <p>The keys are parsed and verified as described in OpenPGPKeyImporter. New and merged key blocks are written straight 
+     * to the end of the file as they are produced, each merged block with a delete record for the block it replaces, and the 
+     * whole import is committed as one transaction with a single flush to disk. Lookups carry on against the keys already 
+     * committed while the import runs.</p>
+     * @param in The binary OpenPGP packets to import.
+     * @param importer The importer to use, this sets the batch size and the thread pool.
+     * @return Statistics describing the import.
+     * @throws KeyHandlerException if the keys could not be imported, the transaction is then rolled back.
+     */
+    public OpenPGPKeyImporter.Statistics importKeys(InputStream in, OpenPGPKeyImporter importer) throws KeyHandlerException {
+        try {
+            synchronized (writeLock) {
+                open();
+                
+                return importer.run(in, new DatabaseImportTarget());
+            }
+        } catch (KeyHandlerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new KeyHandlerException(e.getMessage());
+        }
+    }
+    
+    /**
+     * <p>Write a transaction, then update the indexes to match.</p>
+     * <p>The caller must hold the write lock.</p>
+     * @param delete The entries of the key blocks to delete.
+     * @param add The entries of new key blocks, with their packets.
+     */
+    private void commit(Vector delete, Vector add) throws Exception {
+        long start = fileLength;
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        
+        for (int n = 0; n < delete.size(); n++) {
+            out.writeByte(RECORD_DELETE);
+            out.writeInt(8);
+            out.writeLong(((Entry)delete.elementAt(n)).record);
+        }
+        
+        for (int n = 0; n < add.size(); n++) {
+            Entry block = (Entry)add.elementAt(n);
+            
+            byte record[] = encodeRecord(block, block.data);
+            block.record = start + bytes.size();
+            block.offset = block.record + record.length - block.length;
+            block.data = null;
+            
+            out.write(record);
+        }
+        
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.write(encodeCommit(start, crc.getValue()));
+        out.close();
+        
+        // write the transaction, it is rolled back on failure so that the next one is written in its place
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer, start + buffer.position());
+            
+            channel.force(false);
+        } catch (IOException e) {
+            try {
+                file.setLength(start);
+            } catch (IOException ex) {
+                // the commit record is missing or damaged, so the transaction is rolled back when the database is opened
+            }
+            
+            throw e;
+        }
+        
+        synchronized (this) {
+            fileLength = start + bytes.size();
+            
+            for (int n = 0; n < delete.size(); n++)
+                unindex((Entry)delete.elementAt(n));
+            
+            for (int n = 0; n < add.size(); n++)
+                index((Entry)add.elementAt(n));
+        }
+        
+        if ((fileLength - liveBytes > COMPACTION_MINIMUM) && (fileLength - liveBytes > liveBytes))
+            compact();
+    }
+    
+    /**
+     * <p>Make sure the database for the current file name is open, creating it if necessary.</p>
+     */
+    private synchronized void open() throws IOException, KeyHandlerException {
+        if ((file != null) && (getFileName().equals(openFileName)))
+            return;
+        
+        close();
+        
+        File database = new File(getFileName());
+        if ((!database.exists()) || (database.length() == 0)) {
+            FileOutputStream out = new FileOutputStream(database);
+            out.write(MAGIC);
+            out.close();
+        }
+        
+        file = new RandomAccessFile(database, "rw");
+        channel = file.getChannel();
+        openFileName = getFileName();
+        
+        try {
+            load();
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (KeyHandlerException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    /**
+     * <p>Read the descriptions of the key blocks and build the indexes, rolling back any transaction that was not completely written.</p>
+     */
+    private void load() throws IOException, KeyHandlerException {
+        blocks = new Hashtable();
+        byKeyID = new Hashtable();
+        byFingerprint = new Hashtable();
+        byUserID = new Hashtable();
+        byEmail = new Hashtable();
+        byExpiry = new TreeMap();
+        liveBytes = 0;
+        
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getFileName())));
+        
+        long committed = MAGIC.length;
+        Vector last = null; // the records of the last committed transaction, applied once it has been checked
+        long lastStart = 0;
+        long lastCommit = 0;
+        
+        try {
+            byte magic[] = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new KeyHandlerException("Not a key database.");
+            
+            Vector pending = new Vector();
+            long position = MAGIC.length;
+            
+            try {
+                while (true) {
+                    int type = in.read();
+                    if (type < 0)
+                        break;
+                    
+                    int length = in.readInt();
+                    long record = position;
+                    position += 5;
+                    
+                    if (type == RECORD_BLOCK) {
+                        Entry block = readDescription(in, record, length);
+                        block.offset = position + length - block.length;
+                        skipFully(in, block.length);
+                        pending.add(block);
+                        
+                    } else if (type == RECORD_DELETE) {
+                        pending.add(new Long(in.readLong()));
+                        
+                    } else if (type == RECORD_COMMIT) {
+                        long start = in.readLong();
+                        in.readLong();
+                        
+                        // earlier transactions were forced to disk before the next was written, so only the last can be torn
+                        if (last != null)
+                            apply(last);
+                        
+                        last = pending;
+                        lastStart = start;
+                        lastCommit = record;
+                        committed = position + length;
+                        pending = new Vector();
+                        
+                    } else {
+                        break;
+                    }
+                    
+                    position += length;
+                }
+            } catch (EOFException e) {
+                // an incomplete transaction, rolled back below
+            }
+            
+        } finally {
+            in.close();
+        }
+        
+        if (last != null) {
+            if (checkTransaction(lastStart, lastCommit)) {
+                apply(last);
+            } else {
+                committed = lastStart;
+            }
+        }
+        
+        fileLength = committed;
+        if (file.length() > committed)
+            file.setLength(committed);
+    }
+    
+    /**
+     * <p>Check the CRC of a transaction against its commit record.</p>
+     */
+    private boolean checkTransaction(long start, long commit) throws IOException {
+        // read in chunks, an import can commit a very large transaction
+        byte buffer[] = new byte[65536];
+        byte trailer[] = new byte[21];
+        CRC32 crc = new CRC32();
+        
+        file.seek(start);
+        for (long left = commit - start; left > 0; ) {
+            int read = (int)Math.min(buffer.length, left);
+            file.readFully(buffer, 0, read);
+            crc.update(buffer, 0, read);
+            left -= read;
+        }
+        file.readFully(trailer);
+        
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(trailer, 13, 8));
+        return in.readLong() == crc.getValue();
+    }
+    
+    /** Apply the records of a committed transaction to the indexes. */
+    private void apply(Vector records) {
+        for (int n = 0; n < records.size(); n++) {
+            Object record = records.elementAt(n);
+            
+            if (record instanceof Entry) {
+                index((Entry)record);
+            } else {
+                Entry block = (Entry)blocks.get(record);
+                if (block != null)
+                    unindex(block);
+            }
+        }
+    }
+    
+    private void index(Entry block) {
+        blocks.put(new Long(block.record), block);
+        liveBytes += block.size;
+        
+        for (int n = 0; n < block.keyIDs.length; n++) {
+            add(byKeyID, toKey(block.keyIDs[n]), block);
+            add(byFingerprint, toKey(block.fingerprints[n]), block);
+        }
+        
+        if (block.userIDs.length > 0)
+            add(byUserID, toKey(block.userIDs[0]), block);
+        
+        for (int n = 0; n < block.userIDs.length; n++) {
+            String email = getEmail(block.userIDs[n]);
+            if ((email != null) && ((!byEmail.containsKey(email)) || (!((Vector)byEmail.get(email)).contains(block))))
+                add(byEmail, email, block);
+        }
+        
+        add(byExpiry, new Long(block.expiry), block);
+    }
+    
+    private void unindex(Entry block) {
+        blocks.remove(new Long(block.record));
+        liveBytes -= block.size;
+        
+        for (int n = 0; n < block.keyIDs.length; n++) {
+            remove(byKeyID, toKey(block.keyIDs[n]), block);
+            remove(byFingerprint, toKey(block.fingerprints[n]), block);
+        }
+        
+        if (block.userIDs.length > 0)
+            remove(byUserID, toKey(block.userIDs[0]), block);
+        
+        for (int n = 0; n < block.userIDs.length; n++) {
+            String email = getEmail(block.userIDs[n]);
+            if (email != null)
+                remove(byEmail, email, block);
+        }
+        
+        remove(byExpiry, new Long(block.expiry), block);
+    }
+    
+    private void add(Map index, Object key, Entry block) {
+        Vector list = (Vector)index.get(key);
+        if (list == null) {
+            list = new Vector(1);
+            index.put(key, list);
+        }
+        
+        list.add(block);
+    }
+    
+    private void remove(Map index, Object key, Entry block) {
+        Vector list = (Vector)index.get(key);
+        if (list == null)
+            return;
+        
+        list.remove(block);
+        if (list.size() == 0)
+            index.remove(key);
+    }
+    
+    /**
+     * <p>Return the entries of the blocks that may hold keys matching an identifier, or null if there are none.</p>
+     * <p>The caller must be synchronized on the database.</p>
+     */
+    private Vector findEntries(KeyIdentifier id) throws KeyHandlerException {
+        if (id instanceof OpenPGPStandardKeyIdentifier)
+            return (Vector)byUserID.get(toKey(id.getDefaultID()));
+        
+        if (Arrays.equals(id.getDefaultID(), WILDCARD))
+            return new Vector(blocks.values());
+        
+        return (Vector)byKeyID.get(toKey(id.getDefaultID()));
+    }
+    
+    /** Return the key block in the database with this primary key, or null. */
+    private synchronized Entry getPrimaryKey(byte keyID[]) {
+        Vector list = (Vector)byKeyID.get(toKey(keyID));
+        
+        for (int n = 0; (list != null) && (n < list.size()); n++) {
+            if (Arrays.equals(((Entry)list.elementAt(n)).keyIDs[0], keyID))
+                return (Entry)list.elementAt(n);
+        }
+        
+        return null;
+    }
+    
+    /** Add a list of entries to a set of entries keyed by their record offset. */
+    private void collect(Hashtable found, Collection entries) {
+        if (entries == null)
+            return;
+        
+        Iterator i = entries.iterator();
+        while (i.hasNext()) {
+            Entry block = (Entry)i.next();
+            found.put(new Long(block.record), block);
+        }
+    }
+    
+    /** Return a set of entries in the order their blocks were added. */
+    private Entry[] sort(Hashtable entries) {
+        Entry sorted[] = (Entry[])entries.values().toArray(new Entry[entries.size()]);
+        
+        Arrays.sort(sorted, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long one = ((Entry)o1).record;
+                long two = ((Entry)o2).record;
+                return (one < two) ? -1 : ((one == two) ? 0 : 1);
+            }
+        });
+        
+        return sorted;
+    }
+    
+    /** Mark the start of a lookup, opening the database if necessary. */
+    private synchronized void beginRead() throws KeyHandlerException {
+        try {
+            open();
+        } catch (KeyHandlerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new KeyHandlerException(e.getMessage());
+        }
+        
+        readers++;
+    }
+    
+    /** Mark the end of a lookup. */
+    private synchronized void endRead() {
+        readers--;
+        notifyAll();
+    }
+    
+    /**
+     * <p>Read a set of key blocks, in the order they were added, as a single stream of packets.</p>
+     * <p>The caller must have called beginRead().</p>
+     */
+    private InputStream readBlocks(Hashtable entries) throws KeyHandlerException {
+        try {
+            Entry sorted[] = sort(entries);
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int n = 0; n < sorted.length; n++)
+                out.write(readBlock(sorted[n]));
+            
+            return new ByteArrayInputStream(out.toByteArray());
+            
+        } catch (IOException e) {
+            throw new KeyHandlerException(e.getMessage());
+        }
+    }
+    
+    /**
+     * <p>Read the packets of a key block.</p>
+     * <p>Positional reads of the file channel do not interfere with each other, so any number of threads may read at once.</p>
+     */
+    private byte[] readBlock(Entry block) throws IOException {
+        byte data[] = new byte[block.length];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, block.offset + buffer.position()) < 0)
+                throw new EOFException("Key database is truncated.");
+        }
+        
+        return data;
+    }
+    
+    /**
+     * <p>Read every key in a set of key blocks, optionally keeping only the key with a given fingerprint.</p>
+     */
+    private KeyData[] readKeys(Hashtable found, KeyHandlerParameters parameters, byte fingerprint[]) throws KeyHandlerException, ChecksumFailureException {
+        if (found.size() == 0)
+            return null;
+        
+        InputStream in;
+        
+        beginRead();
+        try {
+            in = readBlocks(found);
+        } finally {
+            endRead();
+        }
+        
+        KeyData keys[] = keyring.findKeys(in, new OpenPGPKeyIDKeyIdentifier(WILDCARD), parameters);
+        if ((keys == null) || (fingerprint == null))
+            return keys;
+        
+        try {
+            for (int n = 0; n < keys.length; n++) {
+                if (Arrays.equals(((OpenPGPKeyData)keys[n]).getFingerprint(), fingerprint)) {
+                    KeyData match[] = { keys[n] };
+                    return match;
+                }
+            }
+        } catch (AlgorithmException e) {
+            throw new KeyHandlerException(e.getMessage());
+        }
+        
+        return null;
+    }
+    
+    /**
+     * <p>Describe a new key block, giving the keys and user IDs it holds.</p>
+     */
+    private Entry describe(byte data[]) throws Exception {
+        KeyData keys[] = keyring.findKeys(new ByteArrayInputStream(data), new OpenPGPKeyIDKeyIdentifier(WILDCARD), new OpenPGPLockedKeyParameters());
+        if (keys == null)
+            throw new KeyHandlerException("Key block holds no keys.");
+        
+        Entry block = new Entry();
+        block.data = data;
+        block.length = data.length;
+        block.expiry = ((OpenPGPKeyData)keys[0]).getExpiryTime();
+        
+        block.keyIDs = new byte[keys.length][];
+        block.fingerprints = new byte[keys.length][];
+        for (int n = 0; n < keys.length; n++) {
+            block.keyIDs[n] = ((OpenPGPKeyData)keys[n]).getKeyID();
+            block.fingerprints[n] = ((OpenPGPKeyData)keys[n]).getFingerprint();
+        }
+        
+        Vector userIDs = new Vector();
+        Object packets[] = keyring.toArray(new ByteArrayInputStream(data));
+        for (int n = 0; n < packets.length; n++) {
+            if (packets[n] instanceof UserIDPacket)
+                userIDs.add(((UserIDPacket)packets[n]).getID());
+        }
+        
+        block.userIDs = (byte[][])userIDs.toArray(new byte[userIDs.size()][]);
+        
+        return block;
+    }
+    
+    /**
+     * <p>Return a copy of a key block without one of its subkeys, or null if the block does not hold the subkey.</p>
+     */
+    private byte[] removeSubkey(byte data[], byte keyID[]) throws Exception {
+        ByteArrayInputStream bin = new ByteArrayInputStream(data);
+        OpenPGPPacketInputStream in = new OpenPGPPacketInputStream(bin);
+        in.setLazy(true);
+        
+        long start = -1;
+        long end = data.length;
+        
+        long position = 0;
+        Packet p = in.readPacket();
+        while (p != null) {
+            if (p instanceof KeyPacket) {
+                if (start >= 0) {
+                    end = position;
+                    break;
+                }
+                
+                if ((keyring.isSubKey(p)) && (Arrays.equals(((KeyPacket)p).getKeyID(), keyID)))
+                    start = position;
+            }
+            
+            position = data.length - bin.available();
+            p = in.readPacket();
+        }
+        
+        if (start < 0)
+            return null;
+        
+        byte copy[] = new byte[data.length - (int)(end - start)];
+        System.arraycopy(data, 0, copy, 0, (int)start);
+        System.arraycopy(data, (int)end, copy, (int)start, data.length - (int)end);
+        
+        return copy;
+    }
+    
+    /** Encode a key block record. */
+    private byte[] encodeRecord(Entry block, byte data[]) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        
+        out.writeLong(block.expiry);
+        
+        out.writeShort(block.keyIDs.length);
+        for (int n = 0; n < block.keyIDs.length; n++) {
+            out.write(block.keyIDs[n]);
+            out.writeByte(block.fingerprints[n].length);
+            out.write(block.fingerprints[n]);
+        }
+        
+        out.writeShort(block.userIDs.length);
+        for (int n = 0; n < block.userIDs.length; n++) {
+            out.writeShort(block.userIDs[n].length);
+            out.write(block.userIDs[n]);
+        }
+        
+        out.writeInt(data.length);
+        out.write(data);
+        out.close();
+        
+        byte body[] = bytes.toByteArray();
+        
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_BLOCK);
+        out.writeInt(body.length);
+        out.write(body);
+        out.close();
+        
+        block.size = bytes.size();
+        
+        return bytes.toByteArray();
+    }
+    
+    /** Encode a commit record. */
+    private byte[] encodeCommit(long start, long crc) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        
+        out.writeByte(RECORD_COMMIT);
+        out.writeInt(16);
+        out.writeLong(start);
+        out.writeLong(crc);
+        out.close();
+        
+        return bytes.toByteArray();
+    }
+    
+    /** Read the description at the start of a key block record, leaving the stream at the start of the packets. */
+    private Entry readDescription(DataInputStream in, long record, int length) throws IOException {
+        Entry block = new Entry();
+        block.record = record;
+        block.size = 5 + length;
+        block.expiry = in.readLong();
+        
+        int keys = in.readUnsignedShort();
+        block.keyIDs = new byte[keys][8];
+        block.fingerprints = new byte[keys][];
+        for (int n = 0; n < keys; n++) {
+            in.readFully(block.keyIDs[n]);
+            block.fingerprints[n] = new byte[in.readUnsignedByte()];
+            in.readFully(block.fingerprints[n]);
+        }
+        
+        int userIDs = in.readUnsignedShort();
+        block.userIDs = new byte[userIDs][];
+        for (int n = 0; n < userIDs; n++) {
+            block.userIDs[n] = new byte[in.readUnsignedShort()];
+            in.readFully(block.userIDs[n]);
+        }
+        
+        block.length = in.readInt();
+        
+        return block;
+    }
+    
+    private void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0)
+                    throw new EOFException();
+                skipped = 1;
+            }
+            
+            count -= skipped;
+        }
+    }
+    
+    /** Return the email address in a user ID in lower case, or null if it does not hold one. */
+    private static String getEmail(byte userID[]) {
+        String id = new String(userID);
+        
+        int start = id.lastIndexOf('<');
+        int end = id.lastIndexOf('>');
+        
+        String address = ((start >= 0) && (end > start)) ? id.substring(start + 1, end) : id;
+        address = address.trim();
+        
+        if (address.indexOf('@') < 0)
+            return null;
+        
+        return address.toLowerCase();
+    }
+    
+    /** Turn binary data into a string that can be used as a hashtable key. */
+    private static String toKey(byte data[]) {
+        char key[] = new char[data.length];
+        for (int n = 0; n < data.length; n++)
+            key[n] = (char)(data[n] & 0xFF);
+        
+        return new String(key);
+    }
+    
+    /**
+     * <p>Writes the keys being imported into the database as a single transaction.</p>
+     * <p>Used while holding the write lock.</p>
+     */
+    private class DatabaseImportTarget implements OpenPGPKeyImporter.Target {
+        
+        /** Where the transaction starts, and where the next record goes. */
+        private long start = fileLength;
+        private long position = fileLength;
+        private CRC32 crc = new CRC32();
+        
+        /** Committed blocks being deleted, and the blocks written so far by primary key ID. */
+        private Vector delete = new Vector();
+        private Hashtable written = new Hashtable();
+        
+        public boolean isSecret() {
+            return getKeyring() instanceof OpenPGPSecretKeyring;
+        }
+        
+        public byte[] read(byte keyID[]) throws Exception {
+            Entry block = (Entry)written.get(toKey(keyID));
+            if (block == null)
+                block = getPrimaryKey(keyID);
+            
+            return (block == null) ? null : readBlock(block);
+        }
+        
+        public void write(byte keyID[], byte data[]) throws Exception {
+            Entry block = describe(data);
+            
+            // a block written earlier in this import is replaced too, its delete record is applied after it when the database is loaded
+            Entry old = (Entry)written.get(toKey(keyID));
+            if (old == null) {
+                old = getPrimaryKey(keyID);
+                if (old != null)
+                    delete.add(old);
+            }
+            
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            
+            if (old != null) {
+                out.writeByte(RECORD_DELETE);
+                out.writeInt(8);
+                out.writeLong(old.record);
+            }
+            
+            byte record[] = encodeRecord(block, data);
+            block.record = position + bytes.size();
+            block.offset = block.record + record.length - block.length;
+            block.data = null;
+            
+            out.write(record);
+            out.close();
+            
+            write(bytes.toByteArray());
+            written.put(toKey(keyID), block);
+        }
+        
+        public void commit() throws Exception {
+            if (written.size() == 0)
+                return;
+            
+            try {
+                write(encodeCommit(start, crc.getValue()));
+                channel.force(false);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            
+            synchronized (OpenPGPKeyDatabase.this) {
+                fileLength = position;
+                
+                for (int n = 0; n < delete.size(); n++)
+                    unindex((Entry)delete.elementAt(n));
+                
+                Iterator i = written.values().iterator();
+                while (i.hasNext())
+                    index((Entry)i.next());
+            }
+            
+            if ((fileLength - liveBytes > COMPACTION_MINIMUM) && (fileLength - liveBytes > liveBytes))
+                compact();
+        }
+        
+        public void abort() {
+            try {
+                file.setLength(start);
+            } catch (IOException e) {
+                // there is no commit record, so the transaction is rolled back when the database is opened
+            }
+        }
+        
+        /** Append records to the transaction. */
+        private void write(byte records[]) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            while (buffer.hasRemaining())
+                channel.write(buffer, position + buffer.position());
+            
+            crc.update(records);
+            position += records.length;
+        }
+    }
+    
+    /**
+     * <p>The description of a key block held in the database.</p>
+     */
+    private class Entry {
+        /** Offset of the record in the file. */
+        long record;
+        /** Size of the whole record. */
+        int size;
+        /** Offset and length of the block's packets in the file. */
+        long offset;
+        int length;
+        /** The packets, only set on a new block until it is written. */
+        byte data[];
+        
+        byte keyIDs[][];
+        byte fingerprints[][];
+        byte userIDs[][];
+        long expiry;
+    }
+}
@@ -0,0 +1,840 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.keyhandlers;
+import core.algorithmhandlers.openpgp.*;
+import core.algorithmhandlers.openpgp.packets.*;
+import core.exceptions.*;
+import system.WorkerPool;
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>Imports large dumps of OpenPGP keys into a keyring or key database.</p>
+ * <p>The dump is read in batches of transferable keys (a primary key with its user IDs, signatures and subkeys). The packets 
+ * of each batch are parsed and their self signatures verified in parallel on a WorkerPool. Each key is then merged with the 
+ * copy already held, if there is one: new user IDs, subkeys and signatures are added and anything already held is skipped, 
+ * so importing the same dump twice changes nothing. All the changes are written in one go when the import is finished, 
+ * see OpenPGPKeyring.importKeys() and OpenPGPKeyDatabase.importKeys().</p>
+ * <p>Verification rules:</p>
+ * <ul>
+ * <li>A user ID is imported only with a valid certification by its primary key, and a key with no such user ID is rejected.</li>
+ * <li>A subkey is imported only with a valid binding signature. Subkeys written by older versions of this program carry a 
+ * binding signed by the subkey itself, these are accepted when the whole key is new but are never merged into a key 
+ * that is already held.</li>
+ * <li>Revocations and direct key signatures must be valid signatures by the primary key. Certifications of user IDs by 
+ * other keys are kept, but can not be verified.</li>
+ * <li>Trust packets, user attributes and packets of unknown types are skipped.</li>
+ * </ul>
+ */
+public class OpenPGPKeyImporter {
+    
+    /** The default number of keys read and parsed in each batch. */
+    public static final int DEFAULT_BATCH_SIZE = 512;
+    
+    private static final int TAG_SIGNATURE = 2;
+    private static final int TAG_SECRET_KEY = 5;
+    private static final int TAG_PUBLIC_KEY = 6;
+    private static final int TAG_SECRET_SUBKEY = 7;
+    private static final int TAG_TRUST = 12;
+    private static final int TAG_USER_ID = 13;
+    private static final int TAG_PUBLIC_SUBKEY = 14;
+    
+    /** The pool that keys are parsed on. */
+    private WorkerPool pool;
+    
+    /** Number of keys in each batch. */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    
+    /** Told about the progress of the import after each batch, may be null. */
+    private ProgressListener listener;
+    
+    /**
+     * <p>The place keys are imported into.</p>
+     * <p>Implemented by the key stores that support importing, all of the calls for one import are made while the store 
+     * is locked against other writers.</p>
+     */
+    interface Target {
+        /** Does the store hold secret keys? */
+        boolean isSecret();
+        
+        /** Return the packets of the key held with this primary key ID, including any written during this import, or null. */
+        byte[] read(byte keyID[]) throws Exception;
+        
+        /** Store a new or merged key, replacing any copy already held. */
+        void write(byte keyID[], byte block[]) throws Exception;
+        
+        /** Make the changes permanent. */
+        void commit() throws Exception;
+        
+        /** Throw the changes away. */
+        void abort();
+    }
+    
+    /**
+     * <p>Told about the progress of an import.</p>
+     */
+    public interface ProgressListener {
+        /** Called after each batch of keys has been merged. */
+        public void progress(Statistics statistics);
+    }
+    
+    /** Creates a new instance of OpenPGPKeyImporter, parsing keys on the shared WorkerPool. */
+    public OpenPGPKeyImporter() {
+        this(WorkerPool.getDefaultPool());
+    }
+    
+    /** Creates a new instance of OpenPGPKeyImporter, parsing keys on the given pool. */
+    public OpenPGPKeyImporter(WorkerPool workers) {
+        pool = workers;
+    }
+    
+    /** Set the number of keys read and parsed in each batch. Larger batches use more memory. */
+    public void setBatchSize(int keys) {
+        batchSize = (keys < 1) ? 1 : keys;
+    }
+    
+    /** Return the number of keys read and parsed in each batch. */
+    public int getBatchSize() {
+        return batchSize;
+    }
+    
+    /** Set the object to tell about the progress of imports, may be null. */
+    public void setProgressListener(ProgressListener progress) {
+        listener = progress;
+    }
+    
+    /**
+     * <p>Import keys into a store.</p>
+     * @param in The binary OpenPGP packets to import, for example the contents of a keyring.
+     * @param target The store to import into.
+     * @return Statistics describing the import.
+     */
+    Statistics run(InputStream in, Target target) throws KeyHandlerException {
+        Statistics statistics = new Statistics();
+        PacketReader reader = new PacketReader(in);
+        
+        try {
+            Vector batch;
+            while ((batch = reader.readBlocks(batchSize, statistics)).size() > 0) {
+                
+                // parse and verify
+                ParseJob jobs[] = new ParseJob[batch.size()];
+                for (int n = 0; n < jobs.length; n++)
+                    jobs[n] = new ParseJob((Vector)batch.elementAt(n), target.isSecret());
+                
+                pool.execute(jobs);
+                
+                // merge, in the order the keys were read
+                for (int n = 0; n < jobs.length; n++) {
+                    KeyBlock block = jobs[n].block;
+                    
+                    statistics.signaturesRejected += jobs[n].rejected;
+                    statistics.packetsSkipped += jobs[n].skipped;
+                    
+                    if (block == null) {
+                        statistics.keysRejected++;
+                        continue;
+                    }
+                    
+                    byte held[] = target.read(block.keyID);
+                    
+                    if (held == null) {
+                        target.write(block.keyID, block.encode());
+                        statistics.keysAdded++;
+                    } else {
+                        KeyBlock merged = new KeyBlock(readPackets(held), block.secret);
+                        
+                        if (merged.merge(block, statistics)) {
+                            target.write(block.keyID, merged.encode());
+                            statistics.keysMerged++;
+                        } else {
+                            statistics.keysUnchanged++;
+                        }
+                    }
+                }
+                
+                statistics.bytesRead = reader.getPosition();
+                if (listener != null)
+                    listener.progress(statistics);
+            }
+            
+            target.commit();
+            statistics.finish();
+            
+            debug.Debug.println(1, "Key import: " + statistics);
+            
+            return statistics;
+            
+        } catch (KeyHandlerException e) {
+            target.abort();
+            throw e;
+        } catch (Exception e) {
+            target.abort();
+            throw new KeyHandlerException(e.getMessage());
+        }
+    }
+    
+    /** Split the packets of a single key block. */
+    private static Vector readPackets(byte block[]) throws Exception {
+        PacketReader reader = new PacketReader(new ByteArrayInputStream(block));
+        Vector blocks = reader.readBlocks(1, new Statistics());
+        
+        if (blocks.size() != 1)
+            throw new KeyHandlerException("Invalid key block.");
+        
+        return (Vector)blocks.elementAt(0);
+    }
+    
+    /**
+     * <p>Reads packets without parsing their bodies and groups them into transferable keys.</p>
+     */
+    private static class PacketReader {
+        
+        private InputStream in;
+        private long position = 0;
+        
+        /** The primary key packet of the next block, read at the end of the last batch. */
+        private RawPacket next;
+        
+        PacketReader(InputStream stream) {
+            in = new BufferedInputStream(stream, 65536);
+        }
+        
+        long getPosition() {
+            return position;
+        }
+        
+        /** Read up to a number of key blocks, each a Vector of RawPacket. */
+        Vector readBlocks(int count, Statistics statistics) throws IOException, KeyHandlerException {
+            Vector blocks = new Vector();
+            Vector current = null;
+            
+            if (next != null) {
+                current = new Vector();
+                current.add(next);
+                next = null;
+            }
+            
+            RawPacket p;
+            while ((p = readPacket()) != null) {
+                if ((p.tag == TAG_PUBLIC_KEY) || (p.tag == TAG_SECRET_KEY)) {
+                    if (current != null) {
+                        blocks.add(current);
+                        
+                        if (blocks.size() == count) {
+                            next = p;
+                            return blocks;
+                        }
+                    }
+                    
+                    current = new Vector();
+                }
+                
+                if (current != null)
+                    current.add(p);
+                else
+                    statistics.packetsSkipped++; // there is no primary key for it to belong to
+            }
+            
+            if (current != null)
+                blocks.add(current);
+            
+            return blocks;
+        }
+        
+        /** Read the next packet, or return null at the end of the stream. */
+        private RawPacket readPacket() throws IOException, KeyHandlerException {
+            int ptag = in.read();
+            if (ptag < 0)
+                return null;
+            
+            if ((ptag & 0x80) == 0)
+                throw new KeyHandlerException("Invalid PGP packet header!");
+            
+            ByteArrayOutputStream header = new ByteArrayOutputStream(6);
+            header.write(ptag);
+            
+            int tag;
+            long length;
+            
+            if ((ptag & 0x40) != 0) {
+                // new format
+                tag = ptag & 0x3F;
+                
+                int first = readByte(header);
+                if (first < 192) {
+                    length = first;
+                } else if (first < 224) {
+                    length = ((first - 192) << 8) + readByte(header) + 192;
+                } else if (first == 255) {
+                    length = ((long)readByte(header) << 24) | (readByte(header) << 16) | (readByte(header) << 8) | readByte(header);
+                } else {
+                    throw new KeyHandlerException("Partial body lengths are not allowed in key packets.");
+                }
+            } else {
+                // old format
+                tag = (ptag >> 2) & 0x0F;
+                
+                switch (ptag & 0x03) {
+                    case 0 : length = readByte(header); break;
+                    case 1 : length = (readByte(header) << 8) | readByte(header); break;
+                    case 2 : length = ((long)readByte(header) << 24) | (readByte(header) << 16) | (readByte(header) << 8) | readByte(header); break;
+                    default : throw new KeyHandlerException("Indeterminate lengths are not allowed in key packets.");
+                }
+            }
+            
+            if (length > Integer.MAX_VALUE)
+                throw new KeyHandlerException("Key packet is too long.");
+            
+            RawPacket p = new RawPacket();
+            p.tag = tag;
+            p.headerLength = header.size();
+            p.data = new byte[p.headerLength + (int)length];
+            System.arraycopy(header.toByteArray(), 0, p.data, 0, p.headerLength);
+            
+            int read = p.headerLength;
+            while (read < p.data.length) {
+                int r = in.read(p.data, read, p.data.length - read);
+                if (r < 0)
+                    throw new EOFException("Unexpected end of stream in packet body.");
+                read += r;
+            }
+            
+            position += p.data.length;
+            
+            return p;
+        }
+        
+        private int readByte(ByteArrayOutputStream header) throws IOException {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Unexpected end of stream in packet length.");
+            
+            header.write(b);
+            
+            return b;
+        }
+    }
+    
+    /**
+     * <p>A packet as it was read, with its header.</p>
+     */
+    private static class RawPacket {
+        int tag;
+        int headerLength;
+        byte data[];
+        
+        /** Does this packet have the same body as another? Headers may be encoded differently. */
+        boolean sameBody(RawPacket other) {
+            if (data.length - headerLength != other.data.length - other.headerLength)
+                return false;
+            
+            for (int n = 0; n < data.length - headerLength; n++) {
+                if (data[headerLength + n] != other.data[other.headerLength + n])
+                    return false;
+            }
+            
+            return true;
+        }
+        
+        /** Parse the packet. */
+        Packet parse() throws Exception {
+            OpenPGPPacketInputStream in = new OpenPGPPacketInputStream(new ByteArrayInputStream(data));
+            in.setLazy(true);
+            
+            return in.readPacket();
+        }
+    }
+    
+    /**
+     * <p>A parsed key with its user IDs and subkeys, each holding the signatures over it.</p>
+     */
+    private static class KeyBlock {
+        
+        boolean secret;
+        byte keyID[];
+        RawPacket primary;
+        KeyPacket primaryKey;
+        
+        /** Revocations and direct key signatures. */
+        Vector signatures = new Vector();
+        
+        /** Component[] of user IDs and subkeys. */
+        Vector userIDs = new Vector();
+        Vector subkeys = new Vector();
+        
+        /** Number of signatures and packets dropped while parsing. */
+        int rejected = 0;
+        int skipped = 0;
+        
+        /**
+         * <p>Group the packets of a key without verifying them, used for keys that are already held.</p>
+         */
+        KeyBlock(Vector packets, boolean isSecret) throws Exception {
+            this(packets, isSecret, false);
+        }
+        
+        /**
+         * <p>Group the packets of a key, optionally verifying the signatures and dropping anything that isn't valid.</p>
+         */
+        KeyBlock(Vector packets, boolean isSecret, boolean verify) throws Exception {
+            secret = isSecret;
+            primary = (RawPacket)packets.elementAt(0);
+            primaryKey = (KeyPacket)primary.parse();
+            keyID = primaryKey.getKeyID();
+            
+            Component current = null; // the user ID or subkey that following signatures belong to
+            boolean skipping = false; // signatures over a packet that was skipped are skipped too
+            
+            for (int n = 1; n < packets.size(); n++) {
+                RawPacket p = (RawPacket)packets.elementAt(n);
+                
+                if (p.tag == TAG_SIGNATURE) {
+                    if (skipping) {
+                        skipped++;
+                    } else if (current == null) {
+                        signatures.add(p);
+                    } else {
+                        current.signatures.add(p);
+                    }
+                    
+                } else if ((p.tag == TAG_USER_ID) || (p.tag == TAG_PUBLIC_SUBKEY) || (p.tag == TAG_SECRET_SUBKEY)) {
+                    current = new Component();
+                    current.packet = p;
+                    skipping = false;
+                    
+                    if (p.tag == TAG_USER_ID) {
+                        userIDs.add(current);
+                    } else {
+                        current.key = (KeyPacket)p.parse();
+                        subkeys.add(current);
+                    }
+                    
+                } else if (p.tag == TAG_TRUST) {
+                    // local to the keyring it came from
+                    skipped++;
+                    
+                } else {
+                    // user attributes and anything else, along with their signatures
+                    skipped++;
+                    skipping = true;
+                    current = null;
+                }
+            }
+            
+            if (verify)
+                verify();
+        }
+        
+        /**
+         * <p>Check the signatures, dropping those that aren't valid and any user IDs and subkeys left without a valid self signature.</p>
+         */
+        private void verify() throws Exception {
+            byte primaryData[] = hashData(0x99, publicBody(primaryKey));
+            
+            signatures = verify(signatures, primaryData, null, SignaturePacket.DIRECT_KEY, SignaturePacket.KEY_REVOCATION);
+            
+            for (int n = userIDs.size() - 1; n >= 0; n--) {
+                Component uid = (Component)userIDs.elementAt(n);
+                byte data[] = concat(primaryData, hashData(0xB4, uid.packet.data, uid.packet.headerLength));
+                
+                uid.signatures = verify(uid.signatures, data, uid, SignaturePacket.GENERIC_UID, SignaturePacket.CERT_REVOCATION);
+                if (!uid.certified)
+                    userIDs.remove(n);
+            }
+            
+            for (int n = subkeys.size() - 1; n >= 0; n--) {
+                Component subkey = (Component)subkeys.elementAt(n);
+                byte data[] = concat(primaryData, hashData(0x99, publicBody(subkey.key)));
+                
+                subkey.signatures = verify(subkey.signatures, data, subkey, SignaturePacket.SUBKEY_BIND, SignaturePacket.SUBKEY_REVOCATION);
+                if (!subkey.certified)
+                    subkeys.remove(n);
+            }
+        }
+        
+        /**
+         * <p>Verify a list of signatures, returning those that are kept.</p>
+         * @param certification The lowest signature type that certifies the user ID or subkey (user ID certifications run up to POSITIVE_UID).
+         * @param revocation The signature type that revokes it.
+         */
+        private Vector verify(Vector list, byte data[], Component component, int certification, int revocation) {
+            Vector kept = new Vector();
+            
+            for (int n = 0; n < list.size(); n++) {
+                RawPacket p = (RawPacket)list.elementAt(n);
+                
+                try {
+                    SignaturePacket sig = (SignaturePacket)p.parse();
+                    int type = sig.getSignatureData().getSignatureType();
+                    boolean self = Arrays.equals(sig.getKeyID(), keyID);
+                    
+                    boolean isCertification = (type == certification) || 
+                        ((certification == SignaturePacket.GENERIC_UID) && (type >= SignaturePacket.GENERIC_UID) && (type <= SignaturePacket.POSITIVE_UID));
+                    
+                    if ((!isCertification) && (type != revocation))
+                        throw new KeyHandlerException("Signature of the wrong type.");
+                    
+                    if ((!self) && (certification == SignaturePacket.GENERIC_UID) && (isCertification)) {
+                        // certified by somebody else, we don't have their key
+                        kept.add(p);
+                        continue;
+                    }
+                    
+                    if ((self) && (sig.verify(primaryKey.getKeyData().getPublicKey(), data))) {
+                        kept.add(p);
+                        if ((isCertification) && (component != null))
+                            component.certified = true;
+                        continue;
+                    }
+                    
+                    // bindings written by older versions of this program were signed by the subkey
+                    if ((type == SignaturePacket.SUBKEY_BIND) && (component != null) && 
+                        (sig.verify(component.key.getKeyData().getPublicKey(), data))) {
+                        kept.add(p);
+                        component.certified = true;
+                        component.legacy = true;
+                        continue;
+                    }
+                    
+                    rejected++;
+                    
+                } catch (Exception e) {
+                    rejected++;
+                }
+            }
+            
+            return kept;
+        }
+        
+        /**
+         * <p>Merge a newly imported copy of the key into this one.</p>
+         * @return true if anything was added.
+         */
+        boolean merge(KeyBlock imported, Statistics statistics) {
+            boolean changed = false;
+            
+            int added = addSignatures(signatures, imported.signatures);
+            
+            for (int n = 0; n < imported.userIDs.size(); n++) {
+                Component uid = (Component)imported.userIDs.elementAt(n);
+                Component held = find(userIDs, uid);
+                
+                if (held == null) {
+                    userIDs.add(uid);
+                    statistics.userIDsAdded++;
+                    changed = true;
+                } else {
+                    added += addSignatures(held.signatures, uid.signatures);
+                }
+            }
+            
+            for (int n = 0; n < imported.subkeys.size(); n++) {
+                Component subkey = (Component)imported.subkeys.elementAt(n);
+                Component held = find(subkeys, subkey);
+                
+                if (held == null) {
+                    if (subkey.legacy) {
+                        statistics.signaturesRejected++;
+                    } else {
+                        subkeys.add(subkey);
+                        statistics.subkeysAdded++;
+                        changed = true;
+                    }
+                } else {
+                    added += addSignatures(held.signatures, subkey.signatures);
+                }
+            }
+            
+            statistics.signaturesAdded += added;
+            
+            return (changed) || (added > 0);
+        }
+        
+        /** Add the signatures that aren't already held, returning the number added. */
+        private int addSignatures(Vector held, Vector imported) {
+            int added = 0;
+            
+            for (int n = 0; n < imported.size(); n++) {
+                RawPacket sig = (RawPacket)imported.elementAt(n);
+                
+                boolean found = false;
+                for (int cnt = 0; (cnt < held.size()) && (!found); cnt++)
+                    found = sig.sameBody((RawPacket)held.elementAt(cnt));
+                
+                if (!found) {
+                    held.add(sig);
+                    added++;
+                }
+            }
+            
+            return added;
+        }
+        
+        private Component find(Vector components, Component component) {
+            for (int n = 0; n < components.size(); n++) {
+                Component held = (Component)components.elementAt(n);
+                
+                if (held.packet.sameBody(component.packet))
+                    return held;
+            }
+            
+            return null;
+        }
+        
+        /** Encode the key as keyring packets. */
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            
+            out.write(primary.data);
+            write(out, signatures);
+            
+            for (int n = 0; n < userIDs.size(); n++) {
+                Component uid = (Component)userIDs.elementAt(n);
+                out.write(uid.packet.data);
+                write(out, uid.signatures);
+            }
+            
+            for (int n = 0; n < subkeys.size(); n++) {
+                Component subkey = (Component)subkeys.elementAt(n);
+                out.write(subkey.packet.data);
+                write(out, subkey.signatures);
+            }
+            
+            return out.toByteArray();
+        }
+        
+        private void write(OutputStream out, Vector packets) throws IOException {
+            for (int n = 0; n < packets.size(); n++)
+                out.write(((RawPacket)packets.elementAt(n)).data);
+        }
+    }
+    
+    /**
+     * <p>A user ID or subkey and the signatures over it.</p>
+     */
+    private static class Component {
+        RawPacket packet;
+        KeyPacket key;
+        Vector signatures = new Vector();
+        
+        /** Has it a valid self signature? */
+        boolean certified = false;
+        
+        /** Is it a subkey bound by a signature of its own? */
+        boolean legacy = false;
+    }
+    
+    /**
+     * <p>Parses and verifies one key.</p>
+     */
+    private static class ParseJob implements WorkerPool.Job {
+        
+        private Vector packets;
+        private boolean secret;
+        
+        /** The key, or null if it was rejected. */
+        KeyBlock block;
+        int rejected;
+        int skipped;
+        
+        ParseJob(Vector keyPackets, boolean targetIsSecret) {
+            packets = keyPackets;
+            secret = targetIsSecret;
+        }
+        
+        public void run() throws Exception {
+            try {
+                // public keys are not imported into secret key stores, and secret keys never leak into public ones
+                RawPacket primary = (RawPacket)packets.elementAt(0);
+                if (secret != (primary.tag == TAG_SECRET_KEY))
+                    return;
+                
+                KeyBlock key = new KeyBlock(packets, secret, true);
+                rejected = key.rejected;
+                skipped = key.skipped;
+                
+                if (key.userIDs.size() > 0)
+                    block = key;
+                
+            } catch (Exception e) {
+                // a key that can't be parsed is rejected, the rest of the import carries on
+                block = null;
+            }
+            
+            packets = null;
+        }
+    }
+    
+    /**
+     * <p>Return the body of a key packet without any secret key material, as it is hashed by signatures.</p>
+     */
+    private static byte[] publicBody(KeyPacket key) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        out.write(key.getVersion() & 0xFF);
+        
+        out.write((int)((key.getCreateDate() >> 24) & 0xFF));
+        out.write((int)((key.getCreateDate() >> 16) & 0xFF));
+        out.write((int)((key.getCreateDate() >> 8) & 0xFF));
+        out.write((int)((key.getCreateDate() >> 0) & 0xFF));
+        
+        if (key.getVersion() == 3) {
+            out.write((key.getV3Expiry() >> 8) & 0xFF);
+            out.write(key.getV3Expiry() & 0xFF);
+        }
+        
+        out.write(key.getAlgorithm() & 0xFF);
+        out.write(key.getKeyData().encodePublicKeyComponents());
+        
+        return out.toByteArray();
+    }
+    
+    /** The data hashed for a key packet body (prefix 0x99, two byte length). */
+    private static byte[] hashData(int prefix, byte body[]) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        out.write(prefix);
+        out.write((body.length >> 8) & 0xFF);
+        out.write(body.length & 0xFF);
+        out.write(body, 0, body.length);
+        
+        return out.toByteArray();
+    }
+    
+    /** The data hashed for a user ID packet (prefix 0xB4, four byte length). */
+    private static byte[] hashData(int prefix, byte packet[], int headerLength) {
+        int length = packet.length - headerLength;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        out.write(prefix);
+        out.write((length >> 24) & 0xFF);
+        out.write((length >> 16) & 0xFF);
+        out.write((length >> 8) & 0xFF);
+        out.write(length & 0xFF);
+        out.write(packet, headerLength, length);
+        
+        return out.toByteArray();
+    }
+    
+    private static byte[] concat(byte one[], byte two[]) {
+        byte both[] = new byte[one.length + two.length];
+        System.arraycopy(one, 0, both, 0, one.length);
+        System.arraycopy(two, 0, both, one.length, two.length);
+        
+        return both;
+    }
+    
+    /**
+     * <p>The results of an import.</p>
+     */
+    public static class Statistics {
+        
+        long started = System.currentTimeMillis();
+        long finished = 0;
+        
+        long bytesRead = 0;
+        int keysAdded = 0;
+        int keysMerged = 0;
+        int keysUnchanged = 0;
+        int keysRejected = 0;
+        int userIDsAdded = 0;
+        int subkeysAdded = 0;
+        int signaturesAdded = 0;
+        int signaturesRejected = 0;
+        int packetsSkipped = 0;
+        
+        void finish() {
+            finished = System.currentTimeMillis();
+        }
+        
+        /** Number of bytes of the dump read so far. */
+        public long getBytesRead() { return bytesRead; }
+        
+        /** Number of keys that weren't held before. */
+        public int getKeysAdded() { return keysAdded; }
+        
+        /** Number of keys already held that had user IDs, subkeys or signatures added. */
+        public int getKeysMerged() { return keysMerged; }
+        
+        /** Number of keys already held with everything in the dump. */
+        public int getKeysUnchanged() { return keysUnchanged; }
+        
+        /** Number of keys that could not be parsed or had no valid user ID. */
+        public int getKeysRejected() { return keysRejected; }
+        
+        /** Number of user IDs added to keys already held. */
+        public int getUserIDsAdded() { return userIDsAdded; }
+        
+        /** Number of subkeys added to keys already held. */
+        public int getSubkeysAdded() { return subkeysAdded; }
+        
+        /** Number of signatures added to keys already held. */
+        public int getSignaturesAdded() { return signaturesAdded; }
+        
+        /** Number of signatures dropped because they could not be verified. */
+        public int getSignaturesRejected() { return signaturesRejected; }
+        
+        /** Number of packets skipped, eg trust packets and user attributes. */
+        public int getPacketsSkipped() { return packetsSkipped; }
+        
+        /** Number of keys read so far. */
+        public int getKeysRead() { 
+            return keysAdded + keysMerged + keysUnchanged + keysRejected; 
+        }
+        
+        /** Time taken so far, or in total once the import has finished, in milliseconds. */
+        public long getElapsedTime() {
+            return ((finished > 0) ? finished : System.currentTimeMillis()) - started;
+        }
+        
+        /** Number of bytes of the dump imported each second. */
+        public long getBytesPerSecond() {
+            long elapsed = getElapsedTime();
+            return (elapsed > 0) ? (bytesRead * 1000 / elapsed) : bytesRead;
+        }
+        
+        /** Number of keys imported each second. */
+        public long getKeysPerSecond() {
+            long elapsed = getElapsedTime();
+            return (elapsed > 0) ? (getKeysRead() * 1000L / elapsed) : getKeysRead();
+        }
+        
+        public String toString() {
+            return getKeysRead() + " keys (" + bytesRead + " bytes) in " + getElapsedTime() + "ms, " + 
+                getKeysPerSecond() + " keys/s, " + (getBytesPerSecond() / 1024) + " KB/s: " + 
+                keysAdded + " added, " + keysMerged + " merged, " + keysUnchanged + " unchanged, " + keysRejected + " rejected; " +
+                userIDsAdded + " user IDs, " + subkeysAdded + " subkeys and " + signaturesAdded + " signatures merged, " + 
+                signaturesRejected + " signatures rejected, " + packetsSkipped + " packets skipped";
+        }
+    }
+}
@@ -46,9 +46,33 @@ import java.util.*;
 
 /**
  * <p>Defines base functionality for OpenPGP keyrings.</p>
+ * <p>Binary keyrings may be used by several threads at once. Lookups read from a snapshot of the keyring (see 
+ * OpenPGPKeyringSnapshot) and take no lock, while changes are made one at a time behind the keyring's KeyFileLock. Once 
+ * a change is finished the next lookup takes a new snapshot, lookups already under way finish with the old one.</p>
  */
 public abstract class OpenPGPKeyring extends KeyFile {
     
+    /** The default proportion of dead bytes at which an append only keyring is compacted. */
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.25;
+    
+    /** The sidecar index of the keyring file, created when it is first needed. */
+    private OpenPGPKeyringIndex keyringIndex;
+    
+    /** The tombstones of keys removed from the keyring file, created when first needed. */
+    private OpenPGPKeyringTombstones tombstones;
+    
+    /** Are removed keys marked with tombstones rather than the keyring being rewritten? */
+    private boolean appendOnly = false;
+    
+    /** The proportion of dead bytes at which the keyring is compacted. */
+    private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    
+    /** The thread compacting the keyring, if there is one. */
+    private Thread compactor;
+    
+    /** The snapshot lookups read from, or null if a new one must be taken. */
+    private volatile OpenPGPKeyringSnapshot snapshot;
+    
     /** Creates a new instance of OpenPGPKeyring */
     public OpenPGPKeyring() {
     }
@@ -69,21 +93,40 @@ public abstract class OpenPGPKeyring extends KeyFile {
      * removed.</p>
      * <p>If duplicate prime keys are found then only the first one encountered is removed. To remove all keys matching a given ID you
      * should run this method multiple times until it returns 0.</p>
+     * <p>In append only mode the keyring is not rewritten, the removed keys are marked with tombstones instead. See setAppendOnly().</p>
      * @param id A KeyIdentifier object specifying the key(s) to remove.
      * @param parameters Any extra parameters needed, for example pass phrases for secret key stores etc, may be null.
      * @return The number of keys removed.
      * @throws KeyHandlerException if something went wrong.
      */
     public int removeKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException {
+        beginWrite();
+        
+        try {
+            if ((isAppendOnly()) && (isIndexed()))
+                return removeKeysAppending(id);
+            
+            return removeKeysRewriting(id);
+        } finally {
+            endWrite();
+        }
+    }
+    
+    /**
+     * <p>Remove keys by copying the keyring without them.</p>
+     * <p>The copy is made next to the keyring and renamed over it, so lookups see either the old keyring or the new one.</p>
+     */
+    private int removeKeysRewriting(KeyIdentifier id) throws KeyHandlerException {
         int numDeleted = 0;
         
         try {
             // create temp files
             File keyring = new File(getFileName());
-            File tmp = File.createTempFile("sep", null);
+            File tmp = File.createTempFile("sep", null, keyring.getAbsoluteFile().getParentFile());
             
             // begin processing file
-            OpenPGPPacketInputStream in = new OpenPGPPacketInputStream(new FileInputStream(keyring));            
+            OpenPGPPacketInputStream in = new OpenPGPPacketInputStream(openKeyring());            
+            in.setLazy(true); // packets are mostly copied unchanged
             OpenPGPPacketOutputStream out = new OpenPGPPacketOutputStream(new FileOutputStream(tmp));
     
             Packet p = null;
@@ -191,8 +234,14 @@ public abstract class OpenPGPKeyring extends KeyFile {
             // we got here, everything should be ok, so copy modified file back over original
             
             if (numDeleted > 0) {
-                if ((!keyring.delete()) || (!tmp.renameTo(keyring)))
-                    throw new KeyHandlerException("Failed to create modified keyring!");
+                replaceKeyring(tmp, "Failed to create modified keyring!");
+                
+                // the keys marked dead have been left out too
+                if (isIndexed())
+                    getTombstones().clear();
+                invalidateIndex();
+            } else {
+                tmp.delete();
             }
            
         
@@ -213,6 +262,8 @@ public abstract class OpenPGPKeyring extends KeyFile {
      * key data to be decrypted. IMPORTANT : Currently assumes that subkeys are encrypted with the same key, if this is not the case you should
      * seek for each subkey individually by keyID.</p>
      * <p>If you use a OpenPGPKeyIDKeyIdentifier to specify key you may use an 8 byte array of zeros to specify a wildcard. If this is the case, all keys in the keyring will be returned.</p>
+     * <p>Decrypting secret key material is slow, so if you only need some of the keys found pass an OpenPGPLockedKeyParameters object instead. 
+     * The keys are then returned locked and you unlock the one you use with OpenPGPKeyData.unlock().</p>
      * @param id The key identifier that specifies the key being looked for.
      * @param parameters Any extra parameters needed, for example pass phrases for secret key stores etc, may be null.
      * @return An array of OpenPGPKeyData objects that contain (among other things) the key material and raw key packet, or NULL if no keys matching id could be found.
@@ -220,17 +271,50 @@ public abstract class OpenPGPKeyring extends KeyFile {
      * @throws KeyHandlerException if something went wrong.
      */ 
     public KeyData [] findKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws ChecksumFailureException, KeyHandlerException {
+        KeyIdentifier ids[] = {id};
+        
+        return findKeys(ids, parameters)[0];
+    }
+    
+    /**
+     * <p>Look for the keys matching a number of identifiers, reading the keyring only once.</p>
+     * <p>Each identifier is matched in the same way as it would be by findKeys(KeyIdentifier, KeyHandlerParameters).</p>
+     * @param ids[] The key identifiers that specify the keys being looked for.
+     * @param parameters Any extra parameters needed, for example pass phrases for secret key stores etc, may be null.
+     * @return An array with an entry for each identifier, holding the keys found for it or NULL if no keys matching it could be found.
+     * @throws ChecksumFailureException If the key data fails a checksum (usually because the wrong passphrase was supplied).
+     * @throws KeyHandlerException if something went wrong.
+     */ 
+    public KeyData [][] findKeys(KeyIdentifier ids[], KeyHandlerParameters parameters) throws ChecksumFailureException, KeyHandlerException {
         try {
             
             // create a new file if file does not already exist.
+            File f = new File(getFileName());
+            f.createNewFile();
+            
+            if (!isIndexed())
+                return findKeys(openKeyring(), ids, parameters);
+            
+            OpenPGPKeyringSnapshot keys = acquireSnapshot();
             try {
-                File f = new File(getFileName());
-                f.createNewFile();
-            } catch (IOException e) {
-                throw e;
+                // only read the parts of the keyring that the index says could hold the keys
+                InputStream blocks = readIndexedBlocks(keys, ids);
+                
+                if (blocks != null) {
+                    try {
+                        return findKeys(blocks, ids, parameters);
+                    } catch (ChecksumFailureException c) {
+                        throw c;
+                    } catch (KeyHandlerException k) {
+                        // the index doesn't match the keyring, read all of it instead
+                        invalidateIndex();
+                    }
+                }
+                
+                return findKeys(keys.openLive(), ids, parameters);
+            } finally {
+                keys.release();
             }
-            
-            return findKeys(new FileInputStream(getFileName()), id, parameters);
         } catch (ChecksumFailureException c) {
             throw c;
         } catch (KeyHandlerException k) {
@@ -244,21 +328,50 @@ public abstract class OpenPGPKeyring extends KeyFile {
      * <p>A quick method used by findKeys to simplify the reading of data from other sources.</p>
      */
     public KeyData [] findKeys(InputStream stream, KeyIdentifier id, KeyHandlerParameters parameters) throws ChecksumFailureException, KeyHandlerException {
+        KeyIdentifier ids[] = {id};
+        
+        return findKeys(stream, ids, parameters)[0];
+    }
+    
+    /**
+     * <p>Read a keyring from a stream, collecting the keys matching each of a number of identifiers as it goes.</p>
+     */
+    public KeyData [][] findKeys(InputStream stream, KeyIdentifier ids[], KeyHandlerParameters parameters) throws ChecksumFailureException, KeyHandlerException {
         
         // TODO : Verify signatures and report invalid ones
 
-        Vector keys = new Vector();
+        // the keys found for each identifier
+        Vector found[] = new Vector[ids.length];
+        for (int n = 0; n < ids.length; n++) {
+            if ((!(ids[n] instanceof OpenPGPStandardKeyIdentifier)) && (!(ids[n] instanceof OpenPGPKeyIDKeyIdentifier)))
+                throw new KeyHandlerException("Unrecognised key identifier given");
+            
+            found[n] = new Vector();
+        }
         
         Packet p = null;
+        Packet next = null; // a packet read while collecting subkeys that starts the next key
         UserIDPacket uidPacket = null;
+        
+        OpenPGPKeyData current = null; // the key most recently added, signatures that follow it apply to it
+        byte primaryID[] = null; // the key ID of the primary key being read, it issues all the signatures we recognise
+        
+        // should secret keys be unlocked now, or left for the caller to unlock?
+        boolean unlock = !(parameters instanceof OpenPGPLockedKeyParameters);
           
         OpenPGPPacketInputStream in = null;
         
         try {
             in = new OpenPGPPacketInputStream(stream);
+            in.setLazy(true); // only the keys that match are decoded
 
             do {
-                p = in.readPacket();
+                if (next != null) {
+                    p = next;
+                    next = null;
+                } else {
+                    p = in.readPacket();
+                }
                 
                 if (p != null) {
                     // analyse packet
@@ -267,106 +380,77 @@ public abstract class OpenPGPKeyring extends KeyFile {
                     if (p instanceof UserIDPacket) 
                         uidPacket = (UserIDPacket)p;
                     
+                    // a self, binding or revocation signature for the key we just added
+                    if ((p instanceof SignaturePacket) && (current!=null))
+                        noteSignature(current, (SignaturePacket)p, primaryID);
+                    
                     // this is a key packet
                     if (p instanceof KeyPacket) { 
                         // this is a key
                         
                         KeyPacket k = (KeyPacket)p;
+                        current = null;
                         
                         // do i need parameters?
-                        if ((p instanceof SecretKeyPacket) && ((parameters == null) || (!(parameters instanceof OpenPGPFindKeyParameters))))
+                        if ((unlock) && (p instanceof SecretKeyPacket) && ((parameters == null) || (!(parameters instanceof OpenPGPFindKeyParameters))))
                             throw new KeyHandlerException("Parameters needed to decrypt secret key data");
                         
+                        boolean revoked = false;
+                        Vector byUserID = new Vector(); // lists of the identifiers searching by user ID that this key matches, they collect its subkeys too
                         
-                        // how are we searching for key?
-                        if (id instanceof OpenPGPStandardKeyIdentifier) {
-                            // Searching using standard "user <address@example.com>"
+                        if (!isSubKey(k)) {
+                            primaryID = k.getKeyID();
+                            
+                            // this is a primary key so skip packets until i get to a user ID packet, key revocations come before it
+                            do {
+                                p = in.readPacket();
 
-                            if (!isSubKey(p)) {
-                                // this is a primary key so look for uid and collect subkeys
-                                
-                                // skip packets until i get to a user ID packet
-                                do {
-                                    p = in.readPacket();
-                                    
-                                    if (p == null) throw new KeyHandlerException("Invalid keyring");
-                                } while (!(p instanceof UserIDPacket));
-                                
-                                UserIDPacket uid = (UserIDPacket)p;
-                                uidPacket = uid;
-                                
-                                // is this the key we were looking for?
-                                if (compareByteArrays(uid.getID(), id.getDefaultID())) {
-                                    // it is 
-                                    
-                                    // is it a secret key (attempt to decrypt it if it is)
-                                    if (k instanceof SecretKeyPacket) {
-                                        OpenPGPFindKeyParameters fkp = (OpenPGPFindKeyParameters)parameters;
-                                        SecretKeyPacket skp = (SecretKeyPacket)k;
-                                        skp.decryptKeyData(fkp.getPassPhrase());
-                                    }
-                                    
-                                    // add primary key 
-                                    keys.add(new OpenPGPKeyData(k));
-                                    
-                                    // add any subkeys
-                                    do {
-                                        p = in.readPacket();
-                                    
-                                        // is this a subkey, if so add it
-                                        if ((p != null) && (isSubKey(p))) {
-                                            
-                                            // is it a secret key (attempt to decrypt it if it is)
-                                            if (p instanceof SecretKeyPacket) {
-                                                OpenPGPFindKeyParameters fkp = (OpenPGPFindKeyParameters)parameters;
-                                                SecretKeyPacket skp = (SecretKeyPacket)p;
-                                                skp.decryptKeyData(fkp.getPassPhrase());
-                                            }
+                                if (p == null) throw new KeyHandlerException("Invalid keyring");
 
-                                            k = (KeyPacket)p;
-                                            
-                                            // add subkey
-                                            keys.add(new OpenPGPKeyData(k));
+                                if ((p instanceof SignaturePacket) && (isRevocation((SignaturePacket)p, k, primaryID)))
+                                    revoked = true;
+                            } while (!(p instanceof UserIDPacket));
 
-                                        }
-                                    } while ((p!=null) && ( (!(p instanceof KeyPacket)) || (isSubKey(p))));
-                                }
+                            uidPacket = (UserIDPacket)p;
+                            
+                            for (int n = 0; n < ids.length; n++) {
+                                if ((ids[n] instanceof OpenPGPStandardKeyIdentifier) && (compareByteArrays(uidPacket.getID(), ids[n].getDefaultID())))
+                                    byUserID.add(found[n]);
                             }
-                                
-                            // look for uid next, if not found fail.
-                        } else if (id instanceof OpenPGPKeyIDKeyIdentifier) {
-                            // Searching using keyID, if key is a wildcard or is the one we're looking for, add it
-                            byte wildcard[] = {0,0,0,0,0,0,0,0}; 
-
-                            if ((compareByteArrays(k.getKeyID(), id.getDefaultID())) || (compareByteArrays(id.getDefaultID(), wildcard))) {
-                                // i have finally found what i'm looking for...
-
-                                // test to see if this is a primary key packet, if it is we need to read user id packet
-                                if ( ((k instanceof SecretKeyPacket) && (!(k instanceof SecretSubkeyPacket)) ) || 
-                                    ( (k instanceof PublicKeyPacket) && (!(k instanceof PublicSubkeyPacket)) ) ) {
-                                        // skip packets until i get to a user ID packet
-                                        do {
-                                            p = in.readPacket();
+                        }
+                        
+                        Vector byKeyID = matchKeyID(k, ids, found);
+                        
+                        // is this a key we are looking for?
+                        if ((byUserID.size() > 0) || (byKeyID.size() > 0)) {
+                            current = readKey(k, unlock, parameters, uidPacket);
+                            current.setRevoked(revoked);
+                            addKey(current, byUserID);
+                            addKey(current, byKeyID);
+                        }
+                        
+                        // add any subkeys for the identifiers matching the user ID
+                        if (byUserID.size() > 0) {
+                            UserIDPacket uid = uidPacket;
+                            
+                            do {
+                                p = in.readPacket();
 
-                                            if (p == null) throw new KeyHandlerException("Invalid keyring");
-                                        } while (!(p instanceof UserIDPacket));
+                                // remember the self signature over the user ID (this holds the algorithm preferences), subkey binding 
+                                // signatures and revocations of the key most recently added
+                                if (p instanceof SignaturePacket) 
+                                    noteSignature(current, (SignaturePacket)p, primaryID);
 
-                                        uidPacket = (UserIDPacket)p;
+                                // is this a subkey, if so add it, signatures from here on belong to it
+                                if ((p != null) && (isSubKey(p))) {
+                                    current = readKey((KeyPacket)p, unlock, parameters, uid);
+                                    addKey(current, byUserID);
+                                    addKey(current, matchKeyID((KeyPacket)p, ids, found));
                                 }
-                                
-  
-                                // is it a secret key (attempt to decrypt it if it is)
-                                if (k instanceof SecretKeyPacket) {
-                                    OpenPGPFindKeyParameters fkp = (OpenPGPFindKeyParameters)parameters;
-                                    SecretKeyPacket skp = (SecretKeyPacket)k;
-                                    skp.decryptKeyData(fkp.getPassPhrase());
-                                }
-                                
-                                // add key                                
-                                keys.add(new OpenPGPKeyData(k));
-                            }
-                        } else {
-                            throw new KeyHandlerException("Unrecognised key identifier given");
+                            } while ((p!=null) && ( (!(p instanceof KeyPacket)) || (isSubKey(p))));
+                            
+                            // the next primary key may be wanted too
+                            next = p;
                         }
                     }
                 }
@@ -381,17 +465,721 @@ public abstract class OpenPGPKeyring extends KeyFile {
             throw new KeyHandlerException(e.getMessage());
         }
         
-        // return keys (or null if no keys found)
-        if (keys.size()>0) {
-            KeyData keydata[] = new KeyData[keys.size()];
-            for (int n = 0; n < keydata.length; n++) {
-                keydata[n] = (OpenPGPKeyData)keys.get(n);
+        // return keys for each identifier (or null if no keys found)
+        KeyData keydata[][] = new KeyData[ids.length][];
+        for (int n = 0; n < ids.length; n++) {
+            if (found[n].size()>0) {
+                keydata[n] = new KeyData[found[n].size()];
+                for (int cnt = 0; cnt < keydata[n].length; cnt++) {
+                    keydata[n][cnt] = (OpenPGPKeyData)found[n].get(cnt);
+                }
+            }
+        }
+        
+        return keydata;
+    }
+    
+    /**
+     * <p>Might the keyring hold keys matching an identifier?</p>
+     * <p>Binary keyrings answer from a Bloom filter over the index of the current snapshot, which is rebuilt whenever the 
+     * index changes. Other keyrings always might.</p>
+     */
+    public boolean mightHaveKeys(KeyIdentifier id) {
+        if (!isIndexed())
+            return true;
+        
+        try {
+            OpenPGPKeyringSnapshot keys = acquireSnapshot();
+            try {
+                return keys.mightHaveKeys(id);
+            } finally {
+                keys.release();
+            }
+        } catch (Exception e) {
+            // searching will report the problem
+            return true;
+        }
+    }
+    
+    /**
+     * <p>Can lookups in this keyring use a sidecar index file?</p>
+     * <p>Binary keyrings kept in local files are indexed, subclasses that store keys in another way should return false.</p>
+     */
+    protected boolean isIndexed() {
+        return true;
+    }
+    
+    /**
+     * <p>Discard the keyring's index, it is rebuilt by the next lookup.</p>
+     * <p>This should be called whenever the keyring file is rewritten.</p>
+     */
+    protected void invalidateIndex() {
+        getIndex().invalidate();
+    }
+    
+    /**
+     * <p>Bring the index up to date when the keyring file changes, only the appended keys are read if that is all that changed.</p>
+     * <p>A new snapshot is taken at the same time, so the next lookup doesn't have to.</p>
+     */
+    public void fileChanged(boolean appended) {
+        if (!isIndexed())
+            return;
+        
+        try {
+            takeSnapshot(true);
+        } catch (Exception e) {
+            // rebuilt by the next lookup
+            invalidateIndex();
+        }
+    }
+    
+    /**
+     * <p>Start changing the keyring, waiting until no other thread or program is changing it.</p>
+     * <p>Every call must be matched by a call to endWrite(), normally in a finally block. A thread that is already changing 
+     * the keyring may call this again.</p>
+     * @throws KeyHandlerException if the thread was interrupted while waiting.
+     */
+    protected void beginWrite() throws KeyHandlerException {
+        try {
+            KeyFileLock.getLock(getFileName()).lock();
+        } catch (IOException e) {
+            throw new KeyHandlerException(e.getMessage());
+        }
+    }
+    
+    /**
+     * <p>Finish changing the keyring.</p>
+     * <p>Once the outermost change is finished the current snapshot is retired, and the next lookup takes a new one.</p>
+     */
+    protected void endWrite() {
+        KeyFileLock lock = KeyFileLock.getLock(getFileName());
+        
+        if (lock.getHoldCount() == 1)
+            dropSnapshot();
+        
+        lock.unlock();
+    }
+    
+    /**
+     * <p>Return a snapshot of the keyring to read from, taking a new one if the keyring has changed since the last one was taken.</p>
+     * <p>If the keyring is being changed a snapshot from before the change is returned, so lookups don't wait for writers. 
+     * The caller must call release() on the snapshot once it has finished reading.</p>
+     */
+    private OpenPGPKeyringSnapshot acquireSnapshot() throws IOException {
+        while (true) {
+            OpenPGPKeyringSnapshot current = snapshot;
+            
+            if ((current == null) || (!current.isCurrent()))
+                current = takeSnapshot(current == null);
+            
+            if (current.acquire())
+                return current;
+            
+            // retired or closed before we could use it
+            if (snapshot == current)
+                dropSnapshot();
+        }
+    }
+    
+    /**
+     * <p>Take a new snapshot of the keyring and swap it in for lookups.</p>
+     * <p>The keyring is locked in shared mode while this is done, so the snapshot never holds a half finished change.</p>
+     * @param wait If false and the keyring is being changed, the current snapshot is returned rather than waiting for the change.
+     */
+    private OpenPGPKeyringSnapshot takeSnapshot(boolean wait) throws IOException {
+        KeyFileLock lock = KeyFileLock.getLock(getFileName());
+        
+        if (wait) {
+            lock.lockShared();
+        } else if (!lock.tryLockShared()) {
+            OpenPGPKeyringSnapshot current = snapshot;
+            if (current != null)
+                return current;
+            
+            lock.lockShared();
+        }
+        
+        try {
+            OpenPGPKeyringSnapshot taken = new OpenPGPKeyringSnapshot(getFileName(), getIndex(), getTombstones());
+            
+            OpenPGPKeyringSnapshot old = snapshot;
+            snapshot = taken;
+            if (old != null)
+                old.retire();
+            
+            return taken;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * <p>Retire the current snapshot, the next lookup takes a new one.</p>
+     */
+    private void dropSnapshot() {
+        OpenPGPKeyringSnapshot old = snapshot;
+        snapshot = null;
+        
+        if (old != null)
+            old.retire();
+    }
+    
+    /**
+     * <p>Replace the keyring with a new copy of it.</p>
+     * <p>The copy is renamed over the keyring, so a lookup sees either the old keyring or the new one. Some platforms can't 
+     * replace a file that is open, in which case lookups still reading the old keyring are waited for first.</p>
+     * @param tmp The new keyring, which must be in the same directory as the keyring.
+     * @param error The message given if the keyring can't be replaced.
+     */
+    private void replaceKeyring(File tmp, String error) throws IOException, KeyHandlerException {
+        File keyring = new File(getFileName());
+        
+        if (tmp.renameTo(keyring))
+            return;
+        
+        OpenPGPKeyringSnapshot old = snapshot;
+        snapshot = null;
+        if (old != null)
+            old.retireAndWait();
+        
+        if ((!keyring.delete()) || (!tmp.renameTo(keyring))) {
+            tmp.delete();
+            throw new KeyHandlerException(error);
+        }
+    }
+    
+    /**
+     * <p>Set append only mode.</p>
+     * <p>In append only mode removing a key appends a tombstone to a sidecar file rather than rewriting the keyring, and readers 
+     * skip the dead parts of the keyring. Once the dead parts reach the compaction threshold the keyring is rewritten without 
+     * them in the background. This makes removing many keys from a large keyring much cheaper.</p>
+     * <p>Only binary keyrings can be append only.</p>
+     */
+    public void setAppendOnly(boolean append) {
+        appendOnly = append;
+    }
+    
+    /** Is the keyring in append only mode? */
+    public boolean isAppendOnly() {
+        return appendOnly;
+    }
+    
+    /**
+     * <p>Set the proportion of the keyring that may be dead before an append only keyring is compacted.</p>
+     */
+    public void setCompactionThreshold(double threshold) {
+        compactionThreshold = threshold;
+    }
+    
+    /** Return the compaction threshold. */
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+    
+    /**
+     * <p>Rewrite the keyring without the keys that have been marked dead.</p>
+     * <p>This is done automatically in append only mode, but may be called at any time.</p>
+     * @throws KeyHandlerException if the keyring could not be rewritten, the tombstones are then left in place.
+     */
+    public void compact() throws KeyHandlerException {
+        if (!isIndexed())
+            return;
+        
+        beginWrite();
+        
+        try {
+            OpenPGPKeyringTombstones dead = getTombstones();
+            if (dead.getDeadBytes() == 0)
+                return;
+            
+            // copy the live parts of the keyring, the temp file is made next to the keyring so that it can be renamed over it
+            File keyring = new File(getFileName());
+            File tmp = File.createTempFile("sep", null, keyring.getAbsoluteFile().getParentFile());
+            
+            InputStream in = dead.openLive();
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+            
+            try {
+                byte buffer[] = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) > 0)
+                    out.write(buffer, 0, read);
+            } finally {
+                in.close();
+                out.close();
             }
+            
+            replaceKeyring(tmp, "Failed to create compacted keyring!");
+            
+            dead.clear();
+            invalidateIndex();
+            
+        } catch (KeyHandlerException k) {
+            throw k;
+        } catch (Exception e) {
+            throw new KeyHandlerException(e.getMessage());
+        } finally {
+            endWrite();
+        }
+    }
+    
+    /**
+     * <p>Import a dump of keys, merging them with the keys already in the keyring.</p>
+     * <p>The keys are parsed and verified as described in OpenPGPKeyImporter. Keys new to the keyring and keys that have had 
+     * anything added are collected in a spool file, and when the whole dump has been read the keyring is written once: the 
+     * keys that haven't changed are copied, the dead parts of an append only keyring are left out, and the new and merged keys 
+     * are appended. The keyring is only replaced once the new copy has been flushed to disk, so a failed import changes nothing.</p>
+     * @param in The binary OpenPGP packets to import.
+     * @param importer The importer to use, this sets the batch size and the thread pool.
+     * @return Statistics describing the import.
+     * @throws KeyHandlerException if the keys could not be imported, the keyring is then left as it was.
+     */
+    public OpenPGPKeyImporter.Statistics importKeys(InputStream in, OpenPGPKeyImporter importer) throws KeyHandlerException {
+        if (!isIndexed())
+            throw new KeyHandlerException("Keys can only be imported into binary keyrings.");
         
-            return keydata;    
-        } 
+        beginWrite();
         
-        return null;
+        try {
+            return importer.run(in, new KeyringImportTarget());
+        } catch (KeyHandlerException k) {
+            throw k;
+        } catch (Exception e) {
+            throw new KeyHandlerException(e.getMessage());
+        } finally {
+            endWrite();
+        }
+    }
+    
+    /**
+     * <p>Collects the keys being imported into the keyring and writes the keyring when the import is committed.</p>
+     */
+    private class KeyringImportTarget implements OpenPGPKeyImporter.Target {
+        
+        private File keyring = new File(getFileName());
+        private File spoolFile;
+        private RandomAccessFile spool;
+        
+        /** Spooled keys, key ID to long[] { spool offset, length }, and the order they were first written. */
+        private Hashtable spooled = new Hashtable();
+        private Vector order = new Vector();
+        
+        /** Blocks of the keyring being replaced by merged copies, as long[] { offset, length }. */
+        private Vector replaced = new Vector();
+        
+        KeyringImportTarget() throws IOException {
+            spoolFile = File.createTempFile("sep", null, keyring.getAbsoluteFile().getParentFile());
+            spool = new RandomAccessFile(spoolFile, "rw");
+        }
+        
+        public boolean isSecret() {
+            return OpenPGPKeyring.this instanceof OpenPGPSecretKeyring;
+        }
+        
+        public byte[] read(byte keyID[]) throws Exception {
+            long pos[] = (long[])spooled.get(new String(keyID, "ISO-8859-1"));
+            if (pos != null) {
+                byte data[] = new byte[(int)pos[1]];
+                spool.seek(pos[0]);
+                spool.readFully(data);
+                
+                return data;
+            }
+            
+            if (!keyring.exists())
+                return null;
+            
+            Vector blocks = getIndex().findBlocks(new OpenPGPKeyIDKeyIdentifier(keyID));
+            if (blocks == null)
+                return null;
+            
+            RandomAccessFile file = new RandomAccessFile(keyring, "r");
+            try {
+                for (int n = 0; n < blocks.size(); n++) {
+                    long block[] = (long[])blocks.elementAt(n);
+                    
+                    // the key ID could belong to a subkey, or the primary key could have been removed
+                    byte data[] = getTombstones().readLive(file, block[0], (int)block[1]);
+                    if (data.length == 0)
+                        continue;
+                    
+                    OpenPGPPacketInputStream in = new OpenPGPPacketInputStream(new ByteArrayInputStream(data));
+                    in.setLazy(true);
+                    
+                    Packet p = in.readPacket();
+                    if ((p instanceof KeyPacket) && (!isSubKey(p)) && (compareByteArrays(((KeyPacket)p).getKeyID(), keyID))) {
+                        replaced.add(block);
+                        return data;
+                    }
+                }
+            } finally {
+                file.close();
+            }
+            
+            return null;
+        }
+        
+        public void write(byte keyID[], byte block[]) throws Exception {
+            String key = new String(keyID, "ISO-8859-1");
+            
+            if (!spooled.containsKey(key))
+                order.add(key);
+            
+            long pos[] = { spool.length(), block.length };
+            spool.seek(pos[0]);
+            spool.write(block);
+            
+            spooled.put(key, pos);
+        }
+        
+        public void commit() throws Exception {
+            if (order.size() == 0) {
+                abort();
+                return;
+            }
+            
+            File tmp = File.createTempFile("sep", null, keyring.getAbsoluteFile().getParentFile());
+            FileOutputStream fout = new FileOutputStream(tmp);
+            OutputStream out = new BufferedOutputStream(fout, 65536);
+            
+            try {
+                // unchanged keys
+                if (keyring.exists())
+                    copyLive(out);
+                
+                // new and merged keys
+                byte buffer[] = new byte[65536];
+                for (int n = 0; n < order.size(); n++) {
+                    long pos[] = (long[])spooled.get(order.elementAt(n));
+                    
+                    spool.seek(pos[0]);
+                    for (long left = pos[1]; left > 0; ) {
+                        int read = spool.read(buffer, 0, (int)Math.min(buffer.length, left));
+                        if (read < 0)
+                            throw new EOFException("Import spool file is truncated.");
+                        
+                        out.write(buffer, 0, read);
+                        left -= read;
+                    }
+                }
+                
+                out.flush();
+                fout.getFD().sync();
+                
+            } catch (Exception e) {
+                out.close();
+                tmp.delete();
+                throw e;
+            }
+            
+            out.close();
+            abort();
+            
+            replaceKeyring(tmp, "Failed to create modified keyring!");
+            
+            getTombstones().clear();
+            invalidateIndex();
+        }
+        
+        public void abort() {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                // nothing more can be done, the spool file is deleted anyway
+            }
+            
+            spoolFile.delete();
+        }
+        
+        /** Copy the keyring, leaving out the dead ranges and the blocks being replaced. */
+        private void copyLive(OutputStream out) throws IOException {
+            long dead[][] = getTombstones().getDeadRanges();
+            
+            Vector skip = new Vector(replaced);
+            for (int n = 0; n < dead.length; n++)
+                skip.add(dead[n]);
+            
+            Collections.sort(skip, new Comparator() {
+                public int compare(Object o1, Object o2) {
+                    long a = ((long[])o1)[0];
+                    long b = ((long[])o2)[0];
+                    
+                    return (a < b) ? -1 : ((a == b) ? 0 : 1);
+                }
+            });
+            
+            RandomAccessFile file = new RandomAccessFile(keyring, "r");
+            try {
+                long pos = 0;
+                for (int n = 0; n < skip.size(); n++) {
+                    long range[] = (long[])skip.elementAt(n);
+                    
+                    if (range[0] > pos)
+                        copy(file, pos, range[0] - pos, out);
+                    
+                    pos = Math.max(pos, range[0] + range[1]);
+                }
+                
+                copy(file, pos, file.length() - pos, out);
+                
+            } finally {
+                file.close();
+            }
+        }
+        
+        private void copy(RandomAccessFile file, long offset, long length, OutputStream out) throws IOException {
+            byte buffer[] = new byte[65536];
+            
+            file.seek(offset);
+            while (length > 0) {
+                int read = file.read(buffer, 0, (int)Math.min(buffer.length, length));
+                if (read < 0)
+                    throw new EOFException("Keyring is truncated.");
+                
+                out.write(buffer, 0, read);
+                length -= read;
+            }
+        }
+    }
+    
+    /**
+     * <p>Remove keys in append only mode by marking them with tombstones.</p>
+     * <p>The keys are found through the index, and are matched in the same way as removeKeys() matches them when rewriting 
+     * the keyring. Keys that have already been removed are not counted again.</p>
+     */
+    private int removeKeysAppending(KeyIdentifier id) throws KeyHandlerException {
+        int numDeleted = 0;
+        
+        if ((!(id instanceof OpenPGPStandardKeyIdentifier)) && (!(id instanceof OpenPGPKeyIDKeyIdentifier)))
+            throw new KeyHandlerException("Unrecognised key identifier given");
+        
+        try {
+            OpenPGPKeyringTombstones dead = getTombstones();
+            
+            Vector blocks = getIndex().findBlocks(id);
+            if (blocks == null)
+                return 0;
+            
+            RandomAccessFile file = new RandomAccessFile(getFileName(), "r");
+            
+            try {
+                for (int n = 0; n < blocks.size(); n++) {
+                    long block[] = (long[])blocks.elementAt(n);
+                    
+                    byte data[] = new byte[(int)block[1]];
+                    file.seek(block[0]);
+                    file.readFully(data);
+                    
+                    // find where each key and its signatures start
+                    ByteArrayInputStream bin = new ByteArrayInputStream(data);
+                    OpenPGPPacketInputStream in = new OpenPGPPacketInputStream(bin);
+                    in.setLazy(true);
+                    
+                    Vector keys = new Vector();
+                    Vector starts = new Vector();
+                    byte userID[] = null;
+                    
+                    long start = 0;
+                    Packet p = in.readPacket();
+                    while (p != null) {
+                        if (p instanceof KeyPacket) {
+                            keys.add(p);
+                            starts.add(new Long(start));
+                        }
+                        
+                        if ((p instanceof UserIDPacket) && (userID == null))
+                            userID = ((UserIDPacket)p).getID();
+                        
+                        start = data.length - bin.available();
+                        p = in.readPacket();
+                    }
+                    starts.add(new Long(data.length));
+                    
+                    for (int cnt = 0; cnt < keys.size(); cnt++) {
+                        KeyPacket k = (KeyPacket)keys.elementAt(cnt);
+                        
+                        boolean match;
+                        if (id instanceof OpenPGPStandardKeyIdentifier)
+                            match = (!isSubKey(k)) && (userID != null) && (compareByteArrays(userID, id.getDefaultID()));
+                        else 
+                            match = compareByteArrays(k.getKeyID(), id.getDefaultID());
+                        
+                        if (!match)
+                            continue;
+                        
+                        // a primary key takes its subkeys with it
+                        int last = cnt;
+                        if (!isSubKey(k)) {
+                            while ((last + 1 < keys.size()) && (isSubKey((KeyPacket)keys.elementAt(last + 1))))
+                                last++;
+                        }
+                        
+                        long rangeStart = ((Long)starts.elementAt(cnt)).longValue();
+                        long rangeEnd = ((Long)starts.elementAt(last + 1)).longValue();
+                        
+                        for (int key = cnt; key <= last; key++) {
+                            long keyStart = ((Long)starts.elementAt(key)).longValue();
+                            long keyEnd = ((Long)starts.elementAt(key + 1)).longValue();
+                            
+                            if (!dead.isDead(block[0] + keyStart, keyEnd - keyStart))
+                                numDeleted++;
+                        }
+                        
+                        if (!dead.isDead(block[0] + rangeStart, rangeEnd - rangeStart))
+                            dead.add(block[0] + rangeStart, rangeEnd - rangeStart);
+                        
+                        cnt = last;
+                    }
+                }
+            } finally {
+                file.close();
+            }
+            
+            // compact in the background once enough of the keyring is dead
+            if ((numDeleted > 0) && (dead.getDeadBytes() > getCompactionThreshold() * new File(getFileName()).length()))
+                startCompaction();
+            
+        } catch (KeyHandlerException k) {
+            throw k;
+        } catch (Exception e) {
+            throw new KeyHandlerException(e.getMessage());
+        }
+        
+        return numDeleted;
+    }
+    
+    /**
+     * <p>Start compacting the keyring in the background, unless this is already being done.</p>
+     */
+    private synchronized void startCompaction() {
+        if ((compactor != null) && (compactor.isAlive()))
+            return;
+        
+        compactor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    compact();
+                } catch (KeyHandlerException e) {
+                    // the tombstones are left in place, compaction will be tried again after the next removal
+                    System.err.println("Keyring " + getFileName() + " could not be compacted: " + e.getMessage());
+                }
+            }
+        }, "Keyring compactor");
+        
+        compactor.start();
+    }
+    
+    /**
+     * <p>Open the keyring file for reading, skipping any keys that have been marked dead.</p>
+     */
+    protected InputStream openKeyring() throws IOException {
+        if (isIndexed())
+            return getTombstones().openLive();
+        
+        return new FileInputStream(getFileName());
+    }
+    
+    /** Return the tombstones for the current keyring file. */
+    private synchronized OpenPGPKeyringTombstones getTombstones() {
+        if ((tombstones == null) || (!tombstones.getKeyringFileName().equals(getFileName())))
+            tombstones = new OpenPGPKeyringTombstones(getFileName());
+        
+        return tombstones;
+    }
+    
+    /** Return the index for the current keyring file. */
+    private synchronized OpenPGPKeyringIndex getIndex() {
+        if ((keyringIndex == null) || (!keyringIndex.getKeyringFileName().equals(getFileName())))
+            keyringIndex = new OpenPGPKeyringIndex(getFileName());
+        
+        return keyringIndex;
+    }
+    
+    /**
+     * <p>Read the blocks of a keyring snapshot that its index says could hold keys matching a number of identifiers.</p>
+     * @return A stream holding the blocks in keyring order, or null if the whole keyring must be read.
+     */
+    private InputStream readIndexedBlocks(OpenPGPKeyringSnapshot keys, KeyIdentifier ids[]) {
+        try {
+            
+            // collect the blocks, sorted by offset with duplicates removed
+            Vector blocks = new Vector();
+            for (int n = 0; n < ids.length; n++) {
+                Vector found = keys.findBlocks(ids[n]);
+                if (found == null)
+                    return null;
+                
+                for (int cnt = 0; cnt < found.size(); cnt++) {
+                    long block[] = (long[])found.elementAt(cnt);
+                    
+                    int pos = 0;
+                    while ((pos < blocks.size()) && (((long[])blocks.elementAt(pos))[0] < block[0]))
+                        pos++;
+                    
+                    if ((pos == blocks.size()) || (((long[])blocks.elementAt(pos))[0] != block[0]))
+                        blocks.insertElementAt(block, pos);
+                }
+            }
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int n = 0; n < blocks.size(); n++) {
+                long block[] = (long[])blocks.elementAt(n);
+                
+                out.write(keys.readLive(block[0], (int)block[1]));
+            }
+            
+            return new ByteArrayInputStream(out.toByteArray());
+            
+        } catch (Exception e) {
+            // a damaged index is rebuilt by the next lookup, this time read the whole keyring
+            invalidateIndex();
+            return null;
+        }
+    }
+    
+    /**
+     * <p>Return the lists of found keys for the identifiers searching by key ID that match a key.</p>
+     * <p>An identifier holding an 8 byte array of zeros is a wildcard and matches every key.</p>
+     */
+    private Vector matchKeyID(KeyPacket k, KeyIdentifier ids[], Vector found[]) throws Exception {
+        byte wildcard[] = {0,0,0,0,0,0,0,0}; 
+        Vector matches = new Vector();
+        
+        for (int n = 0; n < ids.length; n++) {
+            if ((ids[n] instanceof OpenPGPKeyIDKeyIdentifier) && 
+                ((compareByteArrays(k.getKeyID(), ids[n].getDefaultID())) || (compareByteArrays(ids[n].getDefaultID(), wildcard))))
+                matches.add(found[n]);
+        }
+        
+        return matches;
+    }
+    
+    /**
+     * <p>Create the key data for a key that has been found, decrypting it first if it is a secret key that should be unlocked.</p>
+     * <p>This is done once however many identifiers the key matches.</p>
+     */
+    private OpenPGPKeyData readKey(KeyPacket k, boolean unlock, KeyHandlerParameters parameters, UserIDPacket uid) throws Exception {
+        
+        // is it a secret key (attempt to decrypt it if it is)
+        if ((unlock) && (k instanceof SecretKeyPacket)) {
+            OpenPGPFindKeyParameters fkp = (OpenPGPFindKeyParameters)parameters;
+            SecretKeyPacket skp = (SecretKeyPacket)k;
+            skp.decryptKeyData(fkp.getPassPhrase());
+        }
+        
+        OpenPGPKeyData key = new OpenPGPKeyData(k, !unlock);
+        if (uid != null)
+            key.setUserID(new String(uid.getID()));
+        
+        return key;
+    }
+    
+    /**
+     * <p>Add a found key to each of a list of found key lists.</p>
+     */
+    private void addKey(OpenPGPKeyData key, Vector lists) {
+        for (int n = 0; n < lists.size(); n++)
+            ((Vector)lists.elementAt(n)).add(key);
     }
 
     /**
@@ -404,7 +1192,17 @@ public abstract class OpenPGPKeyring extends KeyFile {
      */
     public Object[] toArray() throws KeyHandlerException {
         try {
-            return toArray(new FileInputStream(getFileName()));
+            if (!isIndexed())
+                return toArray(openKeyring());
+            
+            OpenPGPKeyringSnapshot keys = acquireSnapshot();
+            try {
+                return toArray(keys.openLive());
+            } finally {
+                keys.release();
+            }
+        } catch (KeyHandlerException k) {
+            throw k;
         } catch (Exception e) {
             throw new KeyHandlerException(e.getMessage());
         }
@@ -416,6 +1214,7 @@ public abstract class OpenPGPKeyring extends KeyFile {
         try {
             
             OpenPGPPacketInputStream pin = new OpenPGPPacketInputStream(in);
+            pin.setLazy(true); // decoded if the caller looks at them
             
             Packet p = null;
             
@@ -452,6 +1251,79 @@ public abstract class OpenPGPKeyring extends KeyFile {
             return false;
     }
     
+    /** 
+     * <p>Quick test to see if a signature packet is a user ID certification made by the given key.</p>
+     */
+    protected boolean isSelfSignature(SignaturePacket sig, byte [] keyID) {
+        try {
+            int type = sig.getSignatureData().getSignatureType();
+            
+            if ((type < SignaturePacket.GENERIC_UID) || (type > SignaturePacket.POSITIVE_UID))
+                return false;
+            
+            return compareByteArrays(sig.getKeyID(), keyID);
+        } catch (AlgorithmException e) {
+            // no issuer information
+            return false;
+        }
+    }
+    
+    /** 
+     * <p>Quick test to see if a signature packet is a subkey binding signature made by the given (primary) key.</p>
+     */
+    protected boolean isBindingSignature(SignaturePacket sig, byte [] keyID) {
+        try {
+            if (sig.getSignatureData().getSignatureType() != SignaturePacket.SUBKEY_BIND)
+                return false;
+            
+            return ((keyID!=null) && (compareByteArrays(sig.getKeyID(), keyID)));
+        } catch (AlgorithmException e) {
+            // no issuer information
+            return false;
+        }
+    }
+    
+    /** 
+     * <p>Record what a signature following a key says about it.</p>
+     * <p>The first self signature of a primary key (or binding signature of a subkey) is kept, since it carries the key's 
+     * preferences, usage flags and expiry, and revocations are noted.</p>
+     * @param key The key the signature follows.
+     * @param sig The signature packet.
+     * @param primaryID The key ID of the primary key that the key belongs to.
+     */
+    protected void noteSignature(OpenPGPKeyData key, SignaturePacket sig, byte [] primaryID) {
+        if (isRevocation(sig, key.getKeyPacket(), primaryID))
+            key.setRevoked(true);
+        
+        if (key.getSelfSignature()==null) {
+            boolean self = (primaryID!=null) && ((isSubKey(key.getKeyPacket())) ? isBindingSignature(sig, primaryID) : isSelfSignature(sig, primaryID));
+            
+            if (self)
+                key.setSelfSignature(sig);
+        }
+    }
+    
+    /** 
+     * <p>Quick test to see if a signature packet revokes the given key.</p>
+     * <p>Only revocations issued by the primary key are recognised, designated revokers are not supported.</p>
+     * @param sig The signature packet.
+     * @param key The key that the signature follows.
+     * @param primaryID The key ID of the primary key that the key belongs to.
+     */
+    protected boolean isRevocation(SignaturePacket sig, KeyPacket key, byte [] primaryID) {
+        try {
+            int type = sig.getSignatureData().getSignatureType();
+            
+            if (type != (isSubKey(key) ? SignaturePacket.SUBKEY_REVOCATION : SignaturePacket.KEY_REVOCATION))
+                return false;
+            
+            return ((primaryID!=null) && (compareByteArrays(sig.getKeyID(), primaryID)));
+        } catch (AlgorithmException e) {
+            // no issuer information
+            return false;
+        }
+    }
+    
     /** 
      * <p>A quick method to compare two byte arrays.</p>
      * @return true if the two byte arrays match, false if not.
@@ -527,7 +1399,7 @@ public abstract class OpenPGPKeyring extends KeyFile {
             keyID, // the key ID
             0x10, // signature type (generic certification of a user ID and public key packet)
             param.getPublicKeyAlgorithm(), // key algorithm
-            2, // hash algorithm (SHA1)
+            getSelfSignatureHashAlgorithm(param), // hash algorithm
             hashData
         );
 
@@ -543,6 +1415,8 @@ public abstract class OpenPGPKeyring extends KeyFile {
         // algorithm prefs
         if (param.getSymmetricAlgorithmPrefs()!=null)
             sigMaterial.addHashedSubPacket(new PreferredSymmetricAlgorithmSubPacket(param.getSymmetricAlgorithmPrefs()));
+        if (param.getHashAlgorithmPrefs()!=null)
+            sigMaterial.addHashedSubPacket(new PreferredHashAlgorithmSubPacket(param.getHashAlgorithmPrefs()));
 
         // resign data
         sigMaterial.sign(key, hashData);
@@ -565,7 +1439,7 @@ public abstract class OpenPGPKeyring extends KeyFile {
             keyID, // key ID of signing key
             0x18, // signature type (subkey binding signature)
             param.getPublicKeyAlgorithm(), // key algorithm
-            2, // hash algorithm (SHA1)
+            getSelfSignatureHashAlgorithm(param), // hash algorithm
             hashData
         );
 
@@ -581,6 +1455,23 @@ public abstract class OpenPGPKeyring extends KeyFile {
         return sigMaterial;
     }
     
+    /** 
+     * <p>Return the hash algorithm used to generate key self signatures.</p>
+     * <p>This is the first supported algorithm in the key's hash preferences, or SHA1 if no preferences were given.</p>
+     */
+    protected int getSelfSignatureHashAlgorithm(OpenPGPAddKeyParameters param) {
+        byte prefs[] = param.getHashAlgorithmPrefs();
+        
+        if (prefs!=null) {
+            for (int n = 0; n < prefs.length; n++) {
+                if (HashAlgorithmSettings.isSupported(prefs[n] & 0xFF))
+                    return prefs[n] & 0xFF;
+            }
+        }
+        
+        return HashAlgorithmSettings.SHA1;
+    }
+    
     /** 
      * A quick method to generate an itterated and salted S2K object for generating secret key packets.
      */
@@ -0,0 +1,686 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.keyhandlers;
+import core.algorithmhandlers.openpgp.*;
+import core.algorithmhandlers.openpgp.packets.*;
+import core.keyhandlers.identifiers.*;
+import core.exceptions.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A binary index file kept next to an OpenPGP keyring, so that keys can be found without reading the whole keyring.</p>
+ * <p>The index is a sorted table of key IDs, fingerprints and user ID hashes, each mapped to the position in the keyring of the 
+ * transferable key (the primary key with its user IDs, signatures and subkeys) it belongs to. It is read through a memory mapped 
+ * FileChannel and searched with a binary search, so a lookup only touches the few index entries and keyring blocks it needs.</p>
+ * <p>The index records the modification time and length of the keyring it was built from. If the keyring has only had keys 
+ * appended since, just the new keys are read and added to the index. If it has changed in any other way, the index is rebuilt 
+ * with one pass over the keyring. Either way the index is written back for next time.</p>
+ * <p>The loaded index is held in a Table, which is never changed once made. Bringing the index up to date makes a new table 
+ * and swaps it in, so a table taken by a reader stays valid and can be searched without holding any lock.</p>
+ * <p>Index file format, all numbers big endian:</p>
+ * <pre>
+ * 8 bytes  Magic "SEPKIDX2"
+ * 8 bytes  Keyring modification time
+ * 8 bytes  Keyring length
+ * 8 bytes  CRC32 of the last TAIL_SIZE bytes of the keyring, used to check that a longer keyring only had keys appended
+ * 4 bytes  Number of entries
+ * 
+ * Entries, sorted on type then value:
+ * 1 byte   Entry type (KEY_ID, FINGERPRINT or USER_ID)
+ * 20 bytes Value, a key ID or fingerprint padded with zeros or the SHA1 hash of a user ID
+ * 8 bytes  Offset of the transferable key in the keyring
+ * 4 bytes  Length of the transferable key
+ * </pre>
+ */
+public class OpenPGPKeyringIndex {
+    
+    /** The extension added to the keyring file name to give the index file name. */
+    public static final String EXTENSION = ".idx";
+    
+    /** Entry types. */
+    public static final int KEY_ID = 0;
+    public static final int FINGERPRINT = 1;
+    public static final int USER_ID = 2;
+    
+    private static final byte MAGIC[] = {'S','E','P','K','I','D','X','2'};
+    private static final int HEADER_SIZE = 36;
+    private static final int TAIL_SIZE = 4096;
+    private static final int VALUE_SIZE = 20;
+    private static final int ENTRY_SIZE = 1 + VALUE_SIZE + 8 + 4;
+    
+    /** The false positive rate of the Bloom filter built over each table. */
+    private static final double FILTER_FALSE_POSITIVES = 0.01;
+    
+    /** The keyring file. */
+    private File keyring;
+    
+    /** The index file. */
+    private File indexFile;
+    
+    /** The loaded index, or null if the index hasn't been loaded. */
+    private Table table;
+    
+    /** Creates a new index for a keyring file, nothing is read until the index is first used. */
+    public OpenPGPKeyringIndex(String keyringFile) {
+        keyring = new File(keyringFile);
+        indexFile = new File(keyringFile + EXTENSION);
+    }
+    
+    /** Return the file name of the keyring being indexed. */
+    public String getKeyringFileName() {
+        return keyring.getPath();
+    }
+    
+    /**
+     * <p>Find the blocks of the keyring that could hold the keys matching an identifier.</p>
+     * <p>Standard identifiers are matched against the first user ID of each key and key ID identifiers against the ID of each 
+     * key and subkey, in the same way as the keyring search does.</p>
+     * @return A list of long[] {offset, length} pairs, empty if no keys match, or null if the identifier can't be looked up 
+     * with the index (for example a wildcard key ID) and the whole keyring must be read.
+     * @throws IOException if the index could not be read or built.
+     */
+    public Vector findBlocks(KeyIdentifier id) throws IOException, KeyHandlerException {
+        byte target[] = makeTarget(id);
+        if (target == null)
+            return null;
+        
+        return getTable().search(target);
+    }
+    
+    /**
+     * <p>Return the index for the keyring as it is now, bringing it up to date first if the keyring has changed.</p>
+     * <p>The table returned is not changed by later updates.</p>
+     * @throws IOException if the index could not be read or built.
+     */
+    public synchronized Table getTable() throws IOException {
+        load();
+        
+        return table;
+    }
+    
+    /**
+     * <p>Bring the index up to date with the keyring now, rather than when it is next used.</p>
+     * <p>Call this when the keyring is known to have changed, for example by KeyFileWatcher.</p>
+     */
+    public synchronized void refresh() throws IOException {
+        load();
+    }
+    
+    /**
+     * <p>Forget the loaded index and delete the index file, so that it is rebuilt when it is next used.</p>
+     * <p>Call this when the keyring has been rewritten.</p>
+     */
+    public synchronized void invalidate() {
+        table = null;
+        indexFile.delete();
+    }
+    
+    /**
+     * <p>Make sure an index for the current keyring is loaded, mapping the index file if there is one, adding any keys that 
+     * have been appended to the keyring since and rebuilding it if the keyring has changed in any other way.</p>
+     */
+    private void load() throws IOException {
+        long modified = keyring.lastModified();
+        long length = keyring.length();
+        
+        if ((table == null) && (indexFile.exists()))
+            map();
+        
+        if ((table != null) && (modified == table.keyringModified) && (length == table.keyringLength))
+            return;
+        
+        if ((table != null) && (length > table.keyringLength) && (checksumTail(table.keyringLength) == table.keyringTail) && 
+            (extend(modified, length)))
+            return;
+        
+        build(modified, length);
+    }
+    
+    /**
+     * <p>Map the index file, which may be an index of an earlier version of the keyring.</p>
+     * @return false if the file is not a valid index.
+     */
+    private boolean map() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < HEADER_SIZE) 
+                return false;
+            
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            
+            byte magic[] = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                return false;
+            
+            long modified = buffer.getLong();
+            long length = buffer.getLong();
+            long tail = buffer.getLong();
+            
+            int count = buffer.getInt();
+            if (channel.size() != HEADER_SIZE + (long)count * ENTRY_SIZE)
+                return false;
+            
+            table = new Table(buffer.slice(), count, modified, length, tail);
+            
+            return true;
+            
+        } finally {
+            file.close(); // the mapping stays valid after the channel is closed
+        }
+    }
+    
+    /**
+     * <p>Build the index with one pass over the keyring and write it to the index file.</p>
+     * <p>If the index file can't be written the index is still used from memory.</p>
+     */
+    private void build(long modified, long length) throws IOException {
+        
+        Vector list = new Vector();
+        readEntries(0, length, list);
+        
+        // sort
+        byte sorted[][] = new byte[list.size()][];
+        list.copyInto(sorted);
+        Arrays.sort(sorted, ENTRY_ORDER);
+        
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + sorted.length * ENTRY_SIZE);
+        writeHeader(buffer, modified, length, sorted.length);
+        for (int n = 0; n < sorted.length; n++)
+            buffer.put(sorted[n]);
+        
+        use(buffer, sorted.length, modified, length);
+    }
+    
+    /**
+     * <p>Add the keys appended to the keyring since the index was built, merging their entries into the sorted table.</p>
+     * @return false if the new part of the keyring does not start with a primary key, the index must then be rebuilt.
+     */
+    private boolean extend(long modified, long length) throws IOException {
+        
+        Vector list = new Vector();
+        if (!readEntries(table.keyringLength, length, list))
+            return false;
+        
+        byte added[][] = new byte[list.size()][];
+        list.copyInto(added);
+        Arrays.sort(added, ENTRY_ORDER);
+        
+        int count = table.entryCount + added.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * ENTRY_SIZE);
+        writeHeader(buffer, modified, length, count);
+        
+        // merge the two sorted tables, the old table may be in use so it is read through a duplicate
+        ByteBuffer entries = table.entries.duplicate();
+        byte entry[] = new byte[ENTRY_SIZE];
+        int next = 0;
+        for (int n = 0; n < table.entryCount; n++) {
+            while ((next < added.length) && (table.compareEntry(added[next], n * ENTRY_SIZE) < 0))
+                buffer.put(added[next++]);
+            
+            entries.position(n * ENTRY_SIZE);
+            entries.get(entry);
+            buffer.put(entry);
+        }
+        
+        while (next < added.length)
+            buffer.put(added[next++]);
+        
+        use(buffer, count, modified, length);
+        
+        return true;
+    }
+    
+    /**
+     * <p>Start an index file.</p>
+     */
+    private void writeHeader(ByteBuffer buffer, long modified, long length, int count) throws IOException {
+        buffer.put(MAGIC);
+        buffer.putLong(modified);
+        buffer.putLong(length);
+        buffer.putLong(checksumTail(length));
+        buffer.putInt(count);
+    }
+    
+    /**
+     * <p>Write a new index file and start using it.</p>
+     */
+    private void use(ByteBuffer buffer, int count, long modified, long length) {
+        save(buffer.array());
+        
+        long tail = buffer.getLong(MAGIC.length + 16);
+        buffer.position(HEADER_SIZE);
+        table = new Table(buffer.slice(), count, modified, length, tail);
+    }
+    
+    /**
+     * <p>Read the index entries for part of the keyring.</p>
+     * <p>Only the part of the keyring up to the given length is read, keys appended after that are indexed next time.</p>
+     * @param from Where to start, this must be the start of a transferable key.
+     * @param length Where to stop.
+     * @return false if there isn't a primary key at the start.
+     */
+    private boolean readEntries(long from, long length, Vector list) throws IOException {
+        
+        InputStream file = new FileInputStream(keyring);
+        
+        for (long left = from; left > 0; ) {
+            long skipped = file.skip(left);
+            if (skipped <= 0) {
+                file.close();
+                throw new EOFException("Keyring is shorter than its index.");
+            }
+            
+            left -= skipped;
+        }
+        
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(file), from, length);
+        OpenPGPPacketInputStream in = new OpenPGPPacketInputStream(counter);
+        in.setLazy(true); // only key IDs, fingerprints and user IDs are needed
+        
+        try {
+            Vector block = new Vector(); // entries for the transferable key being read, their length is filled in at the end
+            long blockStart = 0;
+            boolean needUserID = false;
+            
+            long start = counter.getCount();
+            Packet p = in.readPacket();
+            
+            if ((p != null) && ((!(p instanceof KeyPacket)) || (p instanceof PublicSubkeyPacket) || (p instanceof SecretSubkeyPacket)))
+                return false;
+            
+            while (p != null) {
+                
+                if (p instanceof KeyPacket) {
+                    KeyPacket k = (KeyPacket)p;
+                    
+                    if ((!(k instanceof PublicSubkeyPacket)) && (!(k instanceof SecretSubkeyPacket))) {
+                        // a new primary key starts a new block
+                        endBlock(list, block, start - blockStart);
+                        blockStart = start;
+                        needUserID = true;
+                    }
+                    
+                    block.add(makeEntry(KEY_ID, pad(k.getKeyID()), blockStart));
+                    block.add(makeEntry(FINGERPRINT, pad(k.getFingerprint()), blockStart));
+                }
+                
+                // keys are searched for by their first user ID
+                if ((p instanceof UserIDPacket) && (needUserID)) {
+                    block.add(makeEntry(USER_ID, hash(((UserIDPacket)p).getID()), blockStart));
+                    needUserID = false;
+                }
+                
+                start = counter.getCount();
+                p = in.readPacket();
+            }
+            
+            endBlock(list, block, start - blockStart);
+            
+        } catch (AlgorithmException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            counter.close();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * <p>Calculate the CRC32 of the part of the keyring just before a given position.</p>
+     * @return the checksum, or -1 if the keyring is shorter than that.
+     */
+    private long checksumTail(long end) throws IOException {
+        if (keyring.length() < end)
+            return -1;
+        
+        long start = Math.max(0, end - TAIL_SIZE);
+        byte data[] = new byte[(int)(end - start)];
+        
+        RandomAccessFile file = new RandomAccessFile(keyring, "r");
+        try {
+            file.seek(start);
+            file.readFully(data);
+        } finally {
+            file.close();
+        }
+        
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        
+        return crc.getValue();
+    }
+    
+    /**
+     * <p>Write the index file, via a temporary file so that a half written index is never read.</p>
+     */
+    private void save(byte data[]) {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            
+            if ((!tmp.renameTo(indexFile)) && ((!indexFile.delete()) || (!tmp.renameTo(indexFile))))
+                tmp.delete();
+            
+        } catch (IOException e) {
+            // the keyring's directory may not be writable, the index is then only kept in memory
+            tmp.delete();
+        }
+    }
+    
+    /** 
+     * <p>Fill in the length of the block just read and move its entries to the list.</p>
+     */
+    private void endBlock(Vector list, Vector block, long blockLength) {
+        for (int n = 0; n < block.size(); n++) {
+            byte entry[] = (byte[])block.elementAt(n);
+            ByteBuffer.wrap(entry, 1 + VALUE_SIZE + 8, 4).putInt((int)blockLength);
+            list.add(entry);
+        }
+        
+        block.clear();
+    }
+    
+    /** Create an entry, leaving the block length to be filled in later. */
+    private byte[] makeEntry(int type, byte value[], long offset) {
+        byte entry[] = new byte[ENTRY_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(entry);
+        
+        buffer.put((byte)type);
+        buffer.put(value);
+        buffer.putLong(offset);
+        
+        return entry;
+    }
+    
+    /**
+     * <p>Make the type and value to search for to find the keys matching an identifier.</p>
+     * @return the target, or null if the identifier can't be looked up with the index.
+     */
+    private static byte[] makeTarget(KeyIdentifier id) throws IOException, KeyHandlerException {
+        byte value[] = null;
+        int type;
+        
+        if (id instanceof OpenPGPStandardKeyIdentifier) {
+            type = USER_ID;
+            value = hash(id.getDefaultID());
+        } else if (id instanceof OpenPGPKeyIDKeyIdentifier) {
+            byte wildcard[] = {0,0,0,0,0,0,0,0};
+            if (Arrays.equals(id.getDefaultID(), wildcard))
+                return null;
+            
+            type = KEY_ID;
+            value = id.getDefaultID();
+        } else {
+            return null;
+        }
+        
+        byte target[] = new byte[1 + VALUE_SIZE];
+        target[0] = (byte)type;
+        System.arraycopy(pad(value), 0, target, 1, VALUE_SIZE);
+        
+        return target;
+    }
+    
+    /** Orders entries on their type then value. */
+    private static final Comparator ENTRY_ORDER = new Comparator() {
+        public int compare(Object o1, Object o2) {
+            byte a[] = (byte[])o1;
+            byte b[] = (byte[])o2;
+            
+            for (int n = 0; n < 1 + VALUE_SIZE; n++) {
+                if (a[n] != b[n])
+                    return ((a[n] & 0xFF) < (b[n] & 0xFF)) ? -1 : 1;
+            }
+            
+            return 0;
+        }
+    };
+    
+    /** Pad or cut a value to the size of an entry value. */
+    private static byte[] pad(byte value[]) {
+        byte padded[] = new byte[VALUE_SIZE];
+        System.arraycopy(value, 0, padded, 0, Math.min(value.length, VALUE_SIZE));
+        
+        return padded;
+    }
+    
+    /** Hash a user ID. */
+    private static byte[] hash(byte userID[]) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA1").digest(userID);
+        } catch (Exception e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+    
+    /**
+     * <p>A loaded index, the sorted entries and the keyring they were built from.</p>
+     * <p>A table is never changed once it has been made, so it may be searched by any number of threads at once.</p>
+     */
+    public static class Table {
+        
+        /** The index entries. Only absolute gets are used, so the buffer's position is never changed. */
+        private ByteBuffer entries;
+        
+        /** Number of entries. */
+        private int entryCount;
+        
+        /** Modification time, length and tail checksum of the keyring the index was built from. */
+        private long keyringModified;
+        private long keyringLength;
+        private long keyringTail;
+        
+        /** A Bloom filter over the entries, built when it is first needed. */
+        private KeyBloomFilter filter;
+        
+        Table(ByteBuffer buffer, int count, long modified, long length, long tail) {
+            entries = buffer;
+            entryCount = count;
+            keyringModified = modified;
+            keyringLength = length;
+            keyringTail = tail;
+        }
+        
+        /** Return the modification time of the keyring the table was built from. */
+        public long getKeyringModified() {
+            return keyringModified;
+        }
+        
+        /** Return the length of the keyring the table was built from, keys after this are not in the table. */
+        public long getKeyringLength() {
+            return keyringLength;
+        }
+        
+        /**
+         * <p>Find the blocks of the keyring that could hold the keys matching an identifier, see OpenPGPKeyringIndex.findBlocks().</p>
+         */
+        public Vector findBlocks(KeyIdentifier id) throws IOException, KeyHandlerException {
+            byte target[] = makeTarget(id);
+            if (target == null)
+                return null;
+            
+            return search(target);
+        }
+        
+        /**
+         * <p>Might the keyring hold keys matching an identifier?</p>
+         * <p>This is answered from a Bloom filter over the entries, so a key that isn't in the keyring is usually turned away 
+         * without touching the index itself. Identifiers that can't be looked up with the index always might match.</p>
+         */
+        public boolean mightMatch(KeyIdentifier id) throws IOException, KeyHandlerException {
+            byte target[] = makeTarget(id);
+            if (target == null)
+                return true;
+            
+            return getFilter().mightContain(target);
+        }
+        
+        /** Return the Bloom filter over the entries, building it if this is the first time it has been used. */
+        private synchronized KeyBloomFilter getFilter() {
+            if (filter == null) {
+                KeyBloomFilter built = new KeyBloomFilter(entryCount, FILTER_FALSE_POSITIVES);
+                
+                byte target[] = new byte[1 + VALUE_SIZE];
+                for (int n = 0; n < entryCount; n++) {
+                    for (int cnt = 0; cnt < target.length; cnt++)
+                        target[cnt] = entries.get(n * ENTRY_SIZE + cnt);
+                    
+                    built.add(target);
+                }
+                
+                filter = built;
+            }
+            
+            return filter;
+        }
+        
+        /**
+         * <p>Binary search the entries for a type and value, returning the blocks of every matching entry.</p>
+         */
+        private Vector search(byte target[]) {
+            
+            // find the first matching entry
+            int low = 0;
+            int high = entryCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compareEntry(target, mid * ENTRY_SIZE) > 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            
+            Vector blocks = new Vector();
+            for (int n = low; (n < entryCount) && (compareEntry(target, n * ENTRY_SIZE) == 0); n++) {
+                int pos = n * ENTRY_SIZE + 1 + VALUE_SIZE;
+                long block[] = { entries.getLong(pos), entries.getInt(pos + 8) };
+                
+                // a key can list the same block more than once (eg a subkey with the same key ID as another)
+                boolean seen = false;
+                for (int cnt = 0; cnt < blocks.size(); cnt++) {
+                    if (((long[])blocks.elementAt(cnt))[0] == block[0])
+                        seen = true;
+                }
+                if (!seen)
+                    blocks.add(block);
+            }
+            
+            return blocks;
+        }
+        
+        /**
+         * <p>Compare a type and value with the entry at the given position in the table.</p>
+         */
+        private int compareEntry(byte key[], int pos) {
+            for (int n = 0; n < 1 + VALUE_SIZE; n++) {
+                int a = key[n] & 0xFF;
+                int b = entries.get(pos + n) & 0xFF;
+                
+                if (a != b)
+                    return (a < b) ? -1 : 1;
+            }
+            
+            return 0;
+        }
+    }
+    
+    /**
+     * <p>An input stream that counts the bytes read through it, giving the offset of each packet, and stops at a given offset.</p>
+     */
+    private class CountingInputStream extends FilterInputStream {
+        
+        private long count;
+        private long limit;
+        
+        /** 
+         * @param start The offset in the keyring of the first byte read.
+         * @param end The offset to stop at.
+         */
+        CountingInputStream(InputStream in, long start, long end) {
+            super(in);
+            count = start;
+            limit = end;
+        }
+        
+        /** Return the offset of the next byte. */
+        long getCount() {
+            return count;
+        }
+        
+        public int read() throws IOException {
+            if (count >= limit)
+                return -1;
+            
+            int b = super.read();
+            if (b != -1)
+                count++;
+            
+            return b;
+        }
+        
+        public int read(byte b[], int off, int len) throws IOException {
+            if (count >= limit)
+                return -1;
+            
+            int r = super.read(b, off, (int)Math.min(len, limit - count));
+            if (r > 0)
+                count += r;
+            
+            return r;
+        }
+        
+        public long skip(long n) throws IOException {
+            long r = super.skip(Math.min(n, limit - count));
+            count += r;
+            
+            return r;
+        }
+        
+        public int available() throws IOException {
+            return (int)Math.min(super.available(), limit - count);
+        }
+    }
+}
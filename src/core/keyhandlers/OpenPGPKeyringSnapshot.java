@@ -0,0 +1,273 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.keyhandlers;
+import core.keyhandlers.identifiers.*;
+import core.exceptions.KeyHandlerException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * <p>A view of a binary keyring as it was at one moment, used by readers so that they never need to take a lock.</p>
+ * <p>A snapshot holds the keyring file open together with the index table, the dead ranges and the length of the keyring 
+ * when it was taken. Everything is read through the open file and never past that length. Keys appended later are not seen, 
+ * and a keyring that is rewritten (which writes a new file and renames it over the old one) is still read as it was.</p>
+ * <p>The keyring swaps in a new snapshot once it has changed, readers still using the old one carry on, and the old one is 
+ * closed when the last of them releases it.</p>
+ */
+class OpenPGPKeyringSnapshot {
+    
+    /** The keyring file and its tombstone file, used to check whether the snapshot is still current. */
+    private File keyring;
+    private File deadFile;
+    
+    /** The keyring, opened when the snapshot was taken. */
+    private RandomAccessFile file;
+    private FileChannel channel;
+    
+    /** The index of the keyring. */
+    private OpenPGPKeyringIndex.Table table;
+    
+    /** The dead ranges as long[] {offset, length}, sorted by offset. */
+    private long dead[][];
+    
+    /** Length and modification time of the keyring, and length of the tombstone file, when the snapshot was taken. */
+    private long length;
+    private long modified;
+    private long deadLength;
+    
+    /** Number of readers using the snapshot. */
+    private int readers;
+    
+    /** Set once a newer snapshot has replaced this one. */
+    private boolean retired;
+    private boolean closed;
+    
+    /**
+     * <p>Take a snapshot of a keyring.</p>
+     * <p>The keyring should be locked while this is done, so that the index and dead ranges match the file opened.</p>
+     */
+    OpenPGPKeyringSnapshot(String keyringFile, OpenPGPKeyringIndex index, OpenPGPKeyringTombstones tombstones) throws IOException {
+        keyring = new File(keyringFile);
+        deadFile = new File(keyringFile + OpenPGPKeyringTombstones.EXTENSION);
+        
+        file = new RandomAccessFile(keyring, "r");
+        
+        try {
+            channel = file.getChannel();
+            table = index.getTable();
+            dead = tombstones.getDeadRanges();
+            deadLength = deadFile.length();
+            length = table.getKeyringLength();
+            modified = table.getKeyringModified();
+            
+            if (channel.size() < length)
+                throw new IOException("Keyring is shorter than its index.");
+            
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * <p>Is the snapshot still of the keyring as it is now?</p>
+     * <p>This only looks at the modification time and length of the files, nothing is read.</p>
+     */
+    boolean isCurrent() {
+        return (keyring.lastModified() == modified) && (keyring.length() == length) && (deadFile.length() == deadLength);
+    }
+    
+    /**
+     * <p>Start reading the snapshot. Every successful call must be matched by a call to release().</p>
+     * @return false if the snapshot has been replaced or can no longer be read, a new snapshot should be taken.
+     */
+    synchronized boolean acquire() {
+        // an interrupted read closes the channel for everyone
+        if ((retired) || (!channel.isOpen()))
+            return false;
+        
+        readers++;
+        return true;
+    }
+    
+    /**
+     * <p>Finish reading the snapshot.</p>
+     */
+    synchronized void release() {
+        readers--;
+        
+        if ((retired) && (readers == 0))
+            close();
+    }
+    
+    /**
+     * <p>Mark the snapshot as replaced, it is closed once no readers are using it.</p>
+     */
+    synchronized void retire() {
+        retired = true;
+        
+        if (readers == 0)
+            close();
+    }
+    
+    /**
+     * <p>Mark the snapshot as replaced and wait for its readers to finish with it.</p>
+     * <p>Some platforms can't replace a file that is open, writers call this if replacing the keyring fails.</p>
+     */
+    synchronized void retireAndWait() throws InterruptedIOException {
+        retire();
+        
+        try {
+            while (!closed)
+                wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for keyring readers");
+        }
+    }
+    
+    /**
+     * <p>Find the blocks of the keyring that could hold the keys matching an identifier.</p>
+     * @see OpenPGPKeyringIndex#findBlocks(KeyIdentifier)
+     */
+    Vector findBlocks(KeyIdentifier id) throws IOException, KeyHandlerException {
+        return table.findBlocks(id);
+    }
+    
+    /**
+     * <p>Might the keyring hold keys matching an identifier?</p>
+     * @see OpenPGPKeyringIndex.Table#mightMatch(KeyIdentifier)
+     */
+    boolean mightHaveKeys(KeyIdentifier id) throws IOException, KeyHandlerException {
+        return table.mightMatch(id);
+    }
+    
+    /**
+     * <p>Open the keyring for reading, skipping the dead ranges.</p>
+     */
+    InputStream openLive() {
+        return new OpenPGPKeyringTombstones.LiveInputStream(new BufferedInputStream(new SnapshotInputStream(), 65536), dead);
+    }
+    
+    /**
+     * <p>Read a block of the keyring leaving out any dead ranges in it.</p>
+     */
+    byte[] readLive(long offset, int size) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        long pos = offset;
+        long end = offset + size;
+        
+        for (int n = 0; (n < dead.length) && (pos < end); n++) {
+            long deadStart = Math.max(dead[n][0], pos);
+            long deadEnd = Math.min(dead[n][0] + dead[n][1], end);
+            
+            if (deadStart < deadEnd) {
+                read(pos, deadStart - pos, out);
+                pos = deadEnd;
+            }
+        }
+        
+        read(pos, end - pos, out);
+        
+        return out.toByteArray();
+    }
+    
+    /** Copy a range of the keyring to a stream. */
+    private void read(long offset, long size, OutputStream out) throws IOException {
+        if (size <= 0)
+            return;
+        
+        if (offset + size > length)
+            throw new EOFException("Read past the end of the keyring snapshot.");
+        
+        ByteBuffer buffer = ByteBuffer.allocate((int)size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException("Keyring is truncated.");
+        }
+        
+        out.write(buffer.array());
+    }
+    
+    /** Close the keyring file. */
+    private void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // nothing more can be done
+        }
+        
+        closed = true;
+        notifyAll();
+    }
+    
+    /**
+     * <p>Reads the snapshot from the start to its length.</p>
+     * <p>Reads give their position each time, so any number of these streams can read the same channel at once.</p>
+     */
+    private class SnapshotInputStream extends InputStream {
+        
+        private long position;
+        
+        public int read() throws IOException {
+            byte b[] = new byte[1];
+            
+            return (read(b, 0, 1) <= 0) ? -1 : (b[0] & 0xFF);
+        }
+        
+        public int read(byte b[], int off, int len) throws IOException {
+            if (position >= length)
+                return -1;
+            
+            if (len == 0)
+                return 0;
+            
+            int r = channel.read(ByteBuffer.wrap(b, off, (int)Math.min(len, length - position)), position);
+            if (r > 0)
+                position += r;
+            
+            return r;
+        }
+        
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, length - position));
+            position += skipped;
+            
+            return skipped;
+        }
+        
+        public int available() {
+            return (int)Math.min(Integer.MAX_VALUE, length - position);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.keyhandlers;
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A log of the parts of a keyring file that hold removed keys.</p>
+ * <p>In append only mode removing a key doesn't rewrite the keyring. Instead a tombstone giving the offset and length of the 
+ * removed packets is appended to a sidecar file, and readers skip those ranges of the keyring. The keyring itself stays a valid 
+ * OpenPGP keyring, the dead ranges are dropped when it is compacted.</p>
+ * <p>Each tombstone holds a CRC32 of the bytes it covers. If the keyring is rewritten by something else the tombstones 
+ * no longer match and are ignored, so live keys are never hidden by an old tombstone.</p>
+ * <p>Tombstone file format, a list of 24 byte records, all numbers big endian:</p>
+ * <pre>
+ * 8 bytes  Offset of the dead range in the keyring
+ * 8 bytes  Length of the dead range
+ * 8 bytes  CRC32 of the dead range
+ * </pre>
+ */
+public class OpenPGPKeyringTombstones {
+    
+    /** The extension added to the keyring file name to give the tombstone file name. */
+    public static final String EXTENSION = ".dead";
+    
+    private static final int RECORD_SIZE = 24;
+    
+    /** The keyring file. */
+    private File keyring;
+    
+    /** The tombstone file. */
+    private File deadFile;
+    
+    /** The dead ranges as long[] {offset, length}, sorted by offset. */
+    private Vector ranges;
+    
+    /** Total number of dead bytes. */
+    private long deadBytes;
+    
+    /** How much of the tombstone file has been read, and the modification time and length of the keyring it was checked against. */
+    private long recordsRead;
+    private long keyringModified;
+    private long keyringLength;
+    
+    /** Creates a new tombstone log for a keyring file. */
+    public OpenPGPKeyringTombstones(String keyringFile) {
+        keyring = new File(keyringFile);
+        deadFile = new File(keyringFile + EXTENSION);
+        ranges = new Vector();
+        recordsRead = 0;
+    }
+    
+    /** Return the file name of the keyring. */
+    public String getKeyringFileName() {
+        return keyring.getPath();
+    }
+    
+    /**
+     * <p>Return the dead ranges of the keyring as long[] {offset, length}, sorted by offset.</p>
+     */
+    public synchronized long[][] getDeadRanges() throws IOException {
+        load();
+        
+        long dead[][] = new long[ranges.size()][];
+        ranges.copyInto(dead);
+        
+        return dead;
+    }
+    
+    /**
+     * <p>Return the number of dead bytes in the keyring.</p>
+     */
+    public synchronized long getDeadBytes() throws IOException {
+        load();
+        
+        return deadBytes;
+    }
+    
+    /**
+     * <p>Is the whole of a range of the keyring dead?</p>
+     */
+    public synchronized boolean isDead(long offset, long length) throws IOException {
+        load();
+        
+        for (int n = 0; n < ranges.size(); n++) {
+            long range[] = (long[])ranges.elementAt(n);
+            if ((range[0] <= offset) && (range[0] + range[1] >= offset + length))
+                return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * <p>Mark a range of the keyring as dead by appending a tombstone.</p>
+     */
+    public synchronized void add(long offset, long length) throws IOException {
+        load();
+        
+        long crc = checksum(offset, length);
+        if (crc < 0)
+            throw new IOException("Dead range is outside the keyring");
+        
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(deadFile.getPath(), true));
+        try {
+            out.writeLong(offset);
+            out.writeLong(length);
+            out.writeLong(crc);
+        } finally {
+            out.close();
+        }
+        
+        recordsRead = deadFile.length();
+        addRange(offset, length);
+    }
+    
+    /**
+     * <p>Delete the tombstone file, call this once the keyring has been compacted.</p>
+     */
+    public synchronized void clear() {
+        deadFile.delete();
+        ranges.clear();
+        deadBytes = 0;
+        recordsRead = 0;
+        keyringModified = keyring.lastModified();
+        keyringLength = keyring.length();
+    }
+    
+    /**
+     * <p>Open the keyring for reading, skipping the dead ranges.</p>
+     */
+    public InputStream openLive() throws IOException {
+        return new LiveInputStream(new BufferedInputStream(new FileInputStream(keyring)), getDeadRanges());
+    }
+    
+    /**
+     * <p>Read a block of the keyring leaving out any dead ranges in it.</p>
+     */
+    public byte[] readLive(RandomAccessFile file, long offset, int length) throws IOException {
+        long dead[][] = getDeadRanges();
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        long pos = offset;
+        long end = offset + length;
+        
+        for (int n = 0; (n < dead.length) && (pos < end); n++) {
+            long deadStart = Math.max(dead[n][0], pos);
+            long deadEnd = Math.min(dead[n][0] + dead[n][1], end);
+            
+            if (deadStart < deadEnd) {
+                copy(file, pos, deadStart - pos, out);
+                pos = deadEnd;
+            }
+        }
+        
+        copy(file, pos, end - pos, out);
+        
+        return out.toByteArray();
+    }
+    
+    /** Copy a range of a file to a stream. */
+    private void copy(RandomAccessFile file, long offset, long length, OutputStream out) throws IOException {
+        if (length <= 0)
+            return;
+        
+        byte data[] = new byte[(int)length];
+        file.seek(offset);
+        file.readFully(data);
+        out.write(data);
+    }
+    
+    /**
+     * <p>Bring the dead ranges up to date with the tombstone file.</p>
+     * <p>New tombstones are checked as they are read. If the keyring has changed every tombstone is checked again.</p>
+     */
+    private void load() throws IOException {
+        
+        if ((keyring.lastModified() != keyringModified) || (keyring.length() != keyringLength)) {
+            ranges.clear();
+            deadBytes = 0;
+            recordsRead = 0;
+            keyringModified = keyring.lastModified();
+            keyringLength = keyring.length();
+        }
+        
+        long size = deadFile.exists() ? deadFile.length() : 0;
+        if (size < recordsRead) {
+            // the tombstone file has been replaced
+            ranges.clear();
+            deadBytes = 0;
+            recordsRead = 0;
+        }
+        
+        if (size - recordsRead < RECORD_SIZE)
+            return;
+        
+        RandomAccessFile in = new RandomAccessFile(deadFile, "r");
+        try {
+            in.seek(recordsRead);
+            
+            while (recordsRead + RECORD_SIZE <= size) {
+                long offset = in.readLong();
+                long length = in.readLong();
+                long crc = in.readLong();
+                recordsRead += RECORD_SIZE;
+                
+                if ((length > 0) && (checksum(offset, length) == crc))
+                    addRange(offset, length);
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * <p>Add a range to the sorted list of dead ranges, merging it with any ranges it touches.</p>
+     */
+    private void addRange(long offset, long length) {
+        long start = offset;
+        long end = offset + length;
+        
+        int n = 0;
+        while (n < ranges.size()) {
+            long range[] = (long[])ranges.elementAt(n);
+            
+            if (range[0] + range[1] < start) {
+                n++;
+            } else if (range[0] > end) {
+                break;
+            } else {
+                // overlapping or touching, merge
+                start = Math.min(start, range[0]);
+                end = Math.max(end, range[0] + range[1]);
+                deadBytes -= range[1];
+                ranges.removeElementAt(n);
+            }
+        }
+        
+        long merged[] = { start, end - start };
+        ranges.insertElementAt(merged, n);
+        deadBytes += merged[1];
+    }
+    
+    /**
+     * <p>Calculate the CRC32 of a range of the keyring.</p>
+     * @return the checksum, or -1 if the range is not inside the keyring.
+     */
+    private long checksum(long offset, long length) throws IOException {
+        if ((offset < 0) || (length <= 0) || (offset + length > keyring.length()))
+            return -1;
+        
+        CRC32 crc = new CRC32();
+        RandomAccessFile in = new RandomAccessFile(keyring, "r");
+        
+        try {
+            in.seek(offset);
+            
+            byte buffer[] = new byte[4096];
+            long left = length;
+            while (left > 0) {
+                int read = in.read(buffer, 0, (int)Math.min(buffer.length, left));
+                if (read < 0)
+                    return -1;
+                
+                crc.update(buffer, 0, read);
+                left -= read;
+            }
+        } finally {
+            in.close();
+        }
+        
+        return crc.getValue();
+    }
+    
+    /**
+     * <p>An input stream over the keyring that skips the dead ranges.</p>
+     * <p>This is also used to read keyring snapshots, see OpenPGPKeyringSnapshot.</p>
+     */
+    static class LiveInputStream extends FilterInputStream {
+        
+        private long dead[][];
+        private int next; // the next dead range
+        private long position;
+        
+        LiveInputStream(InputStream in, long deadRanges[][]) {
+            super(in);
+            dead = deadRanges;
+        }
+        
+        /** Skip a dead range if we have reached one, and return how much can be read before the next. */
+        private long live() throws IOException {
+            while ((next < dead.length) && (position >= dead[next][0])) {
+                long end = dead[next][0] + dead[next][1];
+                
+                while (position < end) {
+                    long skipped = super.skip(end - position);
+                    if (skipped <= 0) {
+                        if (super.read() < 0)
+                            return -1;
+                        skipped = 1;
+                    }
+                    position += skipped;
+                }
+                
+                next++;
+            }
+            
+            return (next < dead.length) ? dead[next][0] - position : Long.MAX_VALUE;
+        }
+        
+        public int read() throws IOException {
+            if (live() < 0)
+                return -1;
+            
+            int b = super.read();
+            if (b >= 0)
+                position++;
+            
+            return b;
+        }
+        
+        public int read(byte b[], int off, int len) throws IOException {
+            long live = live();
+            if (live < 0)
+                return -1;
+            
+            int r = super.read(b, off, (int)Math.min(len, live));
+            if (r > 0)
+                position += r;
+            
+            return r;
+        }
+        
+        public long skip(long n) throws IOException {
+            byte buffer[] = new byte[(int)Math.min(n, 4096)];
+            int r = read(buffer, 0, buffer.length);
+            
+            return (r < 0) ? 0 : r;
+        }
+        
+        public int available() throws IOException {
+            long live = live();
+            if (live < 0)
+                return 0;
+            
+            return (int)Math.min(super.available(), live);
+        }
+        
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
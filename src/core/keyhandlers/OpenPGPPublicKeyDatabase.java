@@ -0,0 +1,57 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.keyhandlers;
+import core.algorithmhandlers.openpgp.*;
+
+/**
+ * <p>An OpenPGP public key store kept in a database file.</p>
+ * <p>Holds the same key blocks as an OpenPGPPublicKeyring, see OpenPGPKeyDatabase.</p>
+ */
+public class OpenPGPPublicKeyDatabase extends OpenPGPKeyDatabase {
+    
+    /** Creates a new instance of OpenPGPPublicKeyDatabase */
+    public OpenPGPPublicKeyDatabase() {
+        super(new OpenPGPPublicKeyring());
+    }
+    
+    /** Creates a new instance of OpenPGPPublicKeyDatabase */
+    public OpenPGPPublicKeyDatabase(String filename, KeyHandlerParameters parameters) {
+        super(new OpenPGPPublicKeyring(), filename, parameters);
+    }
+    
+    /**
+     * <p>Write the packets for a new key, as described by OpenPGPPublicKeyring.addKeys(), to a stream.</p>
+     */
+    protected void writeKeys(OpenPGPPacketOutputStream out, KeyData[] key, KeyIdentifier[] idDetails, KeyHandlerParameters[] parameters) throws Exception {
+        ((OpenPGPPublicKeyring)getKeyring()).writeKeys(out, key, idDetails, parameters);
+    }
+}
@@ -43,7 +43,10 @@ import java.net.*;
  * <p>This class extends OpenPGPPublicKeyring to function from within an Applet.</p>
  * <p>At the moment only read support (and as a result only the findKeys method) is implemented.</p>
  */
-public class OpenPGPPublicKeyringURLReader extends OpenPGPPublicKeyring {
+public class OpenPGPPublicKeyringURLReader extends OpenPGPPublicKeyring implements RemoteKeySource {
+    
+    /** Timeouts and failure handling for connections to the URL. */
+    private KeySourceCircuitBreaker breaker = new KeySourceCircuitBreaker(this);
     
     /** Creates a new instance of OpenPGPPublicKeyringAppletReader */
     public OpenPGPPublicKeyringURLReader() {
@@ -54,6 +57,13 @@ public class OpenPGPPublicKeyringURLReader extends OpenPGPPublicKeyring {
         super(filename, parameters);
     }
     
+    /**
+     * <p>The keyring is downloaded again for every lookup, so there is no local file to index, lock or take snapshots of.</p>
+     */
+    protected boolean isIndexed() {
+        return false;
+    }
+    
     /**
      * <p>Add a number of keys to the key store.</p>
      * <p>This method is currently not implemented and will throw a KeyHandlerException if used.</p>
@@ -78,6 +88,13 @@ public class OpenPGPPublicKeyringURLReader extends OpenPGPPublicKeyring {
         throw new KeyHandlerException("Remove keys is currently not supported.");
     }
     
+    /**
+     * <p>Return the circuit breaker of the URL, which the keys are read through.</p>
+     */
+    public KeySourceCircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+    
     /**
      * <p>Look for a key.</p>
      * <p>Looks for a key in the key store as specified by the key identifier.</p>
@@ -94,8 +111,52 @@ public class OpenPGPPublicKeyringURLReader extends OpenPGPPublicKeyring {
     public KeyData [] findKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws ChecksumFailureException, KeyHandlerException {
         try {
             URL url = new URL(getFileName());
+            
+            KeySourceCircuitBreaker breaker = getCircuitBreaker();
+            long ticket = breaker.begin();
+            boolean answered = false;
+            
+            try {
+                KeyData keys[] = findKeys(new DataInputStream(new BufferedInputStream(breaker.openStream(url))), id, parameters);
+                answered = true;
+                
+                return keys;
+            } finally {
+                breaker.end(ticket, answered);
+            }
+        } catch (ChecksumFailureException c) {
+            throw c;
+        } catch (KeyHandlerException k) {
+            throw k;
+        } catch (Exception e) {
+            throw new KeyHandlerException(e.getMessage());
+        }
+    }
 
-            return findKeys(new DataInputStream(new BufferedInputStream(url.openStream())), id, parameters);
+    /**
+     * <p>Look for the keys matching a number of identifiers, reading the URL only once.</p>
+     * @param ids[] The key identifiers that specify the keys being looked for.
+     * @param parameters Any extra parameters needed, for example pass phrases for secret key stores etc, may be null.
+     * @return An array with an entry for each identifier, holding the keys found for it or NULL if no keys matching it could be found.
+     * @throws ChecksumFailureException If the key data fails a checksum (usually because the wrong passphrase was supplied).
+     * @throws KeyHandlerException if something went wrong.
+     */ 
+    public KeyData [][] findKeys(KeyIdentifier ids[], KeyHandlerParameters parameters) throws ChecksumFailureException, KeyHandlerException {
+        try {
+            URL url = new URL(getFileName());
+            
+            KeySourceCircuitBreaker breaker = getCircuitBreaker();
+            long ticket = breaker.begin();
+            boolean answered = false;
+            
+            try {
+                KeyData keys[][] = findKeys(new DataInputStream(new BufferedInputStream(breaker.openStream(url))), ids, parameters);
+                answered = true;
+                
+                return keys;
+            } finally {
+                breaker.end(ticket, answered);
+            }
         } catch (ChecksumFailureException c) {
             throw c;
         } catch (KeyHandlerException k) {
@@ -117,7 +178,18 @@ public class OpenPGPPublicKeyringURLReader extends OpenPGPPublicKeyring {
         try {
             URL url = new URL(getFileName()); 
             
-            return toArray(url.openStream());
+            KeySourceCircuitBreaker breaker = getCircuitBreaker();
+            long ticket = breaker.begin();
+            boolean answered = false;
+            
+            try {
+                Object keys[] = toArray(breaker.openStream(url));
+                answered = true;
+                
+                return keys;
+            } finally {
+                breaker.end(ticket, answered);
+            }
         } catch (Exception e) {
             throw new KeyHandlerException(e.getMessage());
         }
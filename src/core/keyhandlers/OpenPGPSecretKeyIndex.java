@@ -0,0 +1,219 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.keyhandlers;
+import core.algorithmhandlers.openpgp.packets.KeyPacket;
+import core.algorithmhandlers.openpgp.util.PublicKeyAlgorithmSettings;
+import core.exceptions.*;
+import java.io.File;
+import java.util.*;
+
+/**
+ * <p>An index of the key IDs held in a set of OpenPGP secret key stores.</p>
+ * <p>Looking a key up in a secret key store means reading the whole store and trying passphrases on every match, so when a message
+ * is addressed to many recipients it is much cheaper to first find out which of the recipients' keys are actually held. The index
+ * lists each store once (without unlocking anything) and remembers the IDs of every key and subkey it holds, along with their 
+ * public key algorithms.</p>
+ * <p>Only stores kept in local files can be indexed. A store's index is rebuilt when its file changes. Stores that can not be 
+ * indexed are assumed to hold every key, so they are always searched just as they would be without an index.</p>
+ */
+public class OpenPGPSecretKeyIndex {
+    
+    /** Indexed stores mapped to their StoreIndex. */
+    private Hashtable stores;
+    
+    /** Creates a new, empty index. */
+    public OpenPGPSecretKeyIndex() {
+        stores = new Hashtable();
+    }
+    
+    /** 
+     * <p>Could one of the stores hold a key?</p>
+     * @param keystores The secret key stores.
+     * @param keyID The key ID of the key or subkey.
+     * @return false only if every store has been indexed and none of them holds the key.
+     */
+    public boolean mayHold(KeyHandler keystores[], byte keyID[]) {
+        if (keystores == null)
+            return false;
+        
+        String id = toHex(keyID);
+        
+        for (int n = 0; n < keystores.length; n++) {
+            StoreIndex index = getIndex(keystores[n]);
+            
+            if ((index == null) || (index.algorithms.containsKey(id)))
+                return true;
+        }
+        
+        return false;
+    }
+    
+    /** 
+     * <p>List the IDs of the indexed keys and subkeys that use a given kind of public key algorithm.</p>
+     * <p>This is used to find the keys worth trying on a session key whose recipient is hidden. Stores that can not be indexed
+     * contribute nothing.</p>
+     * @param keystores The secret key stores.
+     * @param algorithm The public key algorithm, keys using any RSA or any ElGamal variant are matched together.
+     * @return A Vector of byte[] key IDs, in store order.
+     */
+    public Vector getKeyIDs(KeyHandler keystores[], int algorithm) {
+        Vector ids = new Vector();
+        
+        if (keystores == null)
+            return ids;
+        
+        for (int n = 0; n < keystores.length; n++) {
+            StoreIndex index = getIndex(keystores[n]);
+            if (index == null)
+                continue;
+            
+            for (int i = 0; i < index.order.size(); i++) {
+                String id = (String)index.order.elementAt(i);
+                
+                if ((sameFamily(((Integer)index.algorithms.get(id)).intValue(), algorithm)) && (!contains(ids, id)))
+                    ids.add(fromHex(id));
+            }
+        }
+        
+        return ids;
+    }
+    
+    /** Forget every store, they will be listed again when next used. */
+    public synchronized void clear() {
+        stores.clear();
+    }
+    
+    /** 
+     * <p>Return the index of a store, building it if necessary.</p>
+     * @return The index, or null if the store can not be indexed.
+     */
+    private synchronized StoreIndex getIndex(KeyHandler keystore) {
+        if (!(keystore instanceof KeyFile))
+            return null;
+        
+        File file = new File(((KeyFile)keystore).getFileName());
+        if (!file.isFile())
+            return null;
+        
+        String stamp = file.lastModified() + ":" + file.length();
+        
+        StoreIndex index = (StoreIndex)stores.get(keystore);
+        if ((index != null) && (index.stamp.equals(stamp)))
+            return index;
+        
+        index = new StoreIndex(stamp);
+        try {
+            Object contents[] = keystore.toArray();
+            
+            for (int n = 0; (contents != null) && (n < contents.length); n++) {
+                if (contents[n] instanceof KeyPacket) {
+                    KeyPacket key = (KeyPacket)contents[n];
+                    String id = toHex(key.getKeyID());
+                    
+                    if (!index.algorithms.containsKey(id))
+                        index.order.add(id);
+                    index.algorithms.put(id, new Integer(key.getAlgorithm()));
+                }
+            }
+        } catch (Exception e) {
+            // can't list it, so it will always be searched
+            stores.remove(keystore);
+            return null;
+        }
+        
+        stores.put(keystore, index);
+        return index;
+    }
+    
+    /** Do two public key algorithms belong to the same family? */
+    private static boolean sameFamily(int a, int b) {
+        if (a == b)
+            return true;
+        
+        try {
+            return ((PublicKeyAlgorithmSettings.isRSA(a)) && (PublicKeyAlgorithmSettings.isRSA(b))) ||
+                   ((PublicKeyAlgorithmSettings.isElGamal(a)) && (PublicKeyAlgorithmSettings.isElGamal(b)));
+        } catch (AlgorithmException e) {
+            return false; // unsupported algorithm
+        }
+    }
+    
+    /** Is a hex key ID already in a list of byte[] key IDs? */
+    private static boolean contains(Vector ids, String id) {
+        for (int n = 0; n < ids.size(); n++) {
+            if (toHex((byte[])ids.elementAt(n)).equals(id))
+                return true;
+        }
+        
+        return false;
+    }
+    
+    /** Convert a key ID to hex. */
+    private static String toHex(byte data[]) {
+        StringBuffer buffer = new StringBuffer();
+        for (int n = 0; n < data.length; n++) {
+            String hex = Integer.toHexString(data[n] & 0xff);
+            if (hex.length() < 2) buffer.append('0');
+            buffer.append(hex);
+        }
+        
+        return buffer.toString();
+    }
+    
+    /** Convert a hex key ID back to bytes. */
+    private static byte[] fromHex(String hex) {
+        byte data[] = new byte[hex.length() / 2];
+        for (int n = 0; n < data.length; n++)
+            data[n] = (byte)Integer.parseInt(hex.substring(n*2, n*2+2), 16);
+        
+        return data;
+    }
+    
+    /** The keys held in one store. */
+    private class StoreIndex {
+        
+        /** Identifies the version of the file that was indexed. */
+        String stamp;
+        
+        /** Hex key IDs mapped to Integer public key algorithms. */
+        Hashtable algorithms;
+        
+        /** Hex key IDs in the order they appear in the store. */
+        Vector order;
+        
+        StoreIndex(String fileStamp) {
+            stamp = fileStamp;
+            algorithms = new Hashtable();
+            order = new Vector();
+        }
+    }
+}
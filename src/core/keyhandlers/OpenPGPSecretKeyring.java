@@ -68,88 +68,100 @@ public class OpenPGPSecretKeyring extends OpenPGPKeyring {
      * @throws KeyHandlerException if something went wrong.
      */
     public void addKeys(KeyData[] key, KeyIdentifier[] idDetails, KeyHandlerParameters[] parameters) throws KeyHandlerException {
+        beginWrite();
+        
         try{
             
-            KeyPacket primaryKeyPacket = null;
-            KeyPacket currentKeyPacket = null;
-            OpenPGPAddSecretKeyParameters currentParam = null;
-            
             // create / append key file
             OpenPGPPacketOutputStream out = new OpenPGPPacketOutputStream(new FileOutputStream(getFileName(), true));
             
-            // itterate through all given keys, first element is primary
-            for (int n = 0; n < key.length; n++) {
-                
-                // check initial parameters
-                if ((key==null) || (key[n]==null))
-                    throw new KeyHandlerException("Key material is null.");
+            writeKeys(out, key, idDetails, parameters);
+            
+            // close stream, the index picks up the appended keys when it is next used
+            out.close();
+            
+        } catch (Exception e) {
+            throw new KeyHandlerException(e.getMessage());
+        } finally {
+            endWrite();
+        }
+    }
+    
+    /**
+     * <p>Write the packets for a new key, as described by addKeys(), to a stream.</p>
+     */
+    protected void writeKeys(OpenPGPPacketOutputStream out, KeyData[] key, KeyIdentifier[] idDetails, KeyHandlerParameters[] parameters) throws Exception {
+        
+        KeyPacket primaryKeyPacket = null;
+        KeyPacket currentKeyPacket = null;
+        OpenPGPAddSecretKeyParameters currentParam = null;
+        
+        // itterate through all given keys, first element is primary
+        for (int n = 0; n < key.length; n++) {
+            
+            // check initial parameters
+            if ((key==null) || (key[n]==null))
+                throw new KeyHandlerException("Key material is null.");
 
-                if ((idDetails==null) || (idDetails[0]==null)) // it is ok for non primary keys to have no ID details
-                    throw new KeyHandlerException("Primary key has no user ID details!");
+            if ((idDetails==null) || (idDetails[0]==null)) // it is ok for non primary keys to have no ID details
+                throw new KeyHandlerException("Primary key has no user ID details!");
 
-                if ((parameters==null) || (parameters[n]==null))
-                    throw new KeyHandlerException("Key parameter is null.");
-                
-                if (!(parameters[n] instanceof OpenPGPAddKeyParameters))
-                    throw new KeyHandlerException("Key parameter is the wrong type.");
-                
-                
-                // create key packet
-                currentParam = (OpenPGPAddSecretKeyParameters)parameters[n];
+            if ((parameters==null) || (parameters[n]==null))
+                throw new KeyHandlerException("Key parameter is null.");
+            
+            if (!(parameters[n] instanceof OpenPGPAddKeyParameters))
+                throw new KeyHandlerException("Key parameter is the wrong type.");
+            
+            
+            // create key packet
+            currentParam = (OpenPGPAddSecretKeyParameters)parameters[n];
+            
+            if (n == 0) { // this is the primary key
                 
-                if (n == 0) { // this is the primary key
+                if (key[n] instanceof OpenPGPKeyData) { // if this is an OpenPGPKeyData key then try and import the key packet.
+                    OpenPGPKeyData tmpKey = (OpenPGPKeyData)key[n];
                     
-                    if (key[n] instanceof OpenPGPKeyData) { // if this is an OpenPGPKeyData key then try and import the key packet.
-                        OpenPGPKeyData tmpKey = (OpenPGPKeyData)key[n];
-                        
-                        if ((tmpKey.getKeyPacket() instanceof SecretKeyPacket) && (!(tmpKey.getKeyPacket() instanceof SecretSubkeyPacket)))
-                            currentKeyPacket = tmpKey.getKeyPacket(); // key[n] contains a SecretKeyPacket
-                        else
-                            throw new KeyHandlerException("Key "+n+" does not appear to be a Secret Key Packet.");
-                        
-                    } else {
-                        currentKeyPacket = new SecretKeyPacket(currentParam.getCreationDate(), currentParam.getPublicKeyAlgorithm(), currentParam.getSymmetricAlgorithm(), createS2K(currentParam.getHashAlgorithm()), currentParam.getPassPhrase(), key[n].getKey());
-                    }
-                    primaryKeyPacket = currentKeyPacket;
+                    if ((tmpKey.getKeyPacket() instanceof SecretKeyPacket) && (!(tmpKey.getKeyPacket() instanceof SecretSubkeyPacket)))
+                        currentKeyPacket = tmpKey.getKeyPacket(); // key[n] contains a SecretKeyPacket
+                    else
+                        throw new KeyHandlerException("Key "+n+" does not appear to be a Secret Key Packet.");
                     
-                } else { // this is a subkey
-                    if (key[n] instanceof OpenPGPKeyData) { // if this is an OpenPGPKeyData key then try and import the key packet.
-                        OpenPGPKeyData tmpKey = (OpenPGPKeyData)key[n];
-                        
-                        if (tmpKey.getKeyPacket() instanceof SecretSubkeyPacket) 
-                             currentKeyPacket = tmpKey.getKeyPacket(); // key[n] contains a SecretSubkeyPacket
-                        else
-                            throw new KeyHandlerException("Key "+n+" does not appear to be a Secret Subkey Packet.");
-                        
-                    } else {
-                        currentKeyPacket = new SecretSubkeyPacket(currentParam.getCreationDate(), currentParam.getPublicKeyAlgorithm(), currentParam.getSymmetricAlgorithm(), createS2K(currentParam.getHashAlgorithm()), currentParam.getPassPhrase(), key[n].getKey());
-                    }
-                }
-                
-                // write key packet
-                out.writePacket(currentKeyPacket);
-                
-                // if this is a primary key then write user ID
-                if ((n == 0) && (idDetails[n]!=null)) {
-                    if (!(idDetails[n] instanceof OpenPGPStandardKeyIdentifier))
-                        throw new KeyHandlerException("User ID is of the wrong type!");
-
-                    out.writePacket(new UserIDPacket(idDetails[n].getDefaultID()));
+                } else {
+                    currentKeyPacket = new SecretKeyPacket(currentParam.getCreationDate(), currentParam.getPublicKeyAlgorithm(), currentParam.getSymmetricAlgorithm(), createS2K(currentParam.getHashAlgorithm()), currentParam.getPassPhrase(), key[n].getKey());
                 }
+                primaryKeyPacket = currentKeyPacket;
                 
-                // generate and write signature (only if this is a subkey)
-                if (n>0) { // sub key (signed with primary key)
-                    byte [] tmp = generateSubKeyHashData(primaryKeyPacket.encodePacketBody(), currentKeyPacket.encodePacketBody());
-                   
-                    out.writePacket(new SignaturePacket(generateSubkeySignature(key[n].getKey().getPrivateKey(), primaryKeyPacket.getKeyID(), currentParam, tmp)));
+            } else { // this is a subkey
+                if (key[n] instanceof OpenPGPKeyData) { // if this is an OpenPGPKeyData key then try and import the key packet.
+                    OpenPGPKeyData tmpKey = (OpenPGPKeyData)key[n];
+                    
+                    if (tmpKey.getKeyPacket() instanceof SecretSubkeyPacket) 
+                         currentKeyPacket = tmpKey.getKeyPacket(); // key[n] contains a SecretSubkeyPacket
+                    else
+                        throw new KeyHandlerException("Key "+n+" does not appear to be a Secret Subkey Packet.");
+                    
+                } else {
+                    currentKeyPacket = new SecretSubkeyPacket(currentParam.getCreationDate(), currentParam.getPublicKeyAlgorithm(), currentParam.getSymmetricAlgorithm(), createS2K(currentParam.getHashAlgorithm()), currentParam.getPassPhrase(), key[n].getKey());
                 }
             }
             
-            // close stream
-            out.close();
+            // write key packet
+            out.writePacket(currentKeyPacket);
             
-        } catch (Exception e) {
-            throw new KeyHandlerException(e.getMessage());
+            // if this is a primary key then write user ID
+            if ((n == 0) && (idDetails[n]!=null)) {
+                if (!(idDetails[n] instanceof OpenPGPStandardKeyIdentifier))
+                    throw new KeyHandlerException("User ID is of the wrong type!");
+
+                out.writePacket(new UserIDPacket(idDetails[n].getDefaultID()));
+            }
+            
+            // generate and write signature (only if this is a subkey)
+            if (n>0) { // sub key (signed with primary key)
+                byte [] tmp = generateSubKeyHashData(primaryKeyPacket.encodePacketBody(), currentKeyPacket.encodePacketBody());
+               
+                out.writePacket(new SignaturePacket(generateSubkeySignature(key[n].getKey().getPrivateKey(), primaryKeyPacket.getKeyID(), currentParam, tmp)));
+            }
         }
     }     
 
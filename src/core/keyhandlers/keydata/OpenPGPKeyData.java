@@ -32,7 +32,12 @@
 package core.keyhandlers.keydata;
 import core.keyhandlers.KeyData;
 import core.algorithmhandlers.openpgp.packets.KeyPacket;
+import core.algorithmhandlers.openpgp.packets.SecretKeyPacket;
 import core.algorithmhandlers.openpgp.packets.UserIDPacket;
+import core.algorithmhandlers.openpgp.packets.SignaturePacket;
+import core.algorithmhandlers.openpgp.packets.V4SignatureMaterial;
+import core.algorithmhandlers.openpgp.packets.v4signature.*;
+import java.util.Vector;
 import core.exceptions.*;
 
 /**
@@ -46,14 +51,34 @@ public class OpenPGPKeyData extends KeyData {
     
     /** Raw key packet data (so we can extract richer information than just key data). */
     private KeyPacket keypacket;
+    /** The key's self signature (the binding signature for a subkey), this carries the key owner's preferences, usage flags and expiry. May be null. */
+    private SignaturePacket selfSignature;
     
+    /** Has a revocation signature been found for the key? */
+    private boolean revoked;
+    
+    /** Is the secret key material still encrypted? */
+    private boolean locked;
+    
+    /** The user ID the key was found under, may be null. */
+    private String userID;
     
     /** Creates a new instance of OpenPGPKeyData 
      * @throws AlgorithmException if something went wrong.
      */
     public OpenPGPKeyData(KeyPacket kp) throws AlgorithmException {
+        this(kp, false);
+    }
+    
+    /** Creates a new instance of OpenPGPKeyData 
+     * @param kp The key packet.
+     * @param stillLocked True if kp is a secret key packet whose key material has not been decrypted yet.
+     * @throws AlgorithmException if something went wrong.
+     */
+    public OpenPGPKeyData(KeyPacket kp, boolean stillLocked) throws AlgorithmException {
         super(kp.getKeyData());
         keypacket = kp;
+        locked = (stillLocked) && (kp instanceof SecretKeyPacket);
     }
     
     /** Return the key ID of the key. 
@@ -79,4 +104,150 @@ public class OpenPGPKeyData extends KeyData {
     public KeyPacket getKeyPacket() {
         return keypacket;
     }
+    
+    /** Set the self signature found with the key (for a subkey, its binding signature). */
+    public void setSelfSignature(SignaturePacket signature) {
+        selfSignature = signature;
+    }
+    
+    /** Return the self signature found with the key, or null if none was found. */
+    public SignaturePacket getSelfSignature() {
+        return selfSignature;
+    }
+    
+    /** Mark the key as revoked. */
+    public void setRevoked(boolean revoked) {
+        this.revoked = revoked;
+    }
+    
+    /** 
+     * <p>Return true if a revocation signature was found for the key.</p>
+     * <p>Note that revocation signatures are not themselves verified (see the key handlers), so this is advisory.</p>
+     */
+    public boolean isRevoked() {
+        return revoked;
+    }
+    
+    /** Return true if the secret key material has not been decrypted yet. */
+    public synchronized boolean isLocked() {
+        return locked;
+    }
+    
+    /** 
+     * <p>Decrypt the secret key material.</p>
+     * <p>Does nothing if the key is not locked.</p>
+     * @param passPhrase The passphrase to decrypt the key with.
+     * @throws ChecksumFailureException if the passphrase is wrong, the key stays locked.
+     * @throws AlgorithmException if something went wrong.
+     */
+    public synchronized void unlock(byte passPhrase[]) throws AlgorithmException, ChecksumFailureException {
+        if (!locked)
+            return;
+        
+        try {
+            ((SecretKeyPacket)keypacket).decryptKeyData(passPhrase);
+        } catch (ChecksumFailureException e) {
+            // same friendly message as the keyrings give
+            if (userID != null)
+                throw new ChecksumFailureException("Passphrase needed for key \"" + userID +"\"");
+            throw e;
+        }
+        
+        locked = false;
+    }
+    
+    /** Set the user ID the key was found under. */
+    public void setUserID(String id) {
+        userID = id;
+    }
+    
+    /** Return the user ID the key was found under, or null if not known. */
+    public String getUserID() {
+        return userID;
+    }
+    
+    /** 
+     * <p>Return the key's usage flags, as stated in its self or binding signature.</p>
+     * @return A combination of the KeyFlagsSubPacket flags, or -1 if the key does not state any.
+     */
+    public int getKeyFlags() {
+        KeyFlagsSubPacket flags = (KeyFlagsSubPacket)findSubPacket(KeyFlagsSubPacket.class);
+        
+        if ((flags==null) || (flags.getDataArrayLength()==0))
+            return -1;
+        
+        return flags.getDataElement(0);
+    }
+    
+    /** 
+     * <p>Return when the key expires, in seconds since 1970 (the same as KeyPacket.getCreateDate()).</p>
+     * <p>V3 keys carry their lifetime in the key packet, V4 keys in their self or binding signature.</p>
+     * @return The expiry time, or 0 if the key does not expire.
+     */
+    public long getExpiryTime() {
+        if (keypacket.getVersion() < 4) {
+            if (keypacket.getV3Expiry() == 0)
+                return 0;
+            
+            return keypacket.getCreateDate() + keypacket.getV3Expiry() * 86400L;
+        }
+        
+        KeyExpirationTimeSubPacket expiry = (KeyExpirationTimeSubPacket)findSubPacket(KeyExpirationTimeSubPacket.class);
+        if ((expiry==null) || (expiry.getTimeLong()==0))
+            return 0;
+        
+        return keypacket.getCreateDate() + expiry.getTimeLong();
+    }
+    
+    /** 
+     * <p>Return the ordered list of hash algorithms the key owner prefers.</p>
+     * <p>Returns null if the key has no V4 self signature or the self signature does not state a preference.</p>
+     */
+    public byte[] getPreferredHashAlgorithms() {
+        AlgorithmPreferenceSubPacket prefs = findPreferences(PreferredHashAlgorithmSubPacket.class);
+        
+        if (prefs!=null)
+            return prefs.getData();
+        
+        return null;
+    }
+    
+    /** 
+     * <p>Return the ordered list of compression algorithms the key owner prefers.</p>
+     * <p>Returns null if the key has no V4 self signature or the self signature does not state a preference.</p>
+     */
+    public byte[] getPreferredCompressionAlgorithms() {
+        AlgorithmPreferenceSubPacket prefs = findPreferences(PreferredCompressionAlgorithmSubPacket.class);
+        
+        if (prefs!=null)
+            return prefs.getData();
+        
+        return null;
+    }
+    
+    /** 
+     * <p>Look through the hashed section of the self signature for a given type of preference sub packet.</p>
+     */
+    protected AlgorithmPreferenceSubPacket findPreferences(Class type) {
+        return (AlgorithmPreferenceSubPacket)findSubPacket(type);
+    }
+    
+    /** 
+     * <p>Look through the hashed section of the self signature for a given type of sub packet.</p>
+     */
+    protected SignatureSubPacket findSubPacket(Class type) {
+        if ((selfSignature==null) || (!(selfSignature.getSignatureData() instanceof V4SignatureMaterial)))
+            return null;
+        
+        Vector hashed = ((V4SignatureMaterial)selfSignature.getSignatureData()).getHashedSubPackets();
+        if (hashed==null) 
+            return null;
+        
+        for (int n = 0; n < hashed.size(); n++) {
+            if (type.isInstance(hashed.elementAt(n)))
+                return (SignatureSubPacket)hashed.elementAt(n);
+        }
+        
+        return null;
+    }
 }
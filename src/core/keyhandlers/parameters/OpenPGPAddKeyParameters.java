@@ -44,6 +44,9 @@ public class OpenPGPAddKeyParameters implements KeyHandlerParameters {
     /** A list of symmetric algorithm preferences. */
     private byte[] symmetricAlgorithmPrefs;
     
+    /** A list of hash algorithm preferences. */
+    private byte[] hashAlgorithmPrefs;
+    
     /** The date to stamp the packet as created. */
     private Date creationDate;
     
@@ -53,9 +56,20 @@ public class OpenPGPAddKeyParameters implements KeyHandlerParameters {
      * @param symmetricPrefs An ordered list denoting symmetric encryption algorithm preferences (only used on primary keys).
      */
     public OpenPGPAddKeyParameters(Date creationDate, int keyAlgorithm, byte [] symmetricPrefs) {
+        this(creationDate, keyAlgorithm, symmetricPrefs, null);
+    }
+    
+    /** Creates a new instance of OpenPGPAddKeyParameters.
+     * @param creationDate the creation date that will be set in the key packet.
+     * @param keyAlgorithm The public key algorithm of the key.
+     * @param symmetricPrefs An ordered list denoting symmetric encryption algorithm preferences (only used on primary keys).
+     * @param hashPrefs An ordered list denoting hash algorithm preferences (only used on primary keys).
+     */
+    public OpenPGPAddKeyParameters(Date creationDate, int keyAlgorithm, byte [] symmetricPrefs, byte [] hashPrefs) {
         setCreationDate(creationDate);
         setPublicKeyAlgorithm(keyAlgorithm);
         setSymmetricAlgorithmPrefs(symmetricPrefs);
+        setHashAlgorithmPrefs(hashPrefs);
     }
     
     /** 
@@ -83,6 +97,18 @@ public class OpenPGPAddKeyParameters implements KeyHandlerParameters {
         symmetricAlgorithmPrefs = prefs;
     }
     
+    /** 
+     * <p>Return an ordered list of hash algorithm preferences.</p>
+     */
+    public byte[] getHashAlgorithmPrefs() {
+        return hashAlgorithmPrefs;
+    }
+    
+    /** Set the hash algorithm preferences. */
+    protected void setHashAlgorithmPrefs(byte prefs[]) {
+        hashAlgorithmPrefs = prefs;
+    }
+    
     /** Get the creation date timestamp. */
     public Date getCreationDate() {
         return creationDate;
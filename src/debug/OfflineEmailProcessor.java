@@ -84,10 +84,31 @@ public class OfflineEmailProcessor {
             symmetricAlgorithm = SymmetricAlgorithmSettings.CAST5;
         } else if ("3DES".compareToIgnoreCase(symAlg)==0) {
             symmetricAlgorithm = SymmetricAlgorithmSettings.TRIPLEDES;
+        } else if ("AES128".compareToIgnoreCase(symAlg)==0) {
+            symmetricAlgorithm = SymmetricAlgorithmSettings.AES128;
+        } else if ("AES192".compareToIgnoreCase(symAlg)==0) {
+            symmetricAlgorithm = SymmetricAlgorithmSettings.AES192;
+        } else if ("AES256".compareToIgnoreCase(symAlg)==0) {
+            symmetricAlgorithm = SymmetricAlgorithmSettings.AES256;
         } else {
             System.err.println("Symmetric algorithm '"+symAlg+"' is not supported.");
         }
 
+        String workerThreads = configData.getSetting("openpgp.workerthreads","0");
+        try {
+            WorkerPool.setDefaultPoolSize(Integer.parseInt(workerThreads.trim()));
+        } catch (NumberFormatException e) {
+            System.err.println("Worker thread count '"+workerThreads+"' is not a number.");
+        }
+
+        String hashAlg = configData.getSetting("openpgp.hashalgorithm.used","SHA1");
+        int hashAlgorithm = HashAlgorithmSettings.SHA1;
+        try {
+            hashAlgorithm = HashAlgorithmSettings.getHashAlgorithm(hashAlg);
+        } catch (AlgorithmException e) {
+            System.err.println("Hash algorithm '"+hashAlg+"' is not supported.");
+        }
+
         // Load key manager lists
             KeyHandler publicKeyManagers[] = null;
             KeyHandler secretKeyManagers[] = null;
@@ -121,7 +142,43 @@ public class OfflineEmailProcessor {
                     secretKeyManagers[n] = (KeyHandler)seckm.elementAt(n);
 
         // create email processor
-        h = new OpenPGPHandler(symmetricAlgorithm);
+        h = new OpenPGPHandler(symmetricAlgorithm, hashAlgorithm);
+        
+        String compAlg = configData.getSetting("openpgp.compression.used","ZIP");
+        String compLevel = configData.getSetting("openpgp.compression.level","-1");
+        String compStrategy = configData.getSetting("openpgp.compression.strategy","DEFAULT");
+        try {
+            h.setCompression(
+                CompressionAlgorithmSettings.getCompressionAlgorithm(compAlg),
+                Integer.parseInt(compLevel.trim()),
+                CompressionAlgorithmSettings.getCompressionStrategy(compStrategy)
+            );
+        } catch (Exception e) {
+            System.err.println("Compression settings '"+compAlg+"', '"+compLevel+"', '"+compStrategy+"' are not supported.");
+        }
+
+        String attachMem = configData.getSetting("openpgp.attachmentmemory","0");
+        try {
+            h.setAttachmentMemoryLimit(Long.parseLong(attachMem.trim()) * 1024 * 1024);
+        } catch (NumberFormatException e) {
+            System.err.println("Attachment memory limit '"+attachMem+"' is not a number.");
+        }
+
+        String verifyCache = configData.getSetting("openpgp.verificationcache",Integer.toString(SignatureVerificationCache.DEFAULT_SIZE));
+        try {
+            h.setVerificationCache(new SignatureVerificationCache(Integer.parseInt(verifyCache.trim())));
+        } catch (NumberFormatException e) {
+            System.err.println("Verification cache size '"+verifyCache+"' is not a number.");
+        }
+
+        String blockCache = configData.getSetting("openpgp.blockcache","0");
+        try {
+            long size = Long.parseLong(blockCache.trim()) * 1024 * 1024;
+            if (size > 0)
+                h.setSharedBlockCache(new DecryptedBlockCache(size));
+        } catch (NumberFormatException e) {
+            System.err.println("Decrypted block cache size '"+blockCache+"' is not a number.");
+        }
 
         // process email
 
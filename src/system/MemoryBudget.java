@@ -0,0 +1,95 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package system;
+
+/**
+ * <p>A simple counting limit on the amount of memory a group of concurrent jobs may use at once.</p>
+ * <p>Before starting work a job reserves an estimate of the memory it will need with acquire(), and gives 
+ * it back with release() when it has finished. If the reservation would take the total over the limit the job waits 
+ * until enough memory has been released.</p>
+ * <p>A reservation that is larger than the whole budget is allowed once nothing else is reserved, so a single 
+ * very large job is slowed down but never refused.</p>
+ */
+public class MemoryBudget {
+    
+    /** The maximum number of bytes that may be reserved at once. */
+    private long limit;
+    
+    /** Number of bytes currently reserved. */
+    private long used;
+    
+    /** <p>Creates a new budget.</p>
+     * @param bytes The maximum number of bytes that may be reserved at once, values less than 1 mean a quarter of the maximum heap size.
+     */
+    public MemoryBudget(long bytes) {
+        if (bytes < 1)
+            bytes = Runtime.getRuntime().maxMemory() / 4;
+        
+        limit = bytes;
+        used = 0;
+    }
+    
+    /** Return the maximum number of bytes that may be reserved at once. */
+    public long getLimit() {
+        return limit;
+    }
+    
+    /** Return the number of bytes currently reserved. */
+    public synchronized long getUsed() {
+        return used;
+    }
+    
+    /** <p>Reserve some memory, waiting until it is available.</p>
+     * @param bytes The number of bytes to reserve.
+     */
+    public synchronized void acquire(long bytes) {
+        while ((used > 0) && (used + bytes > limit)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // keep waiting, the memory is still in use
+            }
+        }
+        
+        used += bytes;
+    }
+    
+    /** <p>Give back memory reserved with acquire().</p>
+     * @param bytes The number of bytes to release, this must be the same value as was passed to acquire().
+     */
+    public synchronized void release(long bytes) {
+        used -= bytes;
+        if (used < 0) used = 0;
+        
+        notifyAll();
+    }
+}
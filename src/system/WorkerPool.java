@@ -0,0 +1,278 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package system;
+import java.util.*;
+
+/**
+ * <p>A small bounded pool of worker threads used to spread CPU heavy work (cryptography, compression) across processors.</p>
+ * <p>Work is submitted as a batch of Job objects using execute(), which blocks until every job in the batch has been run. 
+ * The calling thread also runs jobs from its own batch while it waits, so a job may safely submit a batch of its own 
+ * without the risk of the pool deadlocking.</p>
+ * <p>Jobs should store their results in their own fields, this means that results can be read back in the order 
+ * the jobs were submitted regardless of the order they completed.</p>
+ */
+public class WorkerPool {
+    
+    /** 
+     * <p>A unit of work that can be run by the pool.</p>
+     */
+    public interface Job {
+        /** Do the work.
+         * @throws Exception if something went wrong, this is passed back to the caller of execute(). 
+         */
+        public void run() throws Exception;
+    }
+    
+    /** A batch of jobs submitted by a single call to execute(). */
+    private class Batch {
+        /** The jobs. */
+        Job jobs[];
+        /** Index of the next job to hand out. */
+        int next;
+        /** Number of jobs not yet completed. */
+        int remaining;
+        /** The first exception thrown by a job, if any. */
+        Exception failure;
+        /** The first error thrown by a job, for example OutOfMemoryError. */
+        Error error;
+        
+        Batch(Job jobList[]) {
+            jobs = jobList;
+            next = 0;
+            remaining = jobList.length;
+        }
+    }
+    
+    /** The shared pool, created on first use. */
+    private static WorkerPool defaultPool;
+    
+    /** Number of threads used by the shared pool, 0 to use one per processor. */
+    private static int defaultPoolSize = 0;
+    
+    /** Batches with jobs waiting to be handed out. */
+    private LinkedList queue;
+    
+    /** The worker threads. */
+    private Thread workers[];
+    
+    /** Set when the pool is shut down. */
+    private boolean stopped;
+    
+    /** <p>Creates a new pool.</p>
+     * @param threads The maximum number of threads that may run jobs at once (including the caller). Values less than 1 are treated as 1.
+     */
+    public WorkerPool(int threads) {
+        queue = new LinkedList();
+        stopped = false;
+        
+        if (threads < 1) threads = 1;
+        
+        // the calling thread does work too, so one fewer background thread is needed
+        workers = new Thread[threads-1];
+        for (int n = 0; n < workers.length; n++) {
+            workers[n] = new Thread("WorkerPool-" + n) {
+                public void run() {
+                    workerLoop();
+                }
+            };
+            workers[n].setDaemon(true);
+            workers[n].start();
+        }
+    }
+    
+    /** <p>Return the shared worker pool.</p>
+     * <p>Unless changed with setDefaultPoolSize() the pool has one thread per available processor.</p>
+     */
+    public static synchronized WorkerPool getDefaultPool() {
+        if (defaultPool == null) {
+            int size = defaultPoolSize;
+            if (size < 1) size = Runtime.getRuntime().availableProcessors();
+            
+            defaultPool = new WorkerPool(size);
+        }
+        
+        return defaultPool;
+    }
+    
+    /** <p>Set the number of threads used by the shared pool.</p>
+     * <p>If the shared pool already exists it is shut down and replaced the next time it is used.</p>
+     * @param threads The number of threads, 0 for one per available processor.
+     */
+    public static synchronized void setDefaultPoolSize(int threads) {
+        if ((defaultPool != null) && (threads != defaultPoolSize)) {
+            defaultPool.shutdown();
+            defaultPool = null;
+        }
+        
+        defaultPoolSize = threads;
+    }
+    
+    /** Return the maximum number of jobs this pool will run at once. */
+    public int getThreadCount() {
+        return workers.length + 1;
+    }
+    
+    /** <p>Run a batch of jobs and wait for them to complete.</p>
+     * <p>If a job throws an exception any jobs in the batch that have not yet started are skipped and the first
+     * exception is rethrown once the running jobs have finished. Errors, such as running out of memory, are treated 
+     * the same way and rethrown as they are.</p>
+     * @param jobs The jobs to run.
+     * @throws Exception the first exception thrown by a job.
+     */
+    public void execute(Job jobs[]) throws Exception {
+        if ((jobs == null) || (jobs.length == 0))
+            return;
+        
+        // nothing to gain from the queue
+        if ((jobs.length == 1) || (workers.length == 0) || (stopped)) {
+            for (int n = 0; n < jobs.length; n++)
+                jobs[n].run();
+            
+            return;
+        }
+        
+        Batch batch = new Batch(jobs);
+        
+        synchronized (queue) {
+            queue.addLast(batch);
+            queue.notifyAll();
+        }
+        
+        // help out with our own batch
+        Job job = null;
+        while ((job = takeJob(batch)) != null) 
+            runJob(batch, job);
+        
+        // wait for jobs picked up by the workers
+        synchronized (batch) {
+            while (batch.remaining > 0) {
+                try {
+                    batch.wait();
+                } catch (InterruptedException e) {
+                    // keep waiting, the jobs are still running
+                }
+            }
+        }
+        
+        if (batch.error != null)
+            throw batch.error;
+        
+        if (batch.failure != null)
+            throw batch.failure;
+    }
+    
+    /** <p>Stop the worker threads.</p>
+     * <p>Jobs already handed to a worker are completed. Later calls to execute() run jobs on the calling thread.</p>
+     */
+    public void shutdown() {
+        synchronized (queue) {
+            stopped = true;
+            queue.notifyAll();
+        }
+    }
+    
+    /** Take the next job from a given batch, or null if all have been handed out. */
+    private Job takeJob(Batch batch) {
+        synchronized (queue) {
+            if (batch.next >= batch.jobs.length)
+                return null;
+            
+            Job job = batch.jobs[batch.next++];
+            if (batch.next >= batch.jobs.length)
+                queue.remove(batch);
+            
+            return job;
+        }
+    }
+    
+    /** Run a job and record its completion against its batch. */
+    private void runJob(Batch batch, Job job) {
+        Exception failure = null;
+        Error error = null;
+        
+        // don't start new work once something has failed
+        boolean skip;
+        synchronized (batch) {
+            skip = (batch.failure != null) || (batch.error != null);
+        }
+        
+        if (!skip) {
+            try {
+                job.run();
+            } catch (Exception e) {
+                failure = e;
+            } catch (Error e) {
+                error = e;
+            }
+        }
+        
+        synchronized (batch) {
+            if ((failure != null) && (batch.failure == null))
+                batch.failure = failure;
+            
+            if ((error != null) && (batch.error == null))
+                batch.error = error;
+            
+            batch.remaining--;
+            if (batch.remaining == 0)
+                batch.notifyAll();
+        }
+    }
+    
+    /** The main loop of a worker thread. */
+    private void workerLoop() {
+        while (true) {
+            Batch batch = null;
+            Job job = null;
+            
+            synchronized (queue) {
+                while ((queue.size() == 0) && (!stopped)) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+                
+                if ((stopped) && (queue.size() == 0))
+                    return;
+                
+                batch = (Batch)queue.getFirst();
+                job = batch.jobs[batch.next++];
+                if (batch.next >= batch.jobs.length)
+                    queue.removeFirst();
+            }
+            
+            runJob(batch, job);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.algorithmhandlers.openpgp.*;
+import core.algorithmhandlers.openpgp.packets.*;
+import core.algorithmhandlers.openpgp.util.*;
+import core.exceptions.AlgorithmException;
+import java.io.*;
+import java.security.*;
+import org.bouncycastle.jce.provider.*;
+
+/**
+ * <p>Test the chunked AEAD (version 2) symmetrically encrypted integrity protected data packet.</p>
+ * <p>Literal data is encrypted with each supported AEAD mode using a small chunk size, so the data is
+ * spread over many chunks. The packet is then written out, read back in and decrypted. Finally a 
+ * modified packet, a truncated packet and packets with invalid chunk sizes are checked to make sure they are rejected.</p>
+ */
+public class TestAEADEncryptedDataPacket extends Test {
+    
+    /** Output filename. */
+    public final String outputfile = "TestAEADEncryptedDataPacket.pgp";
+    
+    /** Smallest chunk size (64 bytes) to force lots of chunks. */
+    public final int chunkSize = 0;
+    
+    /* Literal packet data */
+    public final byte format_1 = 'b';
+    public final String filename_1 = "AFilename.dat";
+    
+    /** Creates a new instance of TestAEADEncryptedDataPacket */
+    public TestAEADEncryptedDataPacket() {
+        setTestName("Test AEAD SymmetricallyEncryptedIntegrityProtectedDataPacket"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestAEADEncryptedDataPacket t = new TestAEADEncryptedDataPacket();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        System.out.println("Adding Bouncy Castle JCE provider...");
+        Security.addProvider(new BouncyCastleProvider());
+        
+        // build some data that is not a multiple of the chunk size
+        byte rawdata[] = new byte[1000];
+        for (int n = 0; n < rawdata.length; n++)
+            rawdata[n] = (byte)(n * 7);
+        
+        if (!testRoundTrip(SymmetricAlgorithmSettings.AES128, AEADAlgorithmSettings.OCB, rawdata)) result = false;
+        if (!testRoundTrip(SymmetricAlgorithmSettings.AES256, AEADAlgorithmSettings.GCM, rawdata)) result = false;
+        if (!testRoundTrip(SymmetricAlgorithmSettings.AES192, AEADAlgorithmSettings.EAX, rawdata)) result = false;
+        
+        // empty data still has a final tag
+        if (!testRoundTrip(SymmetricAlgorithmSettings.AES128, AEADAlgorithmSettings.OCB, new byte[0])) result = false;
+        
+        if (!testTamper(rawdata)) result = false;
+        
+        return result;
+    }
+    
+    /** Encrypt, write, read and decrypt a literal packet, comparing the result. */
+    private boolean testRoundTrip(int sym, int aead, byte rawdata[]) throws Exception {
+        
+        System.out.println("Testing " + SymmetricAlgorithmSettings.getCipherText(sym) + "/" + AEADAlgorithmSettings.getAEADText(aead) + 
+                            " with " + rawdata.length + " bytes...");
+        
+        SessionKey sk = new SessionKey(sym);
+        
+        System.out.println("  Encrypting...");
+        SymmetricallyEncryptedIntegrityProtectedDataPacket p = new SymmetricallyEncryptedIntegrityProtectedDataPacket(aead, chunkSize);
+        p.add(new LiteralDataPacket(format_1, filename_1, rawdata));
+        p.encryptAndEncode(sk);
+        
+        System.out.println("  Writing packet to "+outputfile+"...");
+        OpenPGPPacketOutputStream stream = new OpenPGPPacketOutputStream(new FileOutputStream(outputfile));
+        stream.writePacket(p);
+        stream.close();
+        
+        System.out.println("  Reading packet from "+outputfile+"...");
+        OpenPGPPacketInputStream instream = new OpenPGPPacketInputStream(new FileInputStream(outputfile));
+        SymmetricallyEncryptedIntegrityProtectedDataPacket r_p = (SymmetricallyEncryptedIntegrityProtectedDataPacket)instream.readPacket();
+        instream.close();
+        
+        System.out.print("  Parameters... ");
+        if ((r_p.getVersion()!=2) || (r_p.getAEADAlgorithm()!=aead) || (r_p.getChunkSize()!=64)) {
+            System.out.println("...ERROR!");
+            return false;
+        }
+        System.out.println("Ok.");
+        
+        System.out.println("  Decrypting...");
+        r_p.decryptAndDecode(sk);
+        
+        System.out.print("  Comparing data... ");
+        LiteralDataPacket lp = (LiteralDataPacket)r_p.unpack(0);
+        if ((r_p.getNumberPacked()!=1) || (!lp.getFilename().equals(filename_1)) || (!equal(lp.getData(), rawdata))) {
+            System.out.println("...ERROR!");
+            return false;
+        }
+        System.out.println("Ok.");
+        
+        return true;
+    }
+    
+    /** Make sure modified or truncated data fails authentication. */
+    private boolean testTamper(byte rawdata[]) throws Exception {
+        boolean result = true;
+        
+        SessionKey sk = new SessionKey(SymmetricAlgorithmSettings.AES128);
+        
+        SymmetricallyEncryptedIntegrityProtectedDataPacket p = new SymmetricallyEncryptedIntegrityProtectedDataPacket(AEADAlgorithmSettings.OCB, chunkSize);
+        p.add(new LiteralDataPacket(format_1, filename_1, rawdata));
+        p.encryptAndEncode(sk);
+        byte body[] = p.encodePacketBody();
+        
+        // header is version, cipher, aead, chunk size and salt
+        int start = 4 + SymmetricallyEncryptedIntegrityProtectedDataPacket.SALT_LENGTH;
+        int chunk = 64 + AEADAlgorithmSettings.TAG_LENGTH;
+        
+        System.out.print("Testing modified data is rejected... ");
+        byte modified[] = (byte[])body.clone();
+        modified[start + chunk + 3] ^= 0x01;
+        if (decrypts(modified, sk)) {
+            System.out.println("...ERROR!");
+            result = false;
+        } else
+            System.out.println("Ok.");
+        
+        System.out.print("Testing truncated data is rejected... ");
+        byte truncated[] = new byte[body.length - chunk];
+        System.arraycopy(body, 0, truncated, 0, start + chunk);
+        System.arraycopy(body, start + 2*chunk, truncated, start + chunk, body.length - start - 2*chunk);
+        if (decrypts(truncated, sk)) {
+            System.out.println("...ERROR!");
+            result = false;
+        } else
+            System.out.println("Ok.");
+        
+        // chunk size octets above 16 would overflow the shift, 25 gives a negative size and 26 or 58 a size of 1
+        int badSizes[] = {17, 25, 26, 58, 255};
+        for (int n = 0; n < badSizes.length; n++) {
+            System.out.print("Testing chunk size octet " + badSizes[n] + " is rejected... ");
+            byte bad[] = (byte[])body.clone();
+            bad[3] = (byte)badSizes[n];
+            
+            try {
+                new SymmetricallyEncryptedIntegrityProtectedDataPacket().buildPacket(bad);
+                System.out.println("...ERROR!");
+                result = false;
+            } catch (AlgorithmException e) {
+                System.out.println("(" + e.getMessage() + ") Ok.");
+            }
+        }
+        
+        return result;
+    }
+    
+    /** Returns true if the given packet body decrypted successfully. */
+    private boolean decrypts(byte body[], SessionKey sk) {
+        try {
+            SymmetricallyEncryptedIntegrityProtectedDataPacket p = new SymmetricallyEncryptedIntegrityProtectedDataPacket();
+            p.buildPacket(body);
+            p.decryptAndDecode(sk);
+            return true;
+        } catch (Exception e) {
+            System.out.print("(" + e.getMessage() + ") ");
+            return false;
+        }
+    }
+    
+    /** Compare two byte arrays. */
+    private boolean equal(byte a[], byte b[]) {
+        if (a.length != b.length)
+            return false;
+        for (int n = 0; n < a.length; n++)
+            if (a[n] != b[n])
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.*;
+import core.keyhandlers.keydata.*;
+import core.exceptions.*;
+import java.security.Security;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Test looking up several keys at once, checking that a keyring read once gives the same keys as looking each identifier 
+ * up separately (including keys stored next to each other), that unknown identifiers give null and that the default 
+ * implementation only looks up each different identifier once.</p>
+ */
+public class TestBatchKeyLookup extends Test {
+    
+    public final String pubring = "test/testdata/pubring_active.pgp";
+    
+    /** Creates a new instance of TestBatchKeyLookup */
+    public TestBatchKeyLookup() {
+        setTestName("Test batch key lookup"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestBatchKeyLookup t = new TestBatchKeyLookup();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        Security.addProvider(new BouncyCastleProvider());
+        
+        final OpenPGPPublicKeyring ring = new OpenPGPPublicKeyring(pubring, null);
+        
+        KeyIdentifier ids[] = {
+            new OpenPGPStandardKeyIdentifier("test2 <test2@dushka.co.uk>"),
+            new OpenPGPStandardKeyIdentifier("Test3 <ihopethisworks@dushka.co.uk>"), // stored straight after test2
+            new OpenPGPKeyIDKeyIdentifier(((OpenPGPKeyData)ring.findKeys(new OpenPGPStandardKeyIdentifier("test6 <test6@dushka.co.uk>"), null)[1]).getKeyID()),
+            new OpenPGPStandardKeyIdentifier("nobody <nobody@example.com>"),
+            new OpenPGPStandardKeyIdentifier("test2 <test2@dushka.co.uk>")
+        };
+        
+        // one pass over the keyring
+        System.out.print("Looking up keys in one pass... ");
+        KeyData found[][] = ring.findKeys(ids, null);
+        boolean ok = (found.length == ids.length);
+        for (int n = 0; (ok) && (n < ids.length); n++) {
+            if (!sameKeys(found[n], ring.findKeys(ids[n], null)))
+                ok = false;
+        }
+        if ((ok) && (found[3] == null) && (found[0].length == 2) && (found[1].length == 2) && (found[2].length == 1)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // default implementation
+        System.out.print("Looking up keys with the default implementation... ");
+        final int calls[] = {0};
+        KeyHandler counting = new KeyHandler() {
+            public KeyData [] findKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException, ChecksumFailureException {
+                calls[0]++;
+                return ring.findKeys(id, parameters);
+            }
+            public void addKeys(KeyData key[], KeyIdentifier idDetails[], KeyHandlerParameters parameters[]) throws KeyHandlerException {}
+            public int removeKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException { return 0; }
+            public void changeSetting(KeyHandlerParameters parameters) throws KeyHandlerException {}
+            public Object [] toArray() throws KeyHandlerException { return null; }
+        };
+        KeyData defaults[][] = counting.findKeys(ids, null);
+        ok = (calls[0] == 4);
+        for (int n = 0; (ok) && (n < ids.length); n++) {
+            if (!sameKeys(defaults[n], found[n]))
+                ok = false;
+        }
+        if (ok) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+    
+    /** Do two lists of keys hold the same key IDs in the same order? */
+    private boolean sameKeys(KeyData one[], KeyData two[]) throws Exception {
+        if ((one == null) || (two == null))
+            return one == two;
+        
+        if (one.length != two.length)
+            return false;
+        
+        for (int n = 0; n < one.length; n++) {
+            if (!java.util.Arrays.equals(((OpenPGPKeyData)one[n]).getKeyID(), ((OpenPGPKeyData)two[n]).getKeyID()))
+                return false;
+        }
+        
+        return true;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.algorithmhandlers.openpgp.*;
+import core.algorithmhandlers.openpgp.packets.*;
+import core.algorithmhandlers.openpgp.util.CompressionAlgorithmSettings;
+import core.exceptions.AlgorithmException;
+import java.io.*;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Test the ZIP, ZLIB and BZip2 compression algorithms of the CompressedDataPacket.</p>
+ * <p>Packets are compressed and decompressed at several levels, the streaming compressor is checked against the packet 
+ * encoding, and messages compressed by GnuPG are read in.</p>
+ */
+public class TestCompressionAlgorithms extends Test {
+    
+    /** Messages compressed by GnuPG, and their contents. */
+    public final String gpgfiles[] = {"test/testdata/CompressedMessage_zip.packet", "test/testdata/CompressedMessage_zlib.packet", "test/testdata/CompressedMessage_bzip2.packet"};
+    public final byte gpgalgorithms[] = {CompressedDataPacket.ZIP, CompressedDataPacket.ZLIB, CompressedDataPacket.BZIP2};
+    public final String gpgdatafile = "test/testdata/CompressedMessage.txt";
+    
+    /* Literal packet data */
+    public final byte format_1 = 't';
+    public final String filename_1 = "AFilename.dat";
+    
+    /** Creates a new instance of TestCompressionAlgorithms */
+    public TestCompressionAlgorithms() {
+        setTestName("Test compression algorithms"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestCompressionAlgorithms t = new TestCompressionAlgorithms();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        // something compressible, a little over 1MB
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int n = 0; data.size() < 1024*1024; n++)
+            data.write(("Line " + n + " of some fairly repetitive literal data.\r\n").getBytes());
+        byte rawdata[] = data.toByteArray();
+        
+        byte algorithms[] = {CompressedDataPacket.UNCOMPRESSED, CompressedDataPacket.ZIP, CompressedDataPacket.ZLIB, CompressedDataPacket.BZIP2};
+        int levels[] = {-1, 1, 9};
+        
+        if (!CompressionAlgorithmSettings.isSupported(CompressedDataPacket.BZIP2)) {
+            if (!testBZip2Unavailable()) result = false;
+        }
+        
+        for (int a = 0; a < algorithms.length; a++) {
+            if (!CompressionAlgorithmSettings.isSupported(algorithms[a])) continue;
+            
+            for (int l = 0; l < levels.length; l++) {
+                if (!testRoundTrip(algorithms[a], levels[l], Deflater.DEFAULT_STRATEGY, rawdata)) result = false;
+            }
+        }
+        
+        if (!testRoundTrip(CompressedDataPacket.ZLIB, 6, Deflater.FILTERED, rawdata)) result = false;
+        if (!testRoundTrip(CompressedDataPacket.ZIP, 6, Deflater.HUFFMAN_ONLY, rawdata)) result = false;
+        
+        if (!testStreaming(rawdata)) result = false;
+        
+        if (!testGnuPG()) result = false;
+        
+        return result;
+    }
+    
+    /** Compress and decompress a literal packet, comparing the result. */
+    private boolean testRoundTrip(byte algorithm, int level, int strategy, byte rawdata[]) throws Exception {
+        
+        CompressedDataPacket cp = new CompressedDataPacket(algorithm, level, strategy);
+        System.out.print(cp.toString() + " level " + level + " strategy " + strategy + "... ");
+        
+        cp.add(new LiteralDataPacket(format_1, filename_1, rawdata));
+        byte encoded[] = cp.encodePacket();
+        
+        OpenPGPPacketInputStream instream = new OpenPGPPacketInputStream(new ByteArrayInputStream(encoded));
+        CompressedDataPacket r_p = (CompressedDataPacket)instream.readPacket();
+        instream.close();
+        
+        LiteralDataPacket lp = (LiteralDataPacket)r_p.unpack(0);
+        if ((r_p.getCompressionAlgorithm()!=algorithm) || (!lp.getFilename().equals(filename_1)) || (!equal(lp.getData(), rawdata))) {
+            System.out.println("...ERROR!");
+            return false;
+        }
+        
+        System.out.println(encoded.length + " bytes, Ok.");
+        return true;
+    }
+    
+    /** Check the streaming compressor and decompressor against the packet encoding. */
+    private boolean testStreaming(byte rawdata[]) throws Exception {
+        boolean result = true;
+        
+        byte algorithms[] = {CompressedDataPacket.ZIP, CompressedDataPacket.ZLIB, CompressedDataPacket.BZIP2};
+        
+        for (int a = 0; a < algorithms.length; a++) {
+            if (!CompressionAlgorithmSettings.isSupported(algorithms[a])) continue;
+            
+            CompressedDataPacket cp = new CompressedDataPacket(algorithms[a]);
+            System.out.print("Streaming " + cp.toString() + "... ");
+            
+            // compress a stream
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            OutputStream out = cp.getCompressor(compressed);
+            CompressedDataPacket.copy(new ByteArrayInputStream(rawdata), out);
+            out.close();
+            
+            // decompress a stream
+            ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+            InputStream in = CompressedDataPacket.getDecompressor(algorithms[a], new ByteArrayInputStream(compressed.toByteArray()));
+            CompressedDataPacket.copy(in, decompressed);
+            in.close();
+            
+            if (!equal(decompressed.toByteArray(), rawdata)) {
+                System.out.println("...ERROR!");
+                result = false;
+            } else {
+                System.out.println("Ok.");
+            }
+        }
+        
+        return result;
+    }
+    
+    /** Without the bcpg jar BZip2 must be refused cleanly rather than failing to load a class. */
+    private boolean testBZip2Unavailable() throws Exception {
+        System.out.print("BZip2 without the bcpg jar... ");
+        
+        try {
+            new CompressedDataPacket(CompressedDataPacket.BZIP2).getCompressor(new ByteArrayOutputStream());
+        } catch (AlgorithmException e) {
+            System.out.println("(" + e.getMessage() + ") Ok.");
+            return true;
+        }
+        
+        System.out.println("...ERROR!");
+        return false;
+    }
+    
+    /** Read messages compressed by GnuPG. */
+    private boolean testGnuPG() throws Exception {
+        boolean result = true;
+        
+        byte expected[] = readFile(gpgdatafile);
+        
+        for (int n = 0; n < gpgfiles.length; n++) {
+            if (!CompressionAlgorithmSettings.isSupported(gpgalgorithms[n])) continue;
+            
+            System.out.print("Reading " + gpgfiles[n] + "... ");
+            
+            OpenPGPPacketInputStream instream = new OpenPGPPacketInputStream(new FileInputStream(gpgfiles[n]));
+            CompressedDataPacket cp = (CompressedDataPacket)instream.readPacket();
+            instream.close();
+            
+            LiteralDataPacket lp = (LiteralDataPacket)cp.unpack(0);
+            if ((cp.getCompressionAlgorithm()!=gpgalgorithms[n]) || (!equal(lp.getData(), expected))) {
+                System.out.println("...ERROR!");
+                result = false;
+            } else {
+                System.out.println("Ok.");
+            }
+        }
+        
+        return result;
+    }
+    
+    /** Read a whole file. */
+    private byte[] readFile(String filename) throws IOException {
+        FileInputStream in = new FileInputStream(filename);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressedDataPacket.copy(in, out);
+        in.close();
+        
+        return out.toByteArray();
+    }
+    
+    /** Compare two byte arrays. */
+    private boolean equal(byte a[], byte b[]) {
+        if (a.length != b.length)
+            return false;
+        for (int n = 0; n < a.length; n++)
+            if (a[n] != b[n])
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.algorithmhandlers.openpgp.util.*;
+import java.io.*;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Test the compression policy, making sure that incompressible data is left alone and that the algorithm is 
+ * negotiated against the recipients' preferences.</p>
+ */
+public class TestCompressionPolicy extends Test {
+    
+    /** Creates a new instance of TestCompressionPolicy */
+    public TestCompressionPolicy() {
+        setTestName("Test CompressionPolicy"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestCompressionPolicy t = new TestCompressionPolicy();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        CompressionPolicy policy = new CompressionPolicy(CompressionAlgorithmSettings.ZLIB, 9, Deflater.DEFAULT_STRATEGY);
+        Random rnd = new Random(1234);
+        
+        // plain text
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        for (int n = 0; text.size() < 100000; n++)
+            text.write(("This is line " + n + " of a plain text email message.\r\n").getBytes());
+        
+        // random data
+        byte random[] = new byte[100000];
+        rnd.nextBytes(random);
+        
+        // a jpeg, which compresses well if you ignore the header
+        byte jpeg[] = (byte[])text.toByteArray().clone();
+        jpeg[0] = (byte)0xFF; jpeg[1] = (byte)0xD8; jpeg[2] = (byte)0xFF;
+        
+        // moderate entropy, printable characters from a 100 character alphabet
+        byte mixed[] = new byte[100000];
+        for (int n = 0; n < mixed.length; n++)
+            mixed[n] = (byte)(28 + rnd.nextInt(100));
+        
+        // compressed data with a plain text header
+        byte header[] = (byte[])random.clone();
+        System.arraycopy(text.toByteArray(), 0, header, 0, 8192);
+        
+        // a text body with an embedded block of compressed data, for example a base64 image
+        byte embedded[] = (byte[])text.toByteArray().clone();
+        System.arraycopy(random, 0, embedded, (embedded.length - 4096) / 3 - 2048, 8192); // covers the second sampled window
+        
+        byte prefs_zlib[][] = {{2, 1}, {3, 2, 1}};
+        byte prefs_zip[][] = {{2, 1}, {1}};
+        byte prefs_bzip2[][] = {{3, 2, 1}, {3, 1}};
+        byte prefs_none[][] = {{0}};
+        byte prefs_unstated[][] = {null};
+        
+        if (!check("Plain text", policy.choose(text.toByteArray(), "message.txt", prefs_zlib), CompressionAlgorithmSettings.ZLIB, 9)) result = false;
+        if (!check("Random data", policy.choose(random, null, prefs_zlib), CompressionAlgorithmSettings.UNCOMPRESSED, 0)) result = false;
+        if (!check("JPEG signature", policy.choose(jpeg, null, prefs_zlib), CompressionAlgorithmSettings.UNCOMPRESSED, 0)) result = false;
+        if (!check("ZIP file name", policy.choose(text.toByteArray(), "archive.ZIP", prefs_zlib), CompressionAlgorithmSettings.UNCOMPRESSED, 0)) result = false;
+        if (!check("Tiny payload", policy.choose("Hello".getBytes(), null, prefs_zlib), CompressionAlgorithmSettings.UNCOMPRESSED, 0)) result = false;
+        if (!check("Moderate entropy", policy.choose(mixed, null, prefs_zlib), CompressionAlgorithmSettings.ZLIB, CompressionPolicy.FAST_LEVEL)) result = false;
+        if (!check("Compressed data with a text header", policy.choose(header, null, prefs_zlib), CompressionAlgorithmSettings.UNCOMPRESSED, 0)) result = false;
+        if (!check("Text with an embedded compressed block", policy.choose(embedded, null, prefs_zlib), CompressionAlgorithmSettings.ZLIB, 9)) result = false;
+        
+        if (!check("Recipient only accepts ZIP", policy.choose(text.toByteArray(), null, prefs_zip), CompressionAlgorithmSettings.ZIP, 9)) result = false;
+        if (!check("Recipient wants no compression", policy.choose(text.toByteArray(), null, prefs_none), CompressionAlgorithmSettings.UNCOMPRESSED, 0)) result = false;
+        if (!check("Recipient states no preference", policy.choose(text.toByteArray(), null, prefs_unstated), CompressionAlgorithmSettings.ZIP, 9)) result = false;
+        if (!check("No recipients", policy.choose(text.toByteArray(), null, null), CompressionAlgorithmSettings.ZLIB, 9)) result = false;
+        
+        CompressionPolicy bzip2 = new CompressionPolicy(CompressionAlgorithmSettings.BZIP2, -1, Deflater.DEFAULT_STRATEGY);
+        if (!check("BZip2 avoided for fast compression", bzip2.choose(mixed, null, prefs_bzip2), CompressionAlgorithmSettings.ZIP, CompressionPolicy.FAST_LEVEL)) result = false;
+        if (CompressionAlgorithmSettings.isSupported(CompressionAlgorithmSettings.BZIP2)) {
+            if (!check("BZip2 for strong compression", bzip2.choose(text.toByteArray(), null, prefs_bzip2), CompressionAlgorithmSettings.BZIP2, -1)) result = false;
+        } else {
+            // no bcpg jar, so BZip2 can't be used even though everyone accepts it
+            if (!check("BZip2 unavailable for strong compression", bzip2.choose(text.toByteArray(), null, prefs_bzip2), CompressionAlgorithmSettings.ZIP, -1)) result = false;
+        }
+        
+        return result;
+    }
+    
+    /** Check a choice against the expected algorithm and level. */
+    private boolean check(String name, CompressionPolicy.Choice choice, int algorithm, int level) {
+        System.out.print(name + " -> " + choice.toString() + "... ");
+        
+        if ((choice.getAlgorithm()!=algorithm) || ((choice.isCompressed()) && (choice.getLevel()!=level))) {
+            System.out.println("...ERROR!");
+            return false;
+        }
+        
+        System.out.println("Ok.");
+        return true;
+    }
+}
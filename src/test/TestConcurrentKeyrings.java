@@ -0,0 +1,205 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.*;
+import core.keyhandlers.keydata.*;
+import java.io.*;
+import java.security.*;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Test concurrent use of a keyring, checking that the key file lock keeps writers apart and that lookups made while keys 
+ * are being imported, removed and compacted always see a whole keyring.</p>
+ */
+public class TestConcurrentKeyrings extends Test {
+    
+    public final String pubring = "test/testdata/pubring_active.pgp";
+    public final String pubring2 = "test/testdata/Test4_pubring.pkr";
+    
+    /** Creates a new instance of TestConcurrentKeyrings */
+    public TestConcurrentKeyrings() {
+        setTestName("Test concurrent keyrings"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestConcurrentKeyrings t = new TestConcurrentKeyrings();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        Security.addProvider(new BouncyCastleProvider());
+        
+        File copy = File.createTempFile("pubring", ".pgp");
+        copy.deleteOnExit();
+        copyFile(pubring, copy);
+        new File(copy.getPath() + OpenPGPKeyringIndex.EXTENSION).deleteOnExit();
+        new File(copy.getPath() + OpenPGPKeyringTombstones.EXTENSION).deleteOnExit();
+        new File(copy.getPath() + KeyFileLock.EXTENSION).deleteOnExit();
+        
+        // the lock
+        System.out.print("Keeping writers apart... ");
+        final KeyFileLock lock = KeyFileLock.getLock(copy.getPath());
+        lock.lock();
+        lock.lock();
+        
+        final boolean taken[] = new boolean[1];
+        Thread other = new Thread() {
+            public void run() {
+                taken[0] = lock.tryLockShared();
+                if (taken[0])
+                    lock.unlock();
+            }
+        };
+        other.start();
+        other.join();
+        boolean ok = (!taken[0]) && (lock.getHoldCount() == 2) && (KeyFileLock.getLock(copy.getAbsolutePath()) == lock);
+        
+        lock.unlock();
+        lock.unlock();
+        
+        other = new Thread() {
+            public void run() {
+                taken[0] = lock.tryLockShared();
+                if (taken[0])
+                    lock.unlock();
+            }
+        };
+        other.start();
+        other.join();
+        
+        if ((ok) && (taken[0]) && (lock.getHoldCount() == 0)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // lookups while the keyring changes, through a second keyring object for the same file
+        System.out.print("Looking up keys while the keyring changes... ");
+        OpenPGPPublicKeyring writer = new OpenPGPPublicKeyring(copy.getPath(), null);
+        OpenPGPKeyImporter importer = new OpenPGPKeyImporter();
+        
+        Lookup readers[] = new Lookup[4];
+        for (int n = 0; n < readers.length; n++) {
+            readers[n] = new Lookup(new OpenPGPPublicKeyring(copy.getPath(), null));
+            readers[n].start();
+        }
+        
+        KeyIdentifier test4 = new OpenPGPStandardKeyIdentifier("test4 <test4@brookes.ac.uk>");
+        int changes = 0;
+        for (int n = 0; n < 10; n++) {
+            writer.setAppendOnly((n % 2) == 1);
+            
+            writer.importKeys(new FileInputStream(pubring2), importer);
+            if (writer.removeKeys(test4, null) == 2)
+                changes++;
+        }
+        writer.compact();
+        
+        int lookups = 0;
+        int failures = 0;
+        for (int n = 0; n < readers.length; n++) {
+            readers[n].finish();
+            lookups += readers[n].lookups;
+            failures += readers[n].failures;
+        }
+        
+        if ((changes == 10) && (failures == 0) && (lookups > 0) && (writer.findKeys(test4, null) == null)) {
+            System.out.println("(" + lookups + " lookups) Ok.");
+        } else {
+            System.out.println("(" + failures + " of " + lookups + " lookups failed) ...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+    
+    /** Looks up a key that is never changed until told to finish. */
+    private class Lookup extends Thread {
+        
+        OpenPGPPublicKeyring ring;
+        KeyIdentifier test6 = new OpenPGPStandardKeyIdentifier("test6 <test6@dushka.co.uk>");
+        
+        volatile boolean stop;
+        int lookups;
+        int failures;
+        
+        Lookup(OpenPGPPublicKeyring keyring) throws Exception {
+            ring = keyring;
+        }
+        
+        public void run() {
+            while (!stop) {
+                try {
+                    KeyData found[] = ring.findKeys(test6, null);
+                    if ((found == null) || (found.length != 2))
+                        failures++;
+                } catch (Exception e) {
+                    failures++;
+                }
+                
+                lookups++;
+            }
+        }
+        
+        void finish() throws InterruptedException {
+            stop = true;
+            join();
+        }
+    }
+    
+    private void copyFile(String from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to.getPath());
+        
+        byte buffer[] = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0)
+            out.write(buffer, 0, read);
+        
+        in.close();
+        out.close();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.algorithmhandlers.openpgp.util.DecryptedBlockCache;
+
+/**
+ * <p>Test the decrypted block cache, checking that plaintexts are found by block and passphrases, that the cache stays within 
+ * its size by dropping the least recently used blocks, and that blocks bigger than the cache are not kept.</p>
+ */
+public class TestDecryptedBlockCache extends Test {
+    
+    /** Creates a new instance of TestDecryptedBlockCache */
+    public TestDecryptedBlockCache() {
+        setTestName("Test DecryptedBlockCache"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestDecryptedBlockCache t = new TestDecryptedBlockCache();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        DecryptedBlockCache cache = new DecryptedBlockCache(3000);
+        
+        byte block[] = "hQEMA...armored block...".getBytes();
+        byte secrets[][] = { "secret".getBytes() };
+        
+        // same block and passphrases are found, others are not
+        System.out.print("Looking up blocks... ");
+        cache.put(DecryptedBlockCache.makeKey(block, secrets), new byte[1000]);
+        
+        if ((cache.get(DecryptedBlockCache.makeKey(block, new byte[][] { "secret".getBytes() })) != null) &&
+            (cache.get(DecryptedBlockCache.makeKey(block, null)) == null) &&
+            (cache.get(DecryptedBlockCache.makeKey(block, new byte[][] { "sec".getBytes(), "ret".getBytes() })) == null) &&
+            (cache.get(DecryptedBlockCache.makeKey("another block".getBytes(), secrets)) == null)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // least recently used blocks are dropped to stay within size
+        System.out.print("Dropping old blocks... ");
+        for (int n = 1; n < 3; n++)
+            cache.put(DecryptedBlockCache.makeKey(new byte[] {(byte)n}, secrets), new byte[1000]);
+        cache.get(DecryptedBlockCache.makeKey(block, secrets)); // block 1 is now the oldest
+        cache.put(DecryptedBlockCache.makeKey(new byte[] {3}, secrets), new byte[1000]);
+        
+        if ((cache.getSize() == 3000) && (cache.getEntryCount() == 3) && 
+            (cache.get(DecryptedBlockCache.makeKey(new byte[] {1}, secrets)) == null) &&
+            (cache.get(DecryptedBlockCache.makeKey(block, secrets)) != null)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // blocks bigger than the cache are not kept
+        System.out.print("Skipping oversized blocks... ");
+        cache.put(DecryptedBlockCache.makeKey(new byte[] {4}, secrets), new byte[4000]);
+        
+        if ((cache.getEntryCount() == 3) && (cache.get(DecryptedBlockCache.makeKey(new byte[] {4}, secrets)) == null)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.algorithmhandlers.openpgp.*;
+import core.algorithmhandlers.openpgp.packets.*;
+import core.algorithmhandlers.openpgp.util.*;
+import java.io.*;
+import java.security.*;
+import org.bouncycastle.jce.provider.*;
+
+/**
+ * <p>Test the version 1 (MDC) symmetrically encrypted integrity protected data packet.</p>
+ * <p>Literal data is encrypted with several ciphers, written out, read back in and decrypted. A modified packet and a packet 
+ * decrypted with the wrong key are checked to make sure they are rejected. Finally a packet using partial body lengths 
+ * is read to make sure the parts are joined together.</p>
+ */
+public class TestIntegrityProtectedDataPacket extends Test {
+    
+    /** Output filename. */
+    public final String outputfile = "TestIntegrityProtectedDataPacket.pgp";
+    
+    /* Literal packet data */
+    public final byte format_1 = 'b';
+    public final String filename_1 = "AFilename.dat";
+    
+    /** Creates a new instance of TestIntegrityProtectedDataPacket */
+    public TestIntegrityProtectedDataPacket() {
+        setTestName("Test MDC SymmetricallyEncryptedIntegrityProtectedDataPacket"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestIntegrityProtectedDataPacket t = new TestIntegrityProtectedDataPacket();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        System.out.println("Adding Bouncy Castle JCE provider...");
+        Security.addProvider(new BouncyCastleProvider());
+        
+        // large enough to need several decryption buffers
+        byte rawdata[] = new byte[20000];
+        for (int n = 0; n < rawdata.length; n++)
+            rawdata[n] = (byte)(n * 7);
+        
+        if (!testRoundTrip(SymmetricAlgorithmSettings.CAST5, rawdata)) result = false;
+        if (!testRoundTrip(SymmetricAlgorithmSettings.TRIPLEDES, rawdata)) result = false;
+        if (!testRoundTrip(SymmetricAlgorithmSettings.AES128, rawdata)) result = false;
+        if (!testRoundTrip(SymmetricAlgorithmSettings.AES256, new byte[0])) result = false;
+        
+        if (!testTamper(rawdata)) result = false;
+        
+        if (!testPartialLengths(rawdata)) result = false;
+        
+        return result;
+    }
+    
+    /** Encrypt, write, read and decrypt a literal packet, comparing the result. */
+    private boolean testRoundTrip(int sym, byte rawdata[]) throws Exception {
+        
+        System.out.println("Testing " + SymmetricAlgorithmSettings.getCipherText(sym) + " with " + rawdata.length + " bytes...");
+        
+        SessionKey sk = new SessionKey(sym);
+        
+        System.out.println("  Encrypting...");
+        SymmetricallyEncryptedIntegrityProtectedDataPacket p = new SymmetricallyEncryptedIntegrityProtectedDataPacket();
+        p.add(new LiteralDataPacket(format_1, filename_1, rawdata));
+        p.encryptAndEncode(sk);
+        
+        System.out.println("  Writing packet to "+outputfile+"...");
+        OpenPGPPacketOutputStream stream = new OpenPGPPacketOutputStream(new FileOutputStream(outputfile));
+        stream.writePacket(p);
+        stream.close();
+        
+        System.out.println("  Reading packet from "+outputfile+"...");
+        OpenPGPPacketInputStream instream = new OpenPGPPacketInputStream(new FileInputStream(outputfile));
+        SymmetricallyEncryptedIntegrityProtectedDataPacket r_p = (SymmetricallyEncryptedIntegrityProtectedDataPacket)instream.readPacket();
+        instream.close();
+        
+        System.out.print("  Version... ");
+        if (r_p.getVersion()!=1) {
+            System.out.println("...ERROR!");
+            return false;
+        }
+        System.out.println("Ok.");
+        
+        System.out.println("  Decrypting...");
+        r_p.decryptAndDecode(sk);
+        
+        System.out.print("  Comparing data... ");
+        LiteralDataPacket lp = (LiteralDataPacket)r_p.unpack(0);
+        if ((r_p.getNumberPacked()!=1) || (!lp.getFilename().equals(filename_1)) || (!equal(lp.getData(), rawdata))) {
+            System.out.println("...ERROR!");
+            return false;
+        }
+        System.out.println("Ok.");
+        
+        return true;
+    }
+    
+    /** Make sure modified data and the wrong key are rejected. */
+    private boolean testTamper(byte rawdata[]) throws Exception {
+        boolean result = true;
+        
+        SessionKey sk = new SessionKey(SymmetricAlgorithmSettings.AES128);
+        
+        SymmetricallyEncryptedIntegrityProtectedDataPacket p = new SymmetricallyEncryptedIntegrityProtectedDataPacket();
+        p.add(new LiteralDataPacket(format_1, filename_1, rawdata));
+        p.encryptAndEncode(sk);
+        byte body[] = p.encodePacketBody();
+        
+        System.out.print("Testing modified data is rejected... ");
+        byte modified[] = (byte[])body.clone();
+        modified[body.length / 2] ^= 0x01;
+        if (decrypts(modified, sk)) {
+            System.out.println("...ERROR!");
+            result = false;
+        } else
+            System.out.println("Ok.");
+        
+        System.out.print("Testing truncated data is rejected... ");
+        byte truncated[] = new byte[body.length - 16];
+        System.arraycopy(body, 0, truncated, 0, truncated.length);
+        if (decrypts(truncated, sk)) {
+            System.out.println("...ERROR!");
+            result = false;
+        } else
+            System.out.println("Ok.");
+        
+        System.out.print("Testing the wrong key is rejected... ");
+        if (decrypts(body, new SessionKey(SymmetricAlgorithmSettings.AES128))) {
+            System.out.println("...ERROR!");
+            result = false;
+        } else
+            System.out.println("Ok.");
+        
+        return result;
+    }
+    
+    /** Read a literal data packet whose body has been split using partial body lengths. */
+    private boolean testPartialLengths(byte rawdata[]) throws Exception {
+        
+        System.out.print("Testing partial body lengths... ");
+        
+        byte body[] = new LiteralDataPacket(format_1, filename_1, rawdata).encodePacketBody();
+        
+        // 8192 byte parts, then whatever is left
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xC0 | 11);
+        int offset = 0;
+        while (body.length - offset > 8192) {
+            out.write(224 + 13);
+            out.write(body, offset, 8192);
+            offset += 8192;
+        }
+        out.write(new PacketHeader(11, true, body.length - offset).encodeHeader(), 1, 2);
+        out.write(body, offset, body.length - offset);
+        
+        OpenPGPPacketInputStream instream = new OpenPGPPacketInputStream(new ByteArrayInputStream(out.toByteArray()));
+        LiteralDataPacket lp = (LiteralDataPacket)instream.readPacket();
+        instream.close();
+        
+        if ((!lp.getFilename().equals(filename_1)) || (!equal(lp.getData(), rawdata))) {
+            System.out.println("...ERROR!");
+            return false;
+        }
+        System.out.println("Ok.");
+        
+        return true;
+    }
+    
+    /** Returns true if the given packet body decrypted successfully. */
+    private boolean decrypts(byte body[], SessionKey sk) {
+        try {
+            SymmetricallyEncryptedIntegrityProtectedDataPacket p = new SymmetricallyEncryptedIntegrityProtectedDataPacket();
+            p.buildPacket(body);
+            p.decryptAndDecode(sk);
+            return true;
+        } catch (Exception e) {
+            System.out.print("(" + e.getMessage() + ") ");
+            return false;
+        }
+    }
+    
+    /** Compare two byte arrays. */
+    private boolean equal(byte a[], byte b[]) {
+        if (a.length != b.length)
+            return false;
+        for (int n = 0; n < a.length; n++)
+            if (a[n] != b[n])
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.*;
+import core.keyhandlers.keydata.*;
+import core.exceptions.*;
+import java.io.*;
+import java.security.*;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Test the negative lookup filters, checking that the Bloom filter never misses a value it holds, that keyrings answer 
+ * mightHaveKeys() from their index and that key servers, including an HKP server answering 404, remember misses for the 
+ * miss TTL.</p>
+ */
+public class TestKeyBloomFilter extends Test {
+    
+    public final String pubring = "test/testdata/pubring_active.pgp";
+    public final String pubring2 = "test/testdata/Test4_pubring.pkr";
+    
+    /** Creates a new instance of TestKeyBloomFilter */
+    public TestKeyBloomFilter() {
+        setTestName("Test key Bloom filter"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestKeyBloomFilter t = new TestKeyBloomFilter();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        Security.addProvider(new BouncyCastleProvider());
+        
+        // the filter itself
+        System.out.print("Checking the filter holds what was added... ");
+        KeyBloomFilter filter = new KeyBloomFilter(10000, 0.01);
+        for (int n = 0; n < 10000; n++)
+            filter.add(("user" + n + "@example.com").getBytes());
+        
+        boolean ok = (filter.getCount() == 10000);
+        for (int n = 0; n < 10000; n++) {
+            if (!filter.mightContain(("user" + n + "@example.com").getBytes()))
+                ok = false;
+        }
+        
+        if (ok) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        System.out.print("Checking the false positive rate... ");
+        int positives = 0;
+        for (int n = 0; n < 10000; n++) {
+            if (filter.mightContain(("other" + n + "@example.com").getBytes()))
+                positives++;
+        }
+        
+        // aiming for 1%, allow some slack
+        if (positives < 300) {
+            System.out.println("(" + positives + " in 10000) Ok.");
+        } else {
+            System.out.println("(" + positives + " in 10000) ...ERROR!");
+            result = false;
+        }
+        
+        // keyrings
+        File copy = File.createTempFile("pubring", ".pgp");
+        copy.deleteOnExit();
+        copyFile(pubring, copy);
+        new File(copy.getPath() + OpenPGPKeyringIndex.EXTENSION).deleteOnExit();
+        new File(copy.getPath() + OpenPGPKeyringTombstones.EXTENSION).deleteOnExit();
+        new File(copy.getPath() + KeyFileLock.EXTENSION).deleteOnExit();
+        
+        OpenPGPPublicKeyring ring = new OpenPGPPublicKeyring(copy.getPath(), null);
+        KeyIdentifier test6 = new OpenPGPStandardKeyIdentifier("test6 <test6@dushka.co.uk>");
+        KeyIdentifier test4 = new OpenPGPStandardKeyIdentifier("test4 <test4@brookes.ac.uk>");
+        
+        System.out.print("Checking a keyring might have the keys it holds... ");
+        KeyData keys[] = ring.findKeys(test6, null);
+        ok = (keys != null) && ring.mightHaveKeys(test6);
+        for (int n = 0; (keys != null) && (n < keys.length); n++) {
+            if (!ring.mightHaveKeys(new OpenPGPKeyIDKeyIdentifier(((OpenPGPKeyData)keys[n]).getKeyID())))
+                ok = false;
+        }
+        
+        if (ok) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        System.out.print("Checking a keyring rules out keys it doesn't hold... ");
+        int maybe = 0;
+        for (int n = 0; n < 100; n++) {
+            if (ring.mightHaveKeys(new OpenPGPStandardKeyIdentifier("nobody" + n + " <nobody" + n + "@example.com>")))
+                maybe++;
+        }
+        
+        if ((maybe < 10) && (!ring.mightHaveKeys(test4))) {
+            System.out.println("(" + maybe + " in 100 maybe) Ok.");
+        } else {
+            System.out.println("(" + maybe + " in 100 maybe) ...ERROR!");
+            result = false;
+        }
+        
+        System.out.print("Checking the filter follows keys added to the keyring... ");
+        ring.importKeys(new FileInputStream(pubring2), new OpenPGPKeyImporter());
+        
+        if ((ring.mightHaveKeys(test4)) && (ring.findKeys(test4, null) != null)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // key servers
+        System.out.print("Remembering misses on a key server... ");
+        CountingServer server = new CountingServer();
+        
+        server.findKeys(test4, null);
+        server.findKeys(test6, null);
+        ok = (!server.mightHaveKeys(test4)) && (server.mightHaveKeys(test6)) && (server.lookups == 2);
+        
+        server.clearMisses();
+        ok = ok && server.mightHaveKeys(test4);
+        
+        server.findKeys(test4, null);
+        server.setMissTTL(1);
+        Thread.sleep(20);
+        ok = ok && server.mightHaveKeys(test4);
+        
+        server.setMissTTL(0);
+        server.findKeys(test4, null);
+        ok = ok && server.mightHaveKeys(test4);
+        
+        if (ok) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // a real HKP server answers 404 when no key matches
+        System.out.print("Remembering misses on an HKP server... ");
+        StubHttpServer http = new StubHttpServer("404 Not Found");
+        http.start();
+        
+        OpenPGPHTTPPublicKeyServer hkp = new OpenPGPHTTPPublicKeyServer("127.0.0.1", http.getPort(), null);
+        
+        ok = (hkp.findKeys(test4, null) == null) && (!hkp.mightHaveKeys(test4)) && (hkp.mightHaveKeys(test6)) 
+            && (http.getRequests() == 1);
+        
+        // other errors are failures, and aren't remembered
+        http.setStatus("500 Internal Server Error");
+        try {
+            hkp.findKeys(test6, null);
+            ok = false;
+        } catch (KeyHandlerException e) {
+            // expected
+        }
+        ok = ok && (hkp.mightHaveKeys(test6)) && (http.getRequests() == 2);
+        
+        http.close();
+        
+        if (ok) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+    
+    /** An HTTP server that answers every request with the same status and no body. */
+    private class StubHttpServer extends Thread {
+        
+        private java.net.ServerSocket socket;
+        private String status;
+        private int requests;
+        
+        StubHttpServer(String response) throws IOException {
+            socket = new java.net.ServerSocket(0, 50, java.net.InetAddress.getByName("127.0.0.1"));
+            status = response;
+            setDaemon(true);
+        }
+        
+        int getPort() {
+            return socket.getLocalPort();
+        }
+        
+        synchronized void setStatus(String response) {
+            status = response;
+        }
+        
+        synchronized int getRequests() {
+            return requests;
+        }
+        
+        public void run() {
+            try {
+                while (true) {
+                    java.net.Socket s = socket.accept();
+                    
+                    // read the request headers
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                    String line;
+                    while (((line = in.readLine()) != null) && (line.length() > 0)) {
+                    }
+                    
+                    String response;
+                    synchronized (this) {
+                        requests++;
+                        response = status;
+                    }
+                    
+                    OutputStream out = s.getOutputStream();
+                    out.write(("HTTP/1.0 " + response + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes());
+                    out.flush();
+                    s.close();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+        
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+    
+    /** A key server that only holds test6 and counts the lookups made. */
+    private class CountingServer extends KeyServer {
+        
+        int lookups;
+        
+        public KeyData[] findKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException {
+            lookups++;
+            
+            KeyData found[] = null;
+            if (new String(id.getDefaultID()).indexOf("test6") >= 0)
+                found = new KeyData[1];
+            
+            noteLookup(id, found);
+            return found;
+        }
+        
+        public void addKeys(KeyData key[], KeyIdentifier idDetails[], KeyHandlerParameters parameters[]) throws KeyHandlerException {
+        }
+        
+        public int removeKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException {
+            return 0;
+        }
+        
+        public void changeSetting(KeyHandlerParameters parameters) throws KeyHandlerException {
+        }
+        
+        public Object[] toArray() throws KeyHandlerException {
+            return null;
+        }
+    }
+    
+    private void copyFile(String from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to.getPath());
+        
+        byte buffer[] = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0)
+            out.write(buffer, 0, read);
+        
+        in.close();
+        out.close();
+    }
+}
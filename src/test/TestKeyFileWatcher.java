@@ -0,0 +1,164 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.*;
+import core.keyhandlers.keydata.*;
+import java.io.*;
+import java.security.*;
+import java.util.Vector;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Test the key file watcher, checking that keyrings changed behind their backs are told about it and that their index 
+ * follows both appended keys and a rewritten keyring.</p>
+ */
+public class TestKeyFileWatcher extends Test {
+    
+    public final String pubring = "test/testdata/pubring_active.pgp";
+    public final String pubring2 = "test/testdata/Test4_pubring.pkr";
+    
+    /** Creates a new instance of TestKeyFileWatcher */
+    public TestKeyFileWatcher() {
+        setTestName("Test KeyFileWatcher"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestKeyFileWatcher t = new TestKeyFileWatcher();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        Security.addProvider(new BouncyCastleProvider());
+        
+        File copy = File.createTempFile("pubring", ".pgp");
+        copy.deleteOnExit();
+        copyFile(pubring, copy, false);
+        new File(copy.getPath() + OpenPGPKeyringIndex.EXTENSION).deleteOnExit();
+        
+        KeyIdentifier test4 = new OpenPGPStandardKeyIdentifier("test4 <test4@brookes.ac.uk>");
+        KeyIdentifier test6 = new OpenPGPStandardKeyIdentifier("test6 <test6@dushka.co.uk>");
+        
+        OpenPGPPublicKeyring ring = new OpenPGPPublicKeyring(copy.getPath(), null);
+        ring.findKeys(test6, null); // builds the index
+        
+        // checked by hand, the thread would only check every minute
+        KeyFileWatcher watcher = new KeyFileWatcher(60000);
+        watcher.watch(ring);
+        watcher.watch(ring);
+        
+        // appended keys
+        System.out.print("Following keys appended by another program... ");
+        long length = copy.length();
+        copyFile(pubring2, copy, true);
+        watcher.check();
+        
+        Vector blocks = readIndex(copy).findBlocks(test4);
+        if ((watcher.getWatchedCount() == 1) && (blocks.size() == 1) && (((long[])blocks.elementAt(0))[0] == length) && 
+            (ring.findKeys(test4, null).length == 2) && (ring.findKeys(test6, null).length == 2)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // rewritten, longer but not by appending
+        System.out.print("Following a rewritten keyring... ");
+        copyFile(pubring2, copy, false);
+        copyFile(pubring, copy, true);
+        copyFile(pubring, copy, true);
+        watcher.check();
+        
+        blocks = readIndex(copy).findBlocks(test4);
+        if ((blocks.size() == 1) && (((long[])blocks.elementAt(0))[0] == 0) && 
+            (ring.findKeys(test4, null).length == 2) && (readIndex(copy).findBlocks(test6).size() == 2)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // no longer watched
+        System.out.print("Unwatching... ");
+        watcher.unwatch(ring);
+        watcher.shutdown();
+        if (watcher.getWatchedCount() == 0) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+    
+    /** Open the index file as it was left by the keyring, without letting it bring itself up to date. */
+    private OpenPGPKeyringIndex readIndex(File keyring) throws IOException {
+        File saved = File.createTempFile("pubring", ".pgp");
+        saved.deleteOnExit();
+        
+        File index = new File(saved.getPath() + OpenPGPKeyringIndex.EXTENSION);
+        index.deleteOnExit();
+        
+        // the index is only used as is for a keyring of the same length and modification time
+        copyFile(keyring.getPath(), saved, false);
+        copyFile(keyring.getPath() + OpenPGPKeyringIndex.EXTENSION, index, false);
+        saved.setLastModified(keyring.lastModified());
+        
+        return new OpenPGPKeyringIndex(saved.getPath());
+    }
+    
+    private void copyFile(String from, File to, boolean append) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to.getPath(), append);
+        
+        byte buffer[] = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0)
+            out.write(buffer, 0, read);
+        
+        in.close();
+        out.close();
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.*;
+import core.exceptions.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * <p>Test the circuit breaker of remote key sources, checking that it opens after repeated failures, lets a single probe 
+ * through once the retry delay has passed, that requests started before it opened can't close it, and that a key server 
+ * that never answers costs no more than the read timeout.</p>
+ */
+public class TestKeySourceCircuitBreaker extends Test {
+    
+    /** Creates a new instance of TestKeySourceCircuitBreaker */
+    public TestKeySourceCircuitBreaker() {
+        setTestName("Test key source circuit breaker"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestKeySourceCircuitBreaker t = new TestKeySourceCircuitBreaker();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        // the states
+        System.out.print("Opening after repeated failures... ");
+        KeySourceCircuitBreaker breaker = new KeySourceCircuitBreaker("Test source");
+        breaker.setFailureThreshold(3);
+        breaker.setRetryDelay(200);
+        
+        for (int n = 0; n < 3; n++)
+            breaker.end(breaker.begin(), false);
+        
+        if ((breaker.getState() == KeySourceCircuitBreaker.OPEN) && (!allowed(breaker)) && (breaker.getRejected() == 1) 
+            && (breaker.getTimesOpened() == 1)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        System.out.print("Probing once the retry delay has passed... ");
+        Thread.sleep(250);
+        boolean ok = (breaker.getState() == KeySourceCircuitBreaker.HALF_OPEN);
+        
+        // only one probe at a time, and a failed probe opens the breaker again
+        long probe = breaker.begin();
+        ok = ok && (!allowed(breaker));
+        breaker.end(probe, false);
+        ok = ok && (breaker.getState() == KeySourceCircuitBreaker.OPEN) && (breaker.getTimesOpened() == 2);
+        
+        // a successful probe closes it
+        Thread.sleep(250);
+        breaker.end(breaker.begin(), true);
+        ok = ok && (breaker.getState() == KeySourceCircuitBreaker.CLOSED) && (breaker.getConsecutiveFailures() == 0) && allowed(breaker);
+        
+        if ((ok) && (breaker.getRequests() == 6) && (breaker.getFailures() == 4)) {
+            System.out.println("(" + breaker + ") Ok.");
+        } else {
+            System.out.println("(" + breaker + ") ...ERROR!");
+            result = false;
+        }
+        
+        // a slow request that ends while the breaker is half open
+        System.out.print("Ignoring a request started before the breaker opened... ");
+        breaker = new KeySourceCircuitBreaker("Test source");
+        breaker.setFailureThreshold(2);
+        breaker.setRetryDelay(200);
+        
+        long slow = breaker.begin();
+        for (int n = 0; n < 2; n++)
+            breaker.end(breaker.begin(), false);
+        
+        Thread.sleep(250);
+        probe = breaker.begin();
+        
+        // neither closes the breaker nor lets a second probe through
+        breaker.end(slow, true);
+        ok = (breaker.getState() == KeySourceCircuitBreaker.HALF_OPEN) && (!allowed(breaker));
+        
+        breaker.end(probe, true);
+        ok = ok && (breaker.getState() == KeySourceCircuitBreaker.CLOSED);
+        
+        // nor does a late failure open it again
+        slow = breaker.begin();
+        breaker.end(breaker.begin(), false);
+        breaker.end(breaker.begin(), false);
+        Thread.sleep(250);
+        breaker.end(breaker.begin(), true);
+        breaker.end(slow, false);
+        ok = ok && (breaker.getState() == KeySourceCircuitBreaker.CLOSED) && (breaker.getConsecutiveFailures() == 0);
+        
+        if ((ok) && (breaker.getTimesOpened() == 2) && (breaker.getFailures() == 5)) {
+            System.out.println("(" + breaker + ") Ok.");
+        } else {
+            System.out.println("(" + breaker + ") ...ERROR!");
+            result = false;
+        }
+        
+        // a key server that accepts connections but never answers
+        System.out.print("Timing out a key server that doesn't answer... ");
+        SilentServer silent = new SilentServer();
+        silent.start();
+        
+        OpenPGPHTTPPublicKeyServer server = new OpenPGPHTTPPublicKeyServer("127.0.0.1", silent.getPort(), null);
+        server.getCircuitBreaker().setReadTimeout(200);
+        server.getCircuitBreaker().setFailureThreshold(2);
+        
+        KeyIdentifier test6 = new OpenPGPStandardKeyIdentifier("test6 <test6@dushka.co.uk>");
+        
+        ok = true;
+        for (int n = 0; n < 2; n++) {
+            long start = System.currentTimeMillis();
+            ok = ok && (!found(server, test6));
+            long time = System.currentTimeMillis() - start;
+            
+            if ((time < 150) || (time > 2000))
+                ok = false;
+        }
+        
+        if ((ok) && (server.getCircuitBreaker().getState() == KeySourceCircuitBreaker.OPEN)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        System.out.print("Failing at once while the server is not used... ");
+        int connections = silent.getConnections();
+        
+        long start = System.currentTimeMillis();
+        ok = !found(server, test6);
+        long time = System.currentTimeMillis() - start;
+        
+        if ((ok) && (time < 100) && (silent.getConnections() == connections) && (server.getCircuitBreaker().getRejected() == 1)) {
+            System.out.println("(" + time + "ms) Ok.");
+        } else {
+            System.out.println("(" + time + "ms) ...ERROR!");
+            result = false;
+        }
+        
+        silent.close();
+        
+        return result;
+    }
+    
+    /** Is a request let through the breaker? Ends the request if it is. */
+    private boolean allowed(KeySourceCircuitBreaker breaker) {
+        try {
+            breaker.end(breaker.begin(), true);
+            return true;
+        } catch (KeyHandlerException e) {
+            return false;
+        }
+    }
+    
+    /** Look for a key on a server, returning false if it couldn't be found or the lookup failed. */
+    private boolean found(KeyServer server, KeyIdentifier id) {
+        try {
+            return server.findKeys(id, null) != null;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+    
+    /** A server that accepts connections and never sends anything. */
+    private class SilentServer extends Thread {
+        
+        private ServerSocket socket;
+        private Vector accepted = new Vector();
+        
+        SilentServer() throws Exception {
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+        
+        int getPort() {
+            return socket.getLocalPort();
+        }
+        
+        synchronized int getConnections() {
+            return accepted.size();
+        }
+        
+        public void run() {
+            try {
+                while (true) {
+                    Socket s = socket.accept();
+                    synchronized (this) {
+                        accepted.add(s);
+                    }
+                }
+            } catch (Exception e) {
+                // closed
+            }
+        }
+        
+        void close() throws Exception {
+            socket.close();
+            
+            synchronized (this) {
+                for (int n = 0; n < accepted.size(); n++)
+                    ((Socket)accepted.elementAt(n)).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.*;
+import core.exceptions.*;
+import system.ConfigurationData;
+import java.io.*;
+
+/**
+ * <p>Test searching several key stores at once, checking that the fastest store holding a key answers, that priorities 
+ * and lookup timeouts are kept to and that the store that answered is recorded.</p>
+ */
+public class TestKeySourceResolver extends Test {
+    
+    /** Creates a new instance of TestKeySourceResolver */
+    public TestKeySourceResolver() {
+        setTestName("Test key source resolver"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestKeySourceResolver t = new TestKeySourceResolver();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        KeyIdentifier test4 = new OpenPGPStandardKeyIdentifier("test4 <test4@brookes.ac.uk>");
+        KeyIdentifier test6 = new OpenPGPStandardKeyIdentifier("test6 <test6@dushka.co.uk>");
+        KeyIdentifier nobody = new OpenPGPStandardKeyIdentifier("nobody <nobody@example.com>");
+        
+        // a slow source in front of a fast one
+        System.out.print("Taking the answer of the fastest source... ");
+        StubSource slow = new StubSource("test6", 2000);
+        StubSource fast = new StubSource("test6", 0);
+        KeyHandler sources[] = { slow, fast };
+        
+        KeySourceResolver.Answer answer = new KeySourceResolver(sources).resolve(test6, null);
+        
+        if ((answer.getKeys() != null) && (answer.getSource() == fast) && (answer.getTime() < 1000)) {
+            System.out.println("(" + answer.getTime() + "ms) Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // a preferred source is waited for
+        System.out.print("Waiting for a preferred source... ");
+        StubSource preferred = new StubSource("test6", 300);
+        StubSource other = new StubSource("test6", 0);
+        other.setPriority(1);
+        KeyHandler ranked[] = { other, preferred };
+        
+        answer = new KeySourceResolver(ranked).resolve(test6, null);
+        
+        boolean ok = (answer.getSource() == preferred) && (answer.getTime() >= 250);
+        
+        // but only until it has answered without the key
+        answer = new KeySourceResolver(ranked).resolve(test4, null);
+        ok = ok && (answer.getKeys() == null) && (answer.getSource() == null);
+        
+        StubSource missing = new StubSource("test4", 300);
+        KeyHandler ranked2[] = { missing, other };
+        answer = new KeySourceResolver(ranked2).resolve(test6, null);
+        ok = ok && (answer.getSource() == other) && (answer.getTime() >= 250);
+        
+        if (ok) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // a source that doesn't answer in time
+        System.out.print("Giving up on a source that times out... ");
+        StubSource hung = new StubSource("test6", 5000);
+        hung.setLookupTimeout(200);
+        KeyHandler timed[] = { hung, new StubSource("test4", 0) };
+        
+        long start = System.currentTimeMillis();
+        answer = new KeySourceResolver(timed).resolve(test6, null);
+        long time = System.currentTimeMillis() - start;
+        
+        if ((answer.getKeys() == null) && (time >= 150) && (time < 2000)) {
+            System.out.println("(" + time + "ms) Ok.");
+        } else {
+            System.out.println("(" + time + "ms) ...ERROR!");
+            result = false;
+        }
+        
+        // several identifiers at once
+        System.out.print("Answering several identifiers at once... ");
+        StubSource six = new StubSource("test6", 100);
+        StubSource four = new StubSource("test4", 0);
+        KeyHandler both[] = { six, four };
+        KeyIdentifier ids[] = { test4, nobody, test6 };
+        
+        KeySourceResolver.Answer answers[] = new KeySourceResolver(both).resolve(ids, null);
+        
+        if ((answers.length == 3) && (answers[0].getSource() == four) && (answers[1].getKeys() == null) 
+            && (answers[2].getSource() == six)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // errors
+        System.out.print("Handling sources that fail... ");
+        StubSource broken = new StubSource("test6", 0);
+        broken.fail = true;
+        StubSource locked = new StubSource("test6", 0);
+        locked.checksumFailure = true;
+        StubSource skipped = new StubSource("test6", 0);
+        skipped.notHere = true;
+        
+        KeyHandler failing[] = { broken, skipped, fast };
+        ok = (new KeySourceResolver(failing).resolve(test6, null).getSource() == fast) && (skipped.lookups == 0);
+        
+        KeyHandler failing2[] = { broken, locked };
+        try {
+            new KeySourceResolver(failing2).resolve(test6, null);
+            ok = false;
+        } catch (ChecksumFailureException e) {
+            // expected
+        }
+        
+        ok = ok && (new KeySourceResolver(null).resolve(test6, null).getKeys() == null);
+        
+        // errors such as running out of memory reach the caller
+        StubSource fatal = new StubSource("test6", 0);
+        fatal.error = new OutOfMemoryError("Test error");
+        KeyHandler failing3[] = { fatal, new StubSource("test4", 0) };
+        try {
+            new KeySourceResolver(failing3).resolve(test6, null);
+            ok = false;
+        } catch (OutOfMemoryError e) {
+            // expected
+        }
+        
+        if (ok) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // configured lists keep their order
+        System.out.print("Ranking configured key sources by their place in the list... ");
+        File config = File.createTempFile("keysources", ".cfg");
+        config.deleteOnExit();
+        
+        ConfigurationData data = new ConfigurationData(config.getPath());
+        for (int n = 1; n <= 3; n++) {
+            data.setSetting("test.list." + n + ".type", "OpenPGPHTTPPublicKeyServer");
+            data.setSetting("test.list." + n + ".serveraddress", "127.0.0.1");
+            data.setSetting("test.list." + n + ".serverport", "11371");
+        }
+        data.setSetting("test.list.3.priority", "0");
+        
+        KeyHandler loaded[] = KeyHandler.loadKeysourceList(data, "test.list.");
+        
+        if ((loaded.length == 3) && (loaded[0].getPriority() == 1) && (loaded[1].getPriority() == 2) && (loaded[2].getPriority() == 0)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // servers that have stopped answering
+        System.out.print("Keeping threads in bounds while servers hang... ");
+        KeyHandler hanging[] = new KeyHandler[10];
+        for (int n = 0; n < hanging.length; n++) {
+            hanging[n] = new StubSource("test6", 3000);
+            hanging[n].setLookupTimeout(100);
+        }
+        
+        for (int n = 0; n < 3; n++)
+            new KeySourceResolver(hanging).resolve(test6, null);
+        
+        int threads = countThreads();
+        
+        // a local store is still answered at once
+        KeyHandler withLocal[] = new KeyHandler[hanging.length + 1];
+        System.arraycopy(hanging, 0, withLocal, 0, hanging.length);
+        StubSource local = new StubSource("test6", 0);
+        withLocal[hanging.length] = local;
+        
+        start = System.currentTimeMillis();
+        answer = new KeySourceResolver(withLocal).resolve(test6, null);
+        time = System.currentTimeMillis() - start;
+        
+        if ((threads <= KeySourceResolver.MAX_THREADS) && (answer.getSource() == local) && (time < 1000)) {
+            System.out.println("(" + threads + " threads, " + time + "ms) Ok.");
+        } else {
+            System.out.println("(" + threads + " threads, " + time + "ms) ...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+    
+    /** Count the resolver's search threads. */
+    private int countThreads() {
+        Thread all[] = new Thread[Thread.activeCount() + 100];
+        int count = Thread.enumerate(all);
+        
+        int threads = 0;
+        for (int n = 0; n < count; n++) {
+            if (all[n].getName().startsWith("KeySourceResolver-"))
+                threads++;
+        }
+        
+        return threads;
+    }
+    
+    /** A key source that holds the keys of user IDs containing a given string, and answers after a delay. */
+    private class StubSource extends KeyHandler {
+        
+        String holds;
+        long delay;
+        
+        boolean fail;
+        boolean checksumFailure;
+        Error error;
+        boolean notHere;
+        
+        int lookups;
+        
+        StubSource(String user, long wait) {
+            holds = user;
+            delay = wait;
+        }
+        
+        public KeyData[] findKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException, ChecksumFailureException {
+            lookups++;
+            
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+            }
+            
+            if (error != null)
+                throw error;
+            if (fail)
+                throw new KeyHandlerException("Source failed");
+            if (checksumFailure)
+                throw new ChecksumFailureException("Wrong passphrase");
+            
+            if (new String(id.getDefaultID()).indexOf(holds) >= 0)
+                return new KeyData[1];
+            
+            return null;
+        }
+        
+        public boolean mightHaveKeys(KeyIdentifier id) {
+            return !notHere;
+        }
+        
+        public void addKeys(KeyData key[], KeyIdentifier idDetails[], KeyHandlerParameters parameters[]) throws KeyHandlerException {
+        }
+        
+        public int removeKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException {
+            return 0;
+        }
+        
+        public void changeSetting(KeyHandlerParameters parameters) throws KeyHandlerException {
+        }
+        
+        public Object[] toArray() throws KeyHandlerException {
+            return null;
+        }
+    }
+}
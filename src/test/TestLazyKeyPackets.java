@@ -0,0 +1,164 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.algorithmhandlers.openpgp.*;
+import core.algorithmhandlers.openpgp.packets.*;
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Test lazy packet decoding, checking that lazily built key and signature packets give the same key IDs, fingerprints, 
+ * key material and signature material as fully decoded ones, that they are written out unchanged and that lazily built 
+ * secret keys can still be unlocked.</p>
+ */
+public class TestLazyKeyPackets extends Test {
+    
+    public final String pubring = "test/testdata/pubring_active.pgp";
+    public final String secring = "test/testdata/Test4_secring.skr";
+    
+    /** Creates a new instance of TestLazyKeyPackets */
+    public TestLazyKeyPackets() {
+        setTestName("Test lazy key packets"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestLazyKeyPackets t = new TestLazyKeyPackets();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        Security.addProvider(new BouncyCastleProvider());
+        
+        Vector eager = readPackets(pubring, false);
+        Vector lazy = readPackets(pubring, true);
+        
+        // keys
+        System.out.print("Comparing lazily built key packets... ");
+        boolean ok = eager.size() == lazy.size();
+        int keys = 0;
+        for (int n = 0; (ok) && (n < eager.size()); n++) {
+            if (eager.elementAt(n) instanceof KeyPacket) {
+                KeyPacket e = (KeyPacket)eager.elementAt(n);
+                KeyPacket l = (KeyPacket)lazy.elementAt(n);
+                
+                // key ID first, so that it is calculated without decoding anything
+                ok = (Arrays.equals(e.getKeyID(), l.getKeyID())) && (Arrays.equals(e.getFingerprint(), l.getFingerprint())) && 
+                     (Arrays.equals(e.encodePacket(), l.encodePacket())) && 
+                     (Arrays.equals(e.getKeyData().encodePublicKeyComponents(), l.getKeyData().encodePublicKeyComponents())) &&
+                     (e.getKeyData().getPublicKey().equals(l.getKeyData().getPublicKey()));
+                keys++;
+            }
+        }
+        if ((ok) && (keys == 36)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // signatures
+        System.out.print("Comparing lazily built signature packets... ");
+        ok = true;
+        int sigs = 0;
+        for (int n = 0; (ok) && (n < eager.size()); n++) {
+            if (eager.elementAt(n) instanceof SignaturePacket) {
+                SignaturePacket e = (SignaturePacket)eager.elementAt(n);
+                SignaturePacket l = (SignaturePacket)lazy.elementAt(n);
+                
+                // encoded before being decoded, and again afterwards
+                byte before[] = l.encodePacket();
+                ok = (Arrays.equals(e.encodePacket(), before)) && (Arrays.equals(e.getKeyID(), l.getKeyID())) && 
+                     (e.getSignatureData().getSignatureType() == l.getSignatureData().getSignatureType()) && 
+                     (Arrays.equals(before, l.encodePacket()));
+                sigs++;
+            }
+        }
+        if ((ok) && (sigs > 0)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // secret keys
+        System.out.print("Unlocking lazily built secret keys... ");
+        Vector secret = readPackets(secring, true);
+        ok = true;
+        int unlocked = 0;
+        for (int n = 0; (ok) && (n < secret.size()); n++) {
+            if (secret.elementAt(n) instanceof SecretKeyPacket) {
+                SecretKeyPacket k = (SecretKeyPacket)secret.elementAt(n);
+                k.decryptKeyData("test".getBytes());
+                
+                ok = k.getKeyData().getPrivateKey() != null;
+                unlocked++;
+            }
+        }
+        if ((ok) && (unlocked == 2)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+    
+    /** Read every packet in a file. */
+    private Vector readPackets(String file, boolean lazy) throws Exception {
+        OpenPGPPacketInputStream in = new OpenPGPPacketInputStream(new FileInputStream(file));
+        in.setLazy(lazy);
+        
+        Vector packets = new Vector();
+        Packet p;
+        while ((p = in.readPacket()) != null)
+            packets.add(p);
+        
+        in.close();
+        
+        return packets;
+    }
+}
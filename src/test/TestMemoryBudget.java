@@ -0,0 +1,128 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import system.WorkerPool;
+import system.MemoryBudget;
+
+/**
+ * <p>Test the memory budget, checking that concurrent jobs never reserve more than the limit and that 
+ * a job larger than the whole budget still runs.</p>
+ */
+public class TestMemoryBudget extends Test {
+    
+    /** Creates a new instance of TestMemoryBudget */
+    public TestMemoryBudget() {
+        setTestName("Test MemoryBudget"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestMemoryBudget t = new TestMemoryBudget();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        WorkerPool pool = new WorkerPool(4);
+        MemoryBudget budget = new MemoryBudget(100);
+        
+        // limit respected
+        System.out.print("Running 12 jobs of 40 bytes against a 100 byte budget... ");
+        ReserveJob jobs[] = new ReserveJob[12];
+        for (int n = 0; n < jobs.length; n++)
+            jobs[n] = new ReserveJob(budget, 40);
+        pool.execute(jobs);
+        
+        long peak = 0;
+        for (int n = 0; n < jobs.length; n++) {
+            if (jobs[n].seen > peak) 
+                peak = jobs[n].seen;
+        }
+        if ((peak <= 100) && (budget.getUsed() == 0)) {
+            System.out.println("(peak " + peak + ") Ok.");
+        } else {
+            System.out.println("(peak " + peak + ") ...ERROR!");
+            result = false;
+        }
+        
+        // oversized job still runs, but alone
+        System.out.print("Running an oversized job alongside small ones... ");
+        jobs = new ReserveJob[6];
+        for (int n = 0; n < jobs.length; n++)
+            jobs[n] = new ReserveJob(budget, (n == 2) ? 500 : 30);
+        pool.execute(jobs);
+        
+        if ((jobs[2].seen == 500) && (budget.getUsed() == 0)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        pool.shutdown();
+        
+        return result;
+    }
+    
+    /** Reserves memory for a short time and records the total reserved while it held it. */
+    private class ReserveJob implements WorkerPool.Job {
+        
+        MemoryBudget budget;
+        long amount;
+        long seen;
+        
+        ReserveJob(MemoryBudget b, long bytes) {
+            budget = b;
+            amount = bytes;
+        }
+        
+        public void run() throws Exception {
+            budget.acquire(amount);
+            try {
+                Thread.sleep(5);
+                seen = budget.getUsed();
+            } finally {
+                budget.release(amount);
+            }
+        }
+    }
+}
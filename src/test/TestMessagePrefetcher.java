@@ -0,0 +1,371 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.*;
+import core.interfaces.*;
+import core.iptp.*;
+import core.exceptions.*;
+import core.keyhandlers.*;
+import java.util.*;
+
+/**
+ * <p>Test reading messages ahead of the email client, checking that messages are matched between the two sessions by 
+ * UIDL and by LIST, that the client waits for a message being fetched, that the buffer holds the prefetcher back and 
+ * that messages the client has gone past are not fetched.</p>
+ */
+public class TestMessagePrefetcher extends Test {
+    
+    /** Creates a new instance of TestMessagePrefetcher */
+    public TestMessagePrefetcher() {
+        setTestName("Test message prefetcher"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestMessagePrefetcher t = new TestMessagePrefetcher();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        // messages matched by unique id, the server has renumbered them since the client's listing
+        System.out.print("Matching messages by UIDL... ");
+        StubServer server = new StubServer("1 zzz\r\n2 aaa\r\n3 ccc\r\n");
+        MessagePrefetcher prefetcher = newPrefetcher(server, true, "1 aaa\r\n2 bbb\r\n3 ccc\r\n", 3);
+        prefetcher.start();
+        prefetcher.join(5000);
+        
+        if ((prefetcher.isFinished()) && (contains(prefetcher.take(1), "aaa")) && (prefetcher.take(2) == null) 
+                && (contains(prefetcher.take(3), "ccc")) && (server.getRetrieved().equals("2 3 ")) && (server.isQuit())) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // messages matched by number and size
+        System.out.print("Matching messages by LIST... ");
+        server = new StubServer("1 100\r\n2 250\r\n3 300\r\n");
+        prefetcher = newPrefetcher(server, false, "1 100\r\n2 200\r\n3 300\r\n", 3);
+        prefetcher.start();
+        prefetcher.join(5000);
+        
+        if ((prefetcher.isFinished()) && (contains(prefetcher.take(1), "100")) && (prefetcher.take(2) == null) 
+                && (contains(prefetcher.take(3), "300")) && (server.getRetrieved().equals("1 3 "))) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // the client asks for the message being fetched
+        System.out.print("Waiting for the message being fetched... ");
+        server = new StubServer("1 aaa\r\n");
+        server.setBlocked(1);
+        prefetcher = newPrefetcher(server, true, "1 aaa\r\n", 2);
+        prefetcher.start();
+        
+        boolean ok = server.waitForRetrieved(1, 5000);
+        
+        Taker taker = new Taker(prefetcher, 1);
+        taker.start();
+        Thread.sleep(300);
+        ok = ok && (!taker.isDone());
+        
+        server.release();
+        taker.join(5000);
+        
+        if ((ok) && (taker.isDone()) && (contains(taker.getTaken(), "aaa"))) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        prefetcher.stopPrefetch();
+        
+        // a full buffer holds the prefetcher back
+        System.out.print("Waiting for room in the buffer... ");
+        server = new StubServer("1 aaa\r\n2 bbb\r\n3 ccc\r\n");
+        prefetcher = newPrefetcher(server, true, "1 aaa\r\n2 bbb\r\n3 ccc\r\n", 1);
+        prefetcher.start();
+        
+        ok = server.waitForRetrieved(1, 5000);
+        Thread.sleep(300);
+        ok = ok && (server.getRetrieved().equals("1 "));
+        
+        ok = ok && (contains(prefetcher.take(1), "aaa"));
+        ok = ok && (server.waitForRetrieved(2, 5000));
+        
+        if (ok) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        prefetcher.stopPrefetch();
+        
+        // the client skips ahead
+        System.out.print("Skipping messages the client has gone past... ");
+        server = new StubServer("1 aaa\r\n2 bbb\r\n3 ccc\r\n");
+        prefetcher = newPrefetcher(server, true, "1 aaa\r\n2 bbb\r\n3 ccc\r\n", 1);
+        prefetcher.start();
+        
+        ok = server.waitForRetrieved(1, 5000);
+        ok = ok && (prefetcher.take(3) == null);
+        prefetcher.join(5000);
+        
+        if ((ok) && (prefetcher.isFinished()) && (server.getRetrieved().equals("1 ")) && (server.isQuit())) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // the mailbox is locked by the client's session
+        System.out.print("Giving up when the login is refused... ");
+        server = new StubServer("1 aaa\r\n");
+        server.setRefusePass();
+        prefetcher = newPrefetcher(server, true, "1 aaa\r\n", 2);
+        prefetcher.start();
+        prefetcher.join(5000);
+        
+        if ((prefetcher.isFinished()) && (prefetcher.take(1) == null) && (server.getRetrieved().equals("")) && (!server.isConnectedToServer())) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+    
+    /** Create a prefetcher for a pipe with no algorithm handler, so messages are buffered as received. */
+    private MessagePrefetcher newPrefetcher(StubServer server, boolean uidl, String listing, int size) throws Exception {
+        IncomingEmailPipe pipe = new IncomingEmailPipe(new StubClient(), null, new KeyHandler[0], new KeyHandler[0], new StubServer(""));
+        
+        return new MessagePrefetcher(pipe, server, "test", "secret", uidl, listing, size);
+    }
+    
+    /** Returns true if a prefetched message is the stub message with the given id. */
+    private boolean contains(MessagePrefetcher.PrefetchedMessage m, String id) throws Exception {
+        if ((m == null) || (m.getProcessedMessage() == null))
+            return false;
+        
+        return new String(m.getMessage().getBytes()).indexOf("This is message " + id + ".") >= 0;
+    }
+    
+    /** Takes a message from the prefetcher on another thread. */
+    private static class Taker extends Thread {
+        private MessagePrefetcher prefetcher;
+        private int messageNo;
+        private MessagePrefetcher.PrefetchedMessage taken;
+        private boolean done;
+        
+        public Taker(MessagePrefetcher p, int n) {
+            prefetcher = p;
+            messageNo = n;
+        }
+        
+        public void run() {
+            MessagePrefetcher.PrefetchedMessage m = prefetcher.take(messageNo);
+            synchronized (this) {
+                taken = m;
+                done = true;
+            }
+        }
+        
+        public synchronized boolean isDone() {
+            return done;
+        }
+        
+        public synchronized MessagePrefetcher.PrefetchedMessage getTaken() {
+            return taken;
+        }
+    }
+    
+    /** An email server that answers from a fixed listing. Message n is "This is message <value>." where value is its listing value. */
+    private static class StubServer implements RecvPipeClientInterface {
+        private String listing;
+        private Hashtable values;
+        private IPTPCommand last;
+        private boolean connected;
+        private boolean refusePass;
+        private boolean quit;
+        private int blocked;
+        private String retrieved;
+        
+        public StubServer(String scanlisting) {
+            listing = scanlisting;
+            blocked = -1;
+            retrieved = "";
+            
+            values = new Hashtable();
+            StringTokenizer lines = new StringTokenizer(listing, "\r\n");
+            while (lines.hasMoreTokens()) {
+                StringTokenizer st = new StringTokenizer(lines.nextToken(), " ");
+                values.put(new Integer(st.nextToken()), st.nextToken());
+            }
+        }
+        
+        /** Refuse the passcode, as a server does when the mailbox is locked. */
+        public void setRefusePass() {
+            refusePass = true;
+        }
+        
+        /** Hold the RETR of a message until released. */
+        public synchronized void setBlocked(int messageNo) {
+            blocked = messageNo;
+        }
+        
+        public synchronized void release() {
+            blocked = -1;
+            notifyAll();
+        }
+        
+        /** The message numbers retrieved so far, space separated. */
+        public synchronized String getRetrieved() {
+            return retrieved;
+        }
+        
+        public synchronized boolean isQuit() {
+            return quit;
+        }
+        
+        /** Wait until at least count messages have been asked for. */
+        public synchronized boolean waitForRetrieved(int count, long timeout) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeout;
+            while (new StringTokenizer(retrieved, " ").countTokens() < count) {
+                long left = end - System.currentTimeMillis();
+                if (left <= 0)
+                    return false;
+                wait(left);
+            }
+            
+            return true;
+        }
+        
+        public void initClientConnection(String address, int port) {
+        }
+        
+        public synchronized void connect() {
+            connected = true;
+            last = null;
+        }
+        
+        public synchronized void disconnectFromServer() {
+            connected = false;
+            notifyAll();
+        }
+        
+        public synchronized void sendCommand(IPTPCommand command) {
+            last = command;
+        }
+        
+        public synchronized IPTPCommandResponse awaitCommandResponse() throws PipeCommunicationException {
+            if (!connected)
+                throw new PipeCommunicationException("Not connected.");
+            
+            if ((last == null) || (last instanceof IPTPUser))
+                return new IPTPUserResponse(true);
+            if (last instanceof IPTPPass)
+                return new IPTPPassResponse(!refusePass);
+            if (last instanceof IPTPUidl)
+                return new IPTPUidlResponse(true, listing);
+            if (last instanceof IPTPList)
+                return new IPTPListResponse(true, listing);
+            
+            if (last instanceof IPTPRetr) {
+                int n = ((IPTPRetr)last).getMessageNo();
+                retrieved = retrieved + n + " ";
+                notifyAll();
+                
+                while ((blocked == n) && (connected)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                
+                String value = (String)values.get(new Integer(n));
+                if (value == null)
+                    return new IPTPRetrResponse(false, "");
+                
+                return new IPTPRetrResponse(true, "Subject: message " + value + "\r\n\r\nThis is message " + value + ".\r\n");
+            }
+            
+            if (last instanceof IPTPQuit) {
+                quit = true;
+                return new IPTPQuitResponse(true);
+            }
+            
+            throw new PipeCommunicationException("Unexpected command.");
+        }
+        
+        public synchronized boolean isConnectedToServer() {
+            return connected;
+        }
+    }
+    
+    /** An email client connection that is never used. */
+    private static class StubClient implements RecvPipeServerInterface {
+        public void initServerConnection(int port) {
+        }
+        
+        public void awaitConnection() {
+        }
+        
+        public void disconnectFromClient() {
+        }
+        
+        public IPTPCommand awaitCommand() {
+            return null;
+        }
+        
+        public void sendCommandResponse(IPTPCommandResponse commandResponse) {
+        }
+        
+        public boolean isConnectedToClient() {
+            return false;
+        }
+    }
+}
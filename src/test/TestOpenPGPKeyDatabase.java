@@ -0,0 +1,186 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.*;
+import core.keyhandlers.keydata.*;
+import core.keyhandlers.parameters.*;
+import core.algorithmhandlers.keymaterial.*;
+import core.algorithmhandlers.openpgp.util.*;
+import java.io.*;
+import java.security.*;
+import java.util.Date;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Test the key database, checking that keys can be added and found through each of its indexes, that the database 
+ * survives being reopened, that an incomplete transaction is rolled back and that removing and compacting work.</p>
+ */
+public class TestOpenPGPKeyDatabase extends Test {
+    
+    /** Creates a new instance of TestOpenPGPKeyDatabase */
+    public TestOpenPGPKeyDatabase() {
+        setTestName("Test OpenPGPKeyDatabase"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestOpenPGPKeyDatabase t = new TestOpenPGPKeyDatabase();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        Security.addProvider(new BouncyCastleProvider());
+        
+        File file = File.createTempFile("keys", ".db");
+        file.deleteOnExit();
+        
+        OpenPGPPublicKeyDatabase database = new OpenPGPPublicKeyDatabase(file.getPath(), null);
+        
+        // add keys
+        System.out.print("Adding keys... ");
+        Date now = new Date();
+        
+        KeyData one[] = { new KeyData(createKeyPair()), new KeyData(createKeyPair()) };
+        OpenPGPStandardKeyIdentifier oneID[] = { new OpenPGPStandardKeyIdentifier("Key One".getBytes(), "key1@example.com".getBytes()) };
+        OpenPGPAddKeyParameters oneParam[] = { new OpenPGPAddKeyParameters(now, 1, null), new OpenPGPAddKeyParameters(now, 1, null) };
+        
+        KeyData two[] = { new KeyData(createKeyPair()) };
+        OpenPGPStandardKeyIdentifier twoID[] = { new OpenPGPStandardKeyIdentifier("Key Two".getBytes(), "key2@example.com".getBytes()) };
+        OpenPGPAddKeyParameters twoParam[] = { new OpenPGPAddKeyParameters(now, 1, null) };
+        
+        database.addKeys(one, oneID, oneParam);
+        database.addKeys(two, twoID, twoParam);
+        
+        boolean duplicate = false;
+        try {
+            database.addKeys(one, oneID, oneParam);
+        } catch (Exception e) {
+            duplicate = true;
+        }
+        
+        if (duplicate) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // indexes
+        System.out.print("Looking keys up through the indexes... ");
+        KeyData keys[] = database.findKeys(oneID[0], null);
+        byte subkeyID[] = ((OpenPGPKeyData)keys[1]).getKeyID();
+        byte fingerprint[] = ((OpenPGPKeyData)keys[1]).getFingerprint();
+        KeyIdentifier subkey = new OpenPGPKeyIDKeyIdentifier(subkeyID);
+        
+        KeyData byEmail[] = database.findKeysByEmail("KEY2@example.com", null);
+        KeyData byFingerprint[] = database.findKeysByFingerprint(fingerprint, null);
+        if ((keys.length == 2) && (database.findKeys(subkey, null).length == 1) && 
+            (byEmail != null) && (byEmail.length == 1) && (new String(twoID[0].getDefaultID()).equals(((OpenPGPKeyData)byEmail[0]).getUserID())) &&
+            (byFingerprint != null) && (byFingerprint.length == 1) && (java.util.Arrays.equals(((OpenPGPKeyData)byFingerprint[0]).getKeyID(), subkeyID)) &&
+            (database.findKeysExpiringBefore(Long.MAX_VALUE, null) == null) && (database.toArray().length == 8)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // reopen, rolling back a transaction that was never committed
+        System.out.print("Rolling back an incomplete transaction... ");
+        database.close();
+        long length = file.length();
+        
+        FileOutputStream out = new FileOutputStream(file.getPath(), true);
+        byte torn[] = {1, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0};
+        out.write(torn);
+        out.close();
+        
+        database = new OpenPGPPublicKeyDatabase(file.getPath(), null);
+        if ((database.findKeys(oneID[0], null).length == 2) && (database.findKeys(twoID[0], null).length == 1) && (file.length() == length)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // remove
+        System.out.print("Removing keys... ");
+        int removedSubkey = database.removeKeys(subkey, null);
+        int removedKey = database.removeKeys(twoID[0], null);
+        database.close();
+        
+        database = new OpenPGPPublicKeyDatabase(file.getPath(), null);
+        keys = database.findKeys(oneID[0], null);
+        if ((removedSubkey == 1) && (removedKey == 1) && (keys != null) && (keys.length == 1) && 
+            (database.findKeys(subkey, null) == null) && (database.findKeys(twoID[0], null) == null) && 
+            (database.findKeysByEmail("key2@example.com", null) == null)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // compact
+        System.out.print("Compacting the database... ");
+        length = file.length();
+        database.compact();
+        keys = database.findKeys(oneID[0], null);
+        if ((file.length() < length) && (keys != null) && (keys.length == 1) && (database.toArray().length == 3)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        database.close();
+        
+        return result;
+    }
+    
+    private RSAAlgorithmParameters createKeyPair() throws Exception {
+        RSAAlgorithmParameters key = new RSAAlgorithmParameters();
+        key.generateKeyPair(PublicKeyAlgorithmSettings.getDefaultKeySize(1), SecureRandom.getInstance("SHA1PRNG"));
+        
+        return key;
+    }
+}
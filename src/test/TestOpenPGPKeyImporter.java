@@ -0,0 +1,212 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.*;
+import core.keyhandlers.keydata.*;
+import core.algorithmhandlers.openpgp.*;
+import core.algorithmhandlers.openpgp.packets.*;
+import system.WorkerPool;
+import java.io.*;
+import java.security.*;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Test importing keys, checking that a dump is imported into an empty keyring, that importing it again changes nothing, 
+ * that new subkeys are merged into keys already held, that keys without a valid self signature are rejected and that 
+ * keys can be imported into a key database.</p>
+ */
+public class TestOpenPGPKeyImporter extends Test {
+    
+    public final String pubring = "test/testdata/pubring_active.pgp";
+    public final String pubring2 = "test/testdata/Test4_pubring.pkr";
+    
+    /** Creates a new instance of TestOpenPGPKeyImporter */
+    public TestOpenPGPKeyImporter() {
+        setTestName("Test OpenPGPKeyImporter"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestOpenPGPKeyImporter t = new TestOpenPGPKeyImporter();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        Security.addProvider(new BouncyCastleProvider());
+        
+        WorkerPool pool = new WorkerPool(4);
+        OpenPGPKeyImporter importer = new OpenPGPKeyImporter(pool);
+        importer.setBatchSize(5); // several batches, with keys carried from one to the next
+        
+        KeyIdentifier wildcard = new OpenPGPKeyIDKeyIdentifier(new byte[8]);
+        KeyIdentifier test4 = new OpenPGPStandardKeyIdentifier("test4 <test4@brookes.ac.uk>");
+        
+        File file = File.createTempFile("import", ".pgp");
+        file.deleteOnExit();
+        new File(file.getPath() + OpenPGPKeyringIndex.EXTENSION).deleteOnExit();
+        
+        OpenPGPPublicKeyring ring = new OpenPGPPublicKeyring(file.getPath(), null);
+        
+        // empty keyring
+        System.out.print("Importing into an empty keyring... ");
+        OpenPGPKeyImporter.Statistics stats = ring.importKeys(new FileInputStream(pubring), importer);
+        
+        if ((stats.getKeysAdded() == 18) && (stats.getKeysRejected() == 0) && (stats.getBytesRead() == new File(pubring).length()) && 
+            (ring.findKeys(wildcard, null).length == 36)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // again
+        System.out.print("Importing the same keys again... ");
+        long length = file.length();
+        stats = ring.importKeys(new FileInputStream(pubring), importer);
+        
+        if ((stats.getKeysUnchanged() == 18) && (stats.getKeysAdded() == 0) && (stats.getKeysMerged() == 0) && (file.length() == length)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // merge
+        System.out.print("Merging a new subkey into a key... ");
+        stats = ring.importKeys(new ByteArrayInputStream(readPrimaryKey(pubring2)), importer);
+        boolean first = (stats.getKeysAdded() == 1) && (ring.findKeys(test4, null).length == 1);
+        
+        stats = ring.importKeys(new FileInputStream(pubring2), importer);
+        KeyData found[] = ring.findKeys(test4, null);
+        
+        if ((first) && (stats.getKeysMerged() == 1) && (stats.getSubkeysAdded() == 1) && (found != null) && (found.length == 2) && 
+            (ring.findKeys(wildcard, null).length == 38)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // bad self signature
+        System.out.print("Rejecting a key with a forged user ID... ");
+        File forgedFile = File.createTempFile("import", ".pgp");
+        forgedFile.deleteOnExit();
+        new File(forgedFile.getPath() + OpenPGPKeyringIndex.EXTENSION).deleteOnExit();
+        
+        OpenPGPPublicKeyring forgedRing = new OpenPGPPublicKeyring(forgedFile.getPath(), null);
+        stats = forgedRing.importKeys(new ByteArrayInputStream(forgeUserID(pubring2)), importer);
+        
+        if ((stats.getKeysRejected() == 1) && (stats.getKeysAdded() == 0) && (stats.getSignaturesRejected() > 0) && (forgedFile.length() == 0)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // database
+        System.out.print("Importing into a key database... ");
+        File dbFile = File.createTempFile("import", ".db");
+        dbFile.deleteOnExit();
+        
+        OpenPGPPublicKeyDatabase database = new OpenPGPPublicKeyDatabase(dbFile.getPath(), null);
+        stats = database.importKeys(new FileInputStream(pubring), importer);
+        boolean added = (stats.getKeysAdded() == 18) && (database.findKeys(wildcard, null).length == 36);
+        
+        database.importKeys(new ByteArrayInputStream(readPrimaryKey(pubring2)), importer);
+        stats = database.importKeys(new FileInputStream(pubring2), importer);
+        database.close();
+        
+        database = new OpenPGPPublicKeyDatabase(dbFile.getPath(), null);
+        found = database.findKeys(test4, null);
+        
+        if ((added) && (stats.getKeysMerged() == 1) && (found != null) && (found.length == 2) && 
+            (database.findKeys(wildcard, null).length == 38)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        database.close();
+        
+        pool.shutdown();
+        
+        return result;
+    }
+    
+    /** Return the packets of a keyring up to its first subkey. */
+    private byte[] readPrimaryKey(String keyring) throws Exception {
+        OpenPGPPacketInputStream in = new OpenPGPPacketInputStream(new FileInputStream(keyring));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OpenPGPPacketOutputStream out = new OpenPGPPacketOutputStream(bytes);
+        
+        Packet p;
+        while (((p = in.readPacket()) != null) && (!(p instanceof PublicSubkeyPacket)))
+            out.writePacket(p);
+        
+        in.close();
+        out.close();
+        
+        return bytes.toByteArray();
+    }
+    
+    /** Return the packets of a keyring with its user IDs changed. */
+    private byte[] forgeUserID(String keyring) throws Exception {
+        OpenPGPPacketInputStream in = new OpenPGPPacketInputStream(new FileInputStream(keyring));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OpenPGPPacketOutputStream out = new OpenPGPPacketOutputStream(bytes);
+        
+        Packet p;
+        while ((p = in.readPacket()) != null) {
+            if (p instanceof UserIDPacket)
+                p = new UserIDPacket("mallory <mallory@example.com>".getBytes());
+            
+            out.writePacket(p);
+        }
+        
+        in.close();
+        out.close();
+        
+        return bytes.toByteArray();
+    }
+}
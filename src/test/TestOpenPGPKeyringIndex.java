@@ -0,0 +1,166 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.*;
+import core.keyhandlers.keydata.*;
+import java.io.*;
+import java.security.Security;
+import java.util.Vector;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Test the keyring sidecar index, checking that the index file is written, that identifiers map to the right blocks of the
+ * keyring, that lookups through the index find the same keys as reading the whole keyring and that the index follows changes 
+ * to the keyring.</p>
+ */
+public class TestOpenPGPKeyringIndex extends Test {
+    
+    public final String pubring = "test/testdata/pubring_active.pgp";
+    public final String pubring2 = "test/testdata/Test4_pubring.pkr";
+    
+    /** Creates a new instance of TestOpenPGPKeyringIndex */
+    public TestOpenPGPKeyringIndex() {
+        setTestName("Test OpenPGPKeyringIndex"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestOpenPGPKeyringIndex t = new TestOpenPGPKeyringIndex();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        Security.addProvider(new BouncyCastleProvider());
+        
+        File copy = File.createTempFile("pubring", ".pgp");
+        copy.deleteOnExit();
+        copyFile(pubring, copy, false);
+        File indexFile = new File(copy.getPath() + OpenPGPKeyringIndex.EXTENSION);
+        indexFile.deleteOnExit();
+        
+        OpenPGPPublicKeyring ring = new OpenPGPPublicKeyring(copy.getPath(), null);
+        OpenPGPKeyringIndex index = new OpenPGPKeyringIndex(copy.getPath());
+        
+        KeyIdentifier test2 = new OpenPGPStandardKeyIdentifier("test2 <test2@dushka.co.uk>");
+        KeyIdentifier test3 = new OpenPGPStandardKeyIdentifier("Test3 <ihopethisworks@dushka.co.uk>");
+        KeyIdentifier test6 = new OpenPGPStandardKeyIdentifier("test6 <test6@dushka.co.uk>");
+        KeyIdentifier test4 = new OpenPGPStandardKeyIdentifier("test4 <test4@brookes.ac.uk>");
+        KeyIdentifier wildcard = new OpenPGPKeyIDKeyIdentifier(new byte[8]);
+        
+        // blocks
+        System.out.print("Mapping identifiers to keyring blocks... ");
+        Vector first = index.findBlocks(test2);
+        Vector second = index.findBlocks(test3);
+        Vector subkey = index.findBlocks(new OpenPGPKeyIDKeyIdentifier(((OpenPGPKeyData)ring.findKeys(test3, null)[1]).getKeyID()));
+        if ((indexFile.exists()) && (first.size() == 1) && (((long[])first.elementAt(0))[0] == 0) && 
+            (second.size() == 1) && (((long[])second.elementAt(0))[0] == ((long[])first.elementAt(0))[1]) &&
+            (subkey.size() == 1) && (((long[])subkey.elementAt(0))[0] == ((long[])second.elementAt(0))[0]) &&
+            (index.findBlocks(test4).size() == 0) && (index.findBlocks(wildcard) == null)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // same keys as reading the keyring
+        System.out.print("Looking up keys through the index... ");
+        KeyIdentifier ids[] = { test6, test2, test4, test3 };
+        KeyData indexed[][] = ring.findKeys(ids, null);
+        KeyData scanned[][] = ring.findKeys(new FileInputStream(copy), ids, null);
+        boolean ok = true;
+        for (int n = 0; n < ids.length; n++) {
+            if (!sameKeys(indexed[n], scanned[n]))
+                ok = false;
+        }
+        if ((ok) && (indexed[0].length == 2) && (indexed[2] == null)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // changes to the keyring
+        System.out.print("Following keyring changes... ");
+        copyFile(pubring2, copy, true);
+        KeyData added[] = ring.findKeys(test4, null);
+        KeyData moved[] = ring.findKeys(test6, null);
+        if ((added != null) && (added.length == 2) && (sameKeys(moved, indexed[0]))) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+    
+    /** Do two lists of keys hold the same key IDs in the same order? */
+    private boolean sameKeys(KeyData one[], KeyData two[]) throws Exception {
+        if ((one == null) || (two == null))
+            return one == two;
+        
+        if (one.length != two.length)
+            return false;
+        
+        for (int n = 0; n < one.length; n++) {
+            if (!java.util.Arrays.equals(((OpenPGPKeyData)one[n]).getKeyID(), ((OpenPGPKeyData)two[n]).getKeyID()))
+                return false;
+        }
+        
+        return true;
+    }
+    
+    private void copyFile(String from, File to, boolean append) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to.getPath(), append);
+        
+        byte buffer[] = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0)
+            out.write(buffer, 0, read);
+        
+        in.close();
+        out.close();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.*;
+import core.keyhandlers.keydata.*;
+import java.io.*;
+import java.security.Security;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Test append only keyrings, checking that removing keys leaves the keyring file alone and marks the keys dead, that 
+ * lookups skip the dead keys and that compacting the keyring drops them for good.</p>
+ */
+public class TestOpenPGPKeyringTombstones extends Test {
+    
+    public final String pubring = "test/testdata/pubring_active.pgp";
+    
+    /** Creates a new instance of TestOpenPGPKeyringTombstones */
+    public TestOpenPGPKeyringTombstones() {
+        setTestName("Test OpenPGPKeyringTombstones"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestOpenPGPKeyringTombstones t = new TestOpenPGPKeyringTombstones();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        Security.addProvider(new BouncyCastleProvider());
+        
+        File copy = File.createTempFile("pubring", ".pgp");
+        copy.deleteOnExit();
+        copyFile(pubring, copy);
+        File deadFile = new File(copy.getPath() + OpenPGPKeyringTombstones.EXTENSION);
+        deadFile.deleteOnExit();
+        new File(copy.getPath() + OpenPGPKeyringIndex.EXTENSION).deleteOnExit();
+        
+        OpenPGPPublicKeyring ring = new OpenPGPPublicKeyring(copy.getPath(), null);
+        ring.setAppendOnly(true);
+        ring.setCompactionThreshold(1.0); // compacted by hand below
+        
+        KeyIdentifier test2 = new OpenPGPStandardKeyIdentifier("test2 <test2@dushka.co.uk>");
+        KeyIdentifier test3 = new OpenPGPStandardKeyIdentifier("Test3 <ihopethisworks@dushka.co.uk>");
+        KeyIdentifier test6 = new OpenPGPStandardKeyIdentifier("test6 <test6@dushka.co.uk>");
+        
+        long length = copy.length();
+        int packets = ring.toArray().length;
+        KeyData test3Keys[] = ring.findKeys(test3, null);
+        KeyIdentifier test3Sub = new OpenPGPKeyIDKeyIdentifier(((OpenPGPKeyData)test3Keys[1]).getKeyID());
+        
+        // remove keys
+        System.out.print("Removing keys with tombstones... ");
+        int removed = ring.removeKeys(test2, null);
+        int removedSub = ring.removeKeys(test3Sub, null);
+        int removedAgain = ring.removeKeys(test2, null);
+        if ((removed == 2) && (removedSub == 1) && (removedAgain == 0) && (copy.length() == length) && (deadFile.exists())) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // dead keys are skipped
+        System.out.print("Skipping dead keys... ");
+        KeyData found[] = ring.findKeys(test3, null);
+        int livePackets = ring.toArray().length;
+        if ((ring.findKeys(test2, null) == null) && (ring.findKeys(test3Sub, null) == null) && 
+            (found != null) && (found.length == 1) && (ring.findKeys(test6, null).length == 2) &&
+            (ring.findKeys(new FileInputStream(copy), test2, null) != null) && (livePackets < packets)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // compaction
+        System.out.print("Compacting the keyring... ");
+        ring.compact();
+        found = ring.findKeys(test3, null);
+        if ((copy.length() < length) && (!deadFile.exists()) && (ring.findKeys(new FileInputStream(copy), test2, null) == null) &&
+            (found != null) && (found.length == 1) && (ring.findKeys(test6, null).length == 2) && (ring.toArray().length == livePackets)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+    
+    private void copyFile(String from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        
+        byte buffer[] = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0)
+            out.write(buffer, 0, read);
+        
+        in.close();
+        out.close();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.*;
+import core.keyhandlers.keydata.*;
+import core.keyhandlers.parameters.*;
+import core.exceptions.ChecksumFailureException;
+import java.security.Security;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Test looking up secret keys locked, checking that the key details can be read before a passphrase is given, that a wrong 
+ * passphrase leaves the key locked and that the right one unlocks it.</p>
+ */
+public class TestOpenPGPLockedKeys extends Test {
+    
+    public final String secring = "test/testdata/Test4_secring.skr";
+    
+    /** Creates a new instance of TestOpenPGPLockedKeys */
+    public TestOpenPGPLockedKeys() {
+        setTestName("Test OpenPGP locked key lookup"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestOpenPGPLockedKeys t = new TestOpenPGPLockedKeys();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        Security.addProvider(new BouncyCastleProvider());
+        
+        OpenPGPSecretKeyring ring = new OpenPGPSecretKeyring(secring, null);
+        
+        // lookup without a passphrase
+        System.out.print("Looking up locked keys... ");
+        KeyData keys[] = ring.findKeys(new OpenPGPStandardKeyIdentifier("test4".getBytes(), "test4@brookes.ac.uk".getBytes()), new OpenPGPLockedKeyParameters());
+        if ((keys != null) && (keys.length == 2) && (((OpenPGPKeyData)keys[0]).isLocked()) && (((OpenPGPKeyData)keys[1]).isLocked())) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            return false;
+        }
+        
+        OpenPGPKeyData primary = (OpenPGPKeyData)keys[0];
+        OpenPGPKeyData subkey = (OpenPGPKeyData)keys[1];
+        
+        // key details
+        System.out.print("Reading key details... ");
+        if (("test4 <test4@brookes.ac.uk>".equals(primary.getUserID())) && (primary.getKeyFlags() == 0x03) && (subkey.getKeyFlags() == 0x0C) &&
+            (primary.getExpiryTime() == 0) && (!primary.isRevoked())) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // wrong passphrase
+        System.out.print("Unlocking with the wrong passphrase... ");
+        try {
+            subkey.unlock("wrong".getBytes());
+            System.out.println("...ERROR!");
+            result = false;
+        } catch (ChecksumFailureException e) {
+            if (subkey.isLocked()) {
+                System.out.println("(" + e.getMessage() + ") Ok.");
+            } else {
+                System.out.println("...ERROR!");
+                result = false;
+            }
+        }
+        
+        // right passphrase, only the key used is unlocked
+        System.out.print("Unlocking with the right passphrase... ");
+        subkey.unlock("test".getBytes());
+        if ((!subkey.isLocked()) && (subkey.getKey().getPrivateKey() != null) && (primary.isLocked())) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+}
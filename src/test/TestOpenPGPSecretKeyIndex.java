@@ -0,0 +1,168 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.keyhandlers.*;
+import core.algorithmhandlers.openpgp.packets.KeyPacket;
+import core.algorithmhandlers.openpgp.util.PublicKeyAlgorithmSettings;
+import java.io.*;
+import java.security.Security;
+import java.util.Vector;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Test the secret key index, checking that the keys in a keyring are found without unlocking it, that keys it doesn't hold 
+ * are ruled out, that stores which can't be indexed are never ruled out and that the index follows changes to the keyring.</p>
+ */
+public class TestOpenPGPSecretKeyIndex extends Test {
+    
+    public final String secring = "test/testdata/Test4_secring.skr";
+    public final String secring2 = "test/testdata/secring.pgp";
+    
+    /** Creates a new instance of TestOpenPGPSecretKeyIndex */
+    public TestOpenPGPSecretKeyIndex() {
+        setTestName("Test OpenPGPSecretKeyIndex"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestOpenPGPSecretKeyIndex t = new TestOpenPGPSecretKeyIndex();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        Security.addProvider(new BouncyCastleProvider());
+        
+        File copy = File.createTempFile("secring", ".skr");
+        copy.deleteOnExit();
+        copyFile(secring, copy);
+        
+        KeyHandler stores[] = { new OpenPGPSecretKeyring(copy.getPath(), null) };
+        OpenPGPSecretKeyIndex index = new OpenPGPSecretKeyIndex();
+        
+        // every key and subkey is held
+        System.out.print("Indexing keys and subkeys... ");
+        Vector held = listKeyIDs(stores[0]);
+        boolean ok = (held.size() == 2);
+        for (int n = 0; n < held.size(); n++) {
+            if (!index.mayHold(stores, (byte[])held.elementAt(n)))
+                ok = false;
+        }
+        if (ok) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // other keys are ruled out
+        System.out.print("Ruling out other keys... ");
+        byte other[] = {1, 2, 3, 4, 5, 6, 7, 8};
+        if (!index.mayHold(stores, other)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // trial keys by algorithm
+        System.out.print("Listing keys by algorithm... ");
+        if ((index.getKeyIDs(stores, PublicKeyAlgorithmSettings.RSA_ENCRYPT).size() == 2) && 
+            (index.getKeyIDs(stores, PublicKeyAlgorithmSettings.ELGAMAL_ENCRYPT).size() == 0)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // a store that can't be indexed may hold anything
+        System.out.print("Never ruling out unindexed stores... ");
+        KeyHandler missing[] = { new OpenPGPSecretKeyring(copy.getPath() + ".missing", null) };
+        if (index.mayHold(missing, other)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // changing the keyring rebuilds the index
+        System.out.print("Following keyring changes... ");
+        copyFile(secring2, copy);
+        copy.setLastModified(copy.lastModified() - 10000);
+        Vector replaced = listKeyIDs(stores[0]);
+        if ((index.mayHold(stores, (byte[])replaced.elementAt(0))) && (!index.mayHold(stores, (byte[])held.elementAt(0)))) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+    
+    /** List the key IDs in a store the long way. */
+    private Vector listKeyIDs(KeyHandler store) throws Exception {
+        Vector ids = new Vector();
+        Object contents[] = store.toArray();
+        
+        for (int n = 0; n < contents.length; n++) {
+            if (contents[n] instanceof KeyPacket)
+                ids.add(((KeyPacket)contents[n]).getKeyID());
+        }
+        
+        return ids;
+    }
+    
+    /** Copy a file. */
+    private void copyFile(String from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        
+        byte buffer[] = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0)
+            out.write(buffer, 0, read);
+        
+        in.close();
+        out.close();
+    }
+}
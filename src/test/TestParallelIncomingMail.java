@@ -0,0 +1,246 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.algorithmhandlers.*;
+import core.algorithmhandlers.openpgp.util.*;
+import core.keyhandlers.*;
+import core.email.*;
+import core.email.encoders.*;
+import core.exceptions.*;
+import system.WorkerPool;
+import java.security.Security;
+import java.util.*;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Test processing the parts and attachments of an incoming message in parallel, checking that the message and log are 
+ * the same as when they are processed one at a time, that processing stops at the first failing part and that a wrong 
+ * passphrase is still reported.</p>
+ */
+public class TestParallelIncomingMail extends Test {
+    
+    public final String pubring = "test/testdata/Test4_pubring.pkr";
+    public final String secring = "test/testdata/Test4_secring.skr";
+    
+    /** A message with nested body parts and two attachments. */
+    public final String message = 
+        "From: test4 <test4@brookes.ac.uk>\r\n" +
+        "To: test4 <test4@brookes.ac.uk>\r\n" +
+        "Subject: Parallel incoming mail\r\n" +
+        "MIME-Version: 1.0\r\n" +
+        "Content-Type: multipart/mixed;\r\n\tboundary=\"outer\"\r\n" +
+        "\r\n" +
+        "This is a multi-part message in MIME format.\r\n" +
+        "\r\n" +
+        "--outer\r\n" +
+        "Content-Type: multipart/alternative;\r\n\tboundary=\"inner\"\r\n" +
+        "\r\n" +
+        "--inner\r\n" +
+        "Content-Type: text/plain;\r\n\tcharset=\"iso-8859-1\"\r\n" +
+        "Content-Transfer-Encoding: 7bit\r\n" +
+        "\r\n" +
+        "This is part one.\r\n" +
+        "\r\n" +
+        "--inner\r\n" +
+        "Content-Type: text/html;\r\n\tcharset=\"iso-8859-1\"\r\n" +
+        "Content-Transfer-Encoding: 7bit\r\n" +
+        "\r\n" +
+        "<p>This is part two.</p>\r\n" +
+        "\r\n" +
+        "--inner--\r\n" +
+        "\r\n" +
+        "--outer\r\n" +
+        "Content-Type: text/plain;\r\n\tcharset=\"iso-8859-1\"\r\n" +
+        "Content-Transfer-Encoding: 7bit\r\n" +
+        "\r\n" +
+        "This is part three.\r\n" +
+        "\r\n" +
+        "--outer\r\n" +
+        "Content-Type: text/plain;\r\n\tname=\"first.txt\"\r\n" +
+        "Content-Transfer-Encoding: 7bit\r\n" +
+        "Content-Disposition: attachment;\r\n\tfilename=\"first.txt\"\r\n" +
+        "\r\n" +
+        "This is the first attachment.\r\n" +
+        "\r\n" +
+        "--outer\r\n" +
+        "Content-Type: text/plain;\r\n\tname=\"second.txt\"\r\n" +
+        "Content-Transfer-Encoding: 7bit\r\n" +
+        "Content-Disposition: attachment;\r\n\tfilename=\"second.txt\"\r\n" +
+        "\r\n" +
+        "This is the second attachment.\r\n" +
+        "\r\n" +
+        "--outer--\r\n";
+    
+    /** Creates a new instance of TestParallelIncomingMail */
+    public TestParallelIncomingMail() {
+        setTestName("Test parallel incoming mail"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestParallelIncomingMail t = new TestParallelIncomingMail();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        Security.addProvider(new BouncyCastleProvider());
+        
+        OpenPGPHandler handler = new OpenPGPHandler(SymmetricAlgorithmSettings.CAST5);
+        KeyHandler pub[] = { new OpenPGPPublicKeyring(pubring, null) };
+        KeyHandler sec[] = { new OpenPGPSecretKeyring(secring, null) };
+        PassPhrase passPhrases[] = { new PassPhrase("test".getBytes()) };
+        
+        Email encrypted = new Email(handler.processOutgoingMail(true, false, pub, sec, new Email(message.getBytes()), passPhrases).getBytes());
+        
+        try {
+            // every part and attachment
+            System.out.print("Decrypting parts and attachments in parallel... ");
+            String sequential = process(1, handler, pub, sec, encrypted, passPhrases);
+            String parallel = process(4, handler, pub, sec, encrypted, passPhrases);
+            
+            if ((parallel.equals(sequential)) && (inOrder(parallel, new String[] {"This is part one.", "This is part two.", "This is part three.", 
+                    "This is the first attachment.", "This is the second attachment."})) && (parallel.indexOf("BEGIN PGP MESSAGE") < 0)) {
+                System.out.println("Ok.");
+            } else {
+                System.out.println("...ERROR!");
+                result = false;
+            }
+            
+            // a part that can't be decrypted stops the rest
+            System.out.print("Stopping at the first failing part... ");
+            Email broken = new Email(encrypted);
+            Vector parts = new Vector();
+            collectParts(broken.getMimeBody(), parts);
+            ((MimeComponent)parts.elementAt(1)).setData("-----BEGIN PGP MESSAGE-----\r\n\r\n-----END PGP MESSAGE-----\r\n".getBytes());
+            
+            sequential = process(1, handler, pub, sec, broken, passPhrases);
+            parallel = process(4, handler, pub, sec, broken, passPhrases);
+            
+            if ((parallel.equals(sequential)) && (parallel.indexOf("This is part one.") >= 0) && (parallel.indexOf("This is part three.") < 0) 
+                    && (parallel.indexOf("ERROR: ") >= 0) && (inOrder(parallel, new String[] {"This is the first attachment.", "This is the second attachment."}))) {
+                System.out.println("Ok.");
+            } else {
+                System.out.println("...ERROR!");
+                result = false;
+            }
+            
+            // wrong passphrase
+            System.out.print("Reporting a wrong passphrase... ");
+            PassPhrase wrong[] = { new PassPhrase("wrong".getBytes()) };
+            
+            if ((failsWithWrongPassphrase(1, handler, pub, sec, encrypted, wrong)) && (failsWithWrongPassphrase(4, handler, pub, sec, encrypted, wrong))) {
+                System.out.println("Ok.");
+            } else {
+                System.out.println("...ERROR!");
+                result = false;
+            }
+        } finally {
+            WorkerPool.setDefaultPoolSize(0);
+        }
+        
+        return result;
+    }
+    
+    /** Process a message on a pool of the given size and return its parts, attachments and log as text. */
+    private String process(int threads, OpenPGPHandler handler, KeyHandler pub[], KeyHandler sec[], Email email, PassPhrase passPhrases[]) throws Exception {
+        WorkerPool.setDefaultPoolSize(threads);
+        
+        Email processed = handler.processIncomingMail(pub, sec, email, passPhrases);
+        
+        StringBuffer out = new StringBuffer();
+        
+        Vector parts = new Vector();
+        collectParts(processed.getMimeBody(), parts);
+        for (int n = 0; n < parts.size(); n++)
+            out.append("part: " + new String(((MimeComponent)parts.elementAt(n)).getData()) + "\r\n");
+        
+        EmailAttachment attachments[] = processed.getAttachments();
+        for (int n = 0; n < attachments.length; n++) {
+            if (attachments[n].getFilename().startsWith("SecureEmailProxy-")) {
+                // the log, less the time it was started
+                String log = new String(Base64.decode(attachments[n].getData()));
+                int start = log.indexOf("Log started at: ");
+                out.append("log: " + log.substring(0, start) + log.substring(log.indexOf("\r\n", start)) + "\r\n");
+            } else {
+                out.append("attachment " + attachments[n].getFilename() + ": " + new String(attachments[n].decode()) + "\r\n");
+            }
+        }
+        
+        return out.toString();
+    }
+    
+    /** Returns true if processing a message on a pool of the given size throws a ChecksumFailureException. */
+    private boolean failsWithWrongPassphrase(int threads, OpenPGPHandler handler, KeyHandler pub[], KeyHandler sec[], Email email, PassPhrase passPhrases[]) throws Exception {
+        WorkerPool.setDefaultPoolSize(threads);
+        
+        try {
+            handler.processIncomingMail(pub, sec, email, passPhrases);
+        } catch (ChecksumFailureException e) {
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /** Returns true if each string is found after the one before it. */
+    private boolean inOrder(String text, String expected[]) {
+        int pos = 0;
+        for (int n = 0; n < expected.length; n++) {
+            pos = text.indexOf(expected[n], pos);
+            if (pos < 0)
+                return false;
+        }
+        
+        return true;
+    }
+    
+    /** Collect the body parts of a mime body, in order. */
+    private void collectParts(MimeComponent data[], Vector parts) {
+        for (int n = 0; n < data.length; n++) {
+            if (data[n].getSubComponents() != null)
+                collectParts(data[n].getSubComponents(), parts);
+            else
+                parts.add(data[n]);
+        }
+    }
+}
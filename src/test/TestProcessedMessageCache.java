@@ -0,0 +1,188 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.ProcessedMessageCache;
+import java.io.*;
+import java.security.Security;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Test the processed message cache, checking that entries survive being reopened, that any change to the key misses, 
+ * that damaged entries are dropped and that the least recently used entries are evicted first.</p>
+ */
+public class TestProcessedMessageCache extends Test {
+    
+    /** Creates a new instance of TestProcessedMessageCache */
+    public TestProcessedMessageCache() {
+        setTestName("Test ProcessedMessageCache"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestProcessedMessageCache t = new TestProcessedMessageCache();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        Security.addProvider(new BouncyCastleProvider());
+        
+        File dir = new File(System.getProperty("java.io.tmpdir"), "TestProcessedMessageCache" + System.currentTimeMillis());
+        
+        byte raw[] = "Subject: test\r\n\r\n-----BEGIN PGP MESSAGE-----\r\n...".getBytes();
+        byte processed[] = "Subject: test\r\n\r\nHello world\r\n".getBytes();
+        
+        // round trip through a reopened cache
+        System.out.print("Storing and reopening... ");
+        ProcessedMessageCache cache = new ProcessedMessageCache(dir, 4096);
+        cache.put("user", "uid-1", raw, "keys", processed);
+        cache = new ProcessedMessageCache(dir, 4096);
+        byte found[] = cache.get("user", "uid-1", raw, "keys");
+        if ((found != null) && (new String(found).compareTo(new String(processed)) == 0)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // nothing stored in the clear
+        System.out.print("Checking entries are encrypted... ");
+        File files[] = dir.listFiles();
+        boolean clear = false;
+        for (int n = 0; n < files.length; n++) {
+            if (files[n].getName().endsWith(ProcessedMessageCache.ENTRY_EXTENSION)) {
+                byte data[] = new byte[(int)files[n].length()];
+                FileInputStream in = new FileInputStream(files[n]);
+                in.read(data);
+                in.close();
+                if (new String(data, "ISO-8859-1").indexOf("Hello world") >= 0)
+                    clear = true;
+            }
+        }
+        if (!clear) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // each part of the key matters
+        System.out.print("Checking changed keys miss... ");
+        byte changed[] = "Subject: test\r\n\r\n-----BEGIN PGP MESSAGE-----\r\n,,,".getBytes();
+        if ((cache.get("other", "uid-1", raw, "keys") == null) && (cache.get("user", "uid-2", raw, "keys") == null) 
+            && (cache.get("user", "uid-1", changed, "keys") == null) && (cache.get("user", "uid-1", raw, "newkeys") == null)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // tampering is detected
+        System.out.print("Checking a damaged entry is dropped... ");
+        for (int n = 0; n < files.length; n++) {
+            if (files[n].getName().endsWith(ProcessedMessageCache.ENTRY_EXTENSION)) {
+                RandomAccessFile f = new RandomAccessFile(files[n], "rw");
+                f.seek(20);
+                int b = f.read();
+                f.seek(20);
+                f.write(b ^ 1);
+                f.close();
+            }
+        }
+        if ((cache.get("user", "uid-1", raw, "keys") == null) && (cache.getEntryCount() == 0)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // least recently used goes first
+        System.out.print("Checking LRU eviction... ");
+        byte big[] = new byte[900]; // about 950 bytes once encrypted, so four fit
+        for (int n = 0; n < 4; n++)
+            cache.put("user", "uid-" + n, raw, "keys", big);
+        cache.get("user", "uid-0", raw, "keys"); // 1 is now the oldest
+        cache.put("user", "uid-4", raw, "keys", big);
+        if ((cache.get("user", "uid-0", raw, "keys") != null) && (cache.get("user", "uid-1", raw, "keys") == null) 
+            && (cache.get("user", "uid-4", raw, "keys") != null) && (cache.getSize() <= cache.getMaxSize())) {
+            System.out.println("(" + cache.getEntryCount() + " entries, " + cache.getSize() + " bytes) Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // an entry moved over another is not served for the wrong message
+        System.out.print("Checking a renamed entry is dropped... ");
+        cache.clear();
+        cache.put("user", "uid-a", raw, "keys", "Message A".getBytes());
+        File entryA = dir.listFiles(new EntryFilter())[0];
+        cache.put("user", "uid-b", raw, "keys", "Message B".getBytes());
+        File entryB = null;
+        files = dir.listFiles(new EntryFilter());
+        for (int n = 0; n < files.length; n++) {
+            if (!files[n].equals(entryA))
+                entryB = files[n];
+        }
+        entryB.delete();
+        entryA.renameTo(entryB);
+        if ((cache.get("user", "uid-b", raw, "keys") == null) && (cache.getEntryCount() == 1)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // tidy up
+        cache.clear();
+        new File(dir, ProcessedMessageCache.KEY_FILE).delete();
+        dir.delete();
+        
+        return result;
+    }
+    
+    /** Accepts cache entry files. */
+    private static class EntryFilter implements FileFilter {
+        public boolean accept(File f) {
+            return f.getName().endsWith(ProcessedMessageCache.ENTRY_EXTENSION);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import java.security.*;
+import org.bouncycastle.jce.provider.*;
+import core.algorithmhandlers.openpgp.*;
+import core.algorithmhandlers.openpgp.packets.*;
+import core.algorithmhandlers.openpgp.util.*;
+import core.algorithmhandlers.*;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.*;
+import core.exceptions.*;
+import core.email.Email;
+import java.io.*;
+
+/**
+ * <p>This test signs some data with each of the SHA-2 family hash algorithms using a V4 signature packet, and 
+ * then attempts to verify the encoded and decoded signature.</p>
+ * <p>The test also checks hash algorithm negotiation against a number of recipient preference lists, and that mail that 
+ * is only signed is signed without looking up the recipients' keys.</p>
+ */
+public class TestSHA2Signature extends Test {
+    
+    /* Filenames. */
+    public final String secretkeyfile = "test/testdata/IcewingSecretKey_v4.packet";
+    public final String pubring = "test/testdata/Test4_pubring.pkr";
+    public final String secring = "test/testdata/Test4_secring.skr";
+    
+    /* Algorithm settings */
+    public final int signatureAlgorithm = 1;
+    public final int hashAlgorithms[] = {
+        HashAlgorithmSettings.SHA224, 
+        HashAlgorithmSettings.SHA256, 
+        HashAlgorithmSettings.SHA384, 
+        HashAlgorithmSettings.SHA512 
+    };
+    
+    /* Literal packet data 1 */ 
+    public final String rawdata = "This is some data that will be signed...";
+    
+    /** Creates a new instance of TestSHA2Signature */
+    public TestSHA2Signature() {
+        setTestName("Test SHA-2 Signatures"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestSHA2Signature t = new TestSHA2Signature();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     * @throws Exception if something went wrong.
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        // add bouncycastle provider
+        System.out.println("Adding Bouncy Castle JCE provider...");
+        Security.addProvider(new BouncyCastleProvider());
+        
+        // extract secret key
+        System.out.println("Reading signer's Public/Private keypair from ("+secretkeyfile+")...");
+            OpenPGPPacketInputStream tmpin = new OpenPGPPacketInputStream(new FileInputStream(secretkeyfile));
+            SecretKeyPacket skp = (SecretKeyPacket)tmpin.readPacket();
+            tmpin.close();
+            
+            byte [] pass = {'t','e','s','t'};
+            skp.decryptKeyData(pass);
+        
+        for (int n = 0; n < hashAlgorithms.length; n++) {
+            
+            System.out.println("Signing with " + HashAlgorithmSettings.getHashText(hashAlgorithms[n]) + "...");
+                SignaturePacket sp = new SignaturePacket(new V4SignatureMaterial(
+                    skp.getKeyData().getPrivateKey(),
+                    0,
+                    skp.getKeyID(),
+                    0x00,
+                    signatureAlgorithm,
+                    hashAlgorithms[n],
+                    rawdata.getBytes()
+                ));
+            
+            // encode and decode
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            OpenPGPPacketOutputStream pout = new OpenPGPPacketOutputStream(out);
+            pout.writePacket(sp);
+            pout.close();
+            
+            OpenPGPPacketInputStream pin = new OpenPGPPacketInputStream(new ByteArrayInputStream(out.toByteArray()));
+            SignaturePacket sp2 = (SignaturePacket)pin.readPacket();
+            pin.close();
+            
+            System.out.print("Checking hash algorithm survived encoding...");
+            if (sp2.getSignatureData().getHashAlgorithm() == hashAlgorithms[n]) {
+                System.out.println("Ok.");
+            } else {
+                System.out.println("ERROR!");
+                result = false;
+            }
+            
+            System.out.print("Verifying correct data...");
+            if (sp2.verify(skp.getKeyData().getPublicKey(), rawdata.getBytes())) {
+                System.out.println("Ok.");
+            } else {
+                System.out.println("ERROR!");
+                result = false;
+            }
+            
+            System.out.print("Verifying modified data (should fail)...");
+            if (!sp2.verify(skp.getKeyData().getPublicKey(), (rawdata + ".").getBytes())) {
+                System.out.println("failed...Ok.");
+            } else {
+                System.out.println("succeeded?!?...ERROR!");
+                result = false;
+            }
+        }
+        
+        // negotiation
+        System.out.println("Testing hash algorithm negotiation...");
+            byte shaonly[] = {HashAlgorithmSettings.SHA256, HashAlgorithmSettings.SHA1};
+            byte [][] prefs1 = {null, HashAlgorithmSettings.getDefaultPreferences()};
+            byte [][] prefs2 = {HashAlgorithmSettings.getDefaultPreferences(), shaonly};
+            byte [][] prefs3 = {shaonly, {HashAlgorithmSettings.MD5}};
+            
+            result &= checkNegotiation(HashAlgorithmSettings.SHA512, prefs1, HashAlgorithmSettings.SHA512);
+            result &= checkNegotiation(HashAlgorithmSettings.SHA512, prefs2, HashAlgorithmSettings.SHA256);
+            result &= checkNegotiation(HashAlgorithmSettings.SHA512, prefs3, HashAlgorithmSettings.SHA1);
+            result &= checkNegotiation(HashAlgorithmSettings.SHA384, null, HashAlgorithmSettings.SHA384);
+        
+        // only encrypted mail needs the recipients' keys
+        System.out.print("Signing without encrypting looks up no recipient keys...");
+            final OpenPGPPublicKeyring ring = new OpenPGPPublicKeyring(pubring, null);
+            final int calls[] = {0};
+            KeyHandler counting = new KeyHandler() {
+                public KeyData [] findKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException, ChecksumFailureException {
+                    calls[0]++;
+                    return ring.findKeys(id, parameters);
+                }
+                public void addKeys(KeyData key[], KeyIdentifier idDetails[], KeyHandlerParameters parameters[]) throws KeyHandlerException {}
+                public int removeKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException { return 0; }
+                public void changeSetting(KeyHandlerParameters parameters) throws KeyHandlerException {}
+                public Object [] toArray() throws KeyHandlerException { return null; }
+            };
+            
+            OpenPGPHandler handler = new OpenPGPHandler(SymmetricAlgorithmSettings.CAST5, HashAlgorithmSettings.SHA256);
+            KeyHandler pub[] = { counting };
+            KeyHandler sec[] = { new OpenPGPSecretKeyring(secring, null) };
+            PassPhrase passPhrases[] = { new PassPhrase(pass) };
+            Email email = new Email(("From: test4 <test4@brookes.ac.uk>\r\nTo: test4 <test4@brookes.ac.uk>\r\nSubject: Signed\r\n\r\n" + rawdata + "\r\n").getBytes());
+            
+            Email signed = handler.processOutgoingMail(false, true, pub, sec, email, passPhrases);
+            boolean ok = (calls[0] == 0) && (new String(signed.getBytes()).indexOf("BEGIN PGP SIGNATURE") >= 0);
+            
+            handler.processOutgoingMail(true, true, pub, sec, email, passPhrases);
+            ok = ok && (calls[0] > 0);
+            
+            if (ok) {
+                System.out.println("Ok.");
+            } else {
+                System.out.println("ERROR!");
+                result = false;
+            }
+     
+        return result;
+    }
+    
+    /** Check that a negotiation returns what is expected. */
+    private boolean checkNegotiation(int requested, byte [][] prefs, int expected) throws Exception {
+        int got = HashAlgorithmSettings.negotiate(requested, prefs);
+        
+        System.out.print("Requested " + HashAlgorithmSettings.getHashText(requested) + ", expecting " + HashAlgorithmSettings.getHashText(expected) + "...");
+        if (got == expected) {
+            System.out.println("Ok.");
+            return true;
+        } 
+        
+        System.out.println("got " + HashAlgorithmSettings.getHashText(got) + "...ERROR!");
+        return false;
+    }
+    
+}
@@ -0,0 +1,125 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import core.algorithmhandlers.openpgp.util.SignatureVerificationCache;
+
+/**
+ * <p>Test the signature verification cache, checking that outcomes are only found for the same signature, data and key, that 
+ * invalidating a key forgets its outcomes and that the oldest outcomes are dropped when the cache is full.</p>
+ */
+public class TestSignatureVerificationCache extends Test {
+    
+    /** Creates a new instance of TestSignatureVerificationCache */
+    public TestSignatureVerificationCache() {
+        setTestName("Test SignatureVerificationCache"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestSignatureVerificationCache t = new TestSignatureVerificationCache();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        SignatureVerificationCache cache = new SignatureVerificationCache(3);
+        
+        byte sig[] = "signature".getBytes();
+        byte data[] = "signed data".getBytes();
+        byte keyA[] = {1, 2, 3, 4};
+        byte keyB[] = {5, 6, 7, 8};
+        
+        // stored outcomes are found
+        System.out.print("Remembering outcomes... ");
+        cache.put(SignatureVerificationCache.makeKey(sig, data, keyA), true);
+        cache.put(SignatureVerificationCache.makeKey(sig, "other data".getBytes(), keyA), false);
+        
+        if ((cache.get(SignatureVerificationCache.makeKey(sig, data, keyA)) == Boolean.TRUE) &&
+            (cache.get(SignatureVerificationCache.makeKey(sig, "other data".getBytes(), keyA)) == Boolean.FALSE)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // a different key (eg. a replaced key with the same key ID) or signature is not found
+        System.out.print("Checking other keys and signatures miss... ");
+        if ((cache.get(SignatureVerificationCache.makeKey(sig, data, keyB)) == null) &&
+            (cache.get(SignatureVerificationCache.makeKey("other".getBytes(), data, keyA)) == null)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // invalidating a key forgets only its outcomes
+        System.out.print("Invalidating a revoked key... ");
+        cache.put(SignatureVerificationCache.makeKey(sig, data, keyB), true);
+        cache.invalidate(keyA);
+        
+        if ((cache.size() == 1) && (cache.get(SignatureVerificationCache.makeKey(sig, data, keyA)) == null) &&
+            (cache.get(SignatureVerificationCache.makeKey(sig, data, keyB)) == Boolean.TRUE)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // least recently used outcomes are dropped
+        System.out.print("Dropping old outcomes... ");
+        cache.clear();
+        for (int n = 0; n < 3; n++)
+            cache.put(SignatureVerificationCache.makeKey(sig, new byte[] {(byte)n}, keyA), true);
+        cache.get(SignatureVerificationCache.makeKey(sig, new byte[] {0}, keyA)); // 1 is now the oldest
+        cache.put(SignatureVerificationCache.makeKey(sig, new byte[] {3}, keyA), true);
+        
+        if ((cache.size() == 3) && (cache.get(SignatureVerificationCache.makeKey(sig, new byte[] {1}, keyA)) == null) &&
+            (cache.get(SignatureVerificationCache.makeKey(sig, new byte[] {0}, keyA)) != null)) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+import system.WorkerPool;
+
+/**
+ * <p>Test the worker pool, checking that every job in a batch is run, that results come back in submission order, that 
+ * a failing job is reported to the caller, that errors reach the caller unchanged and that jobs can submit batches of their own.</p>
+ */
+public class TestWorkerPool extends Test {
+    
+    /** Creates a new instance of TestWorkerPool */
+    public TestWorkerPool() {
+        setTestName("Test WorkerPool"); // name of the test to be printed on the console.
+    }
+    
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        TestWorkerPool t = new TestWorkerPool();
+        
+        t.printWelcome();
+        
+        t.doTest();
+    }
+    
+    /** <p>Execute the test.</p>
+     * <p>You should implement this method with your test. Return true if the test
+     * was successful, otherwise return false.</p>
+     */
+    public boolean test() throws Exception {
+        boolean result = true;
+        
+        WorkerPool pool = new WorkerPool(4);
+        
+        // results in order
+        System.out.print("Running 100 jobs on " + pool.getThreadCount() + " threads... ");
+        SquareJob jobs[] = new SquareJob[100];
+        for (int n = 0; n < jobs.length; n++)
+            jobs[n] = new SquareJob(n, null);
+        pool.execute(jobs);
+        
+        boolean ok = true;
+        for (int n = 0; n < jobs.length; n++) {
+            if (jobs[n].result != n*n) 
+                ok = false;
+        }
+        if (ok) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // failure reported
+        System.out.print("Checking a failing job is reported... ");
+        jobs = new SquareJob[20];
+        for (int n = 0; n < jobs.length; n++)
+            jobs[n] = new SquareJob((n == 7) ? -1 : n, null);
+        try {
+            pool.execute(jobs);
+            System.out.println("...ERROR!");
+            result = false;
+        } catch (Exception e) {
+            System.out.println("(" + e.getMessage() + ") Ok.");
+        }
+        
+        // errors are rethrown as they are
+        System.out.print("Checking an error is passed on... ");
+        jobs = new SquareJob[20];
+        for (int n = 0; n < jobs.length; n++)
+            jobs[n] = new SquareJob((n == 11) ? -2 : n, null);
+        try {
+            pool.execute(jobs);
+            System.out.println("...ERROR!");
+            result = false;
+        } catch (OutOfMemoryError e) {
+            System.out.println("(" + e.getMessage() + ") Ok.");
+        } catch (Exception e) {
+            System.out.println("(" + e.getMessage() + ") ...ERROR!");
+            result = false;
+        }
+        
+        // nested batches must not deadlock, even with more batches than threads
+        System.out.print("Running nested batches... ");
+        jobs = new SquareJob[8];
+        for (int n = 0; n < jobs.length; n++)
+            jobs[n] = new SquareJob(n, pool);
+        pool.execute(jobs);
+        
+        ok = true;
+        for (int n = 0; n < jobs.length; n++) {
+            if (jobs[n].result != n*n + 14) 
+                ok = false;
+        }
+        if (ok) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        // shut down pools run jobs on the caller
+        System.out.print("Running jobs after shutdown... ");
+        pool.shutdown();
+        jobs = new SquareJob[5];
+        for (int n = 0; n < jobs.length; n++)
+            jobs[n] = new SquareJob(n, null);
+        pool.execute(jobs);
+        
+        if (jobs[4].result == 16) {
+            System.out.println("Ok.");
+        } else {
+            System.out.println("...ERROR!");
+            result = false;
+        }
+        
+        return result;
+    }
+    
+    /** Squares a number, optionally adding the results of a nested batch. */
+    private class SquareJob implements WorkerPool.Job {
+        
+        int value;
+        int result;
+        WorkerPool nested;
+        
+        SquareJob(int v, WorkerPool pool) {
+            value = v;
+            nested = pool;
+        }
+        
+        public void run() throws Exception {
+            if (value == -2)
+                throw new OutOfMemoryError("Test error");
+            if (value < 0)
+                throw new Exception("Negative value");
+            
+            Thread.sleep(2);
+            result = value * value;
+            
+            if (nested != null) {
+                SquareJob sub[] = new SquareJob[4];
+                for (int n = 0; n < sub.length; n++)
+                    sub[n] = new SquareJob(n, null);
+                nested.execute(sub);
+                
+                for (int n = 0; n < sub.length; n++)
+                    result += sub[n].result; // 0 + 1 + 4 + 9
+            }
+        }
+    }
+}
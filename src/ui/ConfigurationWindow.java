@@ -187,7 +187,7 @@ public class ConfigurationWindow extends javax.swing.JDialog {
         jLabel15.setText("Symmetric Algorithm");
         jPanel8.add(jLabel15);
 
-        jComboBox3.setModel(new javax.swing.DefaultComboBoxModel(populateComboBox("openpgp.symmetricalgorithm.available","IDEA,CAST5,3DES")));
+        jComboBox3.setModel(new javax.swing.DefaultComboBoxModel(populateComboBox("openpgp.symmetricalgorithm.available","IDEA,CAST5,3DES,AES128,AES192,AES256")));
         jComboBox3.setSelectedItem(configurationData.getSetting("openpgp.symmetricalgorithm.used","IDEA"));
         jComboBox3.setPreferredSize(new java.awt.Dimension(150, 25));
         jPanel8.add(jComboBox3);
@@ -118,10 +118,10 @@ public class KeyGenStatusDlg extends javax.swing.JDialog {
                     }
                     
                     // save new keys
-                    pubparam[0] = new OpenPGPAddKeyParameters(now, dsa, null);
-                    secparam[0] = new OpenPGPAddSecretKeyParameters(now, dsa, null, passphrase, symmetricAlg, HashAlgorithmSettings.SHA1);
-                    pubparam[1] = new OpenPGPAddKeyParameters(now, pka,null);
-                    secparam[1] = new OpenPGPAddSecretKeyParameters(now, pka, null, passphrase, symmetricAlg, HashAlgorithmSettings.SHA1);
+                    pubparam[0] = new OpenPGPAddKeyParameters(now, dsa, null, HashAlgorithmSettings.getDefaultPreferences());
+                    secparam[0] = new OpenPGPAddSecretKeyParameters(now, dsa, null, passphrase, symmetricAlg, HashAlgorithmSettings.SHA256);
+                    pubparam[1] = new OpenPGPAddKeyParameters(now, pka, null, HashAlgorithmSettings.getDefaultPreferences());
+                    secparam[1] = new OpenPGPAddSecretKeyParameters(now, pka, null, passphrase, symmetricAlg, HashAlgorithmSettings.SHA256);
  
                     
                     setIndeterminate(false);
@@ -651,6 +651,12 @@ public class OpenPGPKeyManager extends javax.swing.JDialog {
                 symmetricAlgorithm = SymmetricAlgorithmSettings.CAST5;
             } else if ("3DES".compareToIgnoreCase(symAlg)==0) {
                 symmetricAlgorithm = SymmetricAlgorithmSettings.TRIPLEDES;
+            } else if ("AES128".compareToIgnoreCase(symAlg)==0) {
+                symmetricAlgorithm = SymmetricAlgorithmSettings.AES128;
+            } else if ("AES192".compareToIgnoreCase(symAlg)==0) {
+                symmetricAlgorithm = SymmetricAlgorithmSettings.AES192;
+            } else if ("AES256".compareToIgnoreCase(symAlg)==0) {
+                symmetricAlgorithm = SymmetricAlgorithmSettings.AES256;
             } else {
                 System.err.println("Symmetric algorithm '"+symAlg+"' is not supported.");
                 return;
@@ -749,6 +755,7 @@ public class OpenPGPKeyManager extends javax.swing.JDialog {
             configurationData.setSetting("keymanager.openpgp.publiclist."+n+".filename", "");
             configurationData.setSetting("keymanager.openpgp.publiclist."+n+".serverport", "");
             configurationData.setSetting("keymanager.openpgp.publiclist."+n+".serveraddress", "");
+            configurationData.setSetting("keymanager.openpgp.publiclist."+n+".appendonly", "");
             n++;
         }
         
@@ -758,6 +765,7 @@ public class OpenPGPKeyManager extends javax.swing.JDialog {
             configurationData.setSetting("keymanager.openpgp.secretlist."+n+".filename", "");
             configurationData.setSetting("keymanager.openpgp.secretlist."+n+".serverport", "");
             configurationData.setSetting("keymanager.openpgp.secretlist."+n+".serveraddress", "");
+            configurationData.setSetting("keymanager.openpgp.secretlist."+n+".appendonly", "");
             n++;
         }
     
@@ -777,6 +785,9 @@ public class OpenPGPKeyManager extends javax.swing.JDialog {
             } else if (publiclist.getElementAt(n) instanceof KeyFile) {
                 KeyFile ks = (KeyFile)publiclist.getElementAt(n);
                 configurationData.setSetting("keymanager.openpgp.publiclist."+(n+1)+".filename", ks.getFileName());
+                
+                if ((ks instanceof OpenPGPKeyring) && (((OpenPGPKeyring)ks).isAppendOnly()))
+                    configurationData.setSetting("keymanager.openpgp.publiclist."+(n+1)+".appendonly", "true");
             } else {
                 System.err.println("Unrecognised key handler type.");
             }
@@ -793,6 +804,9 @@ public class OpenPGPKeyManager extends javax.swing.JDialog {
             } else if (secretlist.getElementAt(n) instanceof KeyFile) {
                 KeyFile ks = (KeyFile)secretlist.getElementAt(n);
                 configurationData.setSetting("keymanager.openpgp.secretlist."+(n+1)+".filename", ks.getFileName());
+                
+                if ((ks instanceof OpenPGPKeyring) && (((OpenPGPKeyring)ks).isAppendOnly()))
+                    configurationData.setSetting("keymanager.openpgp.secretlist."+(n+1)+".appendonly", "true");
             } else {
                 System.err.println("Unrecognised key handler type.");
             }